@@ -0,0 +1,109 @@
+package email.kulakov.test.moneytransfer.benchmark;
+
+import email.kulakov.test.moneytransfer.db.BlockingDatastore;
+import email.kulakov.test.moneytransfer.db.ConcurrentDatastore;
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+//Memory footprint of account churn: accounts are opened, get the money of the account they replace, and the empty
+//one is closed (or left open), so live accounts are open at any time. retainedBytes is the heap used after a full GC
+//once all churned accounts went through, compare close=true with close=false. Time includes the GCs.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class AccountChurnBenchmark {
+
+    private static final BigDecimal AMOUNT = new BigDecimal("10.00");
+
+    @Param({"ConcurrentDatastore", "BlockingDatastore"})
+    public String datastoreName;
+
+    @Param({"5000000"})
+    public int churned;
+
+    @Param({"10000"})
+    public int live;
+
+    @Param({"true", "false"})
+    public boolean close;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long retainedBytes;
+        public long closedAccounts;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            retainedBytes = 0;
+            closedAccounts = 0;
+        }
+    }
+
+    @Benchmark
+    public Datastore churn(Footprint footprint) {
+        final Datastore datastore = createDatastore();
+        final long[] accounts = new long[live];
+        for (int i = 0; i < churned; i++) {
+            final int slot = i % live;
+            final long replaced = accounts[slot];
+            final long accountId = datastore.createAccount();
+            if (replaced == 0) {
+                check(datastore.changeMoney(accountId, AMOUNT));
+            } else {
+                check(datastore.transferMoney(replaced, accountId, AMOUNT));
+                if (close) {
+                    check(datastore.closeAccount(replaced));
+                    footprint.closedAccounts++;
+                }
+            }
+            accounts[slot] = accountId;
+        }
+        footprint.retainedBytes = retainedBytes();
+        return datastore;
+    }
+
+    private static long retainedBytes() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 2; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void check(OperationResult result) {
+        if (!result.isSuccess()) {
+            throw new IllegalStateException("Churn operation failed: " + result);
+        }
+    }
+
+    private Datastore createDatastore() {
+        switch (datastoreName) {
+            case "ConcurrentDatastore":
+                return new ConcurrentDatastore();
+            case "BlockingDatastore":
+                return new BlockingDatastore();
+            default:
+                throw new IllegalArgumentException("Unknown datastore " + datastoreName);
+        }
+    }
+}
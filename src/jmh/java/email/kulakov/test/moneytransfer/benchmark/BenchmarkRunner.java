@@ -0,0 +1,39 @@
+package email.kulakov.test.moneytransfer.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+//Runs DatastoreBenchmark once per thread count with the GC profiler. Thread counts are program arguments.
+public final class BenchmarkRunner {
+
+    private static final int[] DEFAULT_THREADS = {1, 4, 16};
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        final int[] threadCounts = args.length == 0 ? DEFAULT_THREADS : parse(args);
+        for (int threads : threadCounts) {
+            final Options options = new OptionsBuilder()
+                    .include(DatastoreBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("build/reports/jmh/datastore-" + threads + "-threads.json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+    private static int[] parse(String[] args) {
+        final int[] threadCounts = new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            threadCounts[i] = Integer.parseInt(args[i]);
+        }
+        return threadCounts;
+    }
+}
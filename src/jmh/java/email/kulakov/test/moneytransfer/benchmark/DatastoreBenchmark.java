@@ -0,0 +1,143 @@
+package email.kulakov.test.moneytransfer.benchmark;
+
+import email.kulakov.test.moneytransfer.db.BlockingDatastore;
+import email.kulakov.test.moneytransfer.db.ConcurrentDatastore;
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.LedgerDatastore;
+import email.kulakov.test.moneytransfer.db.MappedDatastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.ShardedDatastore;
+import email.kulakov.test.moneytransfer.limits.AccountLimits;
+import email.kulakov.test.moneytransfer.limits.SpendingLimitDatastore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+//Same harness for every Datastore. Throughput and SampleTime (latency percentiles) modes,
+//run with the GC profiler (see BenchmarkRunner) for allocation rate per operation.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatastoreBenchmark {
+
+    private static final BigDecimal INITIAL_BALANCE = new BigDecimal("1000000.00");
+    private static final BigDecimal DELTA = new BigDecimal("0.01");
+
+    //"+limits" adds SpendingLimitDatastore without limits: the cost of the window checks on every debit.
+    @Param({"ConcurrentDatastore", "ConcurrentDatastore+limits", "BlockingDatastore", "LedgerDatastore",
+            "MappedDatastore", "ShardedDatastore"})
+    public String datastoreName;
+
+    @Param({"1000", "1000000"})
+    public int accounts;
+
+    @Param({"uniform", "zipfian"})
+    public String distribution;
+
+    Datastore datastore;
+    ZipfianGenerator zipfian;
+    private Path dataDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        datastore = createDatastore();
+        for (int i = 0; i < accounts; i++) {
+            final long accountId = datastore.createAccount();
+            datastore.changeMoney(accountId, INITIAL_BALANCE);
+        }
+        zipfian = "zipfian".equals(distribution) ? new ZipfianGenerator(accounts, ZipfianGenerator.DEFAULT_THETA) : null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (datastore instanceof Closeable) {
+            ((Closeable) datastore).close();
+        }
+        if (dataDirectory != null) {
+            try (Stream<Path> files = Files.walk(dataDirectory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public OperationResult changeMoney(ThreadState thread) {
+        //Alternating sign keeps balances stable over the run.
+        return datastore.changeMoney(thread.nextAccount(this), thread.nextSign() ? DELTA : DELTA.negate());
+    }
+
+    @Benchmark
+    public OperationResult transferMoney(ThreadState thread) {
+        return datastore.transferMoney(thread.nextAccount(this), thread.nextAccount(this), DELTA);
+    }
+
+    @Benchmark
+    public BigDecimal balance(ThreadState thread) {
+        return datastore.balance(thread.nextAccount(this));
+    }
+
+    private Datastore createDatastore() throws IOException {
+        switch (datastoreName) {
+            case "ConcurrentDatastore":
+                return new ConcurrentDatastore();
+            case "ConcurrentDatastore+limits":
+                dataDirectory = Files.createTempDirectory("datastore-benchmark");
+                return new SpendingLimitDatastore(new ConcurrentDatastore(),
+                        new AccountLimits(dataDirectory.resolve(AccountLimits.FILE_NAME), accountId -> false),
+                        SpendingLimitDatastore.NO_DAILY_LIMIT, SpendingLimitDatastore.NO_VELOCITY_LIMIT);
+            case "BlockingDatastore":
+                return new BlockingDatastore();
+            case "LedgerDatastore":
+                return new LedgerDatastore();
+            case "MappedDatastore":
+                dataDirectory = Files.createTempDirectory("datastore-benchmark");
+                return new MappedDatastore(dataDirectory);
+            case "ShardedDatastore":
+                return new ShardedDatastore();
+            default:
+                throw new IllegalArgumentException("Unknown datastore " + datastoreName);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        private final SplittableRandom random = new SplittableRandom();
+        private boolean sign;
+
+        long nextAccount(DatastoreBenchmark benchmark) {
+            final long index = benchmark.zipfian == null
+                    ? random.nextInt(benchmark.accounts)
+                    : benchmark.zipfian.nextScrambled(random);
+            return index + 1;
+        }
+
+        boolean nextSign() {
+            sign = !sign;
+            return sign;
+        }
+    }
+}
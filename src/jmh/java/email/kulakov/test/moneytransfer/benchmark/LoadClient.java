@@ -0,0 +1,270 @@
+package email.kulakov.test.moneytransfer.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+
+//Pipelined HTTP/1.1 client of LoadGenerator: keep-alive connections driven by one selector on the caller thread.
+//Requests are written without waiting for earlier responses, responses come back in order on each connection.
+//A connection the server closes fails its outstanding requests with status FAILED and is opened again.
+final class LoadClient implements Closeable {
+
+    static final int FAILED = -1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] HEADERS_END = {'\r', '\n', '\r', '\n'};
+
+    interface Listener {
+        void completed(LoadRequest request, int status, String body);
+    }
+
+    private final InetSocketAddress address;
+    private final Listener listener;
+    private final Selector selector;
+    private final Connection[] connections;
+    private int nextConnection;
+    private int outstanding;
+
+    LoadClient(InetSocketAddress address, int connectionCount, Listener listener) throws IOException {
+        this.address = address;
+        this.listener = listener;
+        this.selector = Selector.open();
+        this.connections = new Connection[connectionCount];
+        for (int i = 0; i < connectionCount; i++) {
+            connections[i] = new Connection();
+        }
+    }
+
+    InetSocketAddress address() {
+        return address;
+    }
+
+    int outstanding() {
+        return outstanding;
+    }
+
+    void send(LoadRequest request) throws IOException {
+        final Connection connection = connections[nextConnection];
+        nextConnection = (nextConnection + 1) % connections.length;
+        outstanding++;
+        connection.send(request);
+    }
+
+    //Handles IO ready within timeoutMillis, 0 does not wait.
+    void poll(long timeoutMillis) throws IOException {
+        final int ready = timeoutMillis > 0 ? selector.select(timeoutMillis) : selector.selectNow();
+        if (ready == 0) {
+            return;
+        }
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            final SelectionKey key = keys.next();
+            keys.remove();
+            final Connection connection = (Connection) key.attachment();
+            if (key.isValid() && key.isReadable()) {
+                connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        }
+    }
+
+    //Sends the request and polls until its response is handled.
+    void await(LoadRequest request) throws IOException {
+        send(request);
+        while (!request.isCompleted()) {
+            poll(100);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Connection connection : connections) {
+            connection.channel.close();
+        }
+        selector.close();
+    }
+
+    private final class Connection {
+        private final Queue<LoadRequest> pending = new ArrayDeque<>();
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+
+        Connection() throws IOException {
+            open();
+        }
+
+        void send(LoadRequest request) throws IOException {
+            pending.add(request);
+            final byte[] bytes = request.getBytes();
+            if (output.remaining() < bytes.length) {
+                output = grow(output, bytes.length);
+            }
+            output.put(bytes);
+            flush();
+        }
+
+        void flush() throws IOException {
+            output.flip();
+            try {
+                channel.write(output);
+            } catch (IOException e) {
+                output.clear();
+                reopen();
+                return;
+            }
+            output.compact();
+            key.interestOps(output.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        void read() throws IOException {
+            if (!input.hasRemaining()) {
+                input = grow(input, BUFFER_SIZE);
+            }
+            final int read;
+            try {
+                read = channel.read(input);
+            } catch (IOException e) {
+                reopen();
+                return;
+            }
+            if (read < 0) {
+                reopen();
+                return;
+            }
+            input.flip();
+            while (!pending.isEmpty() && parseResponse()) {
+                //Every parsed response completes the oldest request.
+            }
+            input.compact();
+        }
+
+        //Consumes one complete response from input, false when more bytes are needed.
+        private boolean parseResponse() {
+            final int start = input.position();
+            final int headersEnd = indexOf(input, start, HEADERS_END);
+            if (headersEnd < 0) {
+                return false;
+            }
+            final String headers = new String(input.array(), start, headersEnd - start, StandardCharsets.ISO_8859_1);
+            final int status = Integer.parseInt(headers.substring(9, 12));
+            final int bodyStart = headersEnd + HEADERS_END.length;
+            final String lowerCase = headers.toLowerCase();
+            final String body;
+            final int end;
+            if (lowerCase.contains("\r\ntransfer-encoding: chunked")) {
+                final StringBuilder chunks = new StringBuilder();
+                end = parseChunks(bodyStart, chunks);
+                if (end < 0) {
+                    return false;
+                }
+                body = chunks.toString();
+            } else {
+                final int length = contentLength(lowerCase);
+                if (input.limit() - bodyStart < length) {
+                    return false;
+                }
+                body = new String(input.array(), bodyStart, length, StandardCharsets.UTF_8);
+                end = bodyStart + length;
+            }
+            input.position(end);
+            complete(pending.poll(), status, body);
+            return true;
+        }
+
+        //Returns the end of the last chunk, -1 when the body is not complete yet. Trailers are not expected.
+        private int parseChunks(int position, StringBuilder body) {
+            int current = position;
+            while (true) {
+                final int lineEnd = indexOf(input, current, HEADERS_END, 2);
+                if (lineEnd < 0) {
+                    return -1;
+                }
+                final String sizeLine = new String(input.array(), current, lineEnd - current, StandardCharsets.ISO_8859_1);
+                final int semicolon = sizeLine.indexOf(';');
+                final int size = Integer.parseInt((semicolon < 0 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+                final int dataStart = lineEnd + 2;
+                if (input.limit() - dataStart < size + 2) {
+                    return -1;
+                }
+                if (size == 0) {
+                    return dataStart + 2;
+                }
+                body.append(new String(input.array(), dataStart, size, StandardCharsets.UTF_8));
+                current = dataStart + size + 2;
+            }
+        }
+
+        private void open() throws IOException {
+            channel = SocketChannel.open(address);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        private void reopen() throws IOException {
+            key.cancel();
+            channel.close();
+            while (!pending.isEmpty()) {
+                complete(pending.poll(), FAILED, "");
+            }
+            input.clear();
+            output.clear();
+            open();
+        }
+
+        private void complete(LoadRequest request, int status, String body) {
+            outstanding--;
+            request.complete(status);
+            listener.completed(request, status, body);
+        }
+    }
+
+    private static int contentLength(String lowerCaseHeaders) {
+        final int header = lowerCaseHeaders.indexOf("\r\ncontent-length:");
+        if (header < 0) {
+            return 0;
+        }
+        final int valueStart = header + "\r\ncontent-length:".length();
+        final int valueEnd = lowerCaseHeaders.indexOf('\r', valueStart);
+        return Integer.parseInt(lowerCaseHeaders.substring(valueStart, valueEnd < 0 ? lowerCaseHeaders.length() : valueEnd).trim());
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, byte[] pattern) {
+        return indexOf(buffer, from, pattern, pattern.length);
+    }
+
+    //Position of the first length bytes of pattern in buffer between from and limit, -1 if absent.
+    private static int indexOf(ByteBuffer buffer, int from, byte[] pattern, int length) {
+        final byte[] array = buffer.array();
+        for (int i = from; i <= buffer.limit() - length; i++) {
+            int matched = 0;
+            while (matched < length && array[i + matched] == pattern[matched]) {
+                matched++;
+            }
+            if (matched == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int extra) {
+        final ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+}
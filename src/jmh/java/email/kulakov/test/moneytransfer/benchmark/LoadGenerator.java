@@ -0,0 +1,359 @@
+package email.kulakov.test.moneytransfer.benchmark;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import email.kulakov.test.moneytransfer.MoneyTransferApplication;
+import email.kulakov.test.moneytransfer.MoneyTransferGuiceModule;
+import email.kulakov.test.moneytransfer.db.ConcurrentDatastore;
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.MinorUnits;
+import email.kulakov.test.moneytransfer.journal.DurabilityMode;
+import email.kulakov.test.moneytransfer.metrics.LatencyHistogram;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+//Open-loop load test of the real HTTP stack: starts MoneyTransferApplication.createServer on an ephemeral port,
+//creates accounts with one bulk request and sends a mix of create/balance/changeMoney/transferMoney at a fixed rate.
+//Requests are scheduled every 1/rate seconds whatever the server does and latency is measured from the scheduled
+//time, so a stalled server is charged for the requests it delayed (no coordinated omission).
+//At the end it prints latency percentiles and throughput per operation and checks money conservation: the audited
+//total of all balances must equal opening balances plus acknowledged changeMoney deltas. Exits with 1 otherwise.
+//Arguments are key=value, see Options, e.g. "rate=20000 duration=60 accounts=1000000 theta=0.99".
+public final class LoadGenerator {
+
+    enum Operation {
+        CREATE("create"), BALANCE("balance"), CHANGE_MONEY("changeMoney"), TRANSFER_MONEY("transferMoney");
+
+        private final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long OPENING_BALANCE_MINOR = 1_000_00;
+    private static final long MAX_AMOUNT_MINOR = 1_00;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+
+    private final Options options;
+    private final LoadClient client;
+    private final SplittableRandom random = new SplittableRandom(42);
+    private final ZipfianGenerator zipfian;
+    private final int[] mix;
+    private final int mixTotal;
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final TreeMap<String, Long> statuses = new TreeMap<>();
+    private LatencyHistogram intervalLatency = new LatencyHistogram();
+    private long acknowledgedDeltaMinor;
+    private long unknownDeltas;
+    private long maxSendLagNanos;
+    private boolean recording;
+
+    private LoadGenerator(Options options, InetSocketAddress address) throws IOException {
+        this.options = options;
+        this.client = new LoadClient(address, options.connections, this::completed);
+        this.zipfian = options.theta > 0 ? new ZipfianGenerator(options.accounts, options.theta) : null;
+        this.mix = options.mix;
+        this.mixTotal = Arrays.stream(mix).sum();
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Options options = Options.parse(args);
+        final Path dataDirectory = Files.createTempDirectory("load-test");
+        final Injector injector = Guice.createInjector(new MoneyTransferGuiceModule(options.datastore, dataDirectory)
+                .withJournal(options.journal, options.journalLatencyMicros));
+        final Server server = MoneyTransferApplication.createServer(injector, 0);
+        server.start();
+        final boolean conserved;
+        try {
+            final int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+            final LoadGenerator generator = new LoadGenerator(options, new InetSocketAddress("localhost", port));
+            try {
+                conserved = generator.run();
+            } finally {
+                generator.client.close();
+            }
+        } finally {
+            server.stop();
+        }
+        System.exit(conserved ? 0 : 1);
+    }
+
+    private boolean run() throws IOException {
+        System.out.printf(Locale.ROOT, "%s, %d accounts, theta %.2f, %d req/s for %ds after %ds warmup, %d connections%n",
+                options.datastore.getSimpleName(), options.accounts, options.theta, options.rate, options.durationSeconds,
+                options.warmupSeconds, options.connections);
+        createAccounts();
+        drive(options.warmupSeconds);
+        recording = true;
+        final long start = System.nanoTime();
+        drive(options.durationSeconds);
+        final long elapsed = System.nanoTime() - start;
+        printReport(elapsed);
+        return checkConservation();
+    }
+
+    private void createAccounts() throws IOException {
+        final byte[] line = (MinorUnits.toBigDecimal(OPENING_BALANCE_MINOR).toPlainString() + "\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        final byte[] body = new byte[line.length * options.accounts];
+        for (int i = 0; i < options.accounts; i++) {
+            System.arraycopy(line, 0, body, i * line.length, line.length);
+        }
+        final LoadRequest request = LoadRequest.post(Operation.CREATE, System.nanoTime(), 0, "/v1/accounts/bulk",
+                "text/plain", body);
+        client.await(request);
+        if (request.getStatus() != 200) {
+            throw new IllegalStateException("Bulk account creation failed with status " + request.getStatus());
+        }
+    }
+
+    //Sends rate * seconds requests on schedule and waits for all responses.
+    private void drive(int seconds) throws IOException {
+        final long count = (long) options.rate * seconds;
+        final double intervalNanos = 1e9 / options.rate;
+        final long start = System.nanoTime();
+        long nextProgress = start + PROGRESS_INTERVAL_NANOS;
+        long sent = 0;
+        while (sent < count || client.outstanding() > 0) {
+            long now = System.nanoTime();
+            while (sent < count && client.outstanding() < options.maxOutstanding) {
+                final long scheduled = start + (long) (sent * intervalNanos);
+                if (scheduled > now) {
+                    break;
+                }
+                client.send(nextRequest(scheduled));
+                maxSendLagNanos = Math.max(maxSendLagNanos, now - scheduled);
+                sent++;
+            }
+            final long wait = sent < count ? start + (long) (sent * intervalNanos) - now : Long.MAX_VALUE;
+            if (wait >= TimeUnit.MILLISECONDS.toNanos(1)) {
+                client.poll(Math.min(TimeUnit.NANOSECONDS.toMillis(wait), 100));
+            } else {
+                client.poll(0);
+                if (wait > 0) {
+                    LockSupport.parkNanos(Math.min(wait, TimeUnit.MICROSECONDS.toNanos(20)));
+                }
+            }
+            now = System.nanoTime();
+            if (now >= nextProgress) {
+                printProgress(now - start);
+                nextProgress += PROGRESS_INTERVAL_NANOS;
+            }
+        }
+    }
+
+    private LoadRequest nextRequest(long scheduled) {
+        final Operation operation = nextOperation();
+        final long account = nextAccount();
+        switch (operation) {
+            case CREATE:
+                return LoadRequest.post(operation, scheduled, 0, "/v1/accounts/create", "text/plain", new byte[0]);
+            case BALANCE:
+                return LoadRequest.get(operation, scheduled, "/v1/accounts/" + account + "/balance");
+            case CHANGE_MONEY: {
+                final long delta = random.nextLong(1, MAX_AMOUNT_MINOR + 1) * (random.nextBoolean() ? 1 : -1);
+                return LoadRequest.form(operation, scheduled, delta, "/v1/accounts/" + account + "/changeMoney",
+                        "delta=" + MinorUnits.toBigDecimal(delta).toPlainString());
+            }
+            default: {
+                long to = nextAccount();
+                if (to == account) {
+                    to = account % options.accounts + 1;
+                }
+                final long amount = random.nextLong(1, MAX_AMOUNT_MINOR + 1);
+                return LoadRequest.form(operation, scheduled, 0, "/v1/accounts/" + account + "/transferMoney",
+                        "to=" + to + "&amount=" + MinorUnits.toBigDecimal(amount).toPlainString());
+            }
+        }
+    }
+
+    private Operation nextOperation() {
+        int choice = random.nextInt(mixTotal);
+        for (int i = 0; i < mix.length; i++) {
+            choice -= mix[i];
+            if (choice < 0) {
+                return Operation.values()[i];
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    //Accounts created during the run are not chosen, ids of the bulk-created ones are 1..accounts.
+    private long nextAccount() {
+        return 1 + (zipfian == null ? random.nextInt(options.accounts) : zipfian.nextScrambled(random));
+    }
+
+    private void completed(LoadRequest request, int status, String body) {
+        if (request.getOperation() == Operation.CHANGE_MONEY) {
+            if (status == 200) {
+                acknowledgedDeltaMinor += request.getDeltaMinor();
+            } else if (status == LoadClient.FAILED) {
+                unknownDeltas++;
+            }
+        }
+        if (!recording) {
+            return;
+        }
+        final long latency = System.nanoTime() - request.getScheduledNanos();
+        latencies[request.getOperation().ordinal()].record(latency);
+        intervalLatency.record(latency);
+        statuses.merge(request.getOperation().label + " " + (status == LoadClient.FAILED ? "failed" : status), 1L,
+                Long::sum);
+    }
+
+    private void printProgress(long elapsedNanos) {
+        final LatencyHistogram interval = intervalLatency;
+        intervalLatency = new LatencyHistogram();
+        System.out.printf(Locale.ROOT, "%6ds %s%10.0f req/s  p99 %8.2f ms  max %8.2f ms  outstanding %d%n",
+                TimeUnit.NANOSECONDS.toSeconds(elapsedNanos), recording ? "" : "(warmup) ",
+                interval.count() * 1e9 / PROGRESS_INTERVAL_NANOS, millis(interval.valueAt(0.99)),
+                millis(interval.valueAt(1.0)), client.outstanding());
+    }
+
+    private void printReport(long elapsedNanos) {
+        System.out.printf(Locale.ROOT, "%n%-14s %10s %10s %9s %9s %9s %9s %9s%n", "operation", "count", "req/s",
+                "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        long total = 0;
+        for (Operation operation : Operation.values()) {
+            final LatencyHistogram histogram = latencies[operation.ordinal()];
+            total += histogram.count();
+            System.out.printf(Locale.ROOT, "%-14s %10d %10.0f", operation.label, histogram.count(),
+                    histogram.count() * 1e9 / elapsedNanos);
+            for (double quantile : QUANTILES) {
+                System.out.printf(Locale.ROOT, " %9.2f", millis(histogram.valueAt(quantile)));
+            }
+            System.out.println();
+        }
+        System.out.printf(Locale.ROOT, "%-14s %10d %10.0f (target %d)%n", "total", total, total * 1e9 / elapsedNanos,
+                options.rate);
+        System.out.printf(Locale.ROOT, "max send lag %.2f ms%n", millis(maxSendLagNanos));
+        statuses.forEach((status, count) -> System.out.println("  " + status + ": " + count));
+    }
+
+    private boolean checkConservation() throws IOException {
+        final LoadRequest audit = LoadRequest.post(Operation.BALANCE, System.nanoTime(), 0, "/admin/audit",
+                "text/plain", new byte[0]);
+        final String[] report = new String[1];
+        final LoadClient auditClient = new LoadClient(client.address(), 1, (request, status, body) -> report[0] = body);
+        try {
+            auditClient.await(audit);
+        } finally {
+            auditClient.close();
+        }
+        if (audit.getStatus() != 200) {
+            System.out.println("conservation: audit failed with status " + audit.getStatus());
+            return false;
+        }
+        BigDecimal total = null;
+        for (String line : report[0].split("\n")) {
+            if (line.startsWith("total=")) {
+                total = new BigDecimal(line.substring("total=".length()));
+            }
+        }
+        final BigDecimal expected = MinorUnits.toBigDecimal(OPENING_BALANCE_MINOR * options.accounts
+                + acknowledgedDeltaMinor);
+        if (unknownDeltas > 0) {
+            System.out.printf("conservation: unknown, %d changeMoney requests failed without a response%n", unknownDeltas);
+            return false;
+        }
+        final boolean conserved = total != null && total.compareTo(expected) == 0;
+        System.out.printf("conservation: %s, total %s, expected %s%n", conserved ? "OK" : "FAILED",
+                total == null ? "?" : total.toPlainString(), expected.toPlainString());
+        return conserved;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    //key=value arguments, defaults below.
+    static final class Options {
+        Class<? extends Datastore> datastore = ConcurrentDatastore.class;
+        DurabilityMode journal = DurabilityMode.NONE;
+        long journalLatencyMicros = 2000;
+        int rate = 10_000;
+        int durationSeconds = 30;
+        int warmupSeconds = 5;
+        int accounts = 10_000;
+        //0 chooses accounts uniformly.
+        double theta = ZipfianGenerator.DEFAULT_THETA;
+        //Weights of create:balance:changeMoney:transferMoney.
+        int[] mix = {1, 40, 20, 39};
+        int connections = 16;
+        //Requests waiting for a response, later ones are sent when it drops but keep their scheduled time.
+        int maxOutstanding = 10_000;
+
+        @SuppressWarnings("unchecked")
+        static Options parse(String[] args) throws ClassNotFoundException {
+            final Options options = new Options();
+            for (String arg : args) {
+                final int separator = arg.indexOf('=');
+                if (separator < 0) {
+                    throw new IllegalArgumentException("Expected key=value: " + arg);
+                }
+                final String value = arg.substring(separator + 1);
+                switch (arg.substring(0, separator)) {
+                    case "datastore":
+                        options.datastore = (Class<? extends Datastore>) Class.forName(
+                                value.contains(".") ? value : Datastore.class.getPackage().getName() + "." + value);
+                        break;
+                    case "journal":
+                        options.journal = DurabilityMode.valueOf(value);
+                        break;
+                    case "journalLatencyMicros":
+                        options.journalLatencyMicros = Long.parseLong(value);
+                        break;
+                    case "rate":
+                        options.rate = Integer.parseInt(value);
+                        break;
+                    case "duration":
+                        options.durationSeconds = Integer.parseInt(value);
+                        break;
+                    case "warmup":
+                        options.warmupSeconds = Integer.parseInt(value);
+                        break;
+                    case "accounts":
+                        options.accounts = Integer.parseInt(value);
+                        break;
+                    case "theta":
+                        options.theta = Double.parseDouble(value);
+                        break;
+                    case "mix":
+                        options.mix = Arrays.stream(value.split(":")).mapToInt(Integer::parseInt).toArray();
+                        if (options.mix.length != Operation.values().length) {
+                            throw new IllegalArgumentException("mix is create:balance:changeMoney:transferMoney");
+                        }
+                        break;
+                    case "connections":
+                        options.connections = Integer.parseInt(value);
+                        break;
+                    case "maxOutstanding":
+                        options.maxOutstanding = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            return options;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package email.kulakov.test.moneytransfer.benchmark;
+
+import java.nio.charset.StandardCharsets;
+
+//One HTTP request of LoadGenerator with the time it was scheduled at, latency is measured from that time.
+final class LoadRequest {
+
+    private final LoadGenerator.Operation operation;
+    private final long scheduledNanos;
+    //Money the request adds to the total when it succeeds, only changeMoney changes it.
+    private final long deltaMinor;
+    private final byte[] bytes;
+    private int status;
+    private boolean completed;
+
+    private LoadRequest(LoadGenerator.Operation operation, long scheduledNanos, long deltaMinor, byte[] bytes) {
+        this.operation = operation;
+        this.scheduledNanos = scheduledNanos;
+        this.deltaMinor = deltaMinor;
+        this.bytes = bytes;
+    }
+
+    static LoadRequest get(LoadGenerator.Operation operation, long scheduledNanos, String path) {
+        return new LoadRequest(operation, scheduledNanos, 0,
+                ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    static LoadRequest post(LoadGenerator.Operation operation, long scheduledNanos, long deltaMinor, String path,
+                            String contentType, byte[] body) {
+        final byte[] headers = ("POST " + path + " HTTP/1.1\r\nHost: localhost\r\nContent-Type: " + contentType
+                + "\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        final byte[] bytes = new byte[headers.length + body.length];
+        System.arraycopy(headers, 0, bytes, 0, headers.length);
+        System.arraycopy(body, 0, bytes, headers.length, body.length);
+        return new LoadRequest(operation, scheduledNanos, deltaMinor, bytes);
+    }
+
+    static LoadRequest form(LoadGenerator.Operation operation, long scheduledNanos, long deltaMinor, String path,
+                            String form) {
+        return post(operation, scheduledNanos, deltaMinor, path, "application/x-www-form-urlencoded",
+                form.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    LoadGenerator.Operation getOperation() {
+        return operation;
+    }
+
+    long getScheduledNanos() {
+        return scheduledNanos;
+    }
+
+    long getDeltaMinor() {
+        return deltaMinor;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    boolean isCompleted() {
+        return completed;
+    }
+
+    void complete(int status) {
+        this.status = status;
+        this.completed = true;
+    }
+}
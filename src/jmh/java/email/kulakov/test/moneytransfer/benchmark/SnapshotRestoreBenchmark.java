@@ -0,0 +1,97 @@
+package email.kulakov.test.moneytransfer.benchmark;
+
+import email.kulakov.test.moneytransfer.db.ConcurrentDatastore;
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.LedgerDatastore;
+import email.kulakov.test.moneytransfer.db.ShardedDatastore;
+import email.kulakov.test.moneytransfer.snapshot.SnapshotDatastore;
+import email.kulakov.test.moneytransfer.snapshot.SnapshotFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+//Startup time: restore of a snapshot with 10M accounts into an empty datastore, one restore per measurement.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class SnapshotRestoreBenchmark {
+
+    @Param({"ConcurrentDatastore", "LedgerDatastore", "ShardedDatastore"})
+    public String datastoreName;
+
+    @Param({"10000000"})
+    public int accounts;
+
+    private Path directory;
+    private Path snapshot;
+    private Datastore target;
+
+    @Setup(Level.Trial)
+    public void writeSnapshot() throws IOException {
+        directory = Files.createTempDirectory("snapshot-benchmark");
+        snapshot = directory.resolve(SnapshotFile.FILE_NAME);
+        final LedgerDatastore source = new LedgerDatastore();
+        final SplittableRandom random = new SplittableRandom(1);
+        for (int i = 0; i < accounts; i++) {
+            source.changeMoneyMinor(source.createAccount(), random.nextInt(1_000_000));
+        }
+        new SnapshotDatastore(source, snapshot, 0).snapshot();
+    }
+
+    @Setup(Level.Invocation)
+    public void createTarget() {
+        target = createDatastore();
+    }
+
+    @Benchmark
+    public SnapshotFile.Header restore() throws IOException {
+        return SnapshotFile.restore(snapshot, target, Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeTarget() throws IOException {
+        if (target instanceof Closeable) {
+            ((Closeable) target).close();
+        }
+        target = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteSnapshot() throws IOException {
+        Files.deleteIfExists(snapshot);
+        Files.deleteIfExists(directory);
+    }
+
+    private Datastore createDatastore() {
+        switch (datastoreName) {
+            case "ConcurrentDatastore":
+                return new ConcurrentDatastore();
+            case "LedgerDatastore":
+                return new LedgerDatastore();
+            case "ShardedDatastore":
+                return new ShardedDatastore();
+            default:
+                throw new IllegalArgumentException("Unknown datastore " + datastoreName);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package email.kulakov.test.moneytransfer.benchmark;
+
+import java.util.SplittableRandom;
+
+//Zipfian ranks in [0, items) as in YCSB (Gray et al., "Quickly generating billion-record synthetic databases").
+//Rank 0 is the hottest item. Constants are shared, every thread uses its own random.
+public final class ZipfianGenerator {
+
+    public static final double DEFAULT_THETA = 0.99;
+
+    private static final int FEISTEL_ROUNDS = 4;
+
+    private final long items;
+    private final double theta;
+    private final double alpha;
+    private final double zetan;
+    private final double eta;
+    //Feistel halves: ids up to items - 1 fit in 2 * halfBits bits.
+    private final int halfBits;
+    private final long halfMask;
+
+    public ZipfianGenerator(long items, double theta) {
+        this.items = items;
+        this.theta = theta;
+        this.alpha = 1.0 / (1.0 - theta);
+        this.zetan = zeta(items, theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+        this.halfBits = Math.max(1, (64 - Long.numberOfLeadingZeros(items - 1) + 1) / 2);
+        this.halfMask = (1L << halfBits) - 1;
+    }
+
+    public long next(SplittableRandom random) {
+        final double u = random.nextDouble();
+        final double uz = u * zetan;
+        if (uz < 1.0) {
+            return 0;
+        }
+        if (uz < 1.0 + Math.pow(0.5, theta)) {
+            return 1;
+        }
+        return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    //Spreads ranks over the key space, so hot accounts are not all neighbours (matters for shards and lock stripes).
+    public long nextScrambled(SplittableRandom random) {
+        return scramble(next(random));
+    }
+
+    //Permutation of [0, items): a Feistel network permutes the enclosing power of four, values outside the range are
+    //permuted again until they are in it (cycle walking). The domain is less than 4 * items, so few steps are needed.
+    public long scramble(long rank) {
+        long value = rank;
+        do {
+            value = feistel(value);
+        } while (value >= items);
+        return value;
+    }
+
+    private long feistel(long value) {
+        long left = value >>> halfBits;
+        long right = value & halfMask;
+        for (int round = 0; round < FEISTEL_ROUNDS; round++) {
+            final long next = left ^ (mix(right + round) & halfMask);
+            left = right;
+            right = next;
+        }
+        return (left << halfBits) | right;
+    }
+
+    //SplitMix64 finalizer.
+    private static long mix(long value) {
+        long z = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,185 @@
+package email.kulakov.test.moneytransfer;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.function.Function;
+
+//Settings read at startup: a properties file (-Dconfig.file, moneytransfer.properties in the working directory if it
+//exists), system properties with the same names override it, missing settings get the defaults below.
+public final class ApplicationConfig {
+
+    public static final String FILE_PROPERTY = "config.file";
+    private static final String DEFAULT_FILE = "moneytransfer.properties";
+
+    public static final String DATASTORE = "datastore";
+    public static final String HTTP_PORT = "http.port";
+    //HTTP/1.1 persistent connections, false answers every request with Connection: close.
+    public static final String HTTP_KEEP_ALIVE = "http.keepAlive";
+    //HTTP/2 without TLS next to HTTP/1.1 on the same port, needs the jetty http2-server module on the classpath.
+    public static final String HTTP_H2C = "http.h2c";
+    public static final String HTTP_OUTPUT_BUFFER_SIZE = "http.outputBufferSize";
+    //Smaller writes are copied into the output buffer instead of being written to the socket right away,
+    //a quarter of the buffer by default.
+    public static final String HTTP_OUTPUT_AGGREGATION_SIZE = "http.outputAggregationSize";
+    public static final String HTTP_REQUEST_HEADER_SIZE = "http.requestHeaderSize";
+    public static final String HTTP_RESPONSE_HEADER_SIZE = "http.responseHeaderSize";
+    public static final String JETTY_THREAD_POOL = "jetty.threadPool";
+    public static final String JETTY_MIN_THREADS = "jetty.minThreads";
+    public static final String JETTY_MAX_THREADS = "jetty.maxThreads";
+    public static final String JETTY_THREAD_IDLE_TIMEOUT_MILLIS = "jetty.threadIdleTimeoutMillis";
+    //Requests beyond it are rejected by Jetty instead of waiting without a bound.
+    public static final String JETTY_QUEUE_SIZE = "jetty.queueSize";
+    //-1 lets Jetty choose from the number of cores.
+    public static final String JETTY_ACCEPTORS = "jetty.acceptors";
+    public static final String JETTY_SELECTORS = "jetty.selectors";
+    //Idle connections are closed after it.
+    public static final String JETTY_IDLE_TIMEOUT_MILLIS = "jetty.idleTimeoutMillis";
+    //RESTEasy registers only the providers the API needs instead of loading every provider listed on the classpath.
+    public static final String STARTUP_FAST = "startup.fast";
+
+    private final Properties properties;
+
+    private ApplicationConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    public static ApplicationConfig load() throws IOException {
+        final Properties properties = new Properties();
+        final String file = System.getProperty(FILE_PROPERTY);
+        final Path path = Paths.get(file == null ? DEFAULT_FILE : file);
+        if (file != null || Files.exists(path)) {
+            try (InputStream input = Files.newInputStream(path)) {
+                properties.load(input);
+            }
+        }
+        properties.putAll(System.getProperties());
+        return new ApplicationConfig(properties);
+    }
+
+    public static ApplicationConfig of(Properties properties) {
+        return new ApplicationConfig(properties);
+    }
+
+    public static ApplicationConfig defaults() {
+        return new ApplicationConfig(new Properties());
+    }
+
+    //Simple class name from the db package or a fully qualified one.
+    public Class<? extends Datastore> getDatastoreClass(Class<? extends Datastore> defaultClass) {
+        final String name = getString(DATASTORE, null);
+        if (name == null) {
+            return defaultClass;
+        }
+        final String className = name.contains(".") ? name : Datastore.class.getPackage().getName() + "." + name;
+        try {
+            return Class.forName(className).asSubclass(Datastore.class);
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IllegalArgumentException("Not a datastore: " + DATASTORE + "=" + name, e);
+        }
+    }
+
+    public ThreadPoolType getThreadPoolType() {
+        return ThreadPoolType.valueOf(getString(JETTY_THREAD_POOL, ThreadPoolType.QUEUED.name()));
+    }
+
+    public int getMinThreads() {
+        return getInt(JETTY_MIN_THREADS, 8);
+    }
+
+    public int getMaxThreads() {
+        return getInt(JETTY_MAX_THREADS, 200);
+    }
+
+    public int getThreadIdleTimeoutMillis() {
+        return getInt(JETTY_THREAD_IDLE_TIMEOUT_MILLIS, 60_000);
+    }
+
+    public int getQueueSize() {
+        return getInt(JETTY_QUEUE_SIZE, 10_000);
+    }
+
+    public int getAcceptors() {
+        return getInt(JETTY_ACCEPTORS, -1);
+    }
+
+    public int getSelectors() {
+        return getInt(JETTY_SELECTORS, -1);
+    }
+
+    public long getIdleTimeoutMillis() {
+        return getLong(JETTY_IDLE_TIMEOUT_MILLIS, 30_000);
+    }
+
+    public boolean isKeepAlive() {
+        return getBoolean(HTTP_KEEP_ALIVE, true);
+    }
+
+    public boolean isH2c() {
+        return getBoolean(HTTP_H2C, false);
+    }
+
+    public int getOutputBufferSize() {
+        return getInt(HTTP_OUTPUT_BUFFER_SIZE, 32 * 1024);
+    }
+
+    public int getOutputAggregationSize() {
+        return getInt(HTTP_OUTPUT_AGGREGATION_SIZE, getOutputBufferSize() / 4);
+    }
+
+    public int getRequestHeaderSize() {
+        return getInt(HTTP_REQUEST_HEADER_SIZE, 8 * 1024);
+    }
+
+    public int getResponseHeaderSize() {
+        return getInt(HTTP_RESPONSE_HEADER_SIZE, 8 * 1024);
+    }
+
+    public boolean isFastStartup() {
+        return getBoolean(STARTUP_FAST, true);
+    }
+
+    public String getString(String name, String defaultValue) {
+        final String value = properties.getProperty(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    public Integer getInteger(String name) {
+        final String value = getString(name, null);
+        return value == null ? null : parse(name, value, Integer::valueOf);
+    }
+
+    public int getInt(String name, int defaultValue) {
+        final Integer value = getInteger(name);
+        return value == null ? defaultValue : value;
+    }
+
+    public long getLong(String name, long defaultValue) {
+        final String value = getString(name, null);
+        return value == null ? defaultValue : parse(name, value, Long::valueOf);
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        final String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+            throw new IllegalArgumentException("Expected true or false: " + name + "=" + value);
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    private static <T> T parse(String name, String value, Function<String, T> parser) {
+        try {
+            return parser.apply(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a number: " + name + "=" + value, e);
+        }
+    }
+}
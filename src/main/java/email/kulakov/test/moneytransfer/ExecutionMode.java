@@ -0,0 +1,10 @@
+package email.kulakov.test.moneytransfer;
+
+public enum ExecutionMode {
+    //AccountResource, datastore is called on the Jetty request thread.
+    SYNC,
+    //AsyncAccountResource, datastore calls run on a bounded thread pool with a bounded queue.
+    POOL,
+    //AsyncAccountResource, every datastore call runs on its own virtual thread (needs Java 21+ at runtime).
+    VIRTUAL_THREADS
+}
@@ -2,22 +2,123 @@ package email.kulakov.test.moneytransfer;
 
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import email.kulakov.test.moneytransfer.audit.Auditor;
 import email.kulakov.test.moneytransfer.db.ConcurrentDatastore;
 import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.journal.DurabilityMode;
+import email.kulakov.test.moneytransfer.limits.SpendingLimitDatastore;
+import email.kulakov.test.moneytransfer.metrics.HttpMetrics;
+import email.kulakov.test.moneytransfer.replication.ReplicationMode;
+import email.kulakov.test.moneytransfer.schedule.TransferScheduler;
+import email.kulakov.test.moneytransfer.wire.WireServer;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 import org.jboss.resteasy.plugins.server.servlet.HttpServletDispatcher;
+import org.jboss.resteasy.plugins.server.servlet.ResteasyContextParameters;
+
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 
 public final class MoneyTransferApplication {
 
     private static final int PORT = 8080;
+    //Binary protocol, see WireProtocol.
+    private static final int WIRE_PORT = 8081;
+    private static final int WIRE_WORKERS = Runtime.getRuntime().availableProcessors();
+    //Default of the datastore setting, see ApplicationConfig.
     private static final Class<? extends Datastore> DATASTORE_CLASS = ConcurrentDatastore.class;
+    //Used by persistent datastores, e.g. MappedDatastore.
+    private static final Path DATA_DIRECTORY = Paths.get("data");
+    //NONE disables the journal. MappedDatastore persists balances itself, its journal is not replayed on startup.
+    private static final DurabilityMode JOURNAL_MODE = DurabilityMode.GROUP;
+    private static final long JOURNAL_MAX_LATENCY_MICROS = 2000;
+    //Background snapshots of all balances, 0 disables them. Startup restores the snapshot and replays the journal after it.
+    private static final long SNAPSHOT_INTERVAL_MILLIS = 60_000;
+    //Background money conservation audits, 0 disables them. They can also be started with POST /admin/audit.
+    private static final long AUDIT_INTERVAL_MILLIS = 60_000;
+    //Currency of accounts created without one, other currencies and rates are in data/rates.txt, checked for changes
+    //every RATES_RELOAD_MILLIS.
+    private static final String BASE_CURRENCY = "EUR";
+    private static final long RATES_RELOAD_MILLIS = 5_000;
+    //Scheduled transfers (POST /v1/scheduled) are checked every SCHEDULE_TICK_MILLIS and executed at most
+    //SCHEDULED_TRANSFERS_PER_SECOND, a peak of due transfers is spread over time.
+    private static final long SCHEDULE_TICK_MILLIS = 100;
+    private static final int SCHEDULED_TRANSFERS_PER_SECOND = 1000;
+    //Balance reads are served from a projection at most BALANCE_MAX_STALENESS_MILLIS behind the writes, 0 disables it.
+    //Clients read their own writes by passing X-Change-Version of a write as X-Min-Change-Version.
+    private static final long BALANCE_MAX_STALENESS_MILLIS = 100;
+    //Limits of money leaving accounts which have no own limits (PUT /v1/accounts/{id}/limits), null is no daily limit.
+    private static final BigDecimal DEFAULT_DAILY_SPENDING_LIMIT = null;
+    private static final int DEFAULT_DEBITS_PER_MINUTE = SpendingLimitDatastore.NO_VELOCITY_LIMIT;
+    //SYNC keeps datastore calls on Jetty threads, POOL and VIRTUAL_THREADS use the async API.
+    private static final ExecutionMode EXECUTION_MODE = ExecutionMode.SYNC;
+    private static final int DATASTORE_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 4;
+    private static final int DATASTORE_QUEUE_SIZE = 10_000;
+
+    //Cluster mode: -Dcluster.nodes=http://host1:8080,http://host2:8080 (same list on every node) and -Dcluster.node=index
+    //of this node in it. The node serves HTTP on the port of its URL and the binary protocol on the next port, keeps its
+    //data in data/node-<index> and runs without currencies.
+    private static final String CLUSTER_NODES_PROPERTY = "cluster.nodes";
+    private static final String CLUSTER_NODE_PROPERTY = "cluster.node";
+    //Replication: the primary runs with -Dreplication.port=port (and -Dreplication.mode=ASYNC|SEMI_SYNC), the standby
+    //with -Dreplication.primary=host:port and an empty data directory. Both run without currencies. A standby on the
+    //same host needs -Dhttp.port, the binary protocol is on the next port.
+    private static final String REPLICATION_PORT_PROPERTY = "replication.port";
+    private static final String REPLICATION_MODE_PROPERTY = "replication.mode";
+    private static final String REPLICATION_PRIMARY_PROPERTY = "replication.primary";
+    //SEMI_SYNC writes stop waiting for the standby after it, until it catches up.
+    private static final long REPLICATION_ACK_TIMEOUT_MILLIS = 1000;
+
+    //Providers registered in fast startup mode instead of every provider listed in META-INF/services of the classpath:
+    //plain text, numbers, forms, streams and CompletionStage results.
+    private static final List<String> FAST_STARTUP_PROVIDERS = Arrays.asList(
+            "org.jboss.resteasy.plugins.providers.DefaultTextPlain",
+            "org.jboss.resteasy.plugins.providers.DefaultNumberWriter",
+            "org.jboss.resteasy.plugins.providers.DefaultBooleanWriter",
+            "org.jboss.resteasy.plugins.providers.StringTextStar",
+            "org.jboss.resteasy.plugins.providers.InputStreamProvider",
+            "org.jboss.resteasy.plugins.providers.ByteArrayProvider",
+            "org.jboss.resteasy.plugins.providers.FormUrlEncodedProvider",
+            "org.jboss.resteasy.plugins.providers.JaxrsFormProvider",
+            "org.jboss.resteasy.plugins.providers.CompletionStageProvider",
+            "org.jboss.resteasy.plugins.providers.StreamingOutputProvider",
+            "org.jboss.resteasy.plugins.providers.MultiValuedParamConverterProvider",
+            "org.jboss.resteasy.plugins.interceptors.MessageSanitizerContainerResponseFilter");
+    //Optional jetty http2-server module, loaded only when HTTP/2 cleartext is enabled.
+    private static final String H2C_CONNECTION_FACTORY = "org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory";
 
-    public static Server createServer(Injector injector, int port)
+    public static Server createServer(Injector injector, int port) {
+        return createServer(injector, port, ApplicationConfig.defaults());
+    }
+
+    public static Server createServer(Injector injector, int port, ApplicationConfig config)
     {
-        final ServletContextHandler servletContextHandler = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        //The API is stateless, no session handler.
+        final ServletContextHandler servletContextHandler = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
         servletContextHandler.setContextPath("/");
+        if (config.isFastStartup()) {
+            servletContextHandler.setInitParameter(ResteasyContextParameters.RESTEASY_USE_BUILTIN_PROVIDERS, "false");
+            servletContextHandler.setInitParameter(ResteasyContextParameters.RESTEASY_PROVIDERS,
+                    String.join(",", FAST_STARTUP_PROVIDERS));
+        }
 
         final ServletHolder servletHolder = new ServletHolder(new HttpServletDispatcher());
         servletContextHandler.addServlet(servletHolder, "/*");
@@ -25,16 +126,116 @@ public final class MoneyTransferApplication {
         final MoneyTransferContextListener contextListener = injector.getInstance(MoneyTransferContextListener.class);
         servletContextHandler.addEventListener(contextListener);
 
-        final Server server = new Server(port);
+        final Server server = new Server(createThreadPool(config));
+        final HttpConfiguration httpConfiguration = new HttpConfiguration();
+        httpConfiguration.setPersistentConnectionsEnabled(config.isKeepAlive());
+        httpConfiguration.setOutputBufferSize(config.getOutputBufferSize());
+        httpConfiguration.setOutputAggregationSize(config.getOutputAggregationSize());
+        httpConfiguration.setRequestHeaderSize(config.getRequestHeaderSize());
+        httpConfiguration.setResponseHeaderSize(config.getResponseHeaderSize());
+        final List<ConnectionFactory> connectionFactories = new ArrayList<>();
+        connectionFactories.add(new HttpConnectionFactory(httpConfiguration));
+        if (config.isH2c()) {
+            connectionFactories.add(createH2cConnectionFactory(httpConfiguration));
+        }
+        final ServerConnector connector = new ServerConnector(server, config.getAcceptors(), config.getSelectors(),
+                connectionFactories.toArray(new ConnectionFactory[0]));
+        connector.setPort(port);
+        connector.setIdleTimeout(config.getIdleTimeoutMillis());
+        server.addConnector(connector);
         server.setHandler(servletContextHandler);
 
+        final HttpMetrics httpMetrics = injector.getInstance(HttpMetrics.class);
+        server.addLifeCycleListener(new AbstractLifeCycle.AbstractLifeCycleListener() {
+            @Override
+            public void lifeCycleStarting(LifeCycle event) {
+                httpMetrics.serverStarting();
+            }
+
+            @Override
+            public void lifeCycleStarted(LifeCycle event) {
+                httpMetrics.serverStarted();
+            }
+        });
+
         return server;
     }
 
+    private static ThreadPool createThreadPool(ApplicationConfig config) {
+        switch (config.getThreadPoolType()) {
+            case QUEUED:
+                final QueuedThreadPool queuedThreadPool = new QueuedThreadPool(config.getMaxThreads(),
+                        config.getMinThreads(), config.getThreadIdleTimeoutMillis(),
+                        new BlockingArrayQueue<>(config.getQueueSize()));
+                queuedThreadPool.setName("jetty");
+                return queuedThreadPool;
+            case EXECUTOR:
+                final ExecutorThreadPool executorThreadPool = new ExecutorThreadPool(config.getMaxThreads(),
+                        config.getMinThreads(), new ArrayBlockingQueue<>(config.getQueueSize()));
+                executorThreadPool.setIdleTimeout(config.getThreadIdleTimeoutMillis());
+                executorThreadPool.setName("jetty");
+                return executorThreadPool;
+            default:
+                throw new IllegalArgumentException("Unknown thread pool " + config.getThreadPoolType());
+        }
+    }
+
+    private static ConnectionFactory createH2cConnectionFactory(HttpConfiguration httpConfiguration) {
+        try {
+            return (ConnectionFactory) Class.forName(H2C_CONNECTION_FACTORY)
+                    .getConstructor(HttpConfiguration.class).newInstance(httpConfiguration);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(ApplicationConfig.HTTP_H2C
+                    + " needs org.eclipse.jetty.http2:http2-server on the classpath", e);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + H2C_CONNECTION_FACTORY, e);
+        }
+    }
+
     public static void main(String[] args) throws Exception {
-        final Injector injector = Guice.createInjector(new MoneyTransferGuiceModule(DATASTORE_CLASS));
-        final Server server = createServer(injector, PORT);
+        final ApplicationConfig config = ApplicationConfig.load();
+        final String clusterNodes = config.getString(CLUSTER_NODES_PROPERTY, null);
+        final List<String> nodes = clusterNodes == null ? null : Arrays.asList(clusterNodes.split(","));
+        final int node = config.getInt(CLUSTER_NODE_PROPERTY, 0);
+        final MoneyTransferGuiceModule module = new MoneyTransferGuiceModule(config.getDatastoreClass(DATASTORE_CLASS),
+                nodes == null ? DATA_DIRECTORY : DATA_DIRECTORY.resolve("node-" + node))
+                .withJournal(JOURNAL_MODE, JOURNAL_MAX_LATENCY_MICROS)
+                .withSnapshots(SNAPSHOT_INTERVAL_MILLIS)
+                .withAudits(AUDIT_INTERVAL_MILLIS)
+                .withScheduledTransfers(SCHEDULE_TICK_MILLIS, SCHEDULED_TRANSFERS_PER_SECOND)
+                .withSpendingLimits(DEFAULT_DAILY_SPENDING_LIMIT, DEFAULT_DEBITS_PER_MINUTE)
+                .withBalanceProjection(BALANCE_MAX_STALENESS_MILLIS)
+                .withExecution(EXECUTION_MODE, DATASTORE_POOL_SIZE, DATASTORE_QUEUE_SIZE);
+        final Integer replicationPort = config.getInteger(REPLICATION_PORT_PROPERTY);
+        final String primary = config.getString(REPLICATION_PRIMARY_PROPERTY, null);
+        if (replicationPort != null) {
+            module.withReplication(ReplicationMode.valueOf(config.getString(REPLICATION_MODE_PROPERTY, "SEMI_SYNC")),
+                    replicationPort, REPLICATION_ACK_TIMEOUT_MILLIS);
+        }
+        if (primary != null) {
+            final int separator = primary.lastIndexOf(':');
+            module.withStandbyOf(new InetSocketAddress(primary.substring(0, separator),
+                    Integer.parseInt(primary.substring(separator + 1))));
+        }
+        final int port;
+        if (nodes == null) {
+            if (replicationPort == null && primary == null) {
+                module.withCurrencies(BASE_CURRENCY, RATES_RELOAD_MILLIS);
+            }
+            port = config.getInt(ApplicationConfig.HTTP_PORT, PORT);
+        } else {
+            module.withCluster(nodes, node);
+            port = URI.create(nodes.get(node)).getPort();
+        }
+        final Injector injector = Guice.createInjector(module);
+        //Starts background audits and transfers scheduled before the restart before traffic arrives.
+        injector.getInstance(Auditor.class);
+        injector.getInstance(TransferScheduler.class);
+        final Server server = createServer(injector, port, config);
         server.start();
+        final WireServer wireServer = new WireServer(injector.getInstance(Datastore.class),
+                port == PORT ? WIRE_PORT : port + 1, WIRE_WORKERS);
+        wireServer.start();
         server.join();
     }
 }
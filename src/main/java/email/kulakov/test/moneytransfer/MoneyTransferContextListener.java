@@ -3,23 +3,56 @@ package email.kulakov.test.moneytransfer;
 import com.google.inject.AbstractModule;
 import com.google.inject.Module;
 import email.kulakov.test.moneytransfer.api.AccountResource;
+import email.kulakov.test.moneytransfer.api.AdminResource;
+import email.kulakov.test.moneytransfer.api.AsyncAccountResource;
+import email.kulakov.test.moneytransfer.api.BulkAccountResource;
+import email.kulakov.test.moneytransfer.api.ClusterResource;
+import email.kulakov.test.moneytransfer.api.MetricsFilter;
+import email.kulakov.test.moneytransfer.api.MetricsResource;
+import email.kulakov.test.moneytransfer.api.NodeUnavailableMapper;
+import email.kulakov.test.moneytransfer.api.NotPrimaryMapper;
+import email.kulakov.test.moneytransfer.api.ScheduledTransferResource;
 import org.jboss.resteasy.plugins.guice.GuiceResteasyBootstrapServletContextListener;
 
+import javax.inject.Inject;
 import javax.servlet.ServletContext;
 import java.util.Collections;
 import java.util.List;
 
 public class MoneyTransferContextListener extends GuiceResteasyBootstrapServletContextListener {
 
+    @Inject
+    private ExecutionMode executionMode;
+
     @Override
     protected List<? extends Module> getModules(ServletContext context) {
-        return Collections.singletonList(new ApiModule());
+        return Collections.singletonList(new ApiModule(executionMode));
     }
 
     public static final class ApiModule extends AbstractModule {
+
+        private final ExecutionMode executionMode;
+
+        public ApiModule(ExecutionMode executionMode) {
+            this.executionMode = executionMode;
+        }
+
         @Override
         public void configure() {
-            bind(AccountResource.class);
+            //Both resources serve /v1/accounts, only one of them is bound.
+            if (executionMode == ExecutionMode.SYNC) {
+                bind(AccountResource.class);
+            } else {
+                bind(AsyncAccountResource.class);
+            }
+            bind(BulkAccountResource.class);
+            bind(ScheduledTransferResource.class);
+            bind(MetricsResource.class);
+            bind(AdminResource.class);
+            bind(ClusterResource.class);
+            bind(MetricsFilter.class);
+            bind(NodeUnavailableMapper.class);
+            bind(NotPrimaryMapper.class);
         }
     }
 }
@@ -1,21 +1,347 @@
 package email.kulakov.test.moneytransfer;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.name.Names;
+import email.kulakov.test.moneytransfer.audit.Auditor;
+import email.kulakov.test.moneytransfer.cluster.ClusterDatastore;
+import email.kulakov.test.moneytransfer.db.AsyncDatastore;
 import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.ExecutorAsyncDatastore;
+import email.kulakov.test.moneytransfer.db.ForwardingDatastore;
+import email.kulakov.test.moneytransfer.db.MinorUnits;
+import email.kulakov.test.moneytransfer.feed.ChangeFeedDatastore;
+import email.kulakov.test.moneytransfer.fx.AccountCurrencies;
+import email.kulakov.test.moneytransfer.fx.CurrencyDatastore;
+import email.kulakov.test.moneytransfer.fx.RateTable;
+import email.kulakov.test.moneytransfer.history.HistoryDatastore;
+import email.kulakov.test.moneytransfer.history.TransactionHistory;
+import email.kulakov.test.moneytransfer.journal.DurabilityMode;
+import email.kulakov.test.moneytransfer.journal.Journal;
+import email.kulakov.test.moneytransfer.journal.JournalRecovery;
+import email.kulakov.test.moneytransfer.journal.JournalingDatastore;
+import email.kulakov.test.moneytransfer.limits.AccountLimits;
+import email.kulakov.test.moneytransfer.limits.SpendingLimitDatastore;
+import email.kulakov.test.moneytransfer.metrics.DatastoreMetrics;
+import email.kulakov.test.moneytransfer.metrics.HttpMetrics;
+import email.kulakov.test.moneytransfer.metrics.MetricsDatastore;
+import email.kulakov.test.moneytransfer.replication.ReplicationLog;
+import email.kulakov.test.moneytransfer.replication.ReplicationMode;
+import email.kulakov.test.moneytransfer.replication.StandbyDatastore;
+import email.kulakov.test.moneytransfer.schedule.TransferScheduler;
+import email.kulakov.test.moneytransfer.snapshot.SnapshotDatastore;
+import email.kulakov.test.moneytransfer.snapshot.SnapshotFile;
 
+import javax.inject.Named;
+import javax.inject.Singleton;
 import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class MoneyTransferGuiceModule extends AbstractModule {
 
+    public static final String DATA_DIRECTORY = "dataDirectory";
+    //Datastore implementation before decorators, e.g. journaling, are applied.
+    public static final String BACKEND = "backend";
+
+    private static final long DEFAULT_JOURNAL_LATENCY_MICROS = 2000;
+    private static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 4;
+    private static final int DEFAULT_POOL_QUEUE_SIZE = 10_000;
+    private static final long DEFAULT_SCHEDULE_TICK_MILLIS = 100;
+    private static final int DEFAULT_SCHEDULED_TRANSFERS_PER_SECOND = 1000;
+    private static final int CHANGE_FEED_CAPACITY = 1 << 16;
+    //Records kept for a standby which is behind, beyond it the standby has to be rebuilt.
+    private static final long REPLICATION_BACKLOG_BYTES = 64L * 1024 * 1024;
+
     private final @NotNull Class<? extends Datastore> datastoreClass;
+    private final @NotNull Path dataDirectory;
+    private DurabilityMode journalMode = DurabilityMode.NONE;
+    private long journalMaxLatencyMicros = DEFAULT_JOURNAL_LATENCY_MICROS;
+    private ExecutionMode executionMode = ExecutionMode.SYNC;
+    private int poolSize = DEFAULT_POOL_SIZE;
+    private int poolQueueSize = DEFAULT_POOL_QUEUE_SIZE;
+    private long snapshotIntervalMillis;
+    private long auditIntervalMillis;
+    private String baseCurrency;
+    private long ratesReloadMillis;
+    private long scheduleTickMillis = DEFAULT_SCHEDULE_TICK_MILLIS;
+    private int scheduledTransfersPerSecond = DEFAULT_SCHEDULED_TRANSFERS_PER_SECOND;
+    private long balanceMaxStalenessMillis;
+    private boolean spendingLimits;
+    private long defaultDailyLimitMinor = SpendingLimitDatastore.NO_DAILY_LIMIT;
+    private int defaultDebitsPerMinute = SpendingLimitDatastore.NO_VELOCITY_LIMIT;
+    private List<String> clusterNodes;
+    private int clusterNode;
+    private ReplicationMode replicationMode;
+    private int replicationPort;
+    private long replicationAckTimeoutMillis;
+    private InetSocketAddress standbyOf;
 
     public MoneyTransferGuiceModule(Class<? extends Datastore> datastoreClass) {
+        this(datastoreClass, Paths.get("data"));
+    }
+
+    public MoneyTransferGuiceModule(Class<? extends Datastore> datastoreClass, Path dataDirectory) {
         this.datastoreClass = datastoreClass;
+        this.dataDirectory = dataDirectory;
+    }
+
+    //Journal is replayed into the datastore on startup when the datastore starts empty. One which keeps its accounts
+    //itself, e.g. MappedDatastore, is journaled (also for replication) but never replayed into.
+    public MoneyTransferGuiceModule withJournal(DurabilityMode mode, long maxLatencyMicros) {
+        this.journalMode = mode;
+        this.journalMaxLatencyMicros = maxLatencyMicros;
+        return this;
+    }
+
+    //poolSize and poolQueueSize are used by ExecutionMode.POOL only.
+    public MoneyTransferGuiceModule withExecution(ExecutionMode mode, int poolSize, int poolQueueSize) {
+        this.executionMode = mode;
+        this.poolSize = poolSize;
+        this.poolQueueSize = poolQueueSize;
+        return this;
+    }
+
+    //Snapshot is restored on startup before the journal replay, which continues from the snapshot position.
+    //Not restored into a datastore which already has accounts, e.g. MappedDatastore.
+    public MoneyTransferGuiceModule withSnapshots(long intervalMillis) {
+        this.snapshotIntervalMillis = intervalMillis;
+        return this;
+    }
+
+    //Audits also run on demand, see AdminResource.
+    public MoneyTransferGuiceModule withAudits(long intervalMillis) {
+        this.auditIntervalMillis = intervalMillis;
+        return this;
     }
 
+    //Accounts get currencies from data/rates.txt (see RateTable), accounts created without one are in baseCurrency.
+    public MoneyTransferGuiceModule withCurrencies(String baseCurrency, long ratesReloadMillis) {
+        this.baseCurrency = baseCurrency;
+        this.ratesReloadMillis = ratesReloadMillis;
+        return this;
+    }
+
+    //Scheduled transfers are executed every tickMillis, at most maxTransfersPerSecond, see TransferScheduler.
+    public MoneyTransferGuiceModule withScheduledTransfers(long tickMillis, int maxTransfersPerSecond) {
+        this.scheduleTickMillis = tickMillis;
+        this.scheduledTransfersPerSecond = maxTransfersPerSecond;
+        return this;
+    }
+
+    //Balances are read from a projection fed by a change feed, stale by at most maxStalenessMillis, 0 disables it.
+    //See ChangeFeedDatastore.
+    public MoneyTransferGuiceModule withBalanceProjection(long maxStalenessMillis) {
+        this.balanceMaxStalenessMillis = maxStalenessMillis;
+        return this;
+    }
+
+    //Debits are checked against daily and per-minute limits of the sender, see SpendingLimitDatastore. The defaults are
+    //for accounts without own limits, null daily limit and SpendingLimitDatastore.NO_VELOCITY_LIMIT are no limit.
+    public MoneyTransferGuiceModule withSpendingLimits(BigDecimal defaultDailyLimit, int defaultDebitsPerMinute) {
+        this.spendingLimits = true;
+        this.defaultDailyLimitMinor = defaultDailyLimit == null ? SpendingLimitDatastore.NO_DAILY_LIMIT
+                : MinorUnits.toMinor(defaultDailyLimit);
+        if (defaultDailyLimitMinor < 0) {
+            throw new IllegalArgumentException("Wrong daily limit " + defaultDailyLimit);
+        }
+        this.defaultDebitsPerMinute = defaultDebitsPerMinute;
+        return this;
+    }
+
+    //This node is nodes[self] of a cluster, nodes are base URLs in the same order on every node. Accounts are spread
+    //over the nodes and calls on other nodes' accounts are forwarded, see ClusterDatastore. Not combined with
+    //currencies, conversions would need rates of both nodes.
+    public MoneyTransferGuiceModule withCluster(List<String> nodes, int self) {
+        if (self < 0 || self >= nodes.size()) {
+            throw new IllegalArgumentException("Node " + self + " is not one of " + nodes);
+        }
+        this.clusterNodes = nodes;
+        this.clusterNode = self;
+        return this;
+    }
+
+    //Writes are streamed to a standby which connects to the port, see ReplicationLog. ackTimeoutMillis bounds the wait
+    //of SEMI_SYNC writes for the standby. Not combined with currencies, account currencies are not replicated.
+    public MoneyTransferGuiceModule withReplication(ReplicationMode mode, int port, long ackTimeoutMillis) {
+        this.replicationMode = mode;
+        this.replicationPort = port;
+        this.replicationAckTimeoutMillis = ackTimeoutMillis;
+        return this;
+    }
+
+    //This node is a standby of the primary, it serves reads and refuses writes until POST /admin/promote.
+    //The data directory has to start empty, see StandbyDatastore. Balance projection is not used on a standby.
+    public MoneyTransferGuiceModule withStandbyOf(InetSocketAddress primary) {
+        this.standbyOf = primary;
+        return this;
+    }
 
     @Override
     protected void configure() {
-        bind(Datastore.class).to(datastoreClass);
+        bind(Path.class).annotatedWith(Names.named(DATA_DIRECTORY)).toInstance(dataDirectory);
+        bind(Datastore.class).annotatedWith(Names.named(BACKEND)).to(datastoreClass);
+        bind(DatastoreMetrics.class);
+        bind(HttpMetrics.class);
+        bind(TransactionHistory.class);
+        bind(ExecutionMode.class).toInstance(executionMode);
+    }
+
+    //Decorators from the innermost: journal, history, snapshots (also images for audits), replication, currencies,
+    //spending limits, balance projection, metrics. In cluster mode all of them see local account ids of this node.
+    @Provides
+    @Singleton
+    Datastore datastore(@Named(BACKEND) Datastore backend, DatastoreMetrics metrics, TransactionHistory history) {
+        //A backend with accounts before the restore persists them itself: the snapshot and the journal would repeat them.
+        final boolean persistent = backend.balance(1) != null;
+        final long journalPosition = persistent ? 0 : restoreSnapshot(backend);
+        final Datastore recorded = new HistoryDatastore(journaled(backend, history, !persistent, journalPosition),
+                history);
+        if (baseCurrency != null && (clusterNodes != null || replicationMode != null || standbyOf != null)) {
+            throw new IllegalStateException("Currencies are not supported in cluster mode or with replication");
+        }
+        final Datastore local = new MetricsDatastore(projected(limited(withCurrencies(replicated(snapshotting(recorded))))),
+                metrics);
+        if (clusterNodes == null) {
+            return local;
+        }
+        return new ClusterDatastore(local, clusterNodes, clusterNode);
+    }
+
+    //Audits the balances of this node.
+    @Provides
+    @Singleton
+    Auditor auditor(Datastore datastore) {
+        Datastore current = datastore instanceof ClusterDatastore ? ((ClusterDatastore) datastore).getLocal() : datastore;
+        while (!(current instanceof SnapshotDatastore)) {
+            current = ((ForwardingDatastore) current).getDelegate();
+        }
+        return new Auditor((SnapshotDatastore) current, ForkJoinPool.commonPool(), auditIntervalMillis);
+    }
+
+    @Provides
+    @Singleton
+    TransferScheduler transferScheduler(Datastore datastore) {
+        try {
+            Files.createDirectories(dataDirectory);
+            return new TransferScheduler(datastore, dataDirectory.resolve(TransferScheduler.FILE_NAME),
+                    scheduleTickMillis, scheduledTransfersPerSecond);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Provides
+    @Singleton
+    AsyncDatastore asyncDatastore(Datastore datastore) {
+        switch (executionMode) {
+            case POOL:
+                return new ExecutorAsyncDatastore(datastore, DatastoreExecutors.boundedPool(poolSize, poolQueueSize));
+            case VIRTUAL_THREADS:
+                return new ExecutorAsyncDatastore(datastore, DatastoreExecutors.virtualThreads());
+            default:
+                //Synchronous API does not use it, calls complete on the caller thread.
+                return new ExecutorAsyncDatastore(datastore, Runnable::run);
+        }
+    }
+
+    //Returns the journal position to replay from.
+    private long restoreSnapshot(Datastore backend) {
+        final Path snapshotFile = dataDirectory.resolve(SnapshotFile.FILE_NAME);
+        if (snapshotIntervalMillis <= 0 || !Files.exists(snapshotFile)) {
+            return 0;
+        }
+        try {
+            final SnapshotFile.Header header = SnapshotFile.restore(snapshotFile, backend,
+                    Runtime.getRuntime().availableProcessors());
+            if (header.getJournalPosition() == SnapshotFile.NO_JOURNAL && journalMode != DurabilityMode.NONE
+                    && Files.exists(dataDirectory.resolve(Journal.FILE_NAME))) {
+                throw new IllegalStateException("Snapshot was written without journal, the journal can not be replayed on it");
+            }
+            return Math.max(0, header.getJournalPosition());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Datastore snapshotting(Datastore datastore) {
+        return new SnapshotDatastore(datastore, dataDirectory.resolve(SnapshotFile.FILE_NAME), snapshotIntervalMillis);
+    }
+
+    private Datastore withCurrencies(Datastore datastore) {
+        if (baseCurrency == null) {
+            return datastore;
+        }
+        try {
+            Files.createDirectories(dataDirectory);
+            final AccountCurrencies currencies = new AccountCurrencies(dataDirectory.resolve(AccountCurrencies.FILE_NAME),
+                    accountId -> datastore.balance(accountId) != null);
+            return new CurrencyDatastore(datastore, currencies, dataDirectory.resolve(RateTable.FILE_NAME), baseCurrency,
+                    ratesReloadMillis);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Datastore limited(Datastore datastore) {
+        if (!spendingLimits) {
+            return datastore;
+        }
+        try {
+            Files.createDirectories(dataDirectory);
+            final AccountLimits limits = new AccountLimits(dataDirectory.resolve(AccountLimits.FILE_NAME),
+                    accountId -> datastore.balance(accountId) != null);
+            return new SpendingLimitDatastore(datastore, limits, defaultDailyLimitMinor, defaultDebitsPerMinute);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //The standby applies records of the primary below the other decorators, after conversions and limit checks.
+    private Datastore replicated(Datastore datastore) {
+        if (standbyOf != null) {
+            return new StandbyDatastore(datastore, standbyOf);
+        }
+        if (replicationMode == null) {
+            return datastore;
+        }
+        try {
+            return new JournalingDatastore(datastore, new ReplicationLog(replicationPort, replicationMode,
+                    replicationAckTimeoutMillis, REPLICATION_BACKLOG_BYTES));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //Not on a standby: records of the primary are applied below it, the projection would not see them.
+    private Datastore projected(Datastore datastore) {
+        if (balanceMaxStalenessMillis <= 0 || standbyOf != null) {
+            return datastore;
+        }
+        return new ChangeFeedDatastore(datastore, CHANGE_FEED_CAPACITY, balanceMaxStalenessMillis);
+    }
+
+    private Datastore journaled(Datastore backend, TransactionHistory history, boolean replay, long fromPosition) {
+        if (journalMode == DurabilityMode.NONE) {
+            return backend;
+        }
+        try {
+            Files.createDirectories(dataDirectory);
+            final Path journalFile = dataDirectory.resolve(Journal.FILE_NAME);
+            //Replay also rebuilds the history after the snapshot, with replay time as the timestamps.
+            if (replay) {
+                JournalRecovery.replay(journalFile, new HistoryDatastore(backend, history), fromPosition);
+            }
+            return new JournalingDatastore(backend, new Journal(journalFile, journalMode, journalMaxLatencyMicros));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 }
@@ -0,0 +1,8 @@
+package email.kulakov.test.moneytransfer;
+
+public enum ThreadPoolType {
+    //Jetty QueuedThreadPool with a bounded job queue.
+    QUEUED,
+    //Jetty ExecutorThreadPool over a java.util.concurrent ThreadPoolExecutor with a bounded queue.
+    EXECUTOR
+}
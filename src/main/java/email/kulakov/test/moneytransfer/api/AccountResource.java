@@ -1,32 +1,122 @@
 package email.kulakov.test.moneytransfer.api;
 
+import email.kulakov.test.moneytransfer.cluster.ClusterDatastore;
 import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.MinorUnits;
 import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+import email.kulakov.test.moneytransfer.feed.ChangeFeedDatastore;
+import email.kulakov.test.moneytransfer.fx.CurrencyDatastore;
+import email.kulakov.test.moneytransfer.history.TransactionHistory;
+import email.kulakov.test.moneytransfer.limits.SpendingLimitDatastore;
 
 import javax.inject.Inject;
 import javax.ws.rs.*;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.math.BigDecimal;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.LongUnaryOperator;
+import java.util.function.Supplier;
 
 @Path("/v1/accounts")
 public class AccountResource {
 
+    //All accounts of a batch are locked at once in some datastores, so the batch size is limited.
+    static final int MAX_BATCH_SIZE = 1000;
+    static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+    static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+    static final String NEXT_CURSOR = "X-Next-Cursor";
+    static final int DEFAULT_PAGE_SIZE = 100;
+    static final int MAX_PAGE_SIZE = 1000;
+    //Returned by writes when balances are read from a projection, a balance read with it as X-Min-Change-Version
+    //sees the write.
+    static final String CHANGE_VERSION = "X-Change-Version";
+    static final String MIN_CHANGE_VERSION = "X-Min-Change-Version";
+    private static final int UNPROCESSABLE_ENTITY = 422;
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int NOT_IMPLEMENTED = 501;
+    private static final String NO_LIMIT = "none";
+
     @Inject
     private Datastore datastore;
 
+    @Inject
+    private IdempotencyCache idempotencyCache;
+
+    @Inject
+    private TransactionHistory history;
+
+    //Without currency the account is in the base currency.
     @POST
     @Path("/create")
-    public Long create() {
-        return datastore.createAccount();
+    public Response create(@QueryParam("currency") String currency) {
+        if (currency == null) {
+            return Response.ok(datastore.createAccount()).build();
+        }
+        return toCreateResponse(datastore, currency);
+    }
+
+    @GET
+    @Path("/{id}/currency")
+    public Response currency(@PathParam("id") Long accountId) {
+        if (accountId == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        if (datastore.balance(accountId) == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return toCurrencyResponse(datastore, accountId);
+    }
+
+    //"dailyLimit,debitsPerMinute,spentToday,debitsLastMinute", "none" for a limit which is not set.
+    @GET
+    @Path("/{id}/limits")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response limits(@PathParam("id") Long accountId) {
+        if (accountId == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        if (datastore.balance(accountId) == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return toLimitsResponse(datastore, accountId);
+    }
+
+    //Form daily (amount or "none") and perMinute (debits or "none"), a missing one is the default limit.
+    @PUT
+    @Path("/{id}/limits")
+    public Response setLimits(@PathParam("id") Long accountId,
+                              @FormParam("daily") String daily,
+                              @FormParam("perMinute") String perMinute) {
+        if (accountId == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        if (datastore.balance(accountId) == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return toSetLimitsResponse(datastore, accountId, daily, perMinute);
     }
 
     @GET
     @Path("/{id}/balance")
-    public Response balance(@PathParam("id") Long accountId) {
+    public Response balance(@PathParam("id") Long accountId,
+                            @HeaderParam(MIN_CHANGE_VERSION) Long minChangeVersion) {
         if (accountId == null) {
             return Response.status(Response.Status.BAD_REQUEST).build();
         }
-        final BigDecimal balance = datastore.balance(accountId);
+        final BigDecimal balance = readBalance(datastore, accountId, minChangeVersion);
         if (balance == null) {
             return Response.status(Response.Status.NOT_FOUND).build();
         } else {
@@ -37,33 +127,291 @@ public class AccountResource {
     @POST
     @Path("/{id}/changeMoney")
     public Response changeMoney(@PathParam("id") Long accountId,
-                                @FormParam("delta") String delta) {
+                                @FormParam("delta") String delta,
+                                @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey) {
         if (accountId == null || delta == null) {
             return Response.status(Response.Status.BAD_REQUEST).build();
         }
-        final OperationResult result = datastore.changeMoney(accountId, new BigDecimal(delta));
-        return toResponse(result);
+        final BigDecimal amount = new BigDecimal(delta);
+        return withChangeVersion(datastore, idempotent(idempotencyCache, idempotencyKey, "changeMoney:" + accountId + ":" + delta,
+                () -> CompletableFuture.completedFuture(datastore.changeMoney(accountId, amount))).join());
     }
 
     @POST
     @Path("/{id}/transferMoney")
     public Response transferMoney(@PathParam("id") Long fromAccount,
                                   @FormParam("to") Long toAccount,
-                                  @FormParam("amount") String amount) {
+                                  @FormParam("amount") String amount,
+                                  @HeaderParam(IDEMPOTENCY_KEY) String idempotencyKey) {
         if (fromAccount == null || toAccount == null || amount == null) {
             return Response.status(Response.Status.BAD_REQUEST).build();
         }
-        final OperationResult result = datastore.transferMoney(fromAccount, toAccount, new BigDecimal(amount));
-        return toResponse(result);
+        final BigDecimal value = new BigDecimal(amount);
+        return withChangeVersion(datastore, idempotent(idempotencyCache, idempotencyKey,
+                "transferMoney:" + fromAccount + ":" + toAccount + ":" + amount,
+                () -> CompletableFuture.completedFuture(datastore.transferMoney(fromAccount, toAccount, value))).join());
+    }
+
+    //Debits of a frozen account are answered with 403 until it is unfrozen.
+    @POST
+    @Path("/{id}/freeze")
+    public Response freeze(@PathParam("id") Long accountId) {
+        if (accountId == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        return toLifecycleResponse(datastore, () -> datastore.freezeAccount(accountId));
+    }
+
+    @POST
+    @Path("/{id}/unfreeze")
+    public Response unfreeze(@PathParam("id") Long accountId) {
+        if (accountId == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        return toLifecycleResponse(datastore, () -> datastore.unfreezeAccount(accountId));
+    }
+
+    //409 while the account has money. A closed account is 404 everywhere, its id is not reused.
+    @POST
+    @Path("/{id}/close")
+    public Response close(@PathParam("id") Long accountId) {
+        if (accountId == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        return toLifecycleResponse(datastore, () -> datastore.closeAccount(accountId));
+    }
+
+    //One "cursor,timestamp,counterparty,amount" entry per line, oldest first. Counterparty is empty for changeMoney,
+    //amount is negative for money leaving the account. X-Next-Cursor continues after the last returned entry.
+    @GET
+    @Path("/{id}/transactions")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response transactions(@PathParam("id") Long accountId,
+                                 @QueryParam("cursor") @DefaultValue("0") int cursor,
+                                 @QueryParam("limit") @DefaultValue("" + DEFAULT_PAGE_SIZE) int limit) {
+        if (accountId == null || cursor < 0 || limit <= 0 || limit > MAX_PAGE_SIZE) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        if (datastore.balance(accountId) == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return toTransactionsResponse(datastore, history, accountId, cursor, limit);
     }
 
-    private Response toResponse(OperationResult result) {
+    //Body is one "from,to,amount" entry per line, response is one OperationResult per line in the same order.
+    @POST
+    @Path("/transferBatch")
+    @Consumes(MediaType.TEXT_PLAIN)
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response transferBatch(@QueryParam("atomic") boolean atomic, String body) {
+        final List<Transfer> transfers = parseTransfers(body);
+        if (transfers == null || transfers.isEmpty() || transfers.size() > MAX_BATCH_SIZE) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        return withChangeVersion(datastore, toBatchResponse(datastore.transferBatch(transfers, atomic)));
+    }
+
+    //Without a key the operation is just executed. Reuse of a key for another request is answered with 422.
+    static CompletableFuture<Response> idempotent(IdempotencyCache cache, String key, String fingerprint,
+                                                  Supplier<CompletableFuture<OperationResult>> operation) {
+        if (key == null) {
+            return operation.get().thenApply(AccountResource::toResponse);
+        }
+        if (key.isEmpty() || key.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+            return CompletableFuture.completedFuture(Response.status(Response.Status.BAD_REQUEST).build());
+        }
+        return cache.execute(key, fingerprint, operation).handle((result, error) -> {
+            if (error == null) {
+                return toResponse(result);
+            }
+            final Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause instanceof IdempotencyCache.KeyReusedException) {
+                return Response.status(UNPROCESSABLE_ENTITY).build();
+            }
+            throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+        });
+    }
+
+    //A projection which has not applied minChangeVersion yet is bypassed instead of waited for.
+    static BigDecimal readBalance(Datastore datastore, long accountId, Long minChangeVersion) {
+        final ChangeFeedDatastore feed = minChangeVersion == null ? null : ChangeFeedDatastore.find(datastore);
+        if (feed != null && !feed.hasApplied(minChangeVersion)) {
+            return feed.sourceBalance(accountId);
+        }
+        return datastore.balance(accountId);
+    }
+
+    //Unchanged without a balance projection.
+    static Response withChangeVersion(Datastore datastore, Response response) {
+        final ChangeFeedDatastore feed = ChangeFeedDatastore.find(datastore);
+        if (feed == null) {
+            return response;
+        }
+        return Response.fromResponse(response).header(CHANGE_VERSION, feed.publishedVersion()).build();
+    }
+
+    //Datastores without the account lifecycle answer 501.
+    static Response toLifecycleResponse(Datastore datastore, Supplier<OperationResult> operation) {
+        return withChangeVersion(datastore, toResponse(operation.get()));
+    }
+
+    //Unknown currency, or currencies which are not enabled, are a bad request.
+    static Response toCreateResponse(Datastore datastore, String currency) {
+        final CurrencyDatastore currencies = CurrencyDatastore.find(datastore);
+        if (currencies == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        try {
+            return Response.ok(currencies.createAccount(currency)).build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+    }
+
+    static Response toCurrencyResponse(Datastore datastore, long accountId) {
+        final CurrencyDatastore currencies = CurrencyDatastore.find(datastore);
+        if (currencies == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok(currencies.currency(accountId)).build();
+    }
+
+    static Response toLimitsResponse(Datastore datastore, long accountId) {
+        final SpendingLimitDatastore limits = SpendingLimitDatastore.find(datastore);
+        if (limits == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        final long daily = limits.dailyLimitMinor(accountId);
+        final int perMinute = limits.debitsPerMinute(accountId);
+        return Response.ok((daily == SpendingLimitDatastore.NO_DAILY_LIMIT ? NO_LIMIT : MinorUnits.toBigDecimal(daily).toPlainString())
+                + "," + (perMinute == SpendingLimitDatastore.NO_VELOCITY_LIMIT ? NO_LIMIT : String.valueOf(perMinute))
+                + "," + MinorUnits.toBigDecimal(limits.spentTodayMinor(accountId)).toPlainString()
+                + "," + limits.debitsLastMinute(accountId)).build();
+    }
+
+    //Limits which can not be kept, e.g. with more fraction digits than MinorUnits.SCALE, are a bad request.
+    static Response toSetLimitsResponse(Datastore datastore, long accountId, String daily, String perMinute) {
+        final SpendingLimitDatastore limits = SpendingLimitDatastore.find(datastore);
+        if (limits == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        try {
+            final long dailyLimit = daily == null ? SpendingLimitDatastore.DEFAULT_LIMIT
+                    : NO_LIMIT.equals(daily) ? SpendingLimitDatastore.NO_DAILY_LIMIT
+                    : MinorUnits.toMinor(new BigDecimal(daily));
+            final int perMinuteLimit = perMinute == null ? SpendingLimitDatastore.DEFAULT_LIMIT
+                    : NO_LIMIT.equals(perMinute) ? SpendingLimitDatastore.NO_VELOCITY_LIMIT
+                    : Integer.parseInt(perMinute);
+            //Negative values would mean "default".
+            if ((daily != null && dailyLimit < 0) || (perMinute != null && perMinuteLimit < 0)) {
+                return Response.status(Response.Status.BAD_REQUEST).build();
+            }
+            limits.setLimits(accountId, dailyLimit, perMinuteLimit);
+            return Response.ok("Ok").build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //Page bounds are fixed here, the entries are written straight to the response stream.
+    //History of a cluster node has local account ids, accounts of other nodes are redirected to their node.
+    static Response toTransactionsResponse(Datastore datastore, TransactionHistory history, long accountId, int cursor,
+                                           int limit) {
+        final ClusterDatastore cluster = datastore instanceof ClusterDatastore ? (ClusterDatastore) datastore : null;
+        if (cluster != null && !cluster.isLocal(accountId)) {
+            return Response.temporaryRedirect(URI.create(cluster.nodeOf(accountId) + "/v1/accounts/" + accountId
+                    + "/transactions?cursor=" + cursor + "&limit=" + limit)).build();
+        }
+        final long historyId = cluster == null ? accountId : cluster.toLocal(accountId);
+        final LongUnaryOperator counterparties = cluster == null ? LongUnaryOperator.identity() : cluster::toGlobal;
+        final int count = Math.max(0, Math.min(limit, history.size(historyId) - cursor));
+        final StreamingOutput entries = output -> {
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            try {
+                history.read(historyId, cursor, count, (entryCursor, timestampMillis, counterparty, amount) -> {
+                    try {
+                        writer.write(entryCursor + "," + timestampMillis + ","
+                                + (counterparty == TransactionHistory.NO_COUNTERPARTY ? ""
+                                        : String.valueOf(counterparties.applyAsLong(counterparty)))
+                                + "," + amount.toPlainString() + "\n");
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.flush();
+        };
+        return Response.ok(entries).header(NEXT_CURSOR, cursor + count).build();
+    }
+
+    static Response toBatchResponse(List<OperationResult> results) {
+        //Busy batch was not applied at all.
+        if (results.get(0) == OperationResult.Busy) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+        }
+        final StringBuilder response = new StringBuilder(results.size() * 8);
+        for (OperationResult result : results) {
+            response.append(result.name()).append('\n');
+        }
+        return Response.ok(response.toString()).build();
+    }
+
+    static List<Transfer> parseTransfers(String body) {
+        if (body == null) {
+            return null;
+        }
+        final List<Transfer> transfers = new ArrayList<>();
+        for (String line : body.split("\n")) {
+            final String entry = line.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            final String[] fields = entry.split(",");
+            if (fields.length != 3) {
+                return null;
+            }
+            try {
+                transfers.add(new Transfer(Long.parseLong(fields[0].trim()), Long.parseLong(fields[1].trim()),
+                        new BigDecimal(fields[2].trim())));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return transfers;
+    }
+
+    static Response toResponse(OperationResult result) {
         if(result.isSuccess()) {
             return Response.ok("Ok").build();
         }
         if(result == OperationResult.NoAccount) {
             return Response.status(Response.Status.NOT_FOUND).build();
         }
+        if(result == OperationResult.WrongAmount) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        if(result == OperationResult.Busy) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+        }
+        if(result == OperationResult.LimitExceeded) {
+            return Response.status(TOO_MANY_REQUESTS).build();
+        }
+        if(result == OperationResult.Pending) {
+            return Response.status(Response.Status.ACCEPTED).build();
+        }
+        if(result == OperationResult.Frozen) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+        if(result == OperationResult.NotEmpty) {
+            return Response.status(Response.Status.CONFLICT).build();
+        }
+        if(result == OperationResult.Unsupported) {
+            return Response.status(NOT_IMPLEMENTED).build();
+        }
 
         return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
     }
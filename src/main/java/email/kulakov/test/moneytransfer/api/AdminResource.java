@@ -0,0 +1,101 @@
+package email.kulakov.test.moneytransfer.api;
+
+import email.kulakov.test.moneytransfer.audit.AuditReport;
+import email.kulakov.test.moneytransfer.audit.Auditor;
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.replication.ReplicationLog;
+import email.kulakov.test.moneytransfer.replication.StandbyDatastore;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+
+@Path("/admin")
+public class AdminResource {
+
+    @Inject
+    private Auditor auditor;
+
+    @Inject
+    private Datastore datastore;
+
+    //Runs an audit now, traffic goes on meanwhile.
+    @POST
+    @Path("/audit")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response audit() {
+        try {
+            return toAuditResponse(auditor.audit());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @GET
+    @Path("/audit")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response lastAudit() {
+        final AuditReport report = auditor.lastReport();
+        if (report == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return toAuditResponse(report);
+    }
+
+    //Makes a standby accept writes, the old primary must not take writes any more. Returns the last applied record.
+    //Not found on nodes which are not a standby.
+    @POST
+    @Path("/promote")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response promote() {
+        final StandbyDatastore standby = StandbyDatastore.find(datastore);
+        if (standby == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok("applied=" + standby.promote() + "\n").build();
+    }
+
+    //Role and position of this node, not found without replication.
+    @GET
+    @Path("/replication")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response replication() {
+        final StandbyDatastore standby = StandbyDatastore.find(datastore);
+        if (standby != null) {
+            return Response.ok("role=standby\n"
+                    + "state=" + standby.state() + "\n"
+                    + "applied=" + standby.appliedSequence() + "\n"
+                    + "primary=" + standby.primarySequence() + "\n"
+                    + "lag=" + standby.lagRecords() + "\n"
+                    + "lastFrameAgeMillis=" + TimeUnit.NANOSECONDS.toMillis(standby.lastFrameAgeNanos()) + "\n"
+                    + (standby.failure() == null ? "" : "failure=" + standby.failure() + "\n")).build();
+        }
+        final ReplicationLog log = ReplicationLog.find(datastore);
+        if (log != null) {
+            final long appended = log.appendedSequence();
+            return Response.ok("role=primary\n"
+                    + "mode=" + log.mode() + "\n"
+                    + "appended=" + appended + "\n"
+                    + "acked=" + log.ackedSequence() + "\n"
+                    + "lag=" + Math.max(0, appended - log.ackedSequence()) + "\n"
+                    + "connected=" + log.isConnected() + "\n"
+                    + "degraded=" + log.isDegraded() + "\n").build();
+        }
+        return Response.status(Response.Status.NOT_FOUND).build();
+    }
+
+    //One "name=value" per line.
+    private static Response toAuditResponse(AuditReport report) {
+        return Response.ok("accounts=" + report.getAccountCount() + "\n"
+                + "total=" + report.getTotal().toPlainString() + "\n"
+                + "expected=" + report.getExpected().toPlainString() + "\n"
+                + "drift=" + report.getDrift().toPlainString() + "\n").build();
+    }
+}
@@ -0,0 +1,207 @@
+package email.kulakov.test.moneytransfer.api;
+
+import email.kulakov.test.moneytransfer.cluster.NodeUnavailableException;
+import email.kulakov.test.moneytransfer.db.AsyncDatastore;
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.Transfer;
+import email.kulakov.test.moneytransfer.feed.ChangeFeedDatastore;
+import email.kulakov.test.moneytransfer.history.TransactionHistory;
+import email.kulakov.test.moneytransfer.replication.NotPrimaryException;
+
+import javax.inject.Inject;
+import javax.ws.rs.*;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+
+//Same API as AccountResource. RESTEasy suspends the request until the returned stage completes,
+//so the Jetty thread is released while the datastore works.
+@Path("/v1/accounts")
+public class AsyncAccountResource {
+
+    @Inject
+    private AsyncDatastore datastore;
+
+    @Inject
+    private IdempotencyCache idempotencyCache;
+
+    @Inject
+    private TransactionHistory history;
+
+    //Currencies are looked up in the decorators of the blocking datastore.
+    @Inject
+    private Datastore blockingDatastore;
+
+    //Accounts in other currencies are rare, they are created on the request thread.
+    @POST
+    @Path("/create")
+    public CompletionStage<Response> create(@QueryParam("currency") String currency) {
+        if (currency != null) {
+            return completed(AccountResource.toCreateResponse(blockingDatastore, currency));
+        }
+        return handle(datastore.createAccount().thenApply(accountId -> Response.ok(accountId).build()));
+    }
+
+    @GET
+    @Path("/{id}/currency")
+    public CompletionStage<Response> currency(@PathParam("id") Long accountId) {
+        if (accountId == null) {
+            return completed(Response.status(Response.Status.BAD_REQUEST).build());
+        }
+        return handle(datastore.balance(accountId).thenApply(balance -> balance == null
+                ? Response.status(Response.Status.NOT_FOUND).build()
+                : AccountResource.toCurrencyResponse(blockingDatastore, accountId)));
+    }
+
+    //Limits are read and set on the request thread, like currencies.
+    @GET
+    @Path("/{id}/limits")
+    @Produces(MediaType.TEXT_PLAIN)
+    public CompletionStage<Response> limits(@PathParam("id") Long accountId) {
+        if (accountId == null) {
+            return completed(Response.status(Response.Status.BAD_REQUEST).build());
+        }
+        return handle(datastore.balance(accountId).thenApply(balance -> balance == null
+                ? Response.status(Response.Status.NOT_FOUND).build()
+                : AccountResource.toLimitsResponse(blockingDatastore, accountId)));
+    }
+
+    @PUT
+    @Path("/{id}/limits")
+    public CompletionStage<Response> setLimits(@PathParam("id") Long accountId,
+                                               @FormParam("daily") String daily,
+                                               @FormParam("perMinute") String perMinute) {
+        if (accountId == null) {
+            return completed(Response.status(Response.Status.BAD_REQUEST).build());
+        }
+        return handle(datastore.balance(accountId).thenApply(balance -> balance == null
+                ? Response.status(Response.Status.NOT_FOUND).build()
+                : AccountResource.toSetLimitsResponse(blockingDatastore, accountId, daily, perMinute)));
+    }
+
+    @GET
+    @Path("/{id}/balance")
+    public CompletionStage<Response> balance(@PathParam("id") Long accountId,
+                                             @HeaderParam(AccountResource.MIN_CHANGE_VERSION) Long minChangeVersion) {
+        if (accountId == null) {
+            return completed(Response.status(Response.Status.BAD_REQUEST).build());
+        }
+        //Read your writes before the projection catches up: read from the source on this thread.
+        final ChangeFeedDatastore feed = minChangeVersion == null ? null : ChangeFeedDatastore.find(blockingDatastore);
+        final CompletableFuture<BigDecimal> read = feed != null && !feed.hasApplied(minChangeVersion)
+                ? CompletableFuture.completedFuture(feed.sourceBalance(accountId))
+                : datastore.balance(accountId);
+        return handle(read.thenApply(balance -> balance == null
+                ? Response.status(Response.Status.NOT_FOUND).build()
+                : Response.ok(balance.toString()).build()));
+    }
+
+    @POST
+    @Path("/{id}/changeMoney")
+    public CompletionStage<Response> changeMoney(@PathParam("id") Long accountId,
+                                                 @FormParam("delta") String delta,
+                                                 @HeaderParam(AccountResource.IDEMPOTENCY_KEY) String idempotencyKey) {
+        if (accountId == null || delta == null) {
+            return completed(Response.status(Response.Status.BAD_REQUEST).build());
+        }
+        final BigDecimal amount = new BigDecimal(delta);
+        return handle(AccountResource.idempotent(idempotencyCache, idempotencyKey, "changeMoney:" + accountId + ":" + delta,
+                () -> datastore.changeMoney(accountId, amount))
+                .thenApply(response -> AccountResource.withChangeVersion(blockingDatastore, response)));
+    }
+
+    @POST
+    @Path("/{id}/transferMoney")
+    public CompletionStage<Response> transferMoney(@PathParam("id") Long fromAccount,
+                                                   @FormParam("to") Long toAccount,
+                                                   @FormParam("amount") String amount,
+                                                   @HeaderParam(AccountResource.IDEMPOTENCY_KEY) String idempotencyKey) {
+        if (fromAccount == null || toAccount == null || amount == null) {
+            return completed(Response.status(Response.Status.BAD_REQUEST).build());
+        }
+        final BigDecimal value = new BigDecimal(amount);
+        return handle(AccountResource.idempotent(idempotencyCache, idempotencyKey,
+                "transferMoney:" + fromAccount + ":" + toAccount + ":" + amount,
+                () -> datastore.transferMoney(fromAccount, toAccount, value))
+                .thenApply(response -> AccountResource.withChangeVersion(blockingDatastore, response)));
+    }
+
+    //Lifecycle changes are rare, they run on the request thread. A close waits only for writes already running.
+    @POST
+    @Path("/{id}/freeze")
+    public CompletionStage<Response> freeze(@PathParam("id") Long accountId) {
+        if (accountId == null) {
+            return completed(Response.status(Response.Status.BAD_REQUEST).build());
+        }
+        return completed(AccountResource.toLifecycleResponse(blockingDatastore,
+                () -> blockingDatastore.freezeAccount(accountId)));
+    }
+
+    @POST
+    @Path("/{id}/unfreeze")
+    public CompletionStage<Response> unfreeze(@PathParam("id") Long accountId) {
+        if (accountId == null) {
+            return completed(Response.status(Response.Status.BAD_REQUEST).build());
+        }
+        return completed(AccountResource.toLifecycleResponse(blockingDatastore,
+                () -> blockingDatastore.unfreezeAccount(accountId)));
+    }
+
+    @POST
+    @Path("/{id}/close")
+    public CompletionStage<Response> close(@PathParam("id") Long accountId) {
+        if (accountId == null) {
+            return completed(Response.status(Response.Status.BAD_REQUEST).build());
+        }
+        return completed(AccountResource.toLifecycleResponse(blockingDatastore,
+                () -> blockingDatastore.closeAccount(accountId)));
+    }
+
+    @GET
+    @Path("/{id}/transactions")
+    @Produces(MediaType.TEXT_PLAIN)
+    public CompletionStage<Response> transactions(@PathParam("id") Long accountId,
+                                                  @QueryParam("cursor") @DefaultValue("0") int cursor,
+                                                  @QueryParam("limit") @DefaultValue("" + AccountResource.DEFAULT_PAGE_SIZE) int limit) {
+        if (accountId == null || cursor < 0 || limit <= 0 || limit > AccountResource.MAX_PAGE_SIZE) {
+            return completed(Response.status(Response.Status.BAD_REQUEST).build());
+        }
+        return handle(datastore.balance(accountId).thenApply(balance -> balance == null
+                ? Response.status(Response.Status.NOT_FOUND).build()
+                : AccountResource.toTransactionsResponse(blockingDatastore, history, accountId, cursor, limit)));
+    }
+
+    @POST
+    @Path("/transferBatch")
+    @Consumes(MediaType.TEXT_PLAIN)
+    @Produces(MediaType.TEXT_PLAIN)
+    public CompletionStage<Response> transferBatch(@QueryParam("atomic") boolean atomic, String body) {
+        final List<Transfer> transfers = AccountResource.parseTransfers(body);
+        if (transfers == null || transfers.isEmpty() || transfers.size() > AccountResource.MAX_BATCH_SIZE) {
+            return completed(Response.status(Response.Status.BAD_REQUEST).build());
+        }
+        return handle(datastore.transferBatch(transfers, atomic).thenApply(results ->
+                AccountResource.withChangeVersion(blockingDatastore, AccountResource.toBatchResponse(results))));
+    }
+
+    //Overload, unavailable cluster nodes and standbys are reported as 503, so clients can retry later.
+    private static CompletionStage<Response> handle(CompletableFuture<Response> response) {
+        return response.exceptionally(error -> {
+            final Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause instanceof RejectedExecutionException || cause instanceof NodeUnavailableException
+                    || cause instanceof NotPrimaryException) {
+                return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+            }
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        });
+    }
+
+    private static CompletionStage<Response> completed(Response response) {
+        return CompletableFuture.completedFuture(response);
+    }
+}
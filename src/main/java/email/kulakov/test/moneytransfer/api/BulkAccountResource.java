@@ -0,0 +1,69 @@
+package email.kulakov.test.moneytransfer.api;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.fx.CurrencyDatastore;
+
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ForkJoinPool;
+
+//Bulk provisioning: one request creates accounts with consecutive ids and sets their opening balances.
+//Served in every execution mode, parsing and balance updates run on the common fork-join pool.
+@Path("/v1/accounts/bulk")
+public class BulkAccountResource {
+
+    static final int MAX_ACCOUNTS = 10_000_000;
+    static final String REJECTED_BALANCES = "X-Rejected-Balances";
+    private static final int UNPROCESSABLE_ENTITY = 422;
+
+    @Inject
+    private Datastore datastore;
+
+    //Body is one opening balance per line (text/plain) or little-endian int64 minor units (application/octet-stream),
+    //response is "firstId,lastId" of the created accounts, in the currency when it is given.
+    //Nothing is created when the body is malformed.
+    //Balances the datastore rejects (e.g. more fraction digits than it keeps) stay zero, the response is 422 then.
+    @POST
+    @Consumes({MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM})
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response create(@HeaderParam(HttpHeaders.CONTENT_TYPE) MediaType contentType,
+                           @QueryParam("currency") String currency, InputStream body) throws IOException {
+        final CurrencyDatastore currencies = currency == null ? null : CurrencyDatastore.find(datastore);
+        if (currency != null && currencies == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        final boolean binary = MediaType.APPLICATION_OCTET_STREAM_TYPE.isCompatible(contentType);
+        final ForkJoinPool pool = ForkJoinPool.commonPool();
+        final OpeningBalances balances;
+        try {
+            balances = OpeningBalances.parse(body, binary, MAX_ACCOUNTS, pool.getParallelism(), pool);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        if (balances.count() == 0) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        final long firstId;
+        try {
+            firstId = currencies == null ? datastore.createAccounts(balances.count())
+                    : currencies.createAccounts(balances.count(), currency);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        final long rejected = balances.apply(datastore, firstId, pool);
+        return Response.status(rejected == 0 ? Response.Status.OK.getStatusCode() : UNPROCESSABLE_ENTITY)
+                .header(REJECTED_BALANCES, rejected)
+                .entity(firstId + "," + (firstId + balances.count() - 1))
+                .build();
+    }
+}
@@ -0,0 +1,67 @@
+package email.kulakov.test.moneytransfer.api;
+
+import email.kulakov.test.moneytransfer.cluster.ClusterDatastore;
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+
+import javax.inject.Inject;
+import javax.ws.rs.FormParam;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.math.BigDecimal;
+
+//Messages between nodes of a cluster, see ClusterDatastore. Accounts are global ids of this node, writes carry the
+//message id which makes them idempotent and answer the OperationResult name. Not found outside of cluster mode.
+@Path("/internal/v1/accounts")
+public class ClusterResource {
+
+    @Inject
+    private Datastore datastore;
+
+    @GET
+    @Path("/{id}/balance")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response balance(@PathParam("id") long accountId) {
+        if (!(datastore instanceof ClusterDatastore)) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        final BigDecimal balance = ((ClusterDatastore) datastore).localBalance(accountId);
+        if (balance == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok(balance.toString()).build();
+    }
+
+    //Operation is one of changeMoney, transferMoney (with "to"), reserve, credit and release.
+    @POST
+    @Path("/{id}/{operation}")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response apply(@PathParam("id") long accountId,
+                          @PathParam("operation") String operation,
+                          @FormParam("message") String messageId,
+                          @FormParam("amount") String amount,
+                          @FormParam("to") long accountTo) {
+        if (!(datastore instanceof ClusterDatastore)) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        if (messageId == null || amount == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        final OperationResult result;
+        try {
+            result = ((ClusterDatastore) datastore).apply(operation, messageId, accountId, new BigDecimal(amount), accountTo);
+        } catch (IllegalArgumentException e) {
+            //Also a message id reused with other content.
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        if (result == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok(result.name()).build();
+    }
+}
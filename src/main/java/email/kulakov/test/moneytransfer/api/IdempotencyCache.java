@@ -0,0 +1,181 @@
+package email.kulakov.test.moneytransfer.api;
+
+import email.kulakov.test.moneytransfer.db.OperationResult;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+//Remembers results of recent requests by their Idempotency-Key. A retry gets the stored result without touching
+//the datastore, a duplicate arriving while the first request runs waits for its result.
+//Entries are evicted oldest first when they expire or when the entry count or estimated memory is over the limit.
+//Requests still in flight are never evicted, otherwise their retry could be executed twice.
+//Failures and Busy results are not remembered.
+@Singleton
+public class IdempotencyCache {
+
+    private static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final int DEFAULT_MAX_ENTRIES = 1_000_000;
+    private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    //Map node, entry, future and queue node headers, without the strings.
+    private static final int ENTRY_OVERHEAD_BYTES = 160;
+
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Queue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    @Inject
+    public IdempotencyCache() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    public IdempotencyCache(long ttlMillis, int maxEntries, long maxBytes) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    //Fingerprint describes the request. Same key with a different fingerprint fails with KeyReusedException.
+    public CompletableFuture<OperationResult> execute(String key, String fingerprint,
+                                                      Supplier<CompletableFuture<OperationResult>> operation) {
+        final Entry entry = new Entry(key, fingerprint, System.nanoTime());
+        while (true) {
+            final Entry existing = entries.putIfAbsent(key, entry);
+            if (existing == null) {
+                break;
+            }
+            if (isExpired(existing, entry.createdNanos)) {
+                if (remove(existing)) {
+                    evictions.increment();
+                }
+                continue;
+            }
+            hits.increment();
+            if (!existing.fingerprint.equals(fingerprint)) {
+                final CompletableFuture<OperationResult> conflict = new CompletableFuture<>();
+                conflict.completeExceptionally(new KeyReusedException(key));
+                return conflict;
+            }
+            return existing.result;
+        }
+
+        misses.increment();
+        insertionOrder.add(entry);
+        bytes.addAndGet(entry.size);
+        final CompletableFuture<OperationResult> result;
+        try {
+            result = operation.get();
+        } catch (RuntimeException e) {
+            remove(entry);
+            throw e;
+        }
+        result.whenComplete((value, error) -> {
+            if (error != null) {
+                //Failed requests are not remembered, so they can be retried.
+                remove(entry);
+                entry.result.completeExceptionally(error);
+            } else if (value == OperationResult.Busy) {
+                //Nothing was applied and Busy is retryable, a retry with the key has to run again.
+                remove(entry);
+                entry.result.complete(value);
+            } else {
+                entry.result.complete(value);
+            }
+        });
+        evict(entry.createdNanos);
+        return entry.result;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    private void evict(long now) {
+        while (true) {
+            final Entry oldest = insertionOrder.peek();
+            if (oldest == null) {
+                return;
+            }
+            final boolean overLimit = entries.size() > maxEntries || bytes.get() > maxBytes;
+            if (entries.get(oldest.key) != oldest) {
+                //Already removed (expired on access or failed).
+                insertionOrder.remove(oldest);
+                continue;
+            }
+            if (!oldest.result.isDone() || !(overLimit || isExpired(oldest, now))) {
+                return;
+            }
+            if (remove(oldest)) {
+                evictions.increment();
+            }
+            insertionOrder.remove(oldest);
+        }
+    }
+
+    private boolean remove(Entry entry) {
+        if (entries.remove(entry.key, entry)) {
+            bytes.addAndGet(-entry.size);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return entry.result.isDone() && now - entry.createdNanos > ttlNanos;
+    }
+
+    public static final class KeyReusedException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        KeyReusedException(String key) {
+            super("Idempotency key " + key + " was used for a different request");
+        }
+    }
+
+    private static final class Entry {
+        final String key;
+        final String fingerprint;
+        final long createdNanos;
+        final int size;
+        final CompletableFuture<OperationResult> result = new CompletableFuture<>();
+
+        Entry(String key, String fingerprint, long createdNanos) {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.createdNanos = createdNanos;
+            this.size = ENTRY_OVERHEAD_BYTES + 2 * (key.length() + fingerprint.length());
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package email.kulakov.test.moneytransfer.api;
+
+import email.kulakov.test.moneytransfer.metrics.HttpMetrics;
+
+import javax.inject.Inject;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+import java.lang.reflect.Method;
+
+//Records latency and status of every request per resource method.
+@Provider
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+    private static final String START_PROPERTY = MetricsFilter.class.getName() + ".start";
+    private static final String UNMATCHED = "unmatched";
+
+    @Inject
+    private HttpMetrics metrics;
+
+    @Context
+    private ResourceInfo resourceInfo;
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) {
+        requestContext.setProperty(START_PROPERTY, System.nanoTime());
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) {
+        final Object start = requestContext.getProperty(START_PROPERTY);
+        if (start == null) {
+            return;
+        }
+        final Method method = resourceInfo.getResourceMethod();
+        metrics.record(method == null ? UNMATCHED : method.getName(), responseContext.getStatus(),
+                System.nanoTime() - (Long) start);
+    }
+}
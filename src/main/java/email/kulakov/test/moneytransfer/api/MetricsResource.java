@@ -0,0 +1,326 @@
+package email.kulakov.test.moneytransfer.api;
+
+import email.kulakov.test.moneytransfer.audit.AuditReport;
+import email.kulakov.test.moneytransfer.audit.Auditor;
+import email.kulakov.test.moneytransfer.cluster.ClusterDatastore;
+import email.kulakov.test.moneytransfer.db.AccountContention;
+import email.kulakov.test.moneytransfer.db.ContentionStats;
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.ForwardingDatastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.feed.ChangeFeedDatastore;
+import email.kulakov.test.moneytransfer.fx.CurrencyDatastore;
+import email.kulakov.test.moneytransfer.journal.Journal;
+import email.kulakov.test.moneytransfer.journal.JournalingDatastore;
+import email.kulakov.test.moneytransfer.limits.SpendingLimitDatastore;
+import email.kulakov.test.moneytransfer.metrics.DatastoreMetrics;
+import email.kulakov.test.moneytransfer.metrics.HttpMetrics;
+import email.kulakov.test.moneytransfer.metrics.PrometheusWriter;
+import email.kulakov.test.moneytransfer.replication.ReplicationLog;
+import email.kulakov.test.moneytransfer.replication.StandbyDatastore;
+import email.kulakov.test.moneytransfer.schedule.TransferScheduler;
+import email.kulakov.test.moneytransfer.snapshot.SnapshotDatastore;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import java.util.Map;
+
+import static email.kulakov.test.moneytransfer.metrics.PrometheusWriter.label;
+
+@Path("/metrics")
+public class MetricsResource {
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    @Inject
+    private Datastore datastore;
+
+    @Inject
+    private DatastoreMetrics datastoreMetrics;
+
+    @Inject
+    private HttpMetrics httpMetrics;
+
+    @Inject
+    private IdempotencyCache idempotencyCache;
+
+    @Inject
+    private Auditor auditor;
+
+    @Inject
+    private TransferScheduler scheduler;
+
+    @GET
+    @Produces(PrometheusWriter.CONTENT_TYPE)
+    public String metrics() {
+        final PrometheusWriter writer = new PrometheusWriter();
+        writeDatastore(writer);
+        writeHttp(writer);
+        writeIdempotency(writer);
+        writeAudits(writer);
+        writeScheduledTransfers(writer);
+        //Decorators first, the backend is the last one in the chain.
+        Datastore current = datastore;
+        if (current instanceof ClusterDatastore) {
+            writeCluster(writer, (ClusterDatastore) current);
+            current = ((ClusterDatastore) current).getLocal();
+        }
+        while (current instanceof ForwardingDatastore) {
+            if (current instanceof JournalingDatastore && ((JournalingDatastore) current).getJournal() != null) {
+                writeJournal(writer, ((JournalingDatastore) current).getJournal());
+            }
+            if (current instanceof JournalingDatastore && ((JournalingDatastore) current).getLog() instanceof ReplicationLog) {
+                writeReplicationPrimary(writer, (ReplicationLog) ((JournalingDatastore) current).getLog());
+            }
+            if (current instanceof StandbyDatastore) {
+                writeStandby(writer, (StandbyDatastore) current);
+            }
+            if (current instanceof ChangeFeedDatastore) {
+                writeBalanceProjection(writer, (ChangeFeedDatastore) current);
+            }
+            if (current instanceof SpendingLimitDatastore) {
+                writeSpendingLimits(writer, (SpendingLimitDatastore) current);
+            }
+            if (current instanceof CurrencyDatastore) {
+                writeCurrencies(writer, (CurrencyDatastore) current);
+            }
+            if (current instanceof SnapshotDatastore) {
+                writeSnapshots(writer, (SnapshotDatastore) current);
+            }
+            current = ((ForwardingDatastore) current).getDelegate();
+        }
+        if (current instanceof ContentionStats) {
+            writeContention(writer, (ContentionStats) current);
+        }
+        return writer.toString();
+    }
+
+    private void writeDatastore(PrometheusWriter writer) {
+        writer.header("datastore_operations_total", "counter", "Datastore operations by result.");
+        for (DatastoreMetrics.Operation operation : DatastoreMetrics.Operation.values()) {
+            for (OperationResult result : OperationResult.values()) {
+                final long count = datastoreMetrics.outcomes(operation, result);
+                if (count > 0) {
+                    writer.sample("datastore_operations_total",
+                            label("operation", operation.label()) + "," + label("result", result.name()), count);
+                }
+            }
+        }
+        writer.header("datastore_operation_latency_seconds", "summary", "Datastore operation latency.");
+        for (DatastoreMetrics.Operation operation : DatastoreMetrics.Operation.values()) {
+            writer.summary("datastore_operation_latency_seconds", label("operation", operation.label()),
+                    datastoreMetrics.latency(operation));
+        }
+    }
+
+    private void writeHttp(PrometheusWriter writer) {
+        writer.header("http_requests_total", "counter", "HTTP requests by resource method and status class.");
+        for (Map.Entry<String, HttpMetrics.Endpoint> endpoint : httpMetrics.endpoints().entrySet()) {
+            for (int i = 0; i < HttpMetrics.STATUS_CLASSES.length; i++) {
+                final long count = endpoint.getValue().statuses(i);
+                if (count > 0) {
+                    writer.sample("http_requests_total", label("method", endpoint.getKey()) + ","
+                            + label("status", HttpMetrics.STATUS_CLASSES[i]), count);
+                }
+            }
+        }
+        writer.header("http_request_latency_seconds", "summary", "HTTP request latency inside RESTEasy.");
+        for (Map.Entry<String, HttpMetrics.Endpoint> endpoint : httpMetrics.endpoints().entrySet()) {
+            writer.summary("http_request_latency_seconds", label("method", endpoint.getKey()),
+                    endpoint.getValue().latency());
+        }
+        writer.header("startup_seconds", "gauge", "Time since JVM start when the server started listening, "
+                + "and when the first request was answered.");
+        if (httpMetrics.serverStartedMillis() >= 0) {
+            writer.sample("startup_seconds", label("phase", "server_started"), httpMetrics.serverStartedMillis() / 1e3);
+        }
+        if (httpMetrics.firstRequestMillis() >= 0) {
+            writer.sample("startup_seconds", label("phase", "first_request"), httpMetrics.firstRequestMillis() / 1e3);
+        }
+        if (httpMetrics.serverStartingMillis() >= 0 && httpMetrics.serverStartedMillis() >= 0) {
+            writer.header("server_start_seconds", "gauge", "Jetty, RESTEasy and Guice bootstrap time.")
+                    .sample("server_start_seconds", null,
+                            (httpMetrics.serverStartedMillis() - httpMetrics.serverStartingMillis()) / 1e3);
+        }
+    }
+
+    private void writeIdempotency(PrometheusWriter writer) {
+        writer.header("idempotency_cache_requests_total", "counter", "Requests with Idempotency-Key by cache outcome.")
+                .sample("idempotency_cache_requests_total", label("outcome", "hit"), idempotencyCache.hits())
+                .sample("idempotency_cache_requests_total", label("outcome", "miss"), idempotencyCache.misses());
+        writer.header("idempotency_cache_evictions_total", "counter", "Entries evicted by TTL or size limit.")
+                .sample("idempotency_cache_evictions_total", null, idempotencyCache.evictions());
+        writer.header("idempotency_cache_entries", "gauge", "Remembered keys.")
+                .sample("idempotency_cache_entries", null, idempotencyCache.size());
+        writer.header("idempotency_cache_bytes", "gauge", "Estimated memory used by remembered keys.")
+                .sample("idempotency_cache_bytes", null, idempotencyCache.bytes());
+    }
+
+    private void writeAudits(PrometheusWriter writer) {
+        writer.header("audits_total", "counter", "Money conservation audits.")
+                .sample("audits_total", null, auditor.auditCount());
+        writer.header("audit_drifts_total", "counter", "Audits which found money created or lost.")
+                .sample("audit_drifts_total", null, auditor.driftCount());
+        writer.header("audit_failures_total", "counter", "Audits which failed to run.")
+                .sample("audit_failures_total", null, auditor.failureCount());
+        final AuditReport report = auditor.lastReport();
+        if (report == null) {
+            return;
+        }
+        writer.header("audit_last_drift", "gauge", "Total of balances minus expected total in the last audit.")
+                .sample("audit_last_drift", null, report.getDrift().doubleValue());
+        writer.header("audit_last_total", "gauge", "Total of balances in the last audit.")
+                .sample("audit_last_total", null, report.getTotal().doubleValue());
+        writer.header("audit_last_duration_seconds", "gauge", "Time of the last audit.")
+                .sample("audit_last_duration_seconds", null, report.getDurationNanos() / NANOS_PER_SECOND);
+        writer.header("audit_last_accounts", "gauge", "Accounts in the last audit.")
+                .sample("audit_last_accounts", null, report.getAccountCount());
+    }
+
+    private void writeScheduledTransfers(PrometheusWriter writer) {
+        writer.header("scheduled_transfers_pending", "gauge", "Scheduled transfers waiting for execution.")
+                .sample("scheduled_transfers_pending", null, scheduler.pendingCount());
+        writer.header("scheduled_transfers_total", "counter", "Executed scheduled transfers by result.");
+        for (OperationResult result : OperationResult.values()) {
+            final long count = scheduler.executedCount(result);
+            if (count > 0) {
+                writer.sample("scheduled_transfers_total", label("result", result.name()), count);
+            }
+        }
+        writer.header("scheduled_transfer_retries_total", "counter", "Executions refused with Busy and scheduled again.")
+                .sample("scheduled_transfer_retries_total", null, scheduler.retryCount());
+        writer.header("scheduled_transfer_failures_total", "counter", "Scheduler ticks which failed.")
+                .sample("scheduled_transfer_failures_total", null, scheduler.failureCount());
+    }
+
+    private static void writeJournal(PrometheusWriter writer, Journal journal) {
+        writer.header("journal_batches_total", "counter", "Journal force() calls.")
+                .sample("journal_batches_total", null, journal.batchCount());
+        writer.header("journal_records_total", "counter", "Records made durable.")
+                .sample("journal_records_total", null, journal.recordCount());
+        writer.header("journal_max_batch_records", "gauge", "Largest number of records in one batch.")
+                .sample("journal_max_batch_records", null, journal.maxBatchSize());
+        writer.header("journal_fsync_seconds_total", "counter", "Time spent in force().")
+                .sample("journal_fsync_seconds_total", null, journal.fsyncNanos() / NANOS_PER_SECOND);
+    }
+
+    private static void writeCurrencies(PrometheusWriter writer, CurrencyDatastore currencies) {
+        writer.header("fx_conversions_total", "counter", "Transfers converted between currencies.")
+                .sample("fx_conversions_total", null, currencies.conversionCount());
+        writer.header("fx_rate_reloads_total", "counter", "Rate files loaded.")
+                .sample("fx_rate_reloads_total", null, currencies.reloadCount());
+        writer.header("fx_rate_reload_failures_total", "counter", "Rate files which failed to load, old rates stay.")
+                .sample("fx_rate_reload_failures_total", null, currencies.reloadFailureCount());
+        writer.header("fx_unrefunded", "gauge", "Debits of failed transfers between currencies which were not refunded.")
+                .sample("fx_unrefunded", null, currencies.unrefundedCount());
+        writer.header("fx_currencies", "gauge", "Currencies with a rate.")
+                .sample("fx_currencies", null, currencies.rates().size());
+    }
+
+    private static void writeBalanceProjection(PrometheusWriter writer, ChangeFeedDatastore feed) {
+        final long published = feed.publishedVersion();
+        final long applied = feed.appliedVersion();
+        writer.header("change_feed_published_total", "counter", "Balance changes published to the change feed.")
+                .sample("change_feed_published_total", null, published);
+        writer.header("change_feed_applied_total", "counter", "Balance changes applied to the projection.")
+                .sample("change_feed_applied_total", null, applied);
+        writer.header("change_feed_lag_events", "gauge", "Balance changes the projection has not applied yet.")
+                .sample("change_feed_lag_events", null, Math.max(0, published - applied));
+        writer.header("change_feed_lag_seconds", "gauge", "Age of the oldest change the projection has not applied.")
+                .sample("change_feed_lag_seconds", null, feed.lagNanos() / NANOS_PER_SECOND);
+        writer.header("balance_projection_reads_total", "counter", "Balance reads served from the projection.")
+                .sample("balance_projection_reads_total", null, feed.projectedReadCount());
+        writer.header("balance_projection_fallbacks_total", "counter",
+                "Balance reads served from the datastore: unknown account, too stale or read your writes.")
+                .sample("balance_projection_fallbacks_total", null, feed.sourceReadCount());
+    }
+
+    private static void writeSpendingLimits(PrometheusWriter writer, SpendingLimitDatastore limits) {
+        writer.header("spending_limit_refusals_total", "counter", "Debits refused with LimitExceeded by limit.")
+                .sample("spending_limit_refusals_total", label("limit", "daily"), limits.dailyRefusalCount())
+                .sample("spending_limit_refusals_total", label("limit", "velocity"), limits.velocityRefusalCount());
+    }
+
+    private static void writeCluster(PrometheusWriter writer, ClusterDatastore cluster) {
+        writer.header("cluster_forwarded_total", "counter", "Calls on accounts of other nodes.")
+                .sample("cluster_forwarded_total", null, cluster.forwardedCount());
+        writer.header("cluster_cross_node_transfers_total", "counter", "Transfers between nodes completed.")
+                .sample("cluster_cross_node_transfers_total", null, cluster.crossNodeTransferCount());
+        writer.header("cluster_retries_total", "counter", "Messages to nodes sent again after a failure.")
+                .sample("cluster_retries_total", null, cluster.retryCount());
+        writer.header("cluster_in_doubt", "gauge", "Messages whose outcome is not known yet, resolved in the background.")
+                .sample("cluster_in_doubt", null, cluster.inDoubtCount());
+        writer.header("cluster_escalated", "gauge", "Messages given up in doubt, their transfers need an operator.")
+                .sample("cluster_escalated", null, cluster.escalatedCount());
+    }
+
+    private static void writeReplicationPrimary(PrometheusWriter writer, ReplicationLog log) {
+        final long appended = log.appendedSequence();
+        writer.header("replication_appended_records_total", "counter", "Records written for the standby.")
+                .sample("replication_appended_records_total", null, appended);
+        writer.header("replication_acked_records_total", "counter", "Records the standby acknowledged.")
+                .sample("replication_acked_records_total", null, log.ackedSequence());
+        writer.header("replication_lag_records", "gauge", "Records the standby has not acknowledged yet.")
+                .sample("replication_lag_records", null, Math.max(0, appended - log.ackedSequence()));
+        writer.header("replication_frames_total", "counter", "Frames sent to the standby, heartbeats included.")
+                .sample("replication_frames_total", null, log.frameCount());
+        writer.header("replication_standby_connected", "gauge", "1 while a standby is streaming.")
+                .sample("replication_standby_connected", null, log.isConnected() ? 1 : 0);
+        writer.header("replication_degraded", "gauge", "1 while semi-sync writes do not wait for the standby.")
+                .sample("replication_degraded", null, log.isDegraded() ? 1 : 0);
+        writer.header("replication_ack_timeouts_total", "counter", "Semi-sync writes which stopped waiting for the standby.")
+                .sample("replication_ack_timeouts_total", null, log.ackTimeoutCount());
+        writer.header("replication_refused_standbys_total", "counter", "Standbys refused, they have to be rebuilt.")
+                .sample("replication_refused_standbys_total", null, log.refusedStandbyCount());
+    }
+
+    private static void writeStandby(PrometheusWriter writer, StandbyDatastore standby) {
+        writer.header("standby_applied_records_total", "counter", "Records of the primary applied.")
+                .sample("standby_applied_records_total", null, standby.appliedRecordCount());
+        writer.header("standby_lag_records", "gauge", "Records of the primary not applied yet, as of the last frame.")
+                .sample("standby_lag_records", null, standby.lagRecords());
+        writer.header("standby_last_frame_age_seconds", "gauge", "Time since the last frame from the primary.")
+                .sample("standby_last_frame_age_seconds", null, standby.lastFrameAgeNanos() / NANOS_PER_SECOND);
+        writer.header("standby_reconnects_total", "counter", "Connections to the primary lost and retried.")
+                .sample("standby_reconnects_total", null, standby.reconnectCount());
+        writer.header("standby_state", "gauge", "1 for the current state of the standby.");
+        for (StandbyDatastore.State state : StandbyDatastore.State.values()) {
+            writer.sample("standby_state", label("state", state.name()), standby.state() == state ? 1 : 0);
+        }
+    }
+
+    private static void writeSnapshots(PrometheusWriter writer, SnapshotDatastore snapshots) {
+        writer.header("snapshots_total", "counter", "Snapshots written.")
+                .sample("snapshots_total", null, snapshots.snapshotCount());
+        writer.header("snapshot_failures_total", "counter", "Snapshots which failed to be written.")
+                .sample("snapshot_failures_total", null, snapshots.failureCount());
+        writer.header("snapshot_last_duration_seconds", "gauge", "Time to write the last snapshot.")
+                .sample("snapshot_last_duration_seconds", null, snapshots.lastDurationNanos() / NANOS_PER_SECOND);
+        writer.header("snapshot_last_accounts", "gauge", "Accounts in the last snapshot.")
+                .sample("snapshot_last_accounts", null, snapshots.lastAccountCount());
+    }
+
+    private static void writeContention(PrometheusWriter writer, ContentionStats stats) {
+        writer.header("datastore_cas_retries_total", "counter", "Retried compare-and-set attempts.")
+                .sample("datastore_cas_retries_total", null, stats.casRetries());
+        writer.header("datastore_lock_wait_seconds_total", "counter", "Time spent waiting for account locks.")
+                .sample("datastore_lock_wait_seconds_total", null, stats.lockWaitNanos() / NANOS_PER_SECOND);
+        writer.header("datastore_split_accounts", "gauge", "Hot accounts split into striped sub-balances.")
+                .sample("datastore_split_accounts", null, stats.splitAccounts());
+        final Map<Long, AccountContention.Stats> hotAccounts = stats.hotAccounts();
+        writer.header("datastore_hot_account_contentions_total", "counter",
+                "Contended lock acquisitions of accounts which are hot right now.");
+        for (Map.Entry<Long, AccountContention.Stats> account : hotAccounts.entrySet()) {
+            writer.sample("datastore_hot_account_contentions_total", label("account", account.getKey().toString()),
+                    account.getValue().contentions());
+        }
+        writer.header("datastore_hot_account_lock_wait_seconds_total", "counter",
+                "Time spent waiting for locks of accounts which are hot right now.");
+        for (Map.Entry<Long, AccountContention.Stats> account : hotAccounts.entrySet()) {
+            writer.sample("datastore_hot_account_lock_wait_seconds_total", label("account", account.getKey().toString()),
+                    account.getValue().waitNanos() / NANOS_PER_SECOND);
+        }
+    }
+}
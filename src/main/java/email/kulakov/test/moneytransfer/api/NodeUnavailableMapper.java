@@ -0,0 +1,17 @@
+package email.kulakov.test.moneytransfer.api;
+
+import email.kulakov.test.moneytransfer.cluster.NodeUnavailableException;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+//Reads of accounts on a cluster node which does not answer, clients can retry later.
+@Provider
+public class NodeUnavailableMapper implements ExceptionMapper<NodeUnavailableException> {
+
+    @Override
+    public Response toResponse(NodeUnavailableException exception) {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+    }
+}
@@ -0,0 +1,17 @@
+package email.kulakov.test.moneytransfer.api;
+
+import email.kulakov.test.moneytransfer.replication.NotPrimaryException;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+//Account creation on a standby which is not promoted, clients retry on the primary.
+@Provider
+public class NotPrimaryMapper implements ExceptionMapper<NotPrimaryException> {
+
+    @Override
+    public Response toResponse(NotPrimaryException exception) {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+    }
+}
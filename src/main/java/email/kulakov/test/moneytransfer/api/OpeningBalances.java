@@ -0,0 +1,228 @@
+package email.kulakov.test.moneytransfer.api;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.MinorUnits;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Opening balances of a bulk import. The body is read block by block on the caller thread and blocks are parsed by
+//parallel workers, so parsing overlaps reading. Balances are kept as long minor units, 8 bytes per account.
+//Text body: one non-negative amount per line. Binary body: little-endian int64 minor units, one per account.
+final class OpeningBalances {
+
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    private final List<Block> blocks;
+    private final int count;
+
+    private OpeningBalances(List<Block> blocks, int count) {
+        this.blocks = blocks;
+        this.count = count;
+    }
+
+    //Throws IllegalArgumentException on a malformed or negative amount or more than maxCount balances.
+    static OpeningBalances parse(InputStream body, boolean binary, int maxCount, int parallelism, Executor executor)
+            throws IOException {
+        final List<Block> blocks = new ArrayList<>();
+        //Parsed blocks are joined in order while reading goes on, so raw bytes in flight stay bounded.
+        final Queue<CompletableFuture<Block>> inFlight = new ArrayDeque<>();
+        int count = 0;
+        byte[] carry = new byte[0];
+        boolean end = false;
+        while (!end) {
+            final byte[] buffer = Arrays.copyOf(carry, BLOCK_SIZE);
+            int length = carry.length;
+            int read;
+            while (length < buffer.length && (read = body.read(buffer, length, buffer.length - length)) > 0) {
+                length += read;
+            }
+            end = length < buffer.length;
+            final int blockEnd = end ? length : lastBoundary(buffer, length, binary);
+            carry = Arrays.copyOfRange(buffer, blockEnd, length);
+            final int blockLength = blockEnd;
+            inFlight.add(CompletableFuture.supplyAsync(
+                    () -> binary ? parseBinary(buffer, blockLength) : parseText(buffer, blockLength), executor));
+            while (inFlight.size() > parallelism || (end && !inFlight.isEmpty())) {
+                final Block block = join(inFlight.poll());
+                count += block.size;
+                if (count > maxCount) {
+                    throw new IllegalArgumentException("More than " + maxCount + " accounts");
+                }
+                blocks.add(block);
+            }
+        }
+        return new OpeningBalances(blocks, count);
+    }
+
+    int count() {
+        return count;
+    }
+
+    //Sets balances of accounts firstId.. in parallel, returns number of balances the datastore rejected.
+    long apply(Datastore datastore, long firstId, Executor executor) {
+        final AtomicLong rejected = new AtomicLong();
+        final List<CompletableFuture<Void>> applied = new ArrayList<>(blocks.size());
+        long blockFirstId = firstId;
+        for (Block block : blocks) {
+            final long accountId = blockFirstId;
+            applied.add(CompletableFuture.runAsync(() -> rejected.addAndGet(block.apply(datastore, accountId)), executor));
+            blockFirstId += block.size;
+        }
+        for (CompletableFuture<Void> future : applied) {
+            join(future);
+        }
+        return rejected.get();
+    }
+
+    //Blocks end after the last full line or full long, the rest is carried to the next block.
+    private static int lastBoundary(byte[] buffer, int length, boolean binary) {
+        if (binary) {
+            return length - length % Long.BYTES;
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer[i] == '\n') {
+                return i + 1;
+            }
+        }
+        throw new IllegalArgumentException("Line is longer than " + BLOCK_SIZE + " bytes");
+    }
+
+    private static Block parseBinary(byte[] buffer, int length) {
+        if (length % Long.BYTES != 0) {
+            throw new IllegalArgumentException("Binary body length is not a multiple of " + Long.BYTES);
+        }
+        final ByteBuffer balances = ByteBuffer.wrap(buffer, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        final Block block = new Block(length / Long.BYTES);
+        for (int i = 0; i < block.size; i++) {
+            final long balance = balances.getLong();
+            if (balance < 0) {
+                throw new IllegalArgumentException("Negative opening balance " + balance);
+            }
+            block.minor[i] = balance;
+        }
+        return block;
+    }
+
+    private static Block parseText(byte[] buffer, int length) {
+        int lines = 0;
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == '\n') {
+                lines++;
+            }
+        }
+        if (length > 0 && buffer[length - 1] != '\n') {
+            lines++;
+        }
+        final Block block = new Block(lines);
+        int start = 0;
+        for (int line = 0; line < lines; line++) {
+            int end = start;
+            while (end < length && buffer[end] != '\n') {
+                end++;
+            }
+            final int next = end + 1;
+            if (end > start && buffer[end - 1] == '\r') {
+                end--;
+            }
+            block.set(line, buffer, start, end);
+            start = next;
+        }
+        return block;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static final class Block {
+        final int size;
+        final long[] minor;
+        //Amounts with more fraction digits than MinorUnits.SCALE, by index. Rare.
+        final Map<Integer, BigDecimal> exact = new HashMap<>();
+
+        Block(int size) {
+            this.size = size;
+            this.minor = new long[size];
+        }
+
+        //Plain "123" or "123.45" is parsed without BigDecimal.
+        void set(int index, byte[] buffer, int start, int end) {
+            long value = 0;
+            int fractionDigits = -1;
+            boolean fast = end > start && end - start <= 16;
+            for (int i = start; i < end && fast; i++) {
+                final byte c = buffer[i];
+                if (c == '.' && fractionDigits < 0 && i > start) {
+                    fractionDigits = 0;
+                } else if (c >= '0' && c <= '9' && fractionDigits < MinorUnits.SCALE) {
+                    value = value * 10 + (c - '0');
+                    if (fractionDigits >= 0) {
+                        fractionDigits++;
+                    }
+                } else {
+                    fast = false;
+                }
+            }
+            if (fast && fractionDigits != 0) {
+                for (int i = Math.max(fractionDigits, 0); i < MinorUnits.SCALE; i++) {
+                    value *= 10;
+                }
+                minor[index] = value;
+                return;
+            }
+            final BigDecimal amount;
+            try {
+                amount = new BigDecimal(new String(buffer, start, end - start, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed opening balance");
+            }
+            if (amount.signum() < 0) {
+                throw new IllegalArgumentException("Negative opening balance " + amount);
+            }
+            final long amountMinor = MinorUnits.toMinor(amount);
+            if (amountMinor == MinorUnits.NOT_REPRESENTABLE) {
+                exact.put(index, amount);
+            } else {
+                minor[index] = amountMinor;
+            }
+        }
+
+        long apply(Datastore datastore, long firstId) {
+            long rejected = 0;
+            for (int i = 0; i < size; i++) {
+                final BigDecimal exactAmount = exact.isEmpty() ? null : exact.get(i);
+                if (exactAmount == null && minor[i] == 0) {
+                    continue;
+                }
+                final BigDecimal amount = exactAmount != null ? exactAmount : MinorUnits.toBigDecimal(minor[i]);
+                if (!datastore.changeMoney(firstId + i, amount).isSuccess()) {
+                    rejected++;
+                }
+            }
+            return rejected;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package email.kulakov.test.moneytransfer.api;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.schedule.ScheduledTransfer;
+import email.kulakov.test.moneytransfer.schedule.TransferScheduler;
+
+import javax.inject.Inject;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.FormParam;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+//Transfers executed later by TransferScheduler. Served in every execution mode, calls do not touch the datastore
+//except for checking that accounts exist.
+@Path("/v1/scheduled")
+public class ScheduledTransferResource {
+
+    @Inject
+    private Datastore datastore;
+
+    @Inject
+    private TransferScheduler scheduler;
+
+    //"at" is an ISO-8601 instant, e.g. 2030-01-01T00:00:00Z. Returns the id of the scheduled transfer.
+    @POST
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response schedule(@FormParam("from") Long fromAccount,
+                             @FormParam("to") Long toAccount,
+                             @FormParam("amount") String amount,
+                             @FormParam("at") String at) {
+        if (fromAccount == null || toAccount == null || amount == null || at == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        final BigDecimal value;
+        final Instant due;
+        try {
+            value = new BigDecimal(amount);
+            due = Instant.parse(at);
+        } catch (NumberFormatException | DateTimeParseException e) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        if (datastore.balance(fromAccount) == null || datastore.balance(toAccount) == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        try {
+            return Response.ok(scheduler.schedule(fromAccount, toAccount, value, due.toEpochMilli())).build();
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //One "id,to,amount,at" line per pending transfer from the account, earliest first.
+    @GET
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response list(@QueryParam("account") Long accountId) {
+        if (accountId == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        final StringBuilder body = new StringBuilder();
+        for (ScheduledTransfer transfer : scheduler.list(accountId)) {
+            body.append(transfer.getId()).append(',')
+                    .append(transfer.getAccountTo()).append(',')
+                    .append(transfer.getAmount().toPlainString()).append(',')
+                    .append(Instant.ofEpochMilli(transfer.getDueMillis())).append('\n');
+        }
+        return Response.ok(body.toString()).build();
+    }
+
+    //404 when the transfer is not pending, e.g. it is already executed.
+    @DELETE
+    @Path("/{id}")
+    public Response cancel(@PathParam("id") Long id) {
+        if (id == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        try {
+            return scheduler.cancel(id) ? Response.ok("Ok").build() : Response.status(Response.Status.NOT_FOUND).build();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package email.kulakov.test.moneytransfer.audit;
+
+import java.math.BigDecimal;
+
+//Result of one audit: total of all balances at a cut compared with the initial total plus net deposits.
+public final class AuditReport {
+
+    private final long accountCount;
+    private final BigDecimal total;
+    private final BigDecimal expected;
+    private final long durationNanos;
+
+    public AuditReport(long accountCount, BigDecimal total, BigDecimal expected, long durationNanos) {
+        this.accountCount = accountCount;
+        this.total = total;
+        this.expected = expected;
+        this.durationNanos = durationNanos;
+    }
+
+    public long getAccountCount() {
+        return accountCount;
+    }
+
+    public BigDecimal getTotal() {
+        return total;
+    }
+
+    public BigDecimal getExpected() {
+        return expected;
+    }
+
+    //Money created (positive) or lost (negative) by something else than changeMoney.
+    public BigDecimal getDrift() {
+        return total.subtract(expected);
+    }
+
+    public boolean isBalanced() {
+        return total.compareTo(expected) == 0;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+}
@@ -0,0 +1,92 @@
+package email.kulakov.test.moneytransfer.audit;
+
+import email.kulakov.test.moneytransfer.snapshot.BalanceTotal;
+import email.kulakov.test.moneytransfer.snapshot.SnapshotDatastore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Checks money conservation while traffic goes on: transfers move money between accounts, only changeMoney adds or
+//removes it. Balances and net deposits are taken at the same cut, so any difference is a bug, not a race.
+//Balances are summed by a parallel fork-join scan, writes are never blocked for the scan.
+public class Auditor implements Closeable {
+
+    private final SnapshotDatastore images;
+    private final ForkJoinPool pool;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong auditCount = new AtomicLong();
+    private final AtomicLong driftCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private volatile AuditReport lastReport;
+
+    //Audit runs every intervalMillis in the background, never when it is not positive.
+    public Auditor(SnapshotDatastore images, ForkJoinPool pool, long intervalMillis) {
+        this.images = images;
+        this.pool = pool;
+        if (intervalMillis > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "auditor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::auditQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    public AuditReport audit() throws IOException {
+        final long start = System.nanoTime();
+        final AuditReport report = images.withImage(image -> {
+            final BigDecimal total = BalanceTotal.compute(image, pool);
+            return new AuditReport(image.accountCount(), total, images.initialTotal().add(image.netDeposits()),
+                    System.nanoTime() - start);
+        });
+        auditCount.incrementAndGet();
+        if (!report.isBalanced()) {
+            driftCount.incrementAndGet();
+        }
+        lastReport = report;
+        return report;
+    }
+
+    //Null before the first audit.
+    public AuditReport lastReport() {
+        return lastReport;
+    }
+
+    public long auditCount() {
+        return auditCount.get();
+    }
+
+    //Audits which found a drift.
+    public long driftCount() {
+        return driftCount.get();
+    }
+
+    public long failureCount() {
+        return failureCount.get();
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    private void auditQuietly() {
+        try {
+            audit();
+        } catch (IOException | RuntimeException e) {
+            failureCount.incrementAndGet();
+        }
+    }
+}
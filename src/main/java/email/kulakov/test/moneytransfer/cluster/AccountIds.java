@@ -0,0 +1,60 @@
+package email.kulakov.test.moneytransfer.cluster;
+
+//Account ids of a cluster are [block: 32 bits][offset: 32 bits]. Blocks are placed on nodes by the HashRing, a node
+//keeps its accounts in its local datastore under dense local ids: local ids k << 32 .. (k + 1) << 32 - 1 are the k-th
+//block the node owns. The mapping follows from the ring alone, nothing is stored. A block holds ~4 billion accounts,
+//so a bulk create never crosses blocks and its ids stay consecutive.
+final class AccountIds {
+
+    static final int BLOCK_BITS = 32;
+    //Local blocks a node can fill, far more accounts than a datastore holds.
+    static final int MAX_LOCAL_BLOCKS = 16;
+
+    private static final long OFFSET_MASK = (1L << BLOCK_BITS) - 1;
+
+    private final HashRing ring;
+    private final int self;
+    //Ascending, k-th entry is the global block of local block k.
+    private final long[] ownedBlocks = new long[MAX_LOCAL_BLOCKS];
+
+    AccountIds(HashRing ring, int self) {
+        this.ring = ring;
+        this.self = self;
+        int found = 0;
+        for (long block = 0; found < MAX_LOCAL_BLOCKS; block++) {
+            if (ring.owner(block) == self) {
+                ownedBlocks[found++] = block;
+            }
+        }
+    }
+
+    int owner(long accountId) {
+        return ring.owner(accountId >>> BLOCK_BITS);
+    }
+
+    long toGlobal(long localId) {
+        final long localBlock = localId >>> BLOCK_BITS;
+        if (localBlock >= MAX_LOCAL_BLOCKS) {
+            throw new IllegalStateException("Local account id " + localId + " is beyond the blocks of the node");
+        }
+        return ownedBlocks[(int) localBlock] << BLOCK_BITS | (localId & OFFSET_MASK);
+    }
+
+    //0, which is never an account, when the account does not belong to this node.
+    long toLocal(long accountId) {
+        if (accountId <= 0) {
+            return 0;
+        }
+        final long block = accountId >>> BLOCK_BITS;
+        for (int localBlock = 0; localBlock < MAX_LOCAL_BLOCKS && ownedBlocks[localBlock] <= block; localBlock++) {
+            if (ownedBlocks[localBlock] == block) {
+                return (long) localBlock << BLOCK_BITS | (accountId & OFFSET_MASK);
+            }
+        }
+        return 0;
+    }
+
+    boolean isLocal(long accountId) {
+        return owner(accountId) == self;
+    }
+}
@@ -0,0 +1,95 @@
+package email.kulakov.test.moneytransfer.cluster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+//Requests to the internal API of other nodes (ClusterResource) over HTTP keep-alive connections of the JDK.
+//Any answer other than 200 or 404 is an IOException, like a connection failure: the outcome is not known.
+final class ClusterClient {
+
+    static final String PATH = "/internal/v1/accounts/";
+
+    private final List<String> nodes;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    ClusterClient(List<String> nodes, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.nodes = nodes;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    //Body of the response, null on 404.
+    String get(int node, long accountId, String operation) throws IOException {
+        return exchange(open(node, accountId, operation), null);
+    }
+
+    //Form is "name=value" pairs, see form().
+    String post(int node, long accountId, String operation, String form) throws IOException {
+        final HttpURLConnection connection = open(node, accountId, operation);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        return exchange(connection, form.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String form(String... namesAndValues) {
+        final StringBuilder form = new StringBuilder();
+        try {
+            for (int i = 0; i < namesAndValues.length; i += 2) {
+                if (i > 0) {
+                    form.append('&');
+                }
+                form.append(namesAndValues[i]).append('=').append(URLEncoder.encode(namesAndValues[i + 1], "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return form.toString();
+    }
+
+    private HttpURLConnection open(int node, long accountId, String operation) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(nodes.get(node) + PATH + accountId + "/" + operation)
+                .openConnection();
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    private static String exchange(HttpURLConnection connection, byte[] body) throws IOException {
+        if (body != null) {
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(body);
+            }
+        }
+        final int status = connection.getResponseCode();
+        final InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        //Reading the body to the end returns the connection to the keep-alive pool.
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        if (input != null) {
+            try (InputStream stream = input) {
+                final byte[] buffer = new byte[256];
+                for (int read = stream.read(buffer); read > 0; read = stream.read(buffer)) {
+                    content.write(buffer, 0, read);
+                }
+            }
+        }
+        if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+            return null;
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Node answered " + status + " to " + connection.getURL());
+        }
+        return new String(content.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,466 @@
+package email.kulakov.test.moneytransfer.cluster;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+//Datastore of one node of a cluster. Accounts are placed on nodes by consistent hashing of their ids (AccountIds),
+//calls on accounts of this node go to the local datastore and the others are forwarded to their node.
+//A transfer between nodes has two phases: the node of the sender reserves the amount (debits it), then the node of
+//the receiver credits it; when the credit fails the reservation is released back to the sender.
+//Every forwarded message has an id and is applied at most once by the MessageTable of its node, so a message whose
+//answer was lost is sent again. A transfer whose credit stays unknown after the retries answers Pending and a
+//background thread repeats the messages until the transfer is completed or refunded.
+//Messages are remembered for MESSAGE_RETENTION_MILLIS and only in memory. A message still in doubt after
+//IN_DOUBT_TIMEOUT_MILLIS, well before the other node may forget it, is not sent any more: it is escalated to an
+//operator (cluster_escalated). A node which restarts between the phases leaves the reservation in doubt too.
+public class ClusterDatastore implements Datastore, Closeable {
+
+    static final int VIRTUAL_NODES = 64;
+
+    private static final int ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_MILLIS = 50;
+    private static final long RESOLVE_INTERVAL_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int READ_TIMEOUT_MILLIS = 5000;
+    static final long MESSAGE_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+    static final long IN_DOUBT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    static final String CHANGE = "changeMoney";
+    static final String TRANSFER = "transferMoney";
+    static final String RESERVE = "reserve";
+    static final String CREDIT = "credit";
+    static final String RELEASE = "release";
+
+    private final Datastore local;
+    private final List<String> nodes;
+    private final int self;
+    private final AccountIds ids;
+    private final ClusterClient client;
+    private final MessageTable messages;
+    private final long inDoubtTimeoutMillis;
+    private final LongSupplier clock;
+    private final String session = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final AtomicLong messageCount = new AtomicLong();
+    private final Queue<InDoubt> inDoubt = new ConcurrentLinkedQueue<>();
+    private final Queue<Message> escalated = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService resolver;
+
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder crossNodeTransfers = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    //Nodes are base URLs of all nodes in the same order on every node, self is the index of this one.
+    public ClusterDatastore(Datastore local, List<String> nodes, int self) {
+        this(local, nodes, self, MESSAGE_RETENTION_MILLIS, IN_DOUBT_TIMEOUT_MILLIS, System::currentTimeMillis);
+    }
+
+    ClusterDatastore(Datastore local, List<String> nodes, int self, long messageRetentionMillis,
+                     long inDoubtTimeoutMillis, LongSupplier clock) {
+        if (inDoubtTimeoutMillis >= messageRetentionMillis) {
+            throw new IllegalArgumentException("Messages must be resolved before they are forgotten");
+        }
+        this.local = local;
+        this.nodes = nodes;
+        this.self = self;
+        this.ids = new AccountIds(new HashRing(nodes, VIRTUAL_NODES), self);
+        this.client = new ClusterClient(nodes, CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS);
+        this.messages = new MessageTable(messageRetentionMillis, clock);
+        this.inDoubtTimeoutMillis = inDoubtTimeoutMillis;
+        this.clock = clock;
+        resolver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "cluster-resolver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        resolver.scheduleWithFixedDelay(this::resolveQuietly, RESOLVE_INTERVAL_MILLIS, RESOLVE_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long createAccount() {
+        return ids.toGlobal(local.createAccount());
+    }
+
+    @Override
+    public long createAccounts(int count) {
+        return ids.toGlobal(local.createAccounts(count));
+    }
+
+    //Throws NodeUnavailableException when the node of the account does not answer.
+    @Override
+    public BigDecimal balance(long accountId) {
+        final int node = ids.owner(accountId);
+        if (node == self) {
+            return localBalance(accountId);
+        }
+        forwarded.increment();
+        IOException failure = null;
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            try {
+                final String balance = client.get(node, accountId, "balance");
+                return balance == null ? null : new BigDecimal(balance.trim());
+            } catch (IOException e) {
+                failure = e;
+                backOff(attempt);
+            }
+        }
+        throw new NodeUnavailableException(nodes.get(node), failure);
+    }
+
+    @Override
+    public OperationResult changeMoney(long accountId, BigDecimal delta) {
+        final int node = ids.owner(accountId);
+        if (node == self) {
+            return local.changeMoney(ids.toLocal(accountId), delta);
+        }
+        forwarded.increment();
+        final Message change = new Message(node, accountId, CHANGE, nextMessageId(), delta, 0, clock.getAsLong());
+        final OperationResult result = change.send();
+        if (result == null) {
+            resolveLater(change, ignored -> { });
+            return OperationResult.Pending;
+        }
+        return result;
+    }
+
+    @Override
+    public OperationResult transferMoney(long accountFrom, long accountTo, BigDecimal amount) {
+        final int fromNode = ids.owner(accountFrom);
+        final int toNode = ids.owner(accountTo);
+        if (fromNode == toNode && fromNode == self) {
+            return local.transferMoney(ids.toLocal(accountFrom), ids.toLocal(accountTo), amount);
+        }
+        forwarded.increment();
+        if (fromNode == toNode) {
+            final Message transfer = new Message(fromNode, accountFrom, TRANSFER, nextMessageId(), amount, accountTo,
+                    clock.getAsLong());
+            final OperationResult result = transfer.send();
+            if (result == null) {
+                resolveLater(transfer, ignored -> { });
+                return OperationResult.Pending;
+            }
+            return result;
+        }
+        return transferBetweenNodes(accountFrom, fromNode, accountTo, toNode, amount);
+    }
+
+    //Batches within this node are passed to the local datastore. Atomic batches with accounts of other nodes are
+    //refused, entries of other batches are transferred one by one.
+    @Override
+    public List<OperationResult> transferBatch(List<Transfer> transfers, boolean atomic) {
+        final List<Transfer> localTransfers = new ArrayList<>(transfers.size());
+        for (int i = 0; i < transfers.size(); i++) {
+            final Transfer transfer = transfers.get(i);
+            if (!ids.isLocal(transfer.getAccountFrom()) || !ids.isLocal(transfer.getAccountTo())) {
+                if (atomic) {
+                    return Datastore.abortedExcept(transfers.size(), i, OperationResult.WrongAmount);
+                }
+                return Datastore.super.transferBatch(transfers, false);
+            }
+            localTransfers.add(new Transfer(ids.toLocal(transfer.getAccountFrom()), ids.toLocal(transfer.getAccountTo()),
+                    transfer.getAmount()));
+        }
+        return local.transferBatch(localTransfers, atomic);
+    }
+
+    //Null when the account is not on this node.
+    public BigDecimal localBalance(long accountId) {
+        final long localId = ids.toLocal(accountId);
+        return localId == 0 ? null : local.balance(localId);
+    }
+
+    //Messages from other nodes, applied at most once per message id. Accounts which are not on this node are NoAccount.
+
+    public OperationResult applyChange(String messageId, long accountId, BigDecimal delta) {
+        return once(messageId, CHANGE, accountId + ":" + delta,
+                () -> local.changeMoney(ids.toLocal(accountId), delta));
+    }
+
+    public OperationResult applyTransfer(String messageId, long accountFrom, long accountTo, BigDecimal amount) {
+        return once(messageId, TRANSFER, accountFrom + ":" + accountTo + ":" + amount,
+                () -> local.transferMoney(ids.toLocal(accountFrom), ids.toLocal(accountTo), amount));
+    }
+
+    public OperationResult reserve(String messageId, long accountId, BigDecimal amount) {
+        if (amount.signum() <= 0) {
+            return OperationResult.NoMoney;
+        }
+        return once(messageId, RESERVE, accountId + ":" + amount,
+                () -> local.changeMoney(ids.toLocal(accountId), amount.negate()));
+    }
+
+    public OperationResult credit(String messageId, long accountId, BigDecimal amount) {
+        if (amount.signum() <= 0) {
+            return OperationResult.NoMoney;
+        }
+        return once(messageId, CREDIT, accountId + ":" + amount,
+                () -> local.changeMoney(ids.toLocal(accountId), amount));
+    }
+
+    //Returns a reservation which was made. One which was not made yet is refused when it arrives later.
+    public OperationResult release(String messageId, long accountId, BigDecimal amount) {
+        final OperationResult reserved = once(messageId, RESERVE, accountId + ":" + amount, () -> OperationResult.Aborted);
+        if (!reserved.isSuccess()) {
+            return OperationResult.Success;
+        }
+        return once(messageId, RELEASE, accountId + ":" + amount,
+                () -> local.changeMoney(ids.toLocal(accountId), amount));
+    }
+
+    //Message of another node, see ClusterResource. Null for an unknown operation.
+    public OperationResult apply(String operation, String messageId, long accountId, BigDecimal amount, long accountTo) {
+        switch (operation) {
+            case CHANGE:
+                return applyChange(messageId, accountId, amount);
+            case TRANSFER:
+                return applyTransfer(messageId, accountId, accountTo, amount);
+            case RESERVE:
+                return reserve(messageId, accountId, amount);
+            case CREDIT:
+                return credit(messageId, accountId, amount);
+            case RELEASE:
+                return release(messageId, accountId, amount);
+            default:
+                return null;
+        }
+    }
+
+    public boolean isLocal(long accountId) {
+        return ids.isLocal(accountId);
+    }
+
+    //Id of the account in the local datastore, 0 when it is on another node.
+    public long toLocal(long accountId) {
+        return ids.toLocal(accountId);
+    }
+
+    public long toGlobal(long localId) {
+        return ids.toGlobal(localId);
+    }
+
+    //Base URL of the node of the account.
+    public String nodeOf(long accountId) {
+        return nodes.get(ids.owner(accountId));
+    }
+
+    public Datastore getLocal() {
+        return local;
+    }
+
+    public long forwardedCount() {
+        return forwarded.sum();
+    }
+
+    public long crossNodeTransferCount() {
+        return crossNodeTransfers.sum();
+    }
+
+    public long retryCount() {
+        return retries.sum();
+    }
+
+    //Messages whose outcome is not known yet.
+    public int inDoubtCount() {
+        return inDoubt.size();
+    }
+
+    //Messages given up after IN_DOUBT_TIMEOUT_MILLIS, an operator has to check their accounts on both nodes.
+    public int escalatedCount() {
+        return escalated.size();
+    }
+
+    //"operation messageId accountId amount" of every escalated message.
+    public List<String> escalatedMessages() {
+        final List<String> descriptions = new ArrayList<>();
+        for (Message message : escalated) {
+            descriptions.add(message.operation + " " + message.messageId + " " + message.accountId + " "
+                    + message.amount);
+        }
+        return descriptions;
+    }
+
+    @Override
+    public void close() {
+        resolver.shutdown();
+    }
+
+    private OperationResult transferBetweenNodes(long accountFrom, int fromNode, long accountTo, int toNode,
+                                                 BigDecimal amount) {
+        if (amount.signum() <= 0) {
+            return OperationResult.NoMoney;
+        }
+        //A missing receiver is found before money moves, so a credit fails only on overflow.
+        final BigDecimal receiver;
+        try {
+            receiver = balance(accountTo);
+        } catch (NodeUnavailableException e) {
+            return OperationResult.Busy;
+        }
+        if (receiver == null) {
+            return OperationResult.NoAccount;
+        }
+        final String messageId = nextMessageId();
+        final long startedMillis = clock.getAsLong();
+        final OperationResult reserved = new Message(fromNode, accountFrom, RESERVE, messageId, amount, 0,
+                startedMillis).send();
+        if (reserved == null) {
+            //The release also refuses the reservation if it arrives later, the transfer is not made.
+            release(fromNode, accountFrom, messageId, amount, startedMillis);
+            return OperationResult.Busy;
+        }
+        if (!reserved.isSuccess()) {
+            return reserved;
+        }
+        final Message credit = new Message(toNode, accountTo, CREDIT, messageId, amount, 0, startedMillis);
+        final OperationResult credited = credit.send();
+        if (credited == null) {
+            resolveLater(credit, result -> {
+                if (result.isSuccess()) {
+                    crossNodeTransfers.increment();
+                } else {
+                    release(fromNode, accountFrom, messageId, amount, startedMillis);
+                }
+            });
+            return OperationResult.Pending;
+        }
+        if (!credited.isSuccess()) {
+            release(fromNode, accountFrom, messageId, amount, startedMillis);
+            return credited;
+        }
+        crossNodeTransfers.increment();
+        return OperationResult.Success;
+    }
+
+    //The release belongs to the transfer started at startedMillis, its time in doubt counts from then.
+    private void release(int node, long accountId, String messageId, BigDecimal amount, long startedMillis) {
+        final Message release = new Message(node, accountId, RELEASE, messageId, amount, 0, startedMillis);
+        if (release.send() == null) {
+            resolveLater(release, ignored -> { });
+        }
+    }
+
+    private OperationResult once(String messageId, String operation, String fingerprint,
+                                 Supplier<OperationResult> apply) {
+        return messages.apply(operation + ":" + messageId, fingerprint, apply);
+    }
+
+    private String nextMessageId() {
+        return self + "-" + session + "-" + messageCount.incrementAndGet();
+    }
+
+    private void resolveLater(Message message, Consumer<OperationResult> then) {
+        inDoubt.add(new InDoubt(message, then));
+    }
+
+    //Every message in doubt is sent once more, the ones without an answer wait for the next round. Messages older
+    //than the timeout are escalated instead, their node may forget them and apply a late copy again.
+    private void resolveQuietly() {
+        try {
+            messages.expire();
+        } catch (RuntimeException e) {
+            //Tried again in the next round.
+        }
+        for (int count = inDoubt.size(); count > 0; count--) {
+            final InDoubt next = inDoubt.poll();
+            if (next == null) {
+                return;
+            }
+            if (clock.getAsLong() - next.message.startedMillis > inDoubtTimeoutMillis) {
+                escalated.add(next.message);
+                continue;
+            }
+            try {
+                final OperationResult result = next.message.send();
+                if (result == null) {
+                    inDoubt.add(next);
+                } else {
+                    next.then.accept(result);
+                }
+            } catch (RuntimeException e) {
+                inDoubt.add(next);
+            }
+        }
+    }
+
+    private void backOff(int attempt) {
+        retries.increment();
+        try {
+            Thread.sleep(RETRY_BACKOFF_MILLIS * (attempt + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //One idempotent message, applied without HTTP when the node is this one.
+    private final class Message {
+
+        private final int node;
+        private final long accountId;
+        private final String operation;
+        private final String messageId;
+        private final BigDecimal amount;
+        //Receiver of TRANSFER.
+        private final long accountTo;
+        //Start of the change or transfer the message belongs to.
+        private final long startedMillis;
+
+        Message(int node, long accountId, String operation, String messageId, BigDecimal amount, long accountTo,
+                long startedMillis) {
+            this.node = node;
+            this.accountId = accountId;
+            this.operation = operation;
+            this.messageId = messageId;
+            this.amount = amount;
+            this.accountTo = accountTo;
+            this.startedMillis = startedMillis;
+        }
+
+        //Null when the node did not answer.
+        OperationResult send() {
+            if (node == self) {
+                return apply(operation, messageId, accountId, amount, accountTo);
+            }
+            final String form = operation.equals(TRANSFER)
+                    ? ClusterClient.form("message", messageId, "amount", amount.toString(), "to", String.valueOf(accountTo))
+                    : ClusterClient.form("message", messageId, "amount", amount.toString());
+            for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+                try {
+                    final String result = client.post(node, accountId, operation, form);
+                    return result == null ? OperationResult.NoAccount : OperationResult.valueOf(result.trim());
+                } catch (IOException | IllegalArgumentException e) {
+                    backOff(attempt);
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class InDoubt {
+
+        private final Message message;
+        private final Consumer<OperationResult> then;
+
+        InDoubt(Message message, Consumer<OperationResult> then) {
+            this.message = message;
+            this.then = then;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package email.kulakov.test.moneytransfer.cluster;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+//Consistent hashing: every node has virtualNodes points on a 64-bit ring and a key belongs to the node of the first
+//point at or after the hash of the key. Adding or removing a node moves only the keys of its own arcs, ~1/N of all.
+//Hashes depend only on node names and keys, so every JVM computes the same placement.
+public final class HashRing {
+
+    private final long[] points;
+    private final int[] owners;
+
+    public HashRing(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes <= 0) {
+            throw new IllegalArgumentException("Ring needs nodes and virtual nodes");
+        }
+        final long[] hashes = new long[nodes.size() * virtualNodes];
+        for (int node = 0; node < nodes.size(); node++) {
+            final long nodeHash = hash(nodes.get(node));
+            for (int i = 0; i < virtualNodes; i++) {
+                hashes[node * virtualNodes + i] = mix(nodeHash + i * 0x9E3779B97F4A7C15L);
+            }
+        }
+        final Integer[] order = IntStream.range(0, hashes.length).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, Comparator.comparingLong(i -> hashes[i]));
+        points = new long[hashes.length];
+        owners = new int[hashes.length];
+        for (int i = 0; i < order.length; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = order[i] / virtualNodes;
+        }
+    }
+
+    //Index of the node in the list given to the constructor.
+    public int owner(long key) {
+        int index = Arrays.binarySearch(points, mix(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    //SplitMix64 finalizer.
+    static long mix(long key) {
+        long z = key + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    //64-bit FNV-1a of the UTF-16 chars.
+    private static long hash(String name) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash = (hash ^ name.charAt(i)) * 0x100000001B3L;
+        }
+        return hash;
+    }
+}
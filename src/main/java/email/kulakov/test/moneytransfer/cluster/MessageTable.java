@@ -0,0 +1,83 @@
+package email.kulakov.test.moneytransfer.cluster;
+
+import email.kulakov.test.moneytransfer.db.OperationResult;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+//Results of messages from other nodes by message id, so a message sent again is not applied twice. A duplicate
+//arriving while the first message is applied waits for its result.
+//Unlike IdempotencyCache there is no size limit: an entry is removed only when it is older than the retention, and
+//senders stop resending a message in doubt well before that (ClusterDatastore escalates it to an operator instead).
+final class MessageTable {
+
+    private final long retentionMillis;
+    private final LongSupplier clock;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Queue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    MessageTable(long retentionMillis, LongSupplier clock) {
+        this.retentionMillis = retentionMillis;
+        this.clock = clock;
+    }
+
+    //Fingerprint describes the message, the same id with another fingerprint is refused with IllegalArgumentException.
+    //An operation which throws is not remembered.
+    OperationResult apply(String key, String fingerprint, Supplier<OperationResult> operation) {
+        final Entry entry = new Entry(key, fingerprint, clock.getAsLong());
+        final Entry existing = entries.putIfAbsent(key, entry);
+        if (existing != null) {
+            if (!existing.fingerprint.equals(fingerprint)) {
+                throw new IllegalArgumentException("Message id reused: " + key);
+            }
+            return existing.result.join();
+        }
+        insertionOrder.add(entry);
+        try {
+            final OperationResult result = operation.get();
+            entry.result.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            entries.remove(key, entry);
+            entry.result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    //Removes entries older than the retention, oldest first. Returns how many.
+    int expire() {
+        final long cutoff = clock.getAsLong() - retentionMillis;
+        int count = 0;
+        Entry oldest;
+        while ((oldest = insertionOrder.peek()) != null && oldest.createdMillis < cutoff && oldest.result.isDone()) {
+            insertionOrder.poll();
+            if (entries.remove(oldest.key, oldest)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private static final class Entry {
+
+        private final String key;
+        private final String fingerprint;
+        private final long createdMillis;
+        private final CompletableFuture<OperationResult> result = new CompletableFuture<>();
+
+        Entry(String key, String fingerprint, long createdMillis) {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.createdMillis = createdMillis;
+        }
+    }
+}
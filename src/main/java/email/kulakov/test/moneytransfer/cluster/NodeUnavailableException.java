@@ -0,0 +1,14 @@
+package email.kulakov.test.moneytransfer.cluster;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+//Thrown by reads from a node which does not answer, writes answer OperationResult.Busy or Pending instead.
+public class NodeUnavailableException extends UncheckedIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public NodeUnavailableException(String node, IOException cause) {
+        super("Node " + node + " is not available", cause);
+    }
+}
@@ -0,0 +1,93 @@
+package email.kulakov.test.moneytransfer.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+//Per-account lock contention. Only accounts which ever had to wait are tracked, so uncontended accounts cost nothing.
+//An account is hot while it had at least HOT_CONTENTIONS contended acquisitions in the current or the previous window.
+public class AccountContention implements LockManager.ContentionListener {
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int HOT_CONTENTIONS = 100;
+    //Limits memory when contention is spread over many accounts, such accounts are not hot anyway.
+    private static final int MAX_TRACKED_ACCOUNTS = 10_000;
+
+    private final Map<Long, Stats> accounts = new ConcurrentHashMap<>();
+
+    @Override
+    public void contended(long accountId, long waitNanos) {
+        Stats stats = accounts.get(accountId);
+        if (stats == null) {
+            if (accounts.size() >= MAX_TRACKED_ACCOUNTS) {
+                return;
+            }
+            stats = accounts.computeIfAbsent(accountId, id -> new Stats(System.nanoTime()));
+        }
+        stats.record(System.nanoTime(), waitNanos);
+    }
+
+    //Snapshot of the hot accounts.
+    public Map<Long, Stats> hotAccounts() {
+        final long now = System.nanoTime();
+        final Map<Long, Stats> hot = new HashMap<>();
+        for (Map.Entry<Long, Stats> account : accounts.entrySet()) {
+            if (account.getValue().isHot(now)) {
+                hot.put(account.getKey(), account.getValue());
+            }
+        }
+        return hot;
+    }
+
+    public boolean isHot(long accountId) {
+        final Stats stats = accounts.get(accountId);
+        return stats != null && stats.isHot(System.nanoTime());
+    }
+
+    public static final class Stats {
+        private final LongAdder contentions = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        //Guarded by this.
+        private long windowStart;
+        private int windowContentions;
+        private int previousWindowContentions;
+
+        private Stats(long now) {
+            windowStart = now;
+        }
+
+        public long contentions() {
+            return contentions.sum();
+        }
+
+        public long waitNanos() {
+            return waitNanos.sum();
+        }
+
+        private void record(long now, long wait) {
+            contentions.increment();
+            waitNanos.add(wait);
+            synchronized (this) {
+                roll(now);
+                windowContentions++;
+            }
+        }
+
+        private synchronized boolean isHot(long now) {
+            roll(now);
+            return Math.max(windowContentions, previousWindowContentions) >= HOT_CONTENTIONS;
+        }
+
+        private void roll(long now) {
+            final long windows = (now - windowStart) / WINDOW_NANOS;
+            if (windows == 0) {
+                return;
+            }
+            previousWindowContentions = windows == 1 ? windowContentions : 0;
+            windowContentions = 0;
+            windowStart += windows * WINDOW_NANOS;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package email.kulakov.test.moneytransfer.db;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//Open-addressed long -> long table with linear probing. Inserts and resizes are serialized,
+//reads and balance updates are lock-free and allocation-free.
+final class AccountTable {
+
+    static final long MISSING = Long.MIN_VALUE;
+
+    private static final long EMPTY_KEY = 0;
+    //Value markers used while a resize copies a slot into the next table. Balances are never negative.
+    private static final long MOVED = Long.MIN_VALUE;
+    private static final long PENDING = Long.MIN_VALUE + 1;
+
+    private volatile Table table;
+    private int size;
+
+    AccountTable(int initialCapacity) {
+        table = new Table(Integer.highestOneBit(Math.max(initialCapacity, 16) - 1) << 1);
+    }
+
+    synchronized boolean insert(long key, long value) {
+        if (key == EMPTY_KEY) {
+            throw new IllegalArgumentException("Key " + EMPTY_KEY + " is reserved");
+        }
+        if ((size + 1) * 2 > table.capacity()) {
+            resize(table.capacity() << 1);
+        }
+        final Table current = table;
+        final int index = probe(current, key);
+        if (current.keys.get(index) == key) {
+            return false;
+        }
+        current.values.set(index, value);
+        current.keys.set(index, key);
+        size++;
+        return true;
+    }
+
+    //Inserts firstKey, firstKey + step, ... count keys with one resize at most.
+    synchronized void insertRange(long firstKey, int count, long step, long value) {
+        int capacity = table.capacity();
+        while ((size + count) * 2L > capacity) {
+            capacity <<= 1;
+        }
+        if (table.capacity() < capacity) {
+            resize(capacity);
+        }
+        for (int i = 0; i < count; i++) {
+            insert(firstKey + i * step, value);
+        }
+    }
+
+    boolean contains(long key) {
+        return indexOf(table, key) >= 0;
+    }
+
+    long get(long key) {
+        Table current = table;
+        int index = indexOf(current, key);
+        if (index < 0) {
+            return MISSING;
+        }
+        while (true) {
+            final long value = current.values.get(index);
+            if (value == MOVED) {
+                current = current.next;
+                index = indexOf(current, key);
+            } else if (value == PENDING) {
+                Thread.yield();
+            } else {
+                return value;
+            }
+        }
+    }
+
+    OperationResult add(long key, long delta) {
+        Table current = table;
+        int index = indexOf(current, key);
+        if (index < 0) {
+            return OperationResult.NoAccount;
+        }
+        //In SQL we can use "UPDATE account SET balance = balance + delta WHERE balance + delta > 0" and count result rows.
+        while (true) {
+            final long balance = current.values.get(index);
+            if (balance == MOVED) {
+                current = current.next;
+                index = indexOf(current, key);
+                continue;
+            }
+            if (balance == PENDING) {
+                Thread.yield();
+                continue;
+            }
+            final long newBalance = balance + delta;
+            if (((balance ^ newBalance) & (delta ^ newBalance)) < 0) {
+                return OperationResult.WrongAmount;
+            }
+            if (newBalance < 0) {
+                return OperationResult.NoMoney;
+            }
+            if (current.values.compareAndSet(index, balance, newBalance)) {
+                return OperationResult.Success;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        final Table old = table;
+        final Table next = new Table(capacity);
+        old.next = next;
+        for (int i = 0; i < old.capacity(); i++) {
+            final long key = old.keys.get(i);
+            if (key == EMPTY_KEY) {
+                continue;
+            }
+            final int index = probe(next, key);
+            next.values.set(index, PENDING);
+            next.keys.set(index, key);
+            //Writers which lost this race see MOVED and continue in the next table.
+            long value;
+            do {
+                value = old.values.get(i);
+            } while (!old.values.compareAndSet(i, value, MOVED));
+            next.values.set(index, value);
+        }
+        table = next;
+    }
+
+    private static int indexOf(Table table, long key) {
+        if (key == EMPTY_KEY) {
+            return -1;
+        }
+        final int index = probe(table, key);
+        return table.keys.get(index) == key ? index : -1;
+    }
+
+    //Returns slot with the key or the first empty slot of its probe sequence.
+    private static int probe(Table table, long key) {
+        final int mask = table.capacity() - 1;
+        int index = hash(key) & mask;
+        while (true) {
+            final long slotKey = table.keys.get(index);
+            if (slotKey == key || slotKey == EMPTY_KEY) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private static int hash(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static final class Table {
+        final AtomicLongArray keys;
+        final AtomicLongArray values;
+        volatile Table next;
+
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicLongArray(capacity);
+        }
+
+        int capacity() {
+            return keys.length();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package email.kulakov.test.moneytransfer.db;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+//Non-blocking variant of Datastore. A future completes exceptionally with
+//RejectedExecutionException when the datastore is overloaded.
+public interface AsyncDatastore {
+    CompletableFuture<Long> createAccount();
+    CompletableFuture<BigDecimal> balance(long accountId);
+    CompletableFuture<OperationResult> changeMoney(long accountId, BigDecimal delta);
+    CompletableFuture<OperationResult> transferMoney(long accountFrom, long accountTo, BigDecimal amount);
+    CompletableFuture<List<OperationResult>> transferBatch(List<Transfer> transfers, boolean atomic);
+}
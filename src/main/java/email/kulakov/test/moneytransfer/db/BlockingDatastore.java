@@ -2,15 +2,43 @@ package email.kulakov.test.moneytransfer.db;
 
 import javax.inject.Singleton;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+//Balances are guarded by a LockManager: writers lock accounts with a timeout and answer Busy instead of waiting
+//forever, balance reads are optimistic and do not block writers.
+//Lifecycle changes take the account write lock too, so a write which got the account before it was closed finds it
+//closed once it holds the lock.
 @Singleton
-public class BlockingDatastore implements Datastore {
+public class BlockingDatastore implements Datastore, ContentionStats {
+
+    private static final int DEFAULT_LOCK_STRIPES = 1024;
+    private static final long DEFAULT_LOCK_TIMEOUT_MILLIS = 500;
 
     private final AtomicLong idGenerator = new AtomicLong(0);
     private final Map<Long, AccountModel> storage = new ConcurrentHashMap<>();
+    private final LongAdder lockWaitNanos = new LongAdder();
+    private final AccountContention contention = new AccountContention();
+    private final LockManager locks;
+    private final long lockTimeoutNanos;
+
+    public BlockingDatastore() {
+        this(new StripedLockManager(DEFAULT_LOCK_STRIPES), DEFAULT_LOCK_TIMEOUT_MILLIS);
+    }
+
+    public BlockingDatastore(LockManager locks, long lockTimeoutMillis) {
+        this.locks = locks;
+        this.lockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(lockTimeoutMillis);
+    }
 
     @Override
     public long createAccount() {
@@ -19,14 +47,31 @@ public class BlockingDatastore implements Datastore {
         return accountId;
     }
 
+    @Override
+    public long createAccounts(int count) {
+        final long firstId = idGenerator.getAndAdd(count) + 1;
+        for (int i = 0; i < count; i++) {
+            storage.put(firstId + i, new AccountModel());
+        }
+        return firstId;
+    }
+
     @Override
     public BigDecimal balance(long accountId) {
         final AccountModel account = storage.get(accountId);
         if(account == null) {
             return null;
         }
-        synchronized (account) {
+        final long stamp = locks.tryOptimisticRead(accountId);
+        final BigDecimal balance = account.balance;
+        if (stamp != 0 && locks.validate(accountId, stamp)) {
+            return balance;
+        }
+        final long readStamp = locks.readLock(accountId);
+        try {
             return account.balance;
+        } finally {
+            locks.unlockRead(accountId, readStamp);
         }
     }
 
@@ -36,9 +81,10 @@ public class BlockingDatastore implements Datastore {
         if (account == null) {
             return OperationResult.NoAccount;
         }
-        synchronized (account) {
-            return account.changeBalance(delta);
-        }
+        return locked(new long[]{accountId}, OperationResult.Busy, () -> {
+            final OperationResult refused = account.refusal(delta.signum() < 0);
+            return refused != null ? refused : account.changeBalance(delta);
+        });
     }
 
 
@@ -62,28 +108,200 @@ public class BlockingDatastore implements Datastore {
             return OperationResult.NoAccount;
         }
 
-        final AccountModel firstLock = accountFrom > accountTo ? to : from;
-        final AccountModel secondLock = accountFrom > accountTo ? from : to;
         //In case of using real database, we should do this operations in one transaction.
-        synchronized (firstLock) {
-            synchronized (secondLock) {
-                //First we should remove money - this operation can be failed, and rollback in some cases will be impossible.
-                final OperationResult removeMoneyResult = from.changeBalance(amount.negate());
-                if (!removeMoneyResult.isSuccess()) {
-                    return removeMoneyResult;
+        return locked(new long[]{accountFrom, accountTo}, OperationResult.Busy, () -> {
+            final OperationResult refused = refusal(from, to);
+            if (refused != null) {
+                return refused;
+            }
+            //First we should remove money - this operation can be failed, and rollback in some cases will be impossible.
+            final OperationResult removeMoneyResult = from.changeBalance(amount.negate());
+            if (!removeMoneyResult.isSuccess()) {
+                return removeMoneyResult;
+            }
+            //Amount is positive. Fail is impossible.
+            to.changeBalance(amount);
+            return OperationResult.Success;
+        });
+    }
+
+    @Override
+    public List<OperationResult> transferBatch(List<Transfer> transfers, boolean atomic) {
+        //Every involved account is locked once for the whole batch.
+        final TreeMap<Long, AccountModel> accounts = new TreeMap<>();
+        for (Transfer transfer : transfers) {
+            addAccount(accounts, transfer.getAccountFrom());
+            addAccount(accounts, transfer.getAccountTo());
+        }
+        final long[] accountIds = new long[accounts.size()];
+        int i = 0;
+        for (Long accountId : accounts.keySet()) {
+            accountIds[i++] = accountId;
+        }
+        return locked(accountIds, new ArrayList<>(Collections.nCopies(transfers.size(), OperationResult.Busy)),
+                () -> transferLocked(transfers, accounts, atomic));
+    }
+
+    @Override
+    public OperationResult freezeAccount(long accountId) {
+        return changeLifecycle(accountId, account -> {
+            account.frozen = true;
+            return OperationResult.Success;
+        });
+    }
+
+    @Override
+    public OperationResult unfreezeAccount(long accountId) {
+        return changeLifecycle(accountId, account -> {
+            account.frozen = false;
+            return OperationResult.Success;
+        });
+    }
+
+    @Override
+    public OperationResult closeAccount(long accountId) {
+        return changeLifecycle(accountId, account -> {
+            if (account.balance.signum() != 0) {
+                return OperationResult.NotEmpty;
+            }
+            account.closed = true;
+            storage.remove(accountId);
+            return OperationResult.Success;
+        });
+    }
+
+    @Override
+    public boolean isFrozen(long accountId) {
+        final AccountModel account = storage.get(accountId);
+        return account != null && account.frozen;
+    }
+
+    @Override
+    public long lastAccountId() {
+        return idGenerator.get();
+    }
+
+    @Override
+    public long casRetries() {
+        return 0;
+    }
+
+    @Override
+    public long lockWaitNanos() {
+        return lockWaitNanos.sum();
+    }
+
+    @Override
+    public Map<Long, AccountContention.Stats> hotAccounts() {
+        return contention.hotAccounts();
+    }
+
+    //Runs the action with write locks of all accounts held, or returns busy when they were not acquired in time.
+    private <T> T locked(long[] accountIds, T busy, Supplier<T> action) {
+        final long start = System.nanoTime();
+        final boolean acquired;
+        try {
+            acquired = locks.tryLockAll(accountIds, lockTimeoutNanos, contention);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return busy;
+        } finally {
+            lockWaitNanos.add(System.nanoTime() - start);
+        }
+        if (!acquired) {
+            return busy;
+        }
+        try {
+            return action.get();
+        } finally {
+            locks.unlockAll(accountIds);
+        }
+    }
+
+    private OperationResult changeLifecycle(long accountId, Function<AccountModel, OperationResult> change) {
+        final AccountModel account = storage.get(accountId);
+        if (account == null) {
+            return OperationResult.NoAccount;
+        }
+        return locked(new long[]{accountId}, OperationResult.Busy,
+                () -> account.closed ? OperationResult.NoAccount : change.apply(account));
+    }
+
+    //Null when the transfer may go on. Called with both accounts locked.
+    private static OperationResult refusal(AccountModel from, AccountModel to) {
+        final OperationResult refused = from.refusal(true);
+        return refused != null ? refused : to.refusal(false);
+    }
+
+    private void addAccount(Map<Long, AccountModel> accounts, long accountId) {
+        final AccountModel account = storage.get(accountId);
+        if (account != null) {
+            accounts.put(accountId, account);
+        }
+    }
+
+    private static List<OperationResult> transferLocked(List<Transfer> transfers, Map<Long, AccountModel> accounts, boolean atomic) {
+        final List<OperationResult> results = new ArrayList<>(transfers.size());
+        for (int i = 0; i < transfers.size(); i++) {
+            final Transfer transfer = transfers.get(i);
+            final OperationResult result = transferLocked(transfer, accounts);
+            results.add(result);
+            if (atomic && !result.isSuccess()) {
+                //All accounts are still locked, so applied entries are reverted exactly.
+                for (int j = i - 1; j >= 0; j--) {
+                    final Transfer applied = transfers.get(j);
+                    if (applied.getAccountFrom() != applied.getAccountTo()) {
+                        accounts.get(applied.getAccountTo()).changeBalance(applied.getAmount().negate());
+                        accounts.get(applied.getAccountFrom()).changeBalance(applied.getAmount());
+                    }
                 }
-                //Amount is positive. Fail is impossible.
-                to.changeBalance(amount);
+                return Datastore.abortedExcept(transfers.size(), i, result);
             }
         }
+        return results;
+    }
 
+    private static OperationResult transferLocked(Transfer transfer, Map<Long, AccountModel> accounts) {
+        if (transfer.getAmount().compareTo(BigDecimal.ZERO) <= 0) {
+            return OperationResult.NoMoney;
+        }
+        if (transfer.getAccountFrom() == transfer.getAccountTo()) {
+            return OperationResult.Success;
+        }
+        final AccountModel from = accounts.get(transfer.getAccountFrom());
+        final AccountModel to = accounts.get(transfer.getAccountTo());
+        if (from == null || to == null) {
+            return OperationResult.NoAccount;
+        }
+        final OperationResult refused = refusal(from, to);
+        if (refused != null) {
+            return refused;
+        }
+        final OperationResult removeMoneyResult = from.changeBalance(transfer.getAmount().negate());
+        if (!removeMoneyResult.isSuccess()) {
+            return removeMoneyResult;
+        }
+        to.changeBalance(transfer.getAmount());
         return OperationResult.Success;
     }
 
 
     private static final class AccountModel {
 
+        //Written under the account write lock only.
         private BigDecimal balance = BigDecimal.ZERO;
+        //Written under the account write lock, read without it by isFrozen.
+        private volatile boolean frozen;
+        //Set under the account write lock when it is removed from storage.
+        private volatile boolean closed;
+
+        //Null when the write may go on.
+        OperationResult refusal(boolean debit) {
+            if (closed) {
+                return OperationResult.NoAccount;
+            }
+            return debit && frozen ? OperationResult.Frozen : null;
+        }
 
         OperationResult changeBalance(BigDecimal delta) {
             final BigDecimal newBalance = balance.add(delta);
@@ -0,0 +1,52 @@
+package email.kulakov.test.moneytransfer.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+//Bounded multi-producer single-consumer ring. Producers claim a sequence with CAS and publish into the slot,
+//the single consumer waits for the slot to become non-null.
+final class CommandRing<T> {
+
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    CommandRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity should be a power of two: " + capacity);
+        }
+        slots = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    boolean offer(T element) {
+        while (true) {
+            final long sequence = tail.get();
+            if (sequence - head.get() > mask) {
+                return false;
+            }
+            if (tail.compareAndSet(sequence, sequence + 1)) {
+                slots.set((int) (sequence & mask), element);
+                return true;
+            }
+        }
+    }
+
+    //Consumer thread only.
+    T poll() {
+        final long sequence = head.get();
+        final int index = (int) (sequence & mask);
+        final T element = slots.get(index);
+        if (element == null) {
+            return null;
+        }
+        slots.lazySet(index, null);
+        head.lazySet(sequence + 1);
+        return element;
+    }
+
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+}
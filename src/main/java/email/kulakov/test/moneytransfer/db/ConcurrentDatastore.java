@@ -2,16 +2,62 @@ package email.kulakov.test.moneytransfer.db;
 
 import javax.inject.Singleton;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
+//Every account is one AtomicReference updated with CAS. A hot account can be split into striped sub-balances,
+//in the style of LongAdder: credits go to any stripe, a debit takes the whole amount from one stripe which has it.
+//When no stripe has enough, or the account is not hot anymore, the stripes are collapsed back into the main balance.
+//Writes run inside an epoch. Freezing or closing an account marks it, starts a new epoch and waits until writes of the
+//previous one finish: only those may have missed the mark, so afterwards no debit of a frozen account, or write of a
+//closing one, is in flight. A closed account is removed from storage once its balance is known to be zero, in-flight
+//writes holding it have finished by then.
 @Singleton
-public class ConcurrentDatastore implements Datastore {
+public class ConcurrentDatastore implements Datastore, ContentionStats {
+
+    //Failed CAS attempts on one account within a window which make it hot (auto split only).
+    private static final int HOT_RETRIES = 1000;
+    //Split account operations within a window below which it is collapsed back.
+    private static final int COLD_OPERATIONS = 10_000;
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    //Split accounts count one of this many operations, so the counter is not contended itself.
+    private static final int SAMPLE_INTERVAL = 64;
+    //Value of a stripe moved back into the main balance. Never stored as a balance, compared by identity.
+    private static final BigDecimal SEALED = new BigDecimal(-1);
 
     private final AtomicLong idGenerator = new AtomicLong(0);
     private final Map<Long, AccountModel> storage = new ConcurrentHashMap<>();
+    private final LongAdder casRetries = new LongAdder();
+    private final AtomicInteger splitAccounts = new AtomicInteger();
+    private final Object lifecycleLock = new Object();
+    private volatile Epoch epoch = new Epoch();
+    private final int stripeCount;
+    private final boolean autoSplit;
+
+    public ConcurrentDatastore() {
+        //Number of cores rounded up to a power of two.
+        this(Math.max(2, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1)), false);
+    }
+
+    //With autoSplit accounts with many CAS retries are split without splitAccount().
+    public ConcurrentDatastore(int stripeCount, boolean autoSplit) {
+        if (stripeCount < 2 || Integer.bitCount(stripeCount) != 1) {
+            throw new IllegalArgumentException("Stripe count must be a power of two above 1: " + stripeCount);
+        }
+        this.stripeCount = stripeCount;
+        this.autoSplit = autoSplit;
+    }
 
     @Override
     public long createAccount() {
@@ -20,20 +66,38 @@ public class ConcurrentDatastore implements Datastore {
         return accountId;
     }
 
+    @Override
+    public long createAccounts(int count) {
+        final long firstId = idGenerator.getAndAdd(count) + 1;
+        for (int i = 0; i < count; i++) {
+            storage.put(firstId + i, new AccountModel());
+        }
+        return firstId;
+    }
+
     @Override
     public BigDecimal balance(long accountId) {
         final AccountModel account = storage.get(accountId);
-        return account == null ? null : account.balance.get();
+        return account == null ? null : account.balance();
     }
 
     @Override
     public OperationResult changeMoney(long accountId, BigDecimal delta) {
-        final AccountModel account = storage.get(accountId);
-        if (account == null) {
-            return OperationResult.NoAccount;
-        }
+        final Epoch current = enter();
+        try {
+            final AccountModel account = storage.get(accountId);
+            if (account == null) {
+                return OperationResult.NoAccount;
+            }
+            final OperationResult refused = account.refusal(delta.signum() < 0);
+            if (refused != null) {
+                return refused;
+            }
 
-        return account.changeBalance(delta);
+            return account.changeBalance(delta);
+        } finally {
+            current.exit();
+        }
     }
 
 
@@ -47,34 +111,328 @@ public class ConcurrentDatastore implements Datastore {
             return OperationResult.Success;
         }
 
-        final AccountModel from = storage.get(accountFrom);
-        if (from == null) {
-            return OperationResult.NoAccount;
+        final Epoch current = enter();
+        try {
+            final AccountModel from = storage.get(accountFrom);
+            if (from == null) {
+                return OperationResult.NoAccount;
+            }
+
+            final AccountModel to = storage.get(accountTo);
+            if (to == null) {
+                return OperationResult.NoAccount;
+            }
+
+            final OperationResult refused = refusal(from, to);
+            if (refused != null) {
+                return refused;
+            }
+
+            //First we should remove money - this operation can be failed, and rollback in some cases will be impossible.
+            final OperationResult removeMoneyResult = from.changeBalance(amount.negate());
+            if (!removeMoneyResult.isSuccess()) {
+                return removeMoneyResult;
+            }
+
+            //Amount is positive. Fail is impossible: a close of the receiver waits for this write.
+            to.changeBalance(amount);
+
+            return OperationResult.Success;
+        } finally {
+            current.exit();
+        }
+    }
+
+    @Override
+    public List<OperationResult> transferBatch(List<Transfer> transfers, boolean atomic) {
+        final List<OperationResult> results;
+        final Epoch current = enter();
+        try {
+            results = transferCoalesced(transfers, atomic);
+        } finally {
+            current.exit();
+        }
+        //Outside of the epoch, transferMoney enters one itself.
+        return results != null ? results : Datastore.super.transferBatch(transfers, false);
+    }
+
+    //Entries are coalesced into one net delta per account, so every account needs one CAS loop.
+    //Entries are checked in order against the balances read at the start plus the deltas of the entries before,
+    //like BlockingDatastore checks them under its locks: money received later in the batch can not be spent.
+    //A failed entry aborts an atomic batch, in a non-atomic one it gets its result and adds no delta.
+    //The net debits are then applied with CAS. A concurrent write which took the money aborts an atomic batch, a
+    //non-atomic one returns null and is applied entry by entry instead.
+    private List<OperationResult> transferCoalesced(List<Transfer> transfers, boolean atomic) {
+        final Map<AccountModel, BigDecimal> deltas = new LinkedHashMap<>();
+        final Map<AccountModel, BigDecimal> openingBalances = new HashMap<>();
+        final List<OperationResult> results = new ArrayList<>(transfers.size());
+        for (int i = 0; i < transfers.size(); i++) {
+            final Transfer transfer = transfers.get(i);
+            final AccountModel from = storage.get(transfer.getAccountFrom());
+            final AccountModel to = storage.get(transfer.getAccountTo());
+            final OperationResult failed = check(transfer, from, to, deltas, openingBalances);
+            if (failed != null) {
+                if (atomic) {
+                    return Datastore.abortedExcept(transfers.size(), i, failed);
+                }
+                results.add(failed);
+                continue;
+            }
+            results.add(OperationResult.Success);
+            if (from != to) {
+                deltas.merge(from, transfer.getAmount().negate(), BigDecimal::add);
+                deltas.merge(to, transfer.getAmount(), BigDecimal::add);
+            }
         }
 
-        final AccountModel to = storage.get(accountTo);
-        if (to == null) {
+        //Debits first - they can fail. Credits can not fail.
+        final List<Map.Entry<AccountModel, BigDecimal>> debited = new ArrayList<>();
+        for (Map.Entry<AccountModel, BigDecimal> delta : deltas.entrySet()) {
+            if (delta.getValue().signum() >= 0) {
+                continue;
+            }
+            final OperationResult result = delta.getKey().changeBalance(delta.getValue());
+            if (!result.isSuccess()) {
+                for (Map.Entry<AccountModel, BigDecimal> applied : debited) {
+                    applied.getKey().changeBalance(applied.getValue().negate());
+                }
+                return atomic ? Datastore.abortedExcept(transfers.size(), firstDebitOf(transfers, delta.getKey()), result)
+                        : null;
+            }
+            debited.add(delta);
+        }
+        for (Map.Entry<AccountModel, BigDecimal> delta : deltas.entrySet()) {
+            if (delta.getValue().signum() > 0) {
+                delta.getKey().changeBalance(delta.getValue());
+            }
+        }
+        return results;
+    }
+
+    //Result transferMoney would give for the entry after the entries before it, null when it succeeds.
+    private static OperationResult check(Transfer transfer, AccountModel from, AccountModel to,
+                                         Map<AccountModel, BigDecimal> deltas,
+                                         Map<AccountModel, BigDecimal> openingBalances) {
+        if (transfer.getAmount().compareTo(BigDecimal.ZERO) <= 0) {
+            return OperationResult.NoMoney;
+        }
+        if (transfer.getAccountFrom() == transfer.getAccountTo()) {
+            return null;
+        }
+        if (from == null || to == null) {
             return OperationResult.NoAccount;
         }
+        final OperationResult refused = refusal(from, to);
+        if (refused != null) {
+            return refused;
+        }
+        final BigDecimal available = openingBalances.computeIfAbsent(from, AccountModel::balance)
+                .add(deltas.getOrDefault(from, BigDecimal.ZERO));
+        return available.compareTo(transfer.getAmount()) < 0 ? OperationResult.NoMoney : null;
+    }
 
-        //First we should remove money - this operation can be failed, and rollback in some cases will be impossible.
-        final OperationResult removeMoneyResult = from.changeBalance(amount.negate());
-        if (!removeMoneyResult.isSuccess()) {
-            return removeMoneyResult;
+    @Override
+    public OperationResult freezeAccount(long accountId) {
+        synchronized (lifecycleLock) {
+            final AccountModel account = storage.get(accountId);
+            if (account == null) {
+                return OperationResult.NoAccount;
+            }
+            account.frozen = true;
+            quiesce();
+            return OperationResult.Success;
         }
+    }
 
-        //Amount is positive. Fail is impossible.
-        to.changeBalance(amount);
+    @Override
+    public OperationResult unfreezeAccount(long accountId) {
+        synchronized (lifecycleLock) {
+            final AccountModel account = storage.get(accountId);
+            if (account == null) {
+                return OperationResult.NoAccount;
+            }
+            account.frozen = false;
+            return OperationResult.Success;
+        }
+    }
 
-        return OperationResult.Success;
+    @Override
+    public OperationResult closeAccount(long accountId) {
+        synchronized (lifecycleLock) {
+            final AccountModel account = storage.get(accountId);
+            if (account == null) {
+                return OperationResult.NoAccount;
+            }
+            account.closing = true;
+            quiesce();
+            //New writes of the account are refused, so the balance can not change any more.
+            if (account.balance().signum() != 0) {
+                account.closing = false;
+                return OperationResult.NotEmpty;
+            }
+            storage.remove(accountId);
+            if (account.stripes.get() != null) {
+                splitAccounts.decrementAndGet();
+            }
+            return OperationResult.Success;
+        }
     }
 
+    @Override
+    public boolean isFrozen(long accountId) {
+        final AccountModel account = storage.get(accountId);
+        return account != null && account.frozen;
+    }
 
-    private static final class AccountModel {
+    @Override
+    public long lastAccountId() {
+        return idGenerator.get();
+    }
 
+    @Override
+    public long casRetries() {
+        return casRetries.sum();
+    }
+
+    @Override
+    public long lockWaitNanos() {
+        return 0;
+    }
+
+    @Override
+    public long splitAccounts() {
+        return splitAccounts.get();
+    }
+
+    //Designates a known hot account: it stays split, except while a debit needs its whole balance.
+    public boolean splitAccount(long accountId) {
+        final AccountModel account = storage.get(accountId);
+        if (account == null) {
+            return false;
+        }
+        account.pinned = true;
+        account.split();
+        return true;
+    }
+
+    public boolean isSplit(long accountId) {
+        final AccountModel account = storage.get(accountId);
+        return account != null && account.stripes.get() != null;
+    }
+
+    //Null when the transfer may go on.
+    private static OperationResult refusal(AccountModel from, AccountModel to) {
+        final OperationResult refused = from.refusal(true);
+        return refused != null ? refused : to.refusal(false);
+    }
+
+    private Epoch enter() {
+        while (true) {
+            final Epoch current = epoch;
+            current.entered.increment();
+            if (epoch == current) {
+                return current;
+            }
+            //A lifecycle change switched the epoch meanwhile, it may already consider the old one drained.
+            current.exited.increment();
+        }
+    }
+
+    //Waits for writes which were running when it was called. Called under lifecycleLock.
+    private void quiesce() {
+        final Epoch previous = epoch;
+        epoch = new Epoch();
+        previous.awaitQuiescent();
+    }
+
+    private int firstDebitOf(List<Transfer> transfers, AccountModel account) {
+        for (int i = 0; i < transfers.size(); i++) {
+            if (storage.get(transfers.get(i).getAccountFrom()) == account) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+
+    private static final class Epoch {
+        final LongAdder entered = new LongAdder();
+        final LongAdder exited = new LongAdder();
+
+        void exit() {
+            exited.increment();
+        }
+
+        void awaitQuiescent() {
+            //Exits are read first: an entry counted after it can not make the sums equal too early.
+            while (exited.sum() != entered.sum()) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private final class AccountModel {
+
+        //Main balance, also stripe 0 while the account is split.
         private final AtomicReference<BigDecimal> balance = new AtomicReference<>(new BigDecimal(0));
+        private final AtomicReference<Stripes> stripes = new AtomicReference<>();
+        private volatile boolean pinned;
+        private volatile boolean frozen;
+        //Set while closeAccount checks the balance, and for good once the account is removed.
+        private volatile boolean closing;
+        //Hot account detection, racy updates are fine for a heuristic.
+        private volatile long windowStart = System.nanoTime();
+        private volatile int windowRetries;
+
+        //Exact: every operation completed before the call is included, money moved by a collapse is counted once.
+        BigDecimal balance() {
+            while (true) {
+                final Stripes current = stripes.get();
+                final BigDecimal main = balance.get();
+                if (current == null) {
+                    if (stripes.get() == null) {
+                        return main;
+                    }
+                    continue;
+                }
+                //Cells are read after main: a value sealed and moved into main after the main read is seen as SEALED.
+                final BigDecimal sum = current.sum(main);
+                if (sum != null && stripes.get() == current) {
+                    return sum;
+                }
+                awaitCollapse(current);
+            }
+        }
+
+        //Null when the write may go on. Writes of a closing account can be retried: the close fails when it has money.
+        OperationResult refusal(boolean debit) {
+            if (closing) {
+                return OperationResult.Busy;
+            }
+            return debit && frozen ? OperationResult.Frozen : null;
+        }
 
         OperationResult changeBalance(BigDecimal delta) {
+            while (true) {
+                final Stripes current = stripes.get();
+                if (current == null) {
+                    final OperationResult result = changeMain(delta);
+                    if (pinned) {
+                        split();
+                    }
+                    return result;
+                }
+                final OperationResult result = current.change(delta);
+                if (result != null) {
+                    current.sample();
+                    return result;
+                }
+                //No stripe can pay the debit alone, or another thread is collapsing.
+                collapse(current);
+            }
+        }
+
+        private OperationResult changeMain(BigDecimal delta) {
             //In SQL we can use "UPDATE account SET balance = balance + delta WHERE balance + delta > 0" and count result rows.
             while (true) {
                 final BigDecimal currentBalance = balance.get();
@@ -86,6 +444,138 @@ public class ConcurrentDatastore implements Datastore {
                 if (balance.compareAndSet(currentBalance, newBalance)) {
                     return OperationResult.Success;
                 }
+                casRetries.increment();
+                if (autoSplit) {
+                    detectHot();
+                }
+            }
+        }
+
+        private void detectHot() {
+            final long now = System.nanoTime();
+            if (now - windowStart > WINDOW_NANOS) {
+                windowStart = now;
+                windowRetries = 0;
+            } else if (++windowRetries >= HOT_RETRIES) {
+                windowRetries = 0;
+                split();
+            }
+        }
+
+        void split() {
+            if (stripes.get() == null && stripes.compareAndSet(null, new Stripes(stripeCount))) {
+                splitAccounts.incrementAndGet();
+            }
+        }
+
+        //Moves every stripe into the main balance. Any thread seeing the stripes sealed helps or waits.
+        void collapse(Stripes current) {
+            for (int i = 1; i < current.cells.length(); i++) {
+                final BigDecimal value = current.cells.getAndSet(i, SEALED);
+                if (value == SEALED) {
+                    continue;
+                }
+                if (value.signum() != 0) {
+                    BigDecimal main;
+                    do {
+                        main = balance.get();
+                    } while (!balance.compareAndSet(main, main.add(value)));
+                }
+                if (current.unmoved.decrementAndGet() == 0 && stripes.compareAndSet(current, null)) {
+                    splitAccounts.decrementAndGet();
+                }
+            }
+            awaitCollapse(current);
+        }
+
+        private void awaitCollapse(Stripes current) {
+            while (stripes.get() == current) {
+                Thread.yield();
+            }
+        }
+
+        private final class Stripes {
+            //Cell 0 is not used, stripe 0 is the main balance.
+            final AtomicReferenceArray<BigDecimal> cells;
+            final AtomicInteger unmoved;
+            final AtomicInteger sampledOperations = new AtomicInteger();
+            volatile long windowStart = System.nanoTime();
+
+            Stripes(int count) {
+                cells = new AtomicReferenceArray<>(count);
+                for (int i = 1; i < count; i++) {
+                    cells.set(i, BigDecimal.ZERO);
+                }
+                unmoved = new AtomicInteger(count - 1);
+            }
+
+            //Returns null when the stripes are sealed or no single stripe can pay the debit.
+            OperationResult change(BigDecimal delta) {
+                final int home = (int) (Thread.currentThread().getId() * 0x9E3779B9L) & (cells.length() - 1);
+                if (delta.signum() >= 0) {
+                    for (int attempt = 0; ; attempt++) {
+                        final int index = (home + attempt) & (cells.length() - 1);
+                        final AtomicReference<BigDecimal> main = index == 0 ? balance : null;
+                        final BigDecimal value = main != null ? main.get() : cells.get(index);
+                        if (value == SEALED) {
+                            return null;
+                        }
+                        final BigDecimal newValue = value.add(delta);
+                        if (main != null ? main.compareAndSet(value, newValue) : cells.compareAndSet(index, value, newValue)) {
+                            return OperationResult.Success;
+                        }
+                        //Contended stripe, the next attempt goes to another one.
+                        casRetries.increment();
+                    }
+                }
+                for (int i = 0; i < cells.length(); i++) {
+                    final int index = (home + i) & (cells.length() - 1);
+                    while (true) {
+                        final BigDecimal value = index == 0 ? balance.get() : cells.get(index);
+                        if (value == SEALED) {
+                            return null;
+                        }
+                        final BigDecimal newValue = value.add(delta);
+                        if (newValue.compareTo(BigDecimal.ZERO) < 0) {
+                            break;
+                        }
+                        if (index == 0 ? balance.compareAndSet(value, newValue) : cells.compareAndSet(index, value, newValue)) {
+                            return OperationResult.Success;
+                        }
+                        casRetries.increment();
+                    }
+                }
+                return null;
+            }
+
+            //Null when some stripe is sealed.
+            BigDecimal sum(BigDecimal main) {
+                BigDecimal sum = main;
+                for (int i = 1; i < cells.length(); i++) {
+                    final BigDecimal value = cells.get(i);
+                    if (value == SEALED) {
+                        return null;
+                    }
+                    sum = sum.add(value);
+                }
+                return sum;
+            }
+
+            //Collapses the account when a window had few operations.
+            void sample() {
+                if (pinned || ThreadLocalRandom.current().nextInt(SAMPLE_INTERVAL) != 0) {
+                    return;
+                }
+                final int sampled = sampledOperations.incrementAndGet();
+                final long now = System.nanoTime();
+                if (now - windowStart < WINDOW_NANOS) {
+                    return;
+                }
+                windowStart = now;
+                sampledOperations.set(0);
+                if ((long) sampled * SAMPLE_INTERVAL < COLD_OPERATIONS) {
+                    collapse(this);
+                }
             }
         }
     }
@@ -0,0 +1,20 @@
+package email.kulakov.test.moneytransfer.db;
+
+import java.util.Collections;
+import java.util.Map;
+
+//Implemented by datastores which can tell how much time their writers lose to each other.
+public interface ContentionStats {
+    //Failed compare-and-set attempts which had to be retried.
+    long casRetries();
+    //Total time spent waiting for account locks.
+    long lockWaitNanos();
+    //Accounts currently split into striped sub-balances.
+    default long splitAccounts() {
+        return 0;
+    }
+    //Accounts with frequent lock contention right now, by account id.
+    default Map<Long, AccountContention.Stats> hotAccounts() {
+        return Collections.emptyMap();
+    }
+}
@@ -1,10 +1,133 @@
 package email.kulakov.test.moneytransfer.db;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public interface Datastore {
+
+    //balanceMinor of an account which does not exist.
+    long NO_BALANCE = Long.MIN_VALUE;
+    //balanceMinor of a balance with more fraction digits than MinorUnits.SCALE. Balances are never negative.
+    long UNREPRESENTABLE_BALANCE = Long.MIN_VALUE + 1;
+
     long createAccount();
+
+    //Creates count accounts with consecutive ids and returns the first one.
+    //Default implementation creates them one by one, which gives consecutive ids only without concurrent creates.
+    default long createAccounts(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Account count must be positive: " + count);
+        }
+        final long firstId = createAccount();
+        for (int i = 1; i < count; i++) {
+            if (createAccount() != firstId + i) {
+                throw new IllegalStateException("Accounts were created concurrently, ids are not consecutive");
+            }
+        }
+        return firstId;
+    }
+
     BigDecimal balance(long accountId);
     OperationResult changeMoney(long accountId, BigDecimal delta);
     OperationResult transferMoney(long accountFrom, long accountTo, BigDecimal amount);
+
+    //Same operations in minor units (see MinorUnits). Defaults convert and call the BigDecimal ones,
+    //FixedPointDatastore and decorators which do not need the BigDecimal amount take them as they are.
+    default long balanceMinor(long accountId) {
+        final BigDecimal balance = balance(accountId);
+        if (balance == null) {
+            return NO_BALANCE;
+        }
+        final long balanceMinor = MinorUnits.toMinor(balance);
+        return balanceMinor == MinorUnits.NOT_REPRESENTABLE ? UNREPRESENTABLE_BALANCE : balanceMinor;
+    }
+
+    default OperationResult changeMoneyMinor(long accountId, long delta) {
+        return changeMoney(accountId, MinorUnits.toBigDecimal(delta));
+    }
+
+    default OperationResult transferMoneyMinor(long accountFrom, long accountTo, long amount) {
+        return transferMoney(accountFrom, accountTo, MinorUnits.toBigDecimal(amount));
+    }
+
+    //Returns result per entry. In atomic mode either all entries succeed or none is applied,
+    //the failed entry gets its own result and all the others get Aborted.
+    //Entries are checked in order: an entry can spend money received by an entry before it, not by one after it.
+    //Default implementation applies entries one by one and compensates applied ones on failure in atomic mode.
+    //It is not isolated: a compensation fails when the receiver spent the money meanwhile, such an entry stays
+    //applied and gets NotReverted instead of Aborted.
+    default List<OperationResult> transferBatch(List<Transfer> transfers, boolean atomic) {
+        final List<OperationResult> results = new ArrayList<>(transfers.size());
+        for (int i = 0; i < transfers.size(); i++) {
+            final Transfer transfer = transfers.get(i);
+            final OperationResult result = transferMoney(transfer.getAccountFrom(), transfer.getAccountTo(), transfer.getAmount());
+            results.add(result);
+            if (atomic && !result.isSuccess()) {
+                final List<OperationResult> aborted = abortedExcept(transfers.size(), i, result);
+                for (int j = i - 1; j >= 0; j--) {
+                    final Transfer applied = transfers.get(j);
+                    //A Busy reversal is retried, other failures are final.
+                    OperationResult reversal = OperationResult.Busy;
+                    for (int attempt = 0; attempt < 3 && reversal == OperationResult.Busy; attempt++) {
+                        reversal = transferMoney(applied.getAccountTo(), applied.getAccountFrom(), applied.getAmount());
+                    }
+                    if (!reversal.isSuccess()) {
+                        aborted.set(j, OperationResult.NotReverted);
+                    }
+                }
+                return aborted;
+            }
+        }
+        return results;
+    }
+
+    //Account lifecycle. A frozen account refuses debits with Frozen, credits still arrive. Freezing a frozen account
+    //and unfreezing an open one succeed. Only an account with zero balance can be closed, it is NoAccount afterwards,
+    //its memory is reclaimed and its id is never reused.
+    //Default implementations answer Unsupported: the datastore does not support the lifecycle.
+    default OperationResult freezeAccount(long accountId) {
+        return OperationResult.Unsupported;
+    }
+
+    default OperationResult unfreezeAccount(long accountId) {
+        return OperationResult.Unsupported;
+    }
+
+    default OperationResult closeAccount(long accountId) {
+        return OperationResult.Unsupported;
+    }
+
+    //False for accounts which do not exist.
+    default boolean isFrozen(long accountId) {
+        return false;
+    }
+
+    //Highest account id given out so far, accounts up to it exist unless they were closed.
+    //Default implementation is for datastores without closed accounts, where ids 1..last exist:
+    //exponential then binary search for the last one.
+    default long lastAccountId() {
+        long high = 1;
+        while (balance(high) != null) {
+            high <<= 1;
+        }
+        long low = high >> 1;
+        //balance(low) exists (or low == 0), balance(high) does not.
+        while (high - low > 1) {
+            final long middle = (low + high) >>> 1;
+            if (balance(middle) != null) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    static List<OperationResult> abortedExcept(int size, int failedIndex, OperationResult failedResult) {
+        final List<OperationResult> results = new ArrayList<>(Collections.nCopies(size, OperationResult.Aborted));
+        results.set(failedIndex, failedResult);
+        return results;
+    }
 }
@@ -0,0 +1,55 @@
+package email.kulakov.test.moneytransfer.db;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+//Runs blocking Datastore calls on the given executor, so request threads are not held while they run.
+public class ExecutorAsyncDatastore implements AsyncDatastore {
+
+    private final Datastore datastore;
+    private final Executor executor;
+
+    public ExecutorAsyncDatastore(Datastore datastore, Executor executor) {
+        this.datastore = datastore;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<Long> createAccount() {
+        return submit(datastore::createAccount);
+    }
+
+    @Override
+    public CompletableFuture<BigDecimal> balance(long accountId) {
+        return submit(() -> datastore.balance(accountId));
+    }
+
+    @Override
+    public CompletableFuture<OperationResult> changeMoney(long accountId, BigDecimal delta) {
+        return submit(() -> datastore.changeMoney(accountId, delta));
+    }
+
+    @Override
+    public CompletableFuture<OperationResult> transferMoney(long accountFrom, long accountTo, BigDecimal amount) {
+        return submit(() -> datastore.transferMoney(accountFrom, accountTo, amount));
+    }
+
+    @Override
+    public CompletableFuture<List<OperationResult>> transferBatch(List<Transfer> transfers, boolean atomic) {
+        return submit(() -> datastore.transferBatch(transfers, atomic));
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> operation) {
+        try {
+            return CompletableFuture.supplyAsync(operation, executor);
+        } catch (RejectedExecutionException e) {
+            final CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package email.kulakov.test.moneytransfer.db;
+
+import java.math.BigDecimal;
+
+//Datastore which keeps balances as long minor units (see MinorUnits). BigDecimal is converted only on entry/exit.
+public interface FixedPointDatastore extends Datastore {
+
+    @Override
+    long balanceMinor(long accountId);
+    @Override
+    OperationResult changeMoneyMinor(long accountId, long delta);
+    @Override
+    OperationResult transferMoneyMinor(long accountFrom, long accountTo, long amount);
+
+    @Override
+    default BigDecimal balance(long accountId) {
+        final long balance = balanceMinor(accountId);
+        return balance == NO_BALANCE ? null : MinorUnits.toBigDecimal(balance);
+    }
+
+    @Override
+    default OperationResult changeMoney(long accountId, BigDecimal delta) {
+        final long minorDelta = MinorUnits.toMinor(delta);
+        if (minorDelta == MinorUnits.NOT_REPRESENTABLE) {
+            return OperationResult.WrongAmount;
+        }
+        return changeMoneyMinor(accountId, minorDelta);
+    }
+
+    @Override
+    default OperationResult transferMoney(long accountFrom, long accountTo, BigDecimal amount) {
+        if (amount.signum() <= 0) {
+            return OperationResult.NoMoney;
+        }
+        final long minorAmount = MinorUnits.toMinor(amount);
+        if (minorAmount == MinorUnits.NOT_REPRESENTABLE) {
+            return OperationResult.WrongAmount;
+        }
+        return transferMoneyMinor(accountFrom, accountTo, minorAmount);
+    }
+}
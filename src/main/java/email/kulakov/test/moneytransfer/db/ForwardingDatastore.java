@@ -0,0 +1,81 @@
+package email.kulakov.test.moneytransfer.db;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+//Base class for datastore decorators, forwards every call to the delegate.
+//Except changeMoneyMinor and transferMoneyMinor: a decorator which sees only the BigDecimal writes would miss them,
+//so they convert unless the decorator forwards them itself.
+public abstract class ForwardingDatastore implements Datastore {
+
+    protected final Datastore delegate;
+
+    protected ForwardingDatastore(Datastore delegate) {
+        this.delegate = delegate;
+    }
+
+    public Datastore getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public long createAccount() {
+        return delegate.createAccount();
+    }
+
+    @Override
+    public long createAccounts(int count) {
+        return delegate.createAccounts(count);
+    }
+
+    @Override
+    public BigDecimal balance(long accountId) {
+        return delegate.balance(accountId);
+    }
+
+    //A decorator which overrides balance overrides this too.
+    @Override
+    public long balanceMinor(long accountId) {
+        return delegate.balanceMinor(accountId);
+    }
+
+    @Override
+    public OperationResult changeMoney(long accountId, BigDecimal delta) {
+        return delegate.changeMoney(accountId, delta);
+    }
+
+    @Override
+    public OperationResult transferMoney(long accountFrom, long accountTo, BigDecimal amount) {
+        return delegate.transferMoney(accountFrom, accountTo, amount);
+    }
+
+    @Override
+    public List<OperationResult> transferBatch(List<Transfer> transfers, boolean atomic) {
+        return delegate.transferBatch(transfers, atomic);
+    }
+
+    @Override
+    public OperationResult freezeAccount(long accountId) {
+        return delegate.freezeAccount(accountId);
+    }
+
+    @Override
+    public OperationResult unfreezeAccount(long accountId) {
+        return delegate.unfreezeAccount(accountId);
+    }
+
+    @Override
+    public OperationResult closeAccount(long accountId) {
+        return delegate.closeAccount(accountId);
+    }
+
+    @Override
+    public boolean isFrozen(long accountId) {
+        return delegate.isFrozen(accountId);
+    }
+
+    @Override
+    public long lastAccountId() {
+        return delegate.lastAccountId();
+    }
+}
@@ -0,0 +1,68 @@
+package email.kulakov.test.moneytransfer.db;
+
+import javax.inject.Singleton;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Singleton
+public class LedgerDatastore implements FixedPointDatastore {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final AtomicLong idGenerator = new AtomicLong(0);
+    private final AccountTable storage = new AccountTable(INITIAL_CAPACITY);
+
+    @Override
+    public long createAccount() {
+        final long accountId = idGenerator.incrementAndGet();
+        storage.insert(accountId, 0);
+        return accountId;
+    }
+
+    @Override
+    public long createAccounts(int count) {
+        final long firstId = idGenerator.getAndAdd(count) + 1;
+        storage.insertRange(firstId, count, 1, 0);
+        return firstId;
+    }
+
+    @Override
+    public long balanceMinor(long accountId) {
+        final long balance = storage.get(accountId);
+        return balance == AccountTable.MISSING ? NO_BALANCE : balance;
+    }
+
+    @Override
+    public OperationResult changeMoneyMinor(long accountId, long delta) {
+        return storage.add(accountId, delta);
+    }
+
+    @Override
+    public OperationResult transferMoneyMinor(long accountFrom, long accountTo, long amount) {
+        if (amount <= 0) {
+            return OperationResult.NoMoney;
+        }
+
+        if(accountFrom == accountTo) {
+            return OperationResult.Success;
+        }
+
+        if (!storage.contains(accountFrom) || !storage.contains(accountTo)) {
+            return OperationResult.NoAccount;
+        }
+
+        //Same as ConcurrentDatastore: debit and credit are two separate CAS operations.
+        final OperationResult removeMoneyResult = storage.add(accountFrom, -amount);
+        if (!removeMoneyResult.isSuccess()) {
+            return removeMoneyResult;
+        }
+
+        final OperationResult addMoneyResult = storage.add(accountTo, amount);
+        if (!addMoneyResult.isSuccess()) {
+            //Only overflow of the receiver is possible here, money is returned to the sender.
+            storage.add(accountFrom, amount);
+            return addMoneyResult;
+        }
+
+        return OperationResult.Success;
+    }
+}
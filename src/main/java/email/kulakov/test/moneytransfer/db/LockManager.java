@@ -0,0 +1,27 @@
+package email.kulakov.test.moneytransfer.db;
+
+//Guards account balances for BlockingDatastore. Implementations choose the granularity, e.g. lock stripes.
+public interface LockManager {
+
+    //Stamp for lock-free reads, 0 when the account is being written.
+    long tryOptimisticRead(long accountId);
+
+    //True when there was no write to the account since the stamp was taken.
+    boolean validate(long accountId, long stamp);
+
+    long readLock(long accountId);
+
+    void unlockRead(long accountId, long stamp);
+
+    //Takes write locks of all accounts in one global order, so concurrent callers never deadlock.
+    //Returns false when some lock was not taken within the timeout, nothing is held then nor after an interrupt.
+    //Accounts whose lock was not free immediately are reported to the listener with the time waited for them.
+    boolean tryLockAll(long[] accountIds, long timeoutNanos, ContentionListener listener) throws InterruptedException;
+
+    //Releases locks taken by tryLockAll with the same accounts.
+    void unlockAll(long[] accountIds);
+
+    interface ContentionListener {
+        void contended(long accountId, long waitNanos);
+    }
+}
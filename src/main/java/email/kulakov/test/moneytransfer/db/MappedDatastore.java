@@ -0,0 +1,296 @@
+package email.kulakov.test.moneytransfer.db;
+
+import email.kulakov.test.moneytransfer.MoneyTransferGuiceModule;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Balances live in a memory-mapped file: account id N is the long at HEADER_SIZE + (N - 1) * 8.
+//Data written to the mapping survives a process crash (it is in the page cache), flush() forces it to disk.
+//A transfer writes two slots, so it first writes an undo record with both old balances; a record left by a crash
+//between the slots is rolled back on open. Records are per lock stripe, the stripe lock owns its record.
+@Singleton
+public class MappedDatastore implements FixedPointDatastore, Closeable {
+
+    public static final String FILE_NAME = "accounts.db";
+    public static final String UNDO_FILE_NAME = "accounts.undo";
+
+    private static final long MAGIC = 0x4D54414343545301L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4096;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 8;
+    private static final int SCALE_OFFSET = 12;
+    private static final int HIGH_WATER_MARK_OFFSET = 16;
+
+    private static final int SLOT_SIZE = Long.BYTES;
+    private static final int SLOTS_PER_SEGMENT = 1 << 23;
+    private static final int LOCK_STRIPES = 1024;
+    //fromId, fromBalance, toId, toBalance. fromId is written last and cleared first, zero means no record.
+    private static final int UNDO_RECORD_SIZE = 4 * Long.BYTES;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final FileChannel undoChannel;
+    private final MappedByteBuffer undo;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final Object createLock = new Object();
+    //Holds the persisted high-water mark. Accounts 1..idGenerator exist.
+    private final AtomicLong idGenerator;
+    private volatile MappedByteBuffer[] segments;
+
+    @Inject
+    public MappedDatastore(@Named(MoneyTransferGuiceModule.DATA_DIRECTORY) Path dataDirectory) {
+        try {
+            Files.createDirectories(dataDirectory);
+            channel = FileChannel.open(dataDirectory.resolve(FILE_NAME),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            final boolean created = channel.size() < HEADER_SIZE;
+            header = map(0, HEADER_SIZE);
+            if (created) {
+                header.putLong(MAGIC_OFFSET, MAGIC);
+                header.putInt(VERSION_OFFSET, VERSION);
+                header.putInt(SCALE_OFFSET, MinorUnits.SCALE);
+                header.putLong(HIGH_WATER_MARK_OFFSET, 0);
+                header.force();
+            } else {
+                checkHeader();
+            }
+            final long highWaterMark = header.getLong(HIGH_WATER_MARK_OFFSET);
+            idGenerator = new AtomicLong(highWaterMark);
+            segments = new MappedByteBuffer[0];
+            ensureMapped(highWaterMark);
+            undoChannel = FileChannel.open(dataDirectory.resolve(UNDO_FILE_NAME),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            undo = undoChannel.map(FileChannel.MapMode.READ_WRITE, 0, LOCK_STRIPES * UNDO_RECORD_SIZE);
+            undo.order(ByteOrder.LITTLE_ENDIAN);
+            rollBackTornTransfers();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public long createAccount() {
+        synchronized (createLock) {
+            final long accountId = idGenerator.get() + 1;
+            try {
+                ensureMapped(accountId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            //Slot is initialized before the header moves, so a crash never exposes a garbage balance.
+            segment(accountId).putLong(offset(accountId), 0);
+            header.putLong(HIGH_WATER_MARK_OFFSET, accountId);
+            idGenerator.set(accountId);
+            return accountId;
+        }
+    }
+
+    //The whole range is mapped and initialized before the high-water mark moves once.
+    @Override
+    public long createAccounts(int count) {
+        synchronized (createLock) {
+            final long firstId = idGenerator.get() + 1;
+            final long lastId = firstId + count - 1;
+            try {
+                ensureMapped(lastId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            for (long accountId = firstId; accountId <= lastId; accountId++) {
+                segment(accountId).putLong(offset(accountId), 0);
+            }
+            header.putLong(HIGH_WATER_MARK_OFFSET, lastId);
+            idGenerator.set(lastId);
+            return firstId;
+        }
+    }
+
+    @Override
+    public long balanceMinor(long accountId) {
+        if (!exists(accountId)) {
+            return NO_BALANCE;
+        }
+        synchronized (lock(accountId)) {
+            return segment(accountId).getLong(offset(accountId));
+        }
+    }
+
+    @Override
+    public OperationResult changeMoneyMinor(long accountId, long delta) {
+        if (!exists(accountId)) {
+            return OperationResult.NoAccount;
+        }
+        synchronized (lock(accountId)) {
+            return changeBalance(accountId, delta);
+        }
+    }
+
+    @Override
+    public OperationResult transferMoneyMinor(long accountFrom, long accountTo, long amount) {
+        if (amount <= 0) {
+            return OperationResult.NoMoney;
+        }
+
+        if(accountFrom == accountTo) {
+            return OperationResult.Success;
+        }
+
+        if (!exists(accountFrom) || !exists(accountTo)) {
+            return OperationResult.NoAccount;
+        }
+
+        final Object fromLock = lock(accountFrom);
+        final Object toLock = lock(accountTo);
+        if (fromLock == toLock) {
+            synchronized (fromLock) {
+                return transferLocked(accountFrom, accountTo, amount);
+            }
+        }
+        //Ordered by stripe, not by id: 1->1026 and 1025->2 share both stripes.
+        final boolean fromFirst = stripe(accountFrom) < stripe(accountTo);
+        final Object firstLock = fromFirst ? fromLock : toLock;
+        final Object secondLock = fromFirst ? toLock : fromLock;
+        synchronized (firstLock) {
+            synchronized (secondLock) {
+                return transferLocked(accountFrom, accountTo, amount);
+            }
+        }
+    }
+
+    public void flush() {
+        header.force();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        undo.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (createLock) {
+            flush();
+            channel.close();
+            undoChannel.close();
+        }
+    }
+
+    //Caller holds the stripe locks of both accounts, the undo record of the lower stripe is free.
+    private OperationResult transferLocked(long accountFrom, long accountTo, long amount) {
+        final long fromBalance = segment(accountFrom).getLong(offset(accountFrom));
+        final long toBalance = segment(accountTo).getLong(offset(accountTo));
+        if (fromBalance < amount) {
+            return OperationResult.NoMoney;
+        }
+        if (toBalance + amount < 0) {
+            return OperationResult.WrongAmount;
+        }
+        final int record = Math.min(stripe(accountFrom), stripe(accountTo)) * UNDO_RECORD_SIZE;
+        undo.putLong(record + Long.BYTES, fromBalance);
+        undo.putLong(record + 2 * Long.BYTES, accountTo);
+        undo.putLong(record + 3 * Long.BYTES, toBalance);
+        undo.putLong(record, accountFrom);
+        segment(accountFrom).putLong(offset(accountFrom), fromBalance - amount);
+        segment(accountTo).putLong(offset(accountTo), toBalance + amount);
+        undo.putLong(record, 0);
+        return OperationResult.Success;
+    }
+
+    //Both slots get their old balances back, whichever of them the crash had written.
+    private void rollBackTornTransfers() {
+        boolean rolledBack = false;
+        for (int record = 0; record < LOCK_STRIPES * UNDO_RECORD_SIZE; record += UNDO_RECORD_SIZE) {
+            final long accountFrom = undo.getLong(record);
+            if (accountFrom == 0) {
+                continue;
+            }
+            final long accountTo = undo.getLong(record + 2 * Long.BYTES);
+            if (exists(accountFrom) && exists(accountTo)) {
+                segment(accountFrom).putLong(offset(accountFrom), undo.getLong(record + Long.BYTES));
+                segment(accountTo).putLong(offset(accountTo), undo.getLong(record + 3 * Long.BYTES));
+            }
+            undo.putLong(record, 0);
+            rolledBack = true;
+        }
+        if (rolledBack) {
+            flush();
+        }
+    }
+
+    private OperationResult changeBalance(long accountId, long delta) {
+        final MappedByteBuffer segment = segment(accountId);
+        final int offset = offset(accountId);
+        final long balance = segment.getLong(offset);
+        final long newBalance = balance + delta;
+        if (((balance ^ newBalance) & (delta ^ newBalance)) < 0) {
+            return OperationResult.WrongAmount;
+        }
+        if (newBalance < 0) {
+            return OperationResult.NoMoney;
+        }
+        segment.putLong(offset, newBalance);
+        return OperationResult.Success;
+    }
+
+    private boolean exists(long accountId) {
+        return accountId > 0 && accountId <= idGenerator.get();
+    }
+
+    private Object lock(long accountId) {
+        return locks[stripe(accountId)];
+    }
+
+    private static int stripe(long accountId) {
+        return (int) (accountId & (LOCK_STRIPES - 1));
+    }
+
+    private MappedByteBuffer segment(long accountId) {
+        return segments[(int) ((accountId - 1) / SLOTS_PER_SEGMENT)];
+    }
+
+    private static int offset(long accountId) {
+        return (int) ((accountId - 1) % SLOTS_PER_SEGMENT) * SLOT_SIZE;
+    }
+
+    private void ensureMapped(long accountId) throws IOException {
+        final int required = (int) ((accountId + SLOTS_PER_SEGMENT - 1) / SLOTS_PER_SEGMENT);
+        if (segments.length >= required) {
+            return;
+        }
+        final MappedByteBuffer[] grown = Arrays.copyOf(segments, required);
+        for (int i = segments.length; i < required; i++) {
+            grown[i] = map(HEADER_SIZE + (long) i * SLOTS_PER_SEGMENT * SLOT_SIZE, SLOTS_PER_SEGMENT * SLOT_SIZE);
+        }
+        segments = grown;
+    }
+
+    private MappedByteBuffer map(long position, int size) throws IOException {
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private void checkHeader() throws IOException {
+        if (header.getLong(MAGIC_OFFSET) != MAGIC
+                || header.getInt(VERSION_OFFSET) != VERSION
+                || header.getInt(SCALE_OFFSET) != MinorUnits.SCALE) {
+            throw new IOException("Unsupported accounts file format");
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package email.kulakov.test.moneytransfer.db;
+
+import java.math.BigDecimal;
+
+public final class MinorUnits {
+
+    public static final int SCALE = 2;
+    //Returned by toMinor for amounts with more fraction digits than SCALE or out of long range.
+    public static final long NOT_REPRESENTABLE = Long.MIN_VALUE;
+
+    private MinorUnits() {
+    }
+
+    public static long toMinor(BigDecimal amount) {
+        try {
+            return amount.movePointRight(SCALE).longValueExact();
+        } catch (ArithmeticException e) {
+            return NOT_REPRESENTABLE;
+        }
+    }
+
+    public static BigDecimal toBigDecimal(long minor) {
+        return BigDecimal.valueOf(minor, SCALE);
+    }
+}
@@ -1,9 +1,32 @@
 package email.kulakov.test.moneytransfer.db;
 
 public enum OperationResult {
-    Success, NoAccount, NoMoney;
+    Success, NoAccount, NoMoney, WrongAmount,
+    //Entry of an all-or-nothing batch which was not applied because another entry failed.
+    Aborted,
+    //Account locks were not acquired in time, nothing was changed. Can be retried.
+    Busy,
+    //Debit over a spending limit of the account, see SpendingLimitDatastore. Nothing was changed.
+    LimitExceeded,
+    //Transfer between cluster nodes whose outcome is not known yet, it is completed or refunded in the background.
+    Pending,
+    //Debit of a frozen account, nothing was changed. Credits of a frozen account succeed.
+    Frozen,
+    //Close of an account whose balance is not zero.
+    NotEmpty,
+    //Operation the datastore does not implement, e.g. the account lifecycle of the fixed-point datastores.
+    Unsupported,
+    //Entry of an all-or-nothing batch which was applied and could not be undone after another entry failed, see
+    //Datastore.transferBatch. The batch is not all-or-nothing then, the caller has to settle the entry.
+    //Also a transfer between currencies whose credit failed and whose debit could not be refunded.
+    NotReverted;
 
     public boolean isSuccess() {
         return this == Success;
     }
+
+    //The operation changed balances.
+    public boolean isApplied() {
+        return this == Success || this == NotReverted;
+    }
 }
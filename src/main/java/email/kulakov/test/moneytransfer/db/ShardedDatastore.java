@@ -0,0 +1,256 @@
+package email.kulakov.test.moneytransfer.db;
+
+import javax.inject.Singleton;
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//Accounts are partitioned across single-threaded shards, only the shard thread changes its balances,
+//so there are no locks on the write path. Callers put commands into the shard ring and wait for the result.
+//Transfer inside one shard is one command. Cross-shard transfer is a reserve (debit) on the sender shard
+//followed by a credit on the receiver shard, the reservation is refunded if the credit fails.
+//Shards never wait for each other, so there is no deadlock. Balance reads go directly to the shard table.
+//Between the two steps the amount is on neither balance, inFlightMinor() has it, so the balances plus
+//inFlightMinor() conserve money. Audit reads a SnapshotDatastore cut, which waits for the whole transfer.
+//Once closed, commands are not applied and answer Busy, callers waiting for a result are woken.
+@Singleton
+public class ShardedDatastore implements FixedPointDatastore, Closeable {
+
+    private static final int RING_SIZE = 4096;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final AtomicLong idGenerator = new AtomicLong(0);
+    private final LongAdder inFlight = new LongAdder();
+    private final Shard[] shards;
+
+    public ShardedDatastore() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ShardedDatastore(int shardCount) {
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, shardCount);
+        }
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    @Override
+    public long createAccount() {
+        final long accountId = idGenerator.incrementAndGet();
+        shard(accountId).execute(new Command(Command.CREATE, accountId, 0, 0));
+        return accountId;
+    }
+
+    //Every shard inserts its part of the range in one command.
+    @Override
+    public long createAccounts(int count) {
+        final long firstId = idGenerator.getAndAdd(count) + 1;
+        final long lastId = firstId + count - 1;
+        for (int i = 0; i < shards.length; i++) {
+            final long shardFirstId = firstId + Math.floorMod(i - (firstId - 1), (long) shards.length);
+            if (shardFirstId <= lastId) {
+                shards[i].execute(new Command(Command.CREATE_RANGE, shardFirstId, 0,
+                        (lastId - shardFirstId) / shards.length + 1));
+            }
+        }
+        return firstId;
+    }
+
+    @Override
+    public long balanceMinor(long accountId) {
+        final long balance = shard(accountId).storage.get(accountId);
+        return balance == AccountTable.MISSING ? NO_BALANCE : balance;
+    }
+
+    @Override
+    public OperationResult changeMoneyMinor(long accountId, long delta) {
+        return shard(accountId).execute(new Command(Command.CHANGE, accountId, 0, delta));
+    }
+
+    @Override
+    public OperationResult transferMoneyMinor(long accountFrom, long accountTo, long amount) {
+        if (amount <= 0) {
+            return OperationResult.NoMoney;
+        }
+
+        if(accountFrom == accountTo) {
+            return OperationResult.Success;
+        }
+
+        final Shard fromShard = shard(accountFrom);
+        final Shard toShard = shard(accountTo);
+        if (fromShard == toShard) {
+            return fromShard.execute(new Command(Command.TRANSFER, accountFrom, accountTo, amount));
+        }
+
+        if (!toShard.storage.contains(accountTo)) {
+            return OperationResult.NoAccount;
+        }
+        //Counted before the reserve and until the credit, so a reader may count the amount twice but never loses it.
+        inFlight.add(amount);
+        final OperationResult reserveResult = fromShard.execute(new Command(Command.CHANGE, accountFrom, 0, -amount));
+        if (!reserveResult.isSuccess()) {
+            inFlight.add(-amount);
+            return reserveResult;
+        }
+        final OperationResult creditResult = toShard.execute(new Command(Command.CHANGE, accountTo, 0, amount));
+        if (!creditResult.isSuccess()) {
+            //Refund of the reserved amount can not fail while open: it was on the balance just before.
+            //After close the amount stays in flight.
+            if (fromShard.execute(new Command(Command.CHANGE, accountFrom, 0, amount)).isSuccess()) {
+                inFlight.add(-amount);
+            }
+            return creditResult;
+        }
+        inFlight.add(-amount);
+        return OperationResult.Success;
+    }
+
+    //Amount reserved on sender shards and not credited or refunded yet.
+    public long inFlightMinor() {
+        return inFlight.sum();
+    }
+
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            shard.running = false;
+            LockSupport.unpark(shard.thread);
+        }
+    }
+
+    private Shard shard(long accountId) {
+        return shards[(int) Math.floorMod(accountId - 1, (long) shards.length)];
+    }
+
+    private static final class Command {
+        static final int CREATE = 0;
+        static final int CHANGE = 1;
+        static final int TRANSFER = 2;
+        //amount is the number of accounts, every shard.length-th id from accountId.
+        static final int CREATE_RANGE = 3;
+
+        final int type;
+        final long accountId;
+        final long otherAccountId;
+        final long amount;
+        final Thread caller = Thread.currentThread();
+        volatile OperationResult result;
+
+        Command(int type, long accountId, long otherAccountId, long amount) {
+            this.type = type;
+            this.accountId = accountId;
+            this.otherAccountId = otherAccountId;
+            this.amount = amount;
+        }
+    }
+
+    private static final class Shard {
+
+        private static final int SPINS_BEFORE_PARK = 1000;
+        private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+        final AccountTable storage = new AccountTable(INITIAL_CAPACITY);
+        final CommandRing<Command> ring = new CommandRing<>(RING_SIZE);
+        final Thread thread;
+        final int shardCount;
+        volatile boolean sleeping;
+        volatile boolean running = true;
+
+        Shard(int index, int shardCount) {
+            this.shardCount = shardCount;
+            thread = new Thread(this::run, "datastore-shard-" + index);
+            thread.setDaemon(true);
+        }
+
+        OperationResult execute(Command command) {
+            //Full ring is the back pressure: wait for the shard to catch up.
+            while (!ring.offer(command)) {
+                if (!running) {
+                    return OperationResult.Busy;
+                }
+                Thread.yield();
+            }
+            if (sleeping) {
+                LockSupport.unpark(thread);
+            }
+            int spins = 0;
+            OperationResult result;
+            while ((result = command.result) == null) {
+                //The stopped thread applies nothing more, its last result is visible once it is not alive.
+                if (!running && !thread.isAlive()) {
+                    result = command.result;
+                    return result != null ? result : OperationResult.Busy;
+                }
+                if (++spins < SPINS_BEFORE_PARK) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+            }
+            return result;
+        }
+
+        private void run() {
+            int idle = 0;
+            while (running) {
+                final Command command = ring.poll();
+                if (command == null) {
+                    if (++idle < SPINS_BEFORE_PARK) {
+                        Thread.yield();
+                        continue;
+                    }
+                    sleeping = true;
+                    if (ring.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                    idle = 0;
+                    continue;
+                }
+                idle = 0;
+                command.result = apply(command);
+                LockSupport.unpark(command.caller);
+            }
+            //Commands left in the ring are not applied, their callers are woken to see it.
+            Command command;
+            while ((command = ring.poll()) != null) {
+                command.result = OperationResult.Busy;
+                LockSupport.unpark(command.caller);
+            }
+        }
+
+        private OperationResult apply(Command command) {
+            switch (command.type) {
+                case Command.CREATE:
+                    storage.insert(command.accountId, 0);
+                    return OperationResult.Success;
+                case Command.CREATE_RANGE:
+                    storage.insertRange(command.accountId, (int) command.amount, shardCount, 0);
+                    return OperationResult.Success;
+                case Command.CHANGE:
+                    return storage.add(command.accountId, command.amount);
+                case Command.TRANSFER:
+                    if (!storage.contains(command.otherAccountId)) {
+                        return OperationResult.NoAccount;
+                    }
+                    final OperationResult removeMoneyResult = storage.add(command.accountId, -command.amount);
+                    if (!removeMoneyResult.isSuccess()) {
+                        return removeMoneyResult;
+                    }
+                    final OperationResult addMoneyResult = storage.add(command.otherAccountId, command.amount);
+                    if (!addMoneyResult.isSuccess()) {
+                        storage.add(command.accountId, command.amount);
+                    }
+                    return addMoneyResult;
+                default:
+                    throw new IllegalStateException("Unknown command " + command.type);
+            }
+        }
+    }
+}
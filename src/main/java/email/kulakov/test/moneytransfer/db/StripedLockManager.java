@@ -0,0 +1,121 @@
+package email.kulakov.test.moneytransfer.db;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+//Fixed number of StampedLocks, account id N is guarded by stripe N mod stripes.
+//Accounts sharing a stripe are locked once, stripes are locked in ascending index order.
+public class StripedLockManager implements LockManager {
+
+    private final StampedLock[] stripes;
+
+    public StripedLockManager(int stripeCount) {
+        if (Integer.bitCount(stripeCount) != 1) {
+            throw new IllegalArgumentException("Stripe count must be a power of two: " + stripeCount);
+        }
+        stripes = new StampedLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new StampedLock();
+        }
+    }
+
+    @Override
+    public long tryOptimisticRead(long accountId) {
+        return stripe(accountId).tryOptimisticRead();
+    }
+
+    @Override
+    public boolean validate(long accountId, long stamp) {
+        return stripe(accountId).validate(stamp);
+    }
+
+    @Override
+    public long readLock(long accountId) {
+        return stripe(accountId).readLock();
+    }
+
+    @Override
+    public void unlockRead(long accountId, long stamp) {
+        stripe(accountId).unlockRead(stamp);
+    }
+
+    @Override
+    public boolean tryLockAll(long[] accountIds, long timeoutNanos, ContentionListener listener)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        final long[] ordered = orderedByStripe(accountIds);
+        int previous = -1;
+        for (int i = 0; i < ordered.length; i++) {
+            final int index = index(ordered[i]);
+            if (index == previous) {
+                continue;
+            }
+            final StampedLock lock = stripes[index];
+            if (lock.tryWriteLock() == 0) {
+                final long start = System.nanoTime();
+                final long stamp;
+                try {
+                    stamp = lock.tryWriteLock(deadline - start, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    unlockStripes(ordered, i);
+                    throw e;
+                }
+                listener.contended(ordered[i], System.nanoTime() - start);
+                if (stamp == 0) {
+                    unlockStripes(ordered, i);
+                    return false;
+                }
+            }
+            previous = index;
+        }
+        return true;
+    }
+
+    @Override
+    public void unlockAll(long[] accountIds) {
+        final long[] ordered = orderedByStripe(accountIds);
+        unlockStripes(ordered, ordered.length);
+    }
+
+    //Unlocks distinct stripes of ordered[0, count).
+    private void unlockStripes(long[] ordered, int count) {
+        int previous = -1;
+        for (int i = 0; i < count; i++) {
+            final int index = index(ordered[i]);
+            if (index != previous) {
+                stripes[index].tryUnlockWrite();
+                previous = index;
+            }
+        }
+    }
+
+    private long[] orderedByStripe(long[] accountIds) {
+        if (accountIds.length == 2 && index(accountIds[0]) > index(accountIds[1])) {
+            //Single transfer, the common case.
+            return new long[]{accountIds[1], accountIds[0]};
+        }
+        if (accountIds.length <= 2) {
+            return accountIds;
+        }
+        //Sort positions by stripe index packed into the high bits.
+        final long[] keys = new long[accountIds.length];
+        for (int i = 0; i < accountIds.length; i++) {
+            keys[i] = ((long) index(accountIds[i]) << 32) | i;
+        }
+        Arrays.sort(keys);
+        final long[] ordered = new long[accountIds.length];
+        for (int i = 0; i < keys.length; i++) {
+            ordered[i] = accountIds[(int) keys[i]];
+        }
+        return ordered;
+    }
+
+    private StampedLock stripe(long accountId) {
+        return stripes[index(accountId)];
+    }
+
+    private int index(long accountId) {
+        return (int) (accountId & (stripes.length - 1));
+    }
+}
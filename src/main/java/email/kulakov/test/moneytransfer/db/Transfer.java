@@ -0,0 +1,28 @@
+package email.kulakov.test.moneytransfer.db;
+
+import java.math.BigDecimal;
+
+public final class Transfer {
+
+    private final long accountFrom;
+    private final long accountTo;
+    private final BigDecimal amount;
+
+    public Transfer(long accountFrom, long accountTo, BigDecimal amount) {
+        this.accountFrom = accountFrom;
+        this.accountTo = accountTo;
+        this.amount = amount;
+    }
+
+    public long getAccountFrom() {
+        return accountFrom;
+    }
+
+    public long getAccountTo() {
+        return accountTo;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+}
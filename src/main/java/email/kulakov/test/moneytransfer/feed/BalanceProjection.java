@@ -0,0 +1,47 @@
+package email.kulakov.test.moneytransfer.feed;
+
+import email.kulakov.test.moneytransfer.db.MinorUnits;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//Latest balance of every account in minor units, as the change feed reported it. Readers use pages of
+//AtomicLongArray without locks, only the projector thread writes. Accounts without a value are UNKNOWN.
+final class BalanceProjection {
+
+    static final long UNKNOWN = MinorUnits.NOT_REPRESENTABLE;
+
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    //Replaced when grown by the writer.
+    private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+
+    long get(long accountId) {
+        final AtomicLongArray[] current = pages;
+        final long index = accountId - 1;
+        final long page = index >>> PAGE_BITS;
+        if (index < 0 || page >= current.length || current[(int) page] == null) {
+            return UNKNOWN;
+        }
+        return current[(int) page].get((int) (index & (PAGE_SIZE - 1)));
+    }
+
+    //Single writer.
+    void set(long accountId, long balanceMinor) {
+        final long index = accountId - 1;
+        if (index < 0) {
+            return;
+        }
+        final int page = (int) (index >>> PAGE_BITS);
+        AtomicLongArray[] current = pages;
+        if (page >= current.length || current[page] == null) {
+            current = Arrays.copyOf(current, Math.max(page + 1, current.length));
+            final long[] unknown = new long[PAGE_SIZE];
+            Arrays.fill(unknown, UNKNOWN);
+            current[page] = new AtomicLongArray(unknown);
+            pages = current;
+        }
+        current[page].set((int) (index & (PAGE_SIZE - 1)), balanceMinor);
+    }
+}
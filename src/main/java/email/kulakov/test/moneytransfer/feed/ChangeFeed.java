@@ -0,0 +1,97 @@
+package email.kulakov.test.moneytransfer.feed;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//Multi-producer single-consumer ring of balance changes: (accountId, balance in minor units, version).
+//A producer claims the next version with one atomic increment, then fills the slot and publishes it with an ordered
+//store of the version into the slot, so events are consumed in version order without locks or allocation.
+//Producers wait while the ring is full: the consumer is never more than capacity versions behind.
+public final class ChangeFeed {
+
+    public interface Consumer {
+        void accept(long accountId, long balanceMinor, long version);
+    }
+
+    private final int mask;
+    private final long[] accountIds;
+    private final long[] balancesMinor;
+    private final long[] publishedNanos;
+    private final long[] claimedNanos;
+    //Version published in the slot, written last.
+    private final AtomicLongArray versions;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+
+    //Capacity is rounded up to a power of two.
+    public ChangeFeed(int capacity) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.accountIds = new long[size];
+        this.balancesMinor = new long[size];
+        this.publishedNanos = new long[size];
+        this.claimedNanos = new long[size];
+        this.versions = new AtomicLongArray(size);
+    }
+
+    //Claims the next version, waiting while the ring is full. The consumer stops at it until it is filled, so the
+    //producer must fill every version it claims.
+    public long claim() {
+        final long version = claimed.incrementAndGet();
+        while (version - consumed > accountIds.length) {
+            Thread.yield();
+        }
+        claimedNanos[(int) version & mask] = System.nanoTime();
+        return version;
+    }
+
+    //Publishes the event with a claimed version.
+    public void fill(long version, long accountId, long balanceMinor) {
+        final int slot = (int) version & mask;
+        accountIds[slot] = accountId;
+        balancesMinor[slot] = balanceMinor;
+        publishedNanos[slot] = System.nanoTime();
+        versions.lazySet(slot, version);
+    }
+
+    //Passes up to max published events to the consumer in version order, returns how many.
+    //Called by one thread only.
+    public int drain(Consumer consumer, int max) {
+        long next = consumed + 1;
+        int count = 0;
+        while (count < max && versions.get((int) next & mask) == next) {
+            final int slot = (int) next & mask;
+            consumer.accept(accountIds[slot], balancesMinor[slot], next);
+            next++;
+            count++;
+        }
+        if (count > 0) {
+            consumed = next - 1;
+        }
+        return count;
+    }
+
+    //Latest claimed version. A writer which has returned published its events with versions up to it.
+    public long claimedVersion() {
+        return claimed.get();
+    }
+
+    public long consumedVersion() {
+        return consumed;
+    }
+
+    //Age of the oldest event which is not consumed yet, 0 if there is none. An event which is claimed and not filled
+    //yet holds back the later ones, its age is counted from the claim. Right after the claim the slot may still have
+    //the claim time of its previous version: the lag is then overestimated for a moment, never underestimated.
+    public long lagNanos() {
+        final long next = consumed + 1;
+        final int slot = (int) next & mask;
+        if (versions.get(slot) == next) {
+            return Math.max(0, System.nanoTime() - publishedNanos[slot]);
+        }
+        if (claimed.get() < next) {
+            return 0;
+        }
+        return Math.max(0, System.nanoTime() - claimedNanos[slot]);
+    }
+}
@@ -0,0 +1,222 @@
+package email.kulakov.test.moneytransfer.feed;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.ForwardingDatastore;
+import email.kulakov.test.moneytransfer.db.MinorUnits;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+
+import java.io.Closeable;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//Balance reads without writer contention: successful writes publish the new balances of their accounts to a
+//ChangeFeed, a projector thread applies them to a BalanceProjection and balance() reads the projection.
+//A writer reads the balance after its write and takes the version before, so the event with the highest version of
+//an account always carries its latest balance. Reads are stale by at most maxStalenessMillis: when the oldest
+//unapplied event is older, and for accounts the projection does not know, balance() reads the delegate.
+public class ChangeFeedDatastore extends ForwardingDatastore implements Closeable {
+
+    private static final int DRAIN_BATCH = 4096;
+    private static final long MIN_IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ChangeFeed feed;
+    private final BalanceProjection projection = new BalanceProjection();
+    private final long maxStalenessNanos;
+    private final Thread projector;
+    private volatile boolean running = true;
+
+    private final LongAdder projectedReads = new LongAdder();
+    private final LongAdder sourceReads = new LongAdder();
+
+    //Balances of existing accounts, e.g. restored from a snapshot, are projected before it returns.
+    public ChangeFeedDatastore(Datastore delegate, int capacity, long maxStalenessMillis) {
+        super(delegate);
+        this.feed = new ChangeFeed(capacity);
+        this.maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis);
+        final long lastAccountId = delegate.lastAccountId();
+        for (long accountId = 1; accountId <= lastAccountId; accountId++) {
+            final BigDecimal balance = delegate.balance(accountId);
+            if (balance != null) {
+                projection.set(accountId, toMinor(balance));
+            }
+        }
+        projector = new Thread(this::project, "balance-projector");
+        projector.setDaemon(true);
+        projector.start();
+    }
+
+    //Null when the chain of decorators has no ChangeFeedDatastore.
+    public static ChangeFeedDatastore find(Datastore datastore) {
+        Datastore current = datastore;
+        while (current instanceof ForwardingDatastore) {
+            if (current instanceof ChangeFeedDatastore) {
+                return (ChangeFeedDatastore) current;
+            }
+            current = ((ForwardingDatastore) current).getDelegate();
+        }
+        return null;
+    }
+
+    @Override
+    public BigDecimal balance(long accountId) {
+        final long balanceMinor = projection.get(accountId);
+        if (balanceMinor == BalanceProjection.UNKNOWN || feed.lagNanos() > maxStalenessNanos) {
+            return sourceBalance(accountId);
+        }
+        projectedReads.increment();
+        return MinorUnits.toBigDecimal(balanceMinor);
+    }
+
+    @Override
+    public long balanceMinor(long accountId) {
+        final long balanceMinor = projection.get(accountId);
+        if (balanceMinor == BalanceProjection.UNKNOWN || feed.lagNanos() > maxStalenessNanos) {
+            sourceReads.increment();
+            return delegate.balanceMinor(accountId);
+        }
+        projectedReads.increment();
+        return balanceMinor;
+    }
+
+    //Read your writes: true when the projection has applied every change up to the version a write returned.
+    public boolean hasApplied(long version) {
+        return feed.consumedVersion() >= version;
+    }
+
+    //Balance from the delegate, for reads which can not wait for the projection.
+    public BigDecimal sourceBalance(long accountId) {
+        sourceReads.increment();
+        return delegate.balance(accountId);
+    }
+
+    @Override
+    public OperationResult changeMoney(long accountId, BigDecimal delta) {
+        final OperationResult result = delegate.changeMoney(accountId, delta);
+        if (result.isSuccess()) {
+            publish(accountId);
+        }
+        return result;
+    }
+
+    @Override
+    public OperationResult transferMoney(long accountFrom, long accountTo, BigDecimal amount) {
+        final OperationResult result = delegate.transferMoney(accountFrom, accountTo, amount);
+        if (result.isSuccess()) {
+            publish(accountFrom);
+            publish(accountTo);
+        }
+        return result;
+    }
+
+    @Override
+    public OperationResult changeMoneyMinor(long accountId, long delta) {
+        final OperationResult result = delegate.changeMoneyMinor(accountId, delta);
+        if (result.isSuccess()) {
+            publish(accountId);
+        }
+        return result;
+    }
+
+    @Override
+    public OperationResult transferMoneyMinor(long accountFrom, long accountTo, long amount) {
+        final OperationResult result = delegate.transferMoneyMinor(accountFrom, accountTo, amount);
+        if (result.isSuccess()) {
+            publish(accountFrom);
+            publish(accountTo);
+        }
+        return result;
+    }
+
+    @Override
+    public List<OperationResult> transferBatch(List<Transfer> transfers, boolean atomic) {
+        final List<OperationResult> results = delegate.transferBatch(transfers, atomic);
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i).isApplied()) {
+                publish(transfers.get(i).getAccountFrom());
+                publish(transfers.get(i).getAccountTo());
+            }
+        }
+        return results;
+    }
+
+    //A closed account is published as unknown, reads fall back to the delegate which does not have it.
+    @Override
+    public OperationResult closeAccount(long accountId) {
+        final OperationResult result = delegate.closeAccount(accountId);
+        if (result.isSuccess()) {
+            publish(accountId);
+        }
+        return result;
+    }
+
+    //Version of the latest change. A write which has returned has a version up to it.
+    public long publishedVersion() {
+        return feed.claimedVersion();
+    }
+
+    public long appliedVersion() {
+        return feed.consumedVersion();
+    }
+
+    //Age of the oldest change the projection has not applied yet.
+    public long lagNanos() {
+        return feed.lagNanos();
+    }
+
+    public long projectedReadCount() {
+        return projectedReads.sum();
+    }
+
+    public long sourceReadCount() {
+        return sourceReads.sum();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(projector);
+    }
+
+    //The version is claimed before the balance is read: a writer which reads earlier gets the lower version.
+    //A failed read publishes the account as unknown, the claimed version has to be filled.
+    private void publish(long accountId) {
+        final long version = feed.claim();
+        long balanceMinor = BalanceProjection.UNKNOWN;
+        try {
+            final BigDecimal balance = delegate.balance(accountId);
+            if (balance != null) {
+                balanceMinor = toMinor(balance);
+            }
+        } finally {
+            feed.fill(version, accountId, balanceMinor);
+        }
+    }
+
+    //Projected balances have the scale of MinorUnits, e.g. BigDecimal.ZERO is projected as 0.00. Balances with
+    //more fraction digits are read from the delegate.
+    private static long toMinor(BigDecimal balance) {
+        try {
+            return MinorUnits.toMinor(balance.setScale(MinorUnits.SCALE));
+        } catch (ArithmeticException e) {
+            return BalanceProjection.UNKNOWN;
+        }
+    }
+
+    private void project() {
+        final ChangeFeed.Consumer apply = (accountId, balanceMinor, version) -> projection.set(accountId, balanceMinor);
+        long parkNanos = MIN_IDLE_PARK_NANOS;
+        while (running) {
+            if (feed.drain(apply, DRAIN_BATCH) > 0) {
+                parkNanos = MIN_IDLE_PARK_NANOS;
+            } else {
+                LockSupport.parkNanos(parkNanos);
+                parkNanos = Math.min(parkNanos * 2, MAX_IDLE_PARK_NANOS);
+            }
+        }
+    }
+}
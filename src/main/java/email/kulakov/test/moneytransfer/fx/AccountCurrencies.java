@@ -0,0 +1,116 @@
+package email.kulakov.test.moneytransfer.fx;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongPredicate;
+
+//Currency code of every account, Currencies.BASE unless set. In memory codes are 16-bit fields, four per long,
+//in pages of AtomicLongArray: reads are lock-free and allocation-free. Writes are appended to the registry file
+//as [long firstId][int count][int code] records and forced before the codes become visible.
+//An account created right before a crash may miss its record and come back in the base currency, with no money on it.
+public class AccountCurrencies implements Closeable {
+
+    public static final String FILE_NAME = "currencies.bin";
+
+    private static final int RECORD_SIZE = Long.BYTES + 2 * Integer.BYTES;
+    private static final int CODES_PER_LONG = 4;
+    private static final int CODE_BITS = 16;
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private final FileChannel channel;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    //Replaced when grown, guarded by this.
+    private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+
+    //Records of accounts which do not exist, e.g. in a datastore which was not persisted, are dropped.
+    public AccountCurrencies(Path file, LongPredicate accountExists) throws IOException {
+        if (Files.exists(file)) {
+            compact(file, accountExists);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    public int get(long accountId) {
+        final AtomicLongArray[] current = pages;
+        final long index = accountId - 1;
+        final int page = (int) (index >>> PAGE_BITS);
+        if (index < 0 || page >= current.length || current[page] == null) {
+            return Currencies.BASE;
+        }
+        final int slot = (int) (index & (PAGE_SIZE - 1));
+        final long codes = current[page].get(slot / CODES_PER_LONG);
+        return (int) (codes >>> (slot % CODES_PER_LONG * CODE_BITS)) & 0xFFFF;
+    }
+
+    //Sets the code of accounts firstId..firstId + count - 1.
+    public synchronized void set(long firstId, int count, int code) throws IOException {
+        record.clear();
+        record.putLong(firstId).putInt(count).putInt(code).flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        channel.force(false);
+        apply(firstId, count, code);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    //Loads records of existing accounts and rewrites the file when some were dropped or the tail was torn.
+    private void compact(Path file, LongPredicate accountExists) throws IOException {
+        final byte[] content = Files.readAllBytes(file);
+        final ByteBuffer records = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        final ByteBuffer kept = ByteBuffer.allocate(content.length).order(ByteOrder.LITTLE_ENDIAN);
+        while (records.remaining() >= RECORD_SIZE) {
+            final long firstId = records.getLong();
+            final int count = records.getInt();
+            final int code = records.getInt();
+            if (accountExists.test(firstId + count - 1)) {
+                apply(firstId, count, code);
+                kept.putLong(firstId).putInt(count).putInt(code);
+            }
+        }
+        if (kept.position() != content.length) {
+            final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temporary, Arrays.copyOf(kept.array(), kept.position()));
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    //Guarded by this or called from the constructor.
+    private void apply(long firstId, int count, int code) {
+        for (long accountId = firstId; accountId < firstId + count; accountId++) {
+            final long index = accountId - 1;
+            final AtomicLongArray page = page((int) (index >>> PAGE_BITS));
+            final int slot = (int) (index & (PAGE_SIZE - 1));
+            final int shift = slot % CODES_PER_LONG * CODE_BITS;
+            //Writers hold the lock, readers see either the old or the new long.
+            final long codes = page.get(slot / CODES_PER_LONG);
+            page.set(slot / CODES_PER_LONG, (codes & ~(0xFFFFL << shift)) | ((long) code << shift));
+        }
+    }
+
+    private AtomicLongArray page(int page) {
+        AtomicLongArray[] current = pages;
+        if (page >= current.length) {
+            current = Arrays.copyOf(current, Math.max(page + 1, current.length * 2));
+        }
+        if (current[page] == null) {
+            current[page] = new AtomicLongArray(PAGE_SIZE / CODES_PER_LONG);
+        }
+        pages = current;
+        return current[page];
+    }
+}
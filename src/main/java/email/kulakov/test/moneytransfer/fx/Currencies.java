@@ -0,0 +1,39 @@
+package email.kulakov.test.moneytransfer.fx;
+
+//Currency codes are three letters A-Z packed into 15 bits, five bits per letter starting from 1, so 0 is free.
+public final class Currencies {
+
+    //Code of accounts created without a currency.
+    public static final int BASE = 0;
+
+    private static final int LETTER_BITS = 5;
+    private static final int LETTER_MASK = (1 << LETTER_BITS) - 1;
+
+    private Currencies() {
+    }
+
+    //Throws IllegalArgumentException when the code is not three letters A-Z.
+    public static int pack(String currency) {
+        if (currency == null || currency.length() != 3) {
+            throw new IllegalArgumentException("Currency code must have three letters: " + currency);
+        }
+        int code = 0;
+        for (int i = 0; i < currency.length(); i++) {
+            final char letter = currency.charAt(i);
+            if (letter < 'A' || letter > 'Z') {
+                throw new IllegalArgumentException("Currency code must have letters A-Z: " + currency);
+            }
+            code = (code << LETTER_BITS) | (letter - 'A' + 1);
+        }
+        return code;
+    }
+
+    public static String unpack(int code) {
+        final char[] letters = new char[3];
+        for (int i = letters.length - 1; i >= 0; i--) {
+            letters[i] = (char) ('A' - 1 + (code & LETTER_MASK));
+            code >>>= LETTER_BITS;
+        }
+        return new String(letters);
+    }
+}
@@ -0,0 +1,254 @@
+package email.kulakov.test.moneytransfer.fx;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.ForwardingDatastore;
+import email.kulakov.test.moneytransfer.db.MinorUnits;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+//Accounts have a currency, a transfer between currencies debits the amount in the sender currency and credits it
+//converted at the current rate. Like ConcurrentDatastore transfers, debit and credit are two separate operations
+//and the debit is refunded when the credit fails, the delegate journals and audits them as two changeMoney calls.
+//A debit which can not be refunded either is NotReverted and escalated to an operator (fx_unrefunded).
+//Rates are reloaded from the file when it changes, transfers read the current table with one volatile read.
+public class CurrencyDatastore extends ForwardingDatastore implements Closeable {
+
+    private final AccountCurrencies currencies;
+    private final Path ratesFile;
+    private final String baseCurrency;
+    private final ScheduledExecutorService scheduler;
+    private volatile RateTable rates;
+    //Guarded by this, the file is loaded again when either changes.
+    private FileTime ratesModified;
+    private long ratesSize = -1;
+
+    private final LongAdder conversions = new LongAdder();
+    private final AtomicLong reloadCount = new AtomicLong();
+    private final AtomicLong reloadFailureCount = new AtomicLong();
+    private final Queue<String> unrefunded = new ConcurrentLinkedQueue<>();
+
+    //Without the rates file only the base currency is known until the file appears.
+    //The file is checked every reloadMillis, never when it is not positive.
+    public CurrencyDatastore(Datastore delegate, AccountCurrencies currencies, Path ratesFile, String baseCurrency,
+                             long reloadMillis) throws IOException {
+        super(delegate);
+        this.currencies = currencies;
+        this.ratesFile = ratesFile;
+        this.baseCurrency = baseCurrency;
+        this.rates = RateTable.baseOnly(baseCurrency);
+        reloadRates();
+        if (reloadMillis > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "fx-rates-reloader");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::reloadQuietly, reloadMillis, reloadMillis, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    //Null when the chain of decorators has no CurrencyDatastore.
+    public static CurrencyDatastore find(Datastore datastore) {
+        Datastore current = datastore;
+        while (current instanceof ForwardingDatastore) {
+            if (current instanceof CurrencyDatastore) {
+                return (CurrencyDatastore) current;
+            }
+            current = ((ForwardingDatastore) current).getDelegate();
+        }
+        return null;
+    }
+
+    //Throws IllegalArgumentException when the currency has no rate.
+    public long createAccount(String currency) {
+        return createAccounts(1, currency);
+    }
+
+    public long createAccounts(int count, String currency) {
+        final int code = currencyCode(currency);
+        final long firstId = delegate.createAccounts(count);
+        if (code != Currencies.BASE) {
+            try {
+                currencies.set(firstId, count, code);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return firstId;
+    }
+
+    public String currency(long accountId) {
+        final int code = currencies.get(accountId);
+        return code == Currencies.BASE ? baseCurrency : Currencies.unpack(code);
+    }
+
+    @Override
+    public OperationResult transferMoney(long accountFrom, long accountTo, BigDecimal amount) {
+        final int fromCode = currencies.get(accountFrom);
+        final int toCode = currencies.get(accountTo);
+        if (fromCode == toCode) {
+            return delegate.transferMoney(accountFrom, accountTo, amount);
+        }
+        return convert(accountFrom, fromCode, accountTo, toCode, amount);
+    }
+
+    //Batches with transfers between currencies are applied entry by entry, atomic ones are refused: a converted
+    //transfer can not be compensated exactly by converting back.
+    @Override
+    public List<OperationResult> transferBatch(List<Transfer> transfers, boolean atomic) {
+        int crossCurrency = -1;
+        for (int i = 0; i < transfers.size() && crossCurrency < 0; i++) {
+            if (currencies.get(transfers.get(i).getAccountFrom()) != currencies.get(transfers.get(i).getAccountTo())) {
+                crossCurrency = i;
+            }
+        }
+        if (crossCurrency < 0) {
+            return delegate.transferBatch(transfers, atomic);
+        }
+        if (atomic) {
+            return Datastore.abortedExcept(transfers.size(), crossCurrency, OperationResult.WrongAmount);
+        }
+        final List<OperationResult> results = new ArrayList<>(transfers.size());
+        for (Transfer transfer : transfers) {
+            results.add(transferMoney(transfer.getAccountFrom(), transfer.getAccountTo(), transfer.getAmount()));
+        }
+        return results;
+    }
+
+    //Returns true when the file changed and the new rates are used. Currencies which are gone from the file can not
+    //be converted any more, accounts keep them.
+    public synchronized boolean reloadRates() throws IOException {
+        final FileTime modified;
+        final long size;
+        try {
+            modified = Files.getLastModifiedTime(ratesFile);
+            size = Files.size(ratesFile);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (modified.equals(ratesModified) && size == ratesSize) {
+            return false;
+        }
+        rates = RateTable.load(ratesFile, baseCurrency);
+        ratesModified = modified;
+        ratesSize = size;
+        reloadCount.incrementAndGet();
+        return true;
+    }
+
+    public RateTable rates() {
+        return rates;
+    }
+
+    public long conversionCount() {
+        return conversions.sum();
+    }
+
+    public long reloadCount() {
+        return reloadCount.get();
+    }
+
+    public long reloadFailureCount() {
+        return reloadFailureCount.get();
+    }
+
+    //Debits of transfers whose credit failed and whose refund failed too, an operator has to return the money.
+    public int unrefundedCount() {
+        return unrefunded.size();
+    }
+
+    //"accountId amount" of every debit which was not refunded.
+    public List<String> unrefundedDebits() {
+        return new ArrayList<>(unrefunded);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        currencies.close();
+    }
+
+    private OperationResult convert(long accountFrom, int fromCode, long accountTo, int toCode, BigDecimal amount) {
+        if (amount.signum() <= 0) {
+            return OperationResult.NoMoney;
+        }
+        final long amountMinor = MinorUnits.toMinor(amount);
+        if (amountMinor == MinorUnits.NOT_REPRESENTABLE) {
+            return OperationResult.WrongAmount;
+        }
+        final long credit = rates.convert(amountMinor, fromCode, toCode);
+        if (credit == MinorUnits.NOT_REPRESENTABLE || credit == 0) {
+            return OperationResult.WrongAmount;
+        }
+        if (delegate.balance(accountTo) == null) {
+            return OperationResult.NoAccount;
+        }
+        final OperationResult debitResult = delegate.changeMoney(accountFrom, amount.negate());
+        if (!debitResult.isSuccess()) {
+            return debitResult;
+        }
+        final OperationResult creditResult = delegate.changeMoney(accountTo, MinorUnits.toBigDecimal(credit));
+        if (!creditResult.isSuccess()) {
+            //The receiver overflowed or was closed meanwhile. The refund is a credit, a frozen sender takes it, but the
+            //sender may have been closed with the zero balance the debit left: then the debit stays and is escalated.
+            if (!refund(accountFrom, amount)) {
+                unrefunded.add(accountFrom + " " + amount.toPlainString());
+                return OperationResult.NotReverted;
+            }
+            return creditResult;
+        }
+        conversions.increment();
+        return OperationResult.Success;
+    }
+
+    //Busy is retried like the compensation of Datastore.transferBatch.
+    private boolean refund(long accountFrom, BigDecimal amount) {
+        OperationResult result = OperationResult.Busy;
+        for (int attempt = 0; attempt < 3 && result == OperationResult.Busy; attempt++) {
+            result = delegate.changeMoney(accountFrom, amount);
+        }
+        return result.isSuccess();
+    }
+
+    private int currencyCode(String currency) {
+        final int code = Currencies.pack(currency);
+        if (currency.equals(baseCurrency)) {
+            return Currencies.BASE;
+        }
+        if (!rates.contains(code)) {
+            throw new IllegalArgumentException("No rate for currency " + currency);
+        }
+        return code;
+    }
+
+    private void reloadQuietly() {
+        try {
+            reloadRates();
+        } catch (IOException | RuntimeException e) {
+            //Old rates stay in use, the next check tries the same file again.
+            reloadFailureCount.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package email.kulakov.test.moneytransfer.fx;
+
+import email.kulakov.test.moneytransfer.db.MinorUnits;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//Immutable exchange rates, replaced as a whole on reload. Cross rates of every pair are precomputed as fixed-point
+//longs with RATE_SCALE digits, so a conversion is two array reads and long arithmetic without allocation.
+//File has one "CODE rate" line per currency, rate is the value of one unit in the base currency. # starts a comment.
+//All currencies use MinorUnits.SCALE. Rates and amounts are rounded HALF_EVEN, so replays convert the same way.
+public final class RateTable {
+
+    public static final String FILE_NAME = "rates.txt";
+    public static final int RATE_SCALE = 8;
+
+    private static final long RATE_ONE = BigDecimal.ONE.movePointRight(RATE_SCALE).longValueExact();
+    private static final int CODE_SPACE = 1 << 15;
+
+    private final int baseCode;
+    //Packed code -> index + 1, 0 for unknown currencies.
+    private final short[] slots = new short[CODE_SPACE];
+    private final int[] codes;
+    //from * size + to.
+    private final long[] crossRates;
+
+    private RateTable(int baseCode, Map<Integer, BigDecimal> rates) {
+        this.baseCode = baseCode;
+        this.codes = new int[rates.size()];
+        this.crossRates = new long[rates.size() * rates.size()];
+        final BigDecimal[] values = new BigDecimal[rates.size()];
+        int index = 0;
+        for (Map.Entry<Integer, BigDecimal> rate : rates.entrySet()) {
+            codes[index] = rate.getKey();
+            values[index] = rate.getValue();
+            slots[rate.getKey()] = (short) (index + 1);
+            index++;
+        }
+        for (int from = 0; from < values.length; from++) {
+            for (int to = 0; to < values.length; to++) {
+                final long rate = values[from].divide(values[to], RATE_SCALE, RoundingMode.HALF_EVEN)
+                        .movePointRight(RATE_SCALE).longValueExact();
+                if (rate == 0) {
+                    throw new IllegalArgumentException("Cross rate of " + Currencies.unpack(codes[from]) + " to "
+                            + Currencies.unpack(codes[to]) + " is below " + RATE_SCALE + " digits");
+                }
+                crossRates[from * values.length + to] = rate;
+            }
+        }
+    }
+
+    public static RateTable baseOnly(String baseCurrency) {
+        return parse(Collections.emptyList(), baseCurrency);
+    }
+
+    public static RateTable load(Path file, String baseCurrency) throws IOException {
+        return parse(Files.readAllLines(file, StandardCharsets.US_ASCII), baseCurrency);
+    }
+
+    //Throws IllegalArgumentException on a malformed line, a non-positive rate or a base rate other than 1.
+    //ArithmeticException of a huge rate is also thrown as IllegalArgumentException.
+    public static RateTable parse(List<String> lines, String baseCurrency) {
+        final int baseCode = Currencies.pack(baseCurrency);
+        final Map<Integer, BigDecimal> rates = new LinkedHashMap<>();
+        rates.put(baseCode, BigDecimal.ONE);
+        for (String line : lines) {
+            final int comment = line.indexOf('#');
+            final String[] fields = (comment < 0 ? line : line.substring(0, comment)).trim().split("\\s+");
+            if (fields.length == 1 && fields[0].isEmpty()) {
+                continue;
+            }
+            if (fields.length != 2) {
+                throw new IllegalArgumentException("Malformed rate line: " + line);
+            }
+            final int code = Currencies.pack(fields[0]);
+            final BigDecimal rate = new BigDecimal(fields[1]);
+            if (rate.signum() <= 0 || (code == baseCode && rate.compareTo(BigDecimal.ONE) != 0)) {
+                throw new IllegalArgumentException("Wrong rate of " + fields[0] + ": " + fields[1]);
+            }
+            rates.put(code, rate);
+        }
+        try {
+            return new RateTable(baseCode, rates);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Rate is out of range", e);
+        }
+    }
+
+    public int baseCode() {
+        return baseCode;
+    }
+
+    public boolean contains(int code) {
+        return code == Currencies.BASE || slots[code] != 0;
+    }
+
+    public int size() {
+        return codes.length;
+    }
+
+    //Returns MinorUnits.NOT_REPRESENTABLE when a currency has no rate or the result is out of long range.
+    public long convert(long amountMinor, int fromCode, int toCode) {
+        final int from = slots[fromCode == Currencies.BASE ? baseCode : fromCode] - 1;
+        final int to = slots[toCode == Currencies.BASE ? baseCode : toCode] - 1;
+        if (from < 0 || to < 0) {
+            return MinorUnits.NOT_REPRESENTABLE;
+        }
+        final long rate = crossRates[from * codes.length + to];
+        if (amountMinor < 0 || amountMinor > Long.MAX_VALUE / rate) {
+            return convertExact(amountMinor, rate);
+        }
+        final long product = amountMinor * rate;
+        final long quotient = product / RATE_ONE;
+        final long remainder = product % RATE_ONE;
+        //HALF_EVEN of a non-negative value.
+        if (remainder * 2 > RATE_ONE || (remainder * 2 == RATE_ONE && (quotient & 1) != 0)) {
+            return quotient + 1;
+        }
+        return quotient;
+    }
+
+    private static long convertExact(long amountMinor, long rate) {
+        try {
+            return BigDecimal.valueOf(amountMinor).multiply(BigDecimal.valueOf(rate, RATE_SCALE))
+                    .setScale(0, RoundingMode.HALF_EVEN).longValueExact();
+        } catch (ArithmeticException e) {
+            return MinorUnits.NOT_REPRESENTABLE;
+        }
+    }
+}
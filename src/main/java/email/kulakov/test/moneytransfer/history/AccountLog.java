@@ -0,0 +1,83 @@
+package email.kulakov.test.moneytransfer.history;
+
+//Append-only entries of one account in chunks of primitive longs. Chunks start small and double up to
+//MAX_CHUNK_ENTRIES, so accounts with a few transactions stay cheap. Entries are never moved once written.
+//One writer at a time (appends are synchronized per account), readers are lock-free up to the published size.
+final class AccountLog {
+
+    static final int ENTRY_LONGS = 4;
+    private static final int TIMESTAMP = 0;
+    private static final int COUNTERPARTY = 1;
+    private static final int UNSCALED = 2;
+    private static final int SCALE = 3;
+
+    private static final int FIRST_CHUNK_BITS = 2;
+    private static final int MAX_CHUNK_BITS = 10;
+    private static final int MAX_CHUNK_ENTRIES = 1 << MAX_CHUNK_BITS;
+    //Entries in the growing chunks 4, 8, ..., 1024.
+    private static final int GROWING_ENTRIES = (1 << (MAX_CHUNK_BITS + 1)) - (1 << FIRST_CHUNK_BITS);
+    private static final int GROWING_CHUNKS = MAX_CHUNK_BITS - FIRST_CHUNK_BITS + 1;
+
+    private long[][] chunks = new long[1][];
+    private volatile int size;
+
+    synchronized void append(long timestampMillis, long counterparty, long unscaledAmount, int scale) {
+        final int index = size;
+        final int chunk = chunkOf(index);
+        if (chunk == chunks.length) {
+            final long[][] grown = new long[chunks.length * 2][];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            chunks = grown;
+        }
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new long[chunkEntries(chunk) * ENTRY_LONGS];
+        }
+        final long[] entries = chunks[chunk];
+        final int offset = offsetIn(chunk, index) * ENTRY_LONGS;
+        entries[offset + TIMESTAMP] = timestampMillis;
+        entries[offset + COUNTERPARTY] = counterparty;
+        entries[offset + UNSCALED] = unscaledAmount;
+        entries[offset + SCALE] = scale;
+        //Volatile write publishes the entry (and chunk arrays) to readers.
+        size = index + 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    //Reads entries [from, from + count). The caller reads size() first, that volatile read makes
+    //the entries below it and the chunk arrays holding them visible.
+    void read(int from, int count, EntryVisitor visitor) {
+        final long[][] published = chunks;
+        for (int index = from; index < from + count; index++) {
+            final int chunk = chunkOf(index);
+            final long[] entries = published[chunk];
+            final int offset = offsetIn(chunk, index) * ENTRY_LONGS;
+            visitor.visit(index, entries[offset + TIMESTAMP], entries[offset + COUNTERPARTY],
+                    entries[offset + UNSCALED], (int) entries[offset + SCALE]);
+        }
+    }
+
+    private static int chunkOf(int index) {
+        if (index < GROWING_ENTRIES) {
+            return 31 - Integer.numberOfLeadingZeros((index >> FIRST_CHUNK_BITS) + 1);
+        }
+        return GROWING_CHUNKS + (index - GROWING_ENTRIES) / MAX_CHUNK_ENTRIES;
+    }
+
+    private static int chunkEntries(int chunk) {
+        return chunk < GROWING_CHUNKS ? 1 << (chunk + FIRST_CHUNK_BITS) : MAX_CHUNK_ENTRIES;
+    }
+
+    private static int offsetIn(int chunk, int index) {
+        if (chunk < GROWING_CHUNKS) {
+            return index - ((1 << (chunk + FIRST_CHUNK_BITS)) - (1 << FIRST_CHUNK_BITS));
+        }
+        return (index - GROWING_ENTRIES) % MAX_CHUNK_ENTRIES;
+    }
+
+    interface EntryVisitor {
+        void visit(int index, long timestampMillis, long counterparty, long unscaledAmount, int scale);
+    }
+}
@@ -0,0 +1,70 @@
+package email.kulakov.test.moneytransfer.history;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.ForwardingDatastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+//Records successful balance changes in the transaction history after the delegate has applied them,
+//so the delegate locks are not held while appending. Appends of different accounts never contend.
+public class HistoryDatastore extends ForwardingDatastore {
+
+    private final TransactionHistory history;
+
+    public HistoryDatastore(Datastore delegate, TransactionHistory history) {
+        super(delegate);
+        this.history = history;
+    }
+
+    @Override
+    public OperationResult changeMoney(long accountId, BigDecimal delta) {
+        final OperationResult result = delegate.changeMoney(accountId, delta);
+        if (result.isSuccess() && delta.signum() != 0) {
+            history.record(accountId, TransactionHistory.NO_COUNTERPARTY, delta);
+        }
+        return result;
+    }
+
+    @Override
+    public OperationResult transferMoney(long accountFrom, long accountTo, BigDecimal amount) {
+        final OperationResult result = delegate.transferMoney(accountFrom, accountTo, amount);
+        if (result.isSuccess()) {
+            recordTransfer(accountFrom, accountTo, amount);
+        }
+        return result;
+    }
+
+    @Override
+    public List<OperationResult> transferBatch(List<Transfer> transfers, boolean atomic) {
+        final List<OperationResult> results = delegate.transferBatch(transfers, atomic);
+        for (int i = 0; i < transfers.size(); i++) {
+            if (results.get(i).isApplied()) {
+                final Transfer transfer = transfers.get(i);
+                recordTransfer(transfer.getAccountFrom(), transfer.getAccountTo(), transfer.getAmount());
+            }
+        }
+        return results;
+    }
+
+    //A write which returned just before the close may still record afterwards and leave a short log behind.
+    @Override
+    public OperationResult closeAccount(long accountId) {
+        final OperationResult result = delegate.closeAccount(accountId);
+        if (result.isSuccess()) {
+            history.remove(accountId);
+        }
+        return result;
+    }
+
+    private void recordTransfer(long accountFrom, long accountTo, BigDecimal amount) {
+        //Transfer to the same account succeeds without moving money.
+        if (accountFrom == accountTo) {
+            return;
+        }
+        history.record(accountFrom, accountTo, amount.negate());
+        history.record(accountTo, accountFrom, amount);
+    }
+}
@@ -0,0 +1,66 @@
+package email.kulakov.test.moneytransfer.history;
+
+import javax.inject.Singleton;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Append-only history of balance changes per account, kept in memory. Entry index in the account log is the cursor,
+//it never changes, so a reader can continue from the last cursor while new entries are appended.
+@Singleton
+public class TransactionHistory {
+
+    //Counterparty of changeMoney entries. Account ids start from 1 in all datastores.
+    public static final long NO_COUNTERPARTY = 0;
+
+    //Amounts with a longer unscaled value are rounded to fit a long. Real amounts are far below it.
+    private static final MathContext LONG_PRECISION = new MathContext(18, RoundingMode.HALF_EVEN);
+
+    private final Map<Long, AccountLog> logs = new ConcurrentHashMap<>();
+
+    //Amount is signed: negative for money leaving the account.
+    public void record(long accountId, long counterparty, BigDecimal amount) {
+        final BigDecimal value = amount.unscaledValue().bitLength() < Long.SIZE ? amount : amount.round(LONG_PRECISION);
+        log(accountId).append(System.currentTimeMillis(), counterparty, value.unscaledValue().longValue(), value.scale());
+    }
+
+    //Number of entries, also the cursor of the next entry.
+    public int size(long accountId) {
+        final AccountLog log = logs.get(accountId);
+        return log == null ? 0 : log.size();
+    }
+
+    //Visits at most limit entries starting from cursor, oldest first. Returns the number of visited entries.
+    public int read(long accountId, int cursor, int limit, EntryVisitor visitor) {
+        final AccountLog log = logs.get(accountId);
+        if (log == null || cursor < 0) {
+            return 0;
+        }
+        final int count = Math.min(limit, log.size() - cursor);
+        if (count <= 0) {
+            return 0;
+        }
+        log.read(cursor, count, (index, timestampMillis, counterparty, unscaledAmount, scale) ->
+                visitor.visit(index, timestampMillis, counterparty,
+                        new BigDecimal(BigInteger.valueOf(unscaledAmount), scale)));
+        return count;
+    }
+
+    //Drops the log of a closed account.
+    public void remove(long accountId) {
+        logs.remove(accountId);
+    }
+
+    private AccountLog log(long accountId) {
+        //get() first: computeIfAbsent locks the bin even when the log exists.
+        final AccountLog log = logs.get(accountId);
+        return log != null ? log : logs.computeIfAbsent(accountId, id -> new AccountLog());
+    }
+
+    public interface EntryVisitor {
+        void visit(int cursor, long timestampMillis, long counterparty, BigDecimal amount);
+    }
+}
@@ -0,0 +1,12 @@
+package email.kulakov.test.moneytransfer.journal;
+
+public enum DurabilityMode {
+    //No journal at all.
+    NONE,
+    //Every operation waits for its own force() (concurrent callers may still share one).
+    SYNC,
+    //Operations wait for a background force() which collects records for up to the max latency window.
+    GROUP,
+    //Operations do not wait, the journal is forced in the background every max latency window.
+    ASYNC
+}
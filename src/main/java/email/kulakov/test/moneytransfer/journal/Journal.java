@@ -0,0 +1,257 @@
+package email.kulakov.test.moneytransfer.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+//Append-only log on a single FileChannel. Each record is [int length][int crc32][payload], little-endian.
+//Records are collected in memory and written by whoever flushes first, so concurrent callers share one force().
+public final class Journal implements RecordLog, Closeable {
+
+    public static final String FILE_NAME = "journal.log";
+    static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    //Group commit does not wait for the latency window once this much is pending.
+    private static final int EAGER_FLUSH_SIZE = 256 * 1024;
+
+    private final FileChannel channel;
+    private final DurabilityMode mode;
+    private final long maxLatencyNanos;
+    private final CRC32 crc = new CRC32();
+    private final Object writeLock = new Object();
+    private final Thread flusher;
+
+    //Guarded by this.
+    private ByteBuffer pending = allocate(INITIAL_BUFFER_SIZE);
+    private long appendedSequence;
+    //File offset after the last appended record.
+    private long position;
+    private long pendingSince;
+    private boolean closed;
+    //Guarded by writeLock.
+    private ByteBuffer spare = allocate(INITIAL_BUFFER_SIZE);
+
+    private volatile long durableSequence;
+    private volatile IOException failure;
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicLong maxBatchSize = new AtomicLong();
+    private final AtomicLong fsyncNanos = new AtomicLong();
+
+    public Journal(Path file, DurabilityMode mode, long maxLatencyMicros) throws IOException {
+        if (mode == DurabilityMode.NONE) {
+            throw new IllegalArgumentException("Journal can not be opened in mode " + mode);
+        }
+        this.mode = mode;
+        this.maxLatencyNanos = TimeUnit.MICROSECONDS.toNanos(maxLatencyMicros);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        position = channel.size();
+        channel.position(position);
+        if (mode == DurabilityMode.SYNC) {
+            flusher = null;
+        } else {
+            flusher = new Thread(this::runFlusher, "journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    @Override
+    public synchronized long append(ByteBuffer payload) {
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        final int length = payload.remaining();
+        //Recovery would take a longer record for a torn tail and cut off everything after it.
+        if (length > JournalRecord.MAX_SIZE) {
+            throw new IllegalArgumentException("Journal record of " + length + " bytes exceeds " + JournalRecord.MAX_SIZE);
+        }
+        ensureCapacity(RECORD_HEADER_SIZE + length);
+        final boolean first = pending.position() == 0;
+        crc.reset();
+        crc.update(payload.duplicate());
+        pending.putInt(length).putInt((int) crc.getValue()).put(payload.duplicate());
+        position += RECORD_HEADER_SIZE + length;
+        if (first) {
+            pendingSince = System.nanoTime();
+            notifyAll();
+        } else if (pending.position() >= EAGER_FLUSH_SIZE) {
+            notifyAll();
+        }
+        return ++appendedSequence;
+    }
+
+    @Override
+    public void awaitDurable(long sequence) {
+        switch (mode) {
+            case SYNC:
+                if (durableSequence < sequence) {
+                    flushQuietly();
+                }
+                break;
+            case GROUP:
+                synchronized (this) {
+                    boolean interrupted = false;
+                    while (durableSequence < sequence && failure == null) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                break;
+            default:
+                return;
+        }
+        if (failure != null) {
+            throw new UncheckedIOException("Journal write failed", failure);
+        }
+    }
+
+    //Replay from this offset starts after every record appended so far, see JournalRecovery.
+    public synchronized long position() {
+        return position;
+    }
+
+    //Makes every appended record durable now, in any mode.
+    public void sync() throws IOException {
+        flush();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public DurabilityMode mode() {
+        return mode;
+    }
+
+    public long batchCount() {
+        return batchCount.get();
+    }
+
+    public long recordCount() {
+        return recordCount.get();
+    }
+
+    public long maxBatchSize() {
+        return maxBatchSize.get();
+    }
+
+    public long fsyncNanos() {
+        return fsyncNanos.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        channel.close();
+    }
+
+    private void flush() throws IOException {
+        synchronized (writeLock) {
+            final ByteBuffer batch;
+            final long batchSequence;
+            synchronized (this) {
+                if (pending.position() == 0) {
+                    return;
+                }
+                batch = pending;
+                pending = spare;
+                batchSequence = appendedSequence;
+            }
+            batch.flip();
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            final long start = System.nanoTime();
+            channel.force(false);
+            fsyncNanos.addAndGet(System.nanoTime() - start);
+
+            final long batchSize = batchSequence - durableSequence;
+            batchCount.incrementAndGet();
+            recordCount.addAndGet(batchSize);
+            maxBatchSize.accumulateAndGet(batchSize, Math::max);
+
+            batch.clear();
+            spare = batch;
+            synchronized (this) {
+                durableSequence = batchSequence;
+                notifyAll();
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            failure = e;
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void runFlusher() {
+        while (failure == null) {
+            synchronized (this) {
+                try {
+                    while (!closed && pending.position() == 0) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    //Let concurrent callers join the batch until the oldest record reaches the latency window.
+                    long remaining = pendingSince + maxLatencyNanos - System.nanoTime();
+                    while (!closed && remaining > 0 && pending.position() < EAGER_FLUSH_SIZE) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        remaining = pendingSince + maxLatencyNanos - System.nanoTime();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            flushQuietly();
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (pending.remaining() >= size) {
+            return;
+        }
+        final ByteBuffer grown = allocate(Math.max(pending.capacity() * 2, pending.position() + size));
+        pending.flip();
+        grown.put(pending);
+        pending = grown;
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,217 @@
+package email.kulakov.test.moneytransfer.journal;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+//Payload of one journal record: type byte followed by the operation arguments, little-endian.
+//Amounts are written as scale (int), length of unscaled value (short) and its two's-complement bytes.
+public final class JournalRecord {
+
+    //Largest payload, recovery and the replication stream read records up to it. Factories refuse to build larger ones.
+    public static final int MAX_SIZE = 64 * 1024;
+    //Longest unscaled amount, a batch of 1000 transfers with such amounts still fits MAX_SIZE.
+    public static final int MAX_AMOUNT_BYTES = 32;
+    private static final int BATCH_HEADER_SIZE = 1 + 1 + Integer.BYTES;
+    //Room for the entries of one batch record, see transferEntrySize.
+    public static final int MAX_BATCH_ENTRIES_SIZE = MAX_SIZE - BATCH_HEADER_SIZE;
+
+    public static final byte CREATE = 1;
+    public static final byte CHANGE = 2;
+    public static final byte TRANSFER = 3;
+    public static final byte BATCH = 4;
+    public static final byte CREATE_RANGE = 5;
+    public static final byte FREEZE = 6;
+    public static final byte UNFREEZE = 7;
+    public static final byte CLOSE = 8;
+
+    private JournalRecord() {
+    }
+
+    public static ByteBuffer create(long accountId) {
+        final ByteBuffer payload = allocate(1 + Long.BYTES);
+        payload.put(CREATE).putLong(accountId);
+        return flip(payload);
+    }
+
+    public static ByteBuffer createRange(long firstId, int count) {
+        final ByteBuffer payload = allocate(1 + Long.BYTES + Integer.BYTES);
+        payload.put(CREATE_RANGE).putLong(firstId).putInt(count);
+        return flip(payload);
+    }
+
+    public static ByteBuffer freeze(long accountId) {
+        return account(FREEZE, accountId);
+    }
+
+    public static ByteBuffer unfreeze(long accountId) {
+        return account(UNFREEZE, accountId);
+    }
+
+    public static ByteBuffer close(long accountId) {
+        return account(CLOSE, accountId);
+    }
+
+    public static ByteBuffer change(long accountId, BigDecimal delta) {
+        final byte[] unscaled = delta.unscaledValue().toByteArray();
+        final ByteBuffer payload = allocate(1 + Long.BYTES + amountSize(unscaled));
+        payload.put(CHANGE).putLong(accountId);
+        putAmount(payload, delta.scale(), unscaled);
+        return flip(payload);
+    }
+
+    public static ByteBuffer transfer(long accountFrom, long accountTo, BigDecimal amount) {
+        final byte[] unscaled = amount.unscaledValue().toByteArray();
+        final ByteBuffer payload = allocate(1 + 2 * Long.BYTES + amountSize(unscaled));
+        payload.put(TRANSFER).putLong(accountFrom).putLong(accountTo);
+        putAmount(payload, amount.scale(), unscaled);
+        return flip(payload);
+    }
+
+    //Successful entries of one transferBatch call, written as one record so a torn write never keeps half of it.
+    public static ByteBuffer batch(List<Transfer> transfers, boolean atomic) {
+        final List<byte[]> unscaled = new ArrayList<>(transfers.size());
+        int size = BATCH_HEADER_SIZE;
+        for (Transfer transfer : transfers) {
+            final byte[] bytes = transfer.getAmount().unscaledValue().toByteArray();
+            unscaled.add(bytes);
+            size += 2 * Long.BYTES + amountSize(bytes);
+        }
+        final ByteBuffer payload = allocate(size);
+        payload.put(BATCH).put((byte) (atomic ? 1 : 0)).putInt(transfers.size());
+        for (int i = 0; i < transfers.size(); i++) {
+            final Transfer transfer = transfers.get(i);
+            payload.putLong(transfer.getAccountFrom()).putLong(transfer.getAccountTo());
+            putAmount(payload, transfer.getAmount().scale(), unscaled.get(i));
+        }
+        return flip(payload);
+    }
+
+    //False for amounts too long to be journaled.
+    public static boolean isJournalable(BigDecimal amount) {
+        return amount.unscaledValue().bitLength() / Byte.SIZE + 1 <= MAX_AMOUNT_BYTES;
+    }
+
+    //Size of a batch record with the transfers, amounts have to be journalable.
+    public static int batchSize(List<Transfer> transfers) {
+        int size = BATCH_HEADER_SIZE;
+        for (Transfer transfer : transfers) {
+            size += transferEntrySize(transfer);
+        }
+        return size;
+    }
+
+    public static int transferEntrySize(Transfer transfer) {
+        return 2 * Long.BYTES + Integer.BYTES + Short.BYTES
+                + transfer.getAmount().unscaledValue().bitLength() / Byte.SIZE + 1;
+    }
+
+    //Re-executes the record. Only successful operations are journaled, so anything else means the target diverged.
+    public static void apply(ByteBuffer payload, Datastore datastore) {
+        final ByteBuffer record = payload.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final byte type = record.get();
+        switch (type) {
+            case CREATE: {
+                final long expectedId = record.getLong();
+                final long accountId = datastore.createAccount();
+                if (accountId != expectedId) {
+                    throw new IllegalStateException("Replayed account id " + accountId + ", expected " + expectedId);
+                }
+                break;
+            }
+            case CREATE_RANGE: {
+                final long expectedId = record.getLong();
+                final long firstId = datastore.createAccounts(record.getInt());
+                if (firstId != expectedId) {
+                    throw new IllegalStateException("Replayed account id " + firstId + ", expected " + expectedId);
+                }
+                break;
+            }
+            case FREEZE:
+                check(datastore.freezeAccount(record.getLong()), record);
+                break;
+            case UNFREEZE:
+                check(datastore.unfreezeAccount(record.getLong()), record);
+                break;
+            case CLOSE:
+                check(datastore.closeAccount(record.getLong()), record);
+                break;
+            case CHANGE: {
+                final long accountId = record.getLong();
+                check(datastore.changeMoney(accountId, getAmount(record)), record);
+                break;
+            }
+            case TRANSFER: {
+                final long accountFrom = record.getLong();
+                final long accountTo = record.getLong();
+                check(datastore.transferMoney(accountFrom, accountTo, getAmount(record)), record);
+                break;
+            }
+            case BATCH: {
+                final boolean atomic = record.get() != 0;
+                final int count = record.getInt();
+                final List<Transfer> transfers = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    final long accountFrom = record.getLong();
+                    final long accountTo = record.getLong();
+                    transfers.add(new Transfer(accountFrom, accountTo, getAmount(record)));
+                }
+                for (OperationResult result : datastore.transferBatch(transfers, atomic)) {
+                    check(result, record);
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown journal record type " + type);
+        }
+    }
+
+    private static ByteBuffer account(byte type, long accountId) {
+        final ByteBuffer payload = allocate(1 + Long.BYTES);
+        payload.put(type).putLong(accountId);
+        return flip(payload);
+    }
+
+    private static void check(OperationResult result, ByteBuffer record) {
+        if (!result.isSuccess()) {
+            throw new IllegalStateException("Replayed record of type " + record.get(0) + " failed with " + result);
+        }
+    }
+
+    private static BigDecimal getAmount(ByteBuffer record) {
+        final int scale = record.getInt();
+        final byte[] unscaled = new byte[record.getShort()];
+        record.get(unscaled);
+        return new BigDecimal(new BigInteger(unscaled), scale);
+    }
+
+    private static void putAmount(ByteBuffer payload, int scale, byte[] unscaled) {
+        payload.putInt(scale).putShort((short) unscaled.length).put(unscaled);
+    }
+
+    private static int amountSize(byte[] unscaled) {
+        if (unscaled.length > MAX_AMOUNT_BYTES) {
+            throw new IllegalArgumentException("Amount of " + unscaled.length + " bytes can not be journaled");
+        }
+        return Integer.BYTES + Short.BYTES + unscaled.length;
+    }
+
+    private static ByteBuffer allocate(int size) {
+        if (size > MAX_SIZE) {
+            throw new IllegalArgumentException("Journal record of " + size + " bytes exceeds " + MAX_SIZE);
+        }
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer flip(ByteBuffer payload) {
+        payload.flip();
+        return payload;
+    }
+}
@@ -0,0 +1,83 @@
+package email.kulakov.test.moneytransfer.journal;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+public final class JournalRecovery {
+
+    private JournalRecovery() {
+    }
+
+    //Replays the journal into an empty datastore and returns number of applied records.
+    //A torn or corrupted tail (crash during write) is cut off, so the journal can be appended again.
+    public static long replay(Path file, Datastore datastore) throws IOException {
+        return replay(file, datastore, 0);
+    }
+
+    //Replays records starting at the offset, e.g. Journal.position() saved with a snapshot.
+    public static long replay(Path file, Datastore datastore, long fromPosition) throws IOException {
+        if (!Files.exists(file)) {
+            if (fromPosition > 0) {
+                throw new IOException("Journal " + file + " is missing, records after offset " + fromPosition + " are lost");
+            }
+            return 0;
+        }
+        final CRC32 crc = new CRC32();
+        final ByteBuffer header = ByteBuffer.allocate(Journal.RECORD_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        final ByteBuffer payload = ByteBuffer.allocate(JournalRecord.MAX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long records = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < fromPosition) {
+                throw new IOException("Journal " + file + " is shorter than offset " + fromPosition);
+            }
+            long position = fromPosition;
+            while (true) {
+                header.clear();
+                if (!readFully(channel, header, position)) {
+                    break;
+                }
+                final int length = header.getInt(0);
+                final int checksum = header.getInt(Integer.BYTES);
+                if (length <= 0 || length > JournalRecord.MAX_SIZE) {
+                    break;
+                }
+                payload.clear().limit(length);
+                if (!readFully(channel, payload, position + Journal.RECORD_HEADER_SIZE)) {
+                    break;
+                }
+                payload.flip();
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                JournalRecord.apply(payload, datastore);
+                records++;
+                position += Journal.RECORD_HEADER_SIZE + length;
+            }
+            if (position < channel.size()) {
+                channel.truncate(position);
+                channel.force(false);
+            }
+        }
+        return records;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,246 @@
+package email.kulakov.test.moneytransfer.journal;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.ForwardingDatastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+//Journals every successful write and returns only when the journal durability mode allows.
+//Writes are applied and appended under striped account locks: operations touching the same account
+//are journaled in the order they were applied, so a sequential replay reproduces the same results.
+//An account is visible as soon as the delegate creates it, before its CREATE is appended: writes on accounts newer
+//than the last journaled CREATE also hold the create lock, so they are journaled after it.
+//The log is the Journal file or another RecordLog, e.g. the stream to a standby.
+public class JournalingDatastore extends ForwardingDatastore {
+
+    private static final int LOCK_STRIPES = 1024;
+
+    private final RecordLog journal;
+    private final Object createLock = new Object();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    //Highest account id whose CREATE is appended, written under createLock.
+    private volatile long lastCreatedId;
+
+    public JournalingDatastore(Datastore delegate, RecordLog journal) {
+        super(delegate);
+        this.journal = journal;
+        this.lastCreatedId = delegate.lastAccountId();
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    //Null when the log is not a Journal file.
+    public Journal getJournal() {
+        return journal instanceof Journal ? (Journal) journal : null;
+    }
+
+    public RecordLog getLog() {
+        return journal;
+    }
+
+    @Override
+    public long createAccount() {
+        final long accountId;
+        final long sequence;
+        //Replay creates accounts one by one, so ids have to be journaled in ascending order.
+        synchronized (createLock) {
+            accountId = delegate.createAccount();
+            sequence = journal.append(JournalRecord.create(accountId));
+            lastCreatedId = Math.max(lastCreatedId, accountId);
+        }
+        journal.awaitDurable(sequence);
+        return accountId;
+    }
+
+    @Override
+    public long createAccounts(int count) {
+        final long firstId;
+        final long sequence;
+        synchronized (createLock) {
+            firstId = delegate.createAccounts(count);
+            sequence = journal.append(JournalRecord.createRange(firstId, count));
+            lastCreatedId = Math.max(lastCreatedId, firstId + count - 1);
+        }
+        journal.awaitDurable(sequence);
+        return firstId;
+    }
+
+    @Override
+    public OperationResult changeMoney(long accountId, BigDecimal delta) {
+        if (!JournalRecord.isJournalable(delta)) {
+            return OperationResult.WrongAmount;
+        }
+        return journaled(accountId, JournalRecord.change(accountId, delta), () -> delegate.changeMoney(accountId, delta));
+    }
+
+    @Override
+    public OperationResult freezeAccount(long accountId) {
+        return journaled(accountId, JournalRecord.freeze(accountId), () -> delegate.freezeAccount(accountId));
+    }
+
+    @Override
+    public OperationResult unfreezeAccount(long accountId) {
+        return journaled(accountId, JournalRecord.unfreeze(accountId), () -> delegate.unfreezeAccount(accountId));
+    }
+
+    //Under the account lock like its writes: a replayed close never comes before the write which emptied the account.
+    @Override
+    public OperationResult closeAccount(long accountId) {
+        return journaled(accountId, JournalRecord.close(accountId), () -> delegate.closeAccount(accountId));
+    }
+
+    @Override
+    public OperationResult transferMoney(long accountFrom, long accountTo, BigDecimal amount) {
+        if (accountFrom == accountTo) {
+            //Does not change any balance.
+            return delegate.transferMoney(accountFrom, accountTo, amount);
+        }
+        if (!JournalRecord.isJournalable(amount)) {
+            return OperationResult.WrongAmount;
+        }
+        return journaled(accountFrom, accountTo, JournalRecord.transfer(accountFrom, accountTo, amount),
+                () -> delegate.transferMoney(accountFrom, accountTo, amount));
+    }
+
+    //A batch is journaled as one record of at most JournalRecord.MAX_SIZE: a longer non-atomic batch is applied in
+    //parts which fit, a longer atomic one is refused. Amounts too long to be journaled get WrongAmount.
+    @Override
+    public List<OperationResult> transferBatch(List<Transfer> transfers, boolean atomic) {
+        if (atomic) {
+            for (int i = 0; i < transfers.size(); i++) {
+                if (!JournalRecord.isJournalable(transfers.get(i).getAmount())) {
+                    return Datastore.abortedExcept(transfers.size(), i, OperationResult.WrongAmount);
+                }
+            }
+            if (JournalRecord.batchSize(transfers) > JournalRecord.MAX_SIZE) {
+                throw new IllegalArgumentException("Atomic batch of " + transfers.size()
+                        + " transfers does not fit one journal record");
+            }
+            return transferRecordBatch(transfers, true);
+        }
+        final List<OperationResult> results = new ArrayList<>(transfers.size());
+        int partStart = 0;
+        int partSize = 0;
+        for (int i = 0; i < transfers.size(); i++) {
+            final Transfer transfer = transfers.get(i);
+            final boolean journalable = JournalRecord.isJournalable(transfer.getAmount());
+            final int entrySize = journalable ? JournalRecord.transferEntrySize(transfer) : 0;
+            if (!journalable || partSize + entrySize > JournalRecord.MAX_BATCH_ENTRIES_SIZE) {
+                if (partStart < i) {
+                    results.addAll(transferRecordBatch(transfers.subList(partStart, i), false));
+                }
+                partStart = i;
+                partSize = 0;
+            }
+            if (!journalable) {
+                results.add(OperationResult.WrongAmount);
+                partStart = i + 1;
+            } else {
+                partSize += entrySize;
+            }
+        }
+        if (partStart < transfers.size()) {
+            results.addAll(transferRecordBatch(transfers.subList(partStart, transfers.size()), false));
+        }
+        return results;
+    }
+
+    private List<OperationResult> transferRecordBatch(List<Transfer> transfers, boolean atomic) {
+        final TreeSet<Integer> stripes = new TreeSet<>();
+        for (Transfer transfer : transfers) {
+            stripes.add(stripe(transfer.getAccountFrom()));
+            stripes.add(stripe(transfer.getAccountTo()));
+        }
+        final int[] lockOrder = new int[stripes.size()];
+        int index = 0;
+        for (int stripe : stripes) {
+            lockOrder[index++] = stripe;
+        }
+        long maxAccountId = 0;
+        for (Transfer transfer : transfers) {
+            maxAccountId = Math.max(maxAccountId, Math.max(transfer.getAccountFrom(), transfer.getAccountTo()));
+        }
+        final long[] sequence = new long[1];
+        final List<OperationResult> results = afterCreate(maxAccountId, () -> lockAll(lockOrder, 0, () -> {
+            final List<OperationResult> batchResults = delegate.transferBatch(transfers, atomic);
+            final List<Transfer> applied = new ArrayList<>(transfers.size());
+            //An atomic batch which was not undone is replayed entry by entry, only its applied entries are journaled.
+            boolean reverted = true;
+            for (int i = 0; i < transfers.size(); i++) {
+                final Transfer transfer = transfers.get(i);
+                if (batchResults.get(i).isApplied() && transfer.getAccountFrom() != transfer.getAccountTo()) {
+                    applied.add(transfer);
+                }
+                reverted &= batchResults.get(i) != OperationResult.NotReverted;
+            }
+            if (!applied.isEmpty()) {
+                sequence[0] = journal.append(JournalRecord.batch(applied, atomic && reverted));
+            }
+            return batchResults;
+        }));
+        if (sequence[0] > 0) {
+            journal.awaitDurable(sequence[0]);
+        }
+        return results;
+    }
+
+    private OperationResult journaled(long accountId, ByteBuffer record, Supplier<OperationResult> operation) {
+        return journaled(accountId, accountId, record, operation);
+    }
+
+    private OperationResult journaled(long accountFrom, long accountTo, ByteBuffer record,
+                                      Supplier<OperationResult> operation) {
+        //Ordered by stripe like transferBatch, id order would lock the stripes of 1->1026 and 1025->2 in opposite order.
+        final Object firstLock = locks[Math.min(stripe(accountFrom), stripe(accountTo))];
+        final Object secondLock = locks[Math.max(stripe(accountFrom), stripe(accountTo))];
+        final long[] sequence = new long[1];
+        final OperationResult result = afterCreate(Math.max(accountFrom, accountTo), () -> {
+            synchronized (firstLock) {
+                synchronized (secondLock) {
+                    final OperationResult applied = operation.get();
+                    if (applied.isSuccess()) {
+                        sequence[0] = journal.append(record);
+                    }
+                    return applied;
+                }
+            }
+        });
+        if (result.isSuccess()) {
+            journal.awaitDurable(sequence[0]);
+        }
+        return result;
+    }
+
+    //Runs the write under createLock when an account of it may be created but not journaled yet. Ids are given out
+    //in ascending order, so it happens only for writes racing with the create of their account.
+    private <T> T afterCreate(long maxAccountId, Supplier<T> write) {
+        if (maxAccountId <= lastCreatedId) {
+            return write.get();
+        }
+        synchronized (createLock) {
+            return write.get();
+        }
+    }
+
+    private List<OperationResult> lockAll(int[] lockOrder, int index, Supplier<List<OperationResult>> action) {
+        if (index == lockOrder.length) {
+            return action.get();
+        }
+        synchronized (locks[lockOrder[index]]) {
+            return lockAll(lockOrder, index + 1, action);
+        }
+    }
+
+    private static int stripe(long accountId) {
+        return (int) (accountId & (LOCK_STRIPES - 1));
+    }
+
+}
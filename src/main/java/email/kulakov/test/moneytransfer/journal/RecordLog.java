@@ -0,0 +1,13 @@
+package email.kulakov.test.moneytransfer.journal;
+
+import java.nio.ByteBuffer;
+
+//Ordered log of JournalRecord payloads written by JournalingDatastore: the Journal file or a replication stream.
+public interface RecordLog {
+
+    //Returns sequence number of the record for awaitDurable.
+    long append(ByteBuffer payload);
+
+    //Returns when the record is as durable as the log promises.
+    void awaitDurable(long sequence);
+}
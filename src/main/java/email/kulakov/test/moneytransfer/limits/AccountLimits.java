@@ -0,0 +1,165 @@
+package email.kulakov.test.moneytransfer.limits;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongPredicate;
+
+//Spending limits set for single accounts, other accounts use the defaults of SpendingLimitDatastore.
+//Both limits of an account are packed into one long in pages of AtomicLongArray, so a reader never sees half of
+//an update: [daily limit + 1, 47 bits][debits per minute + 1, 16 bits], 0 is "default", all ones is "no limit".
+//Writes are appended to the file as [long accountId][long packed] records and forced before they become visible.
+public class AccountLimits implements Closeable {
+
+    public static final String FILE_NAME = "limits.bin";
+    public static final long MAX_DAILY_MINOR = (1L << 47) - 3;
+    public static final int MAX_DEBITS_PER_MINUTE = 0xFFFF - 2;
+
+    static final long DEFAULT = 0;
+
+    private static final int RECORD_SIZE = 2 * Long.BYTES;
+    private static final int PER_MINUTE_BITS = 16;
+    private static final long PER_MINUTE_MASK = (1L << PER_MINUTE_BITS) - 1;
+    private static final long DAILY_MASK = (1L << 47) - 1;
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private final FileChannel channel;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    //Replaced when grown, guarded by this.
+    private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+
+    //Records of accounts which do not exist, e.g. in a datastore which was not persisted, are dropped.
+    public AccountLimits(Path file, LongPredicate accountExists) throws IOException {
+        if (Files.exists(file)) {
+            compact(file, accountExists);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    //Packed limits of the account, DEFAULT when none were set.
+    long get(long accountId) {
+        final AtomicLongArray[] current = pages;
+        final long index = accountId - 1;
+        final int page = (int) (index >>> PAGE_BITS);
+        if (index < 0 || page >= current.length || current[page] == null) {
+            return DEFAULT;
+        }
+        return current[page].get((int) (index & (PAGE_SIZE - 1)));
+    }
+
+    //Limits are at most MAX_DAILY_MINOR and MAX_DEBITS_PER_MINUTE, or the DEFAULT_LIMIT and NO_*_LIMIT constants
+    //of SpendingLimitDatastore. Throws IllegalArgumentException otherwise.
+    public synchronized void set(long accountId, long dailyLimitMinor, int debitsPerMinute) throws IOException {
+        final long packed = pack(dailyLimitMinor, debitsPerMinute);
+        record.clear();
+        record.putLong(accountId).putLong(packed).flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        channel.force(false);
+        apply(accountId, packed);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    static long dailyLimitMinor(long packed) {
+        final long daily = packed >>> PER_MINUTE_BITS;
+        if (daily == 0) {
+            return SpendingLimitDatastore.DEFAULT_LIMIT;
+        }
+        return daily == DAILY_MASK ? SpendingLimitDatastore.NO_DAILY_LIMIT : daily - 1;
+    }
+
+    static int debitsPerMinute(long packed) {
+        final long perMinute = packed & PER_MINUTE_MASK;
+        if (perMinute == 0) {
+            return SpendingLimitDatastore.DEFAULT_LIMIT;
+        }
+        return perMinute == PER_MINUTE_MASK ? SpendingLimitDatastore.NO_VELOCITY_LIMIT : (int) perMinute - 1;
+    }
+
+    private static long pack(long dailyLimitMinor, int debitsPerMinute) {
+        final long daily;
+        if (dailyLimitMinor == SpendingLimitDatastore.DEFAULT_LIMIT) {
+            daily = 0;
+        } else if (dailyLimitMinor == SpendingLimitDatastore.NO_DAILY_LIMIT) {
+            daily = DAILY_MASK;
+        } else if (dailyLimitMinor >= 0 && dailyLimitMinor <= MAX_DAILY_MINOR) {
+            daily = dailyLimitMinor + 1;
+        } else {
+            throw new IllegalArgumentException("Wrong daily limit " + dailyLimitMinor);
+        }
+        final long perMinute;
+        if (debitsPerMinute == SpendingLimitDatastore.DEFAULT_LIMIT) {
+            perMinute = 0;
+        } else if (debitsPerMinute == SpendingLimitDatastore.NO_VELOCITY_LIMIT) {
+            perMinute = PER_MINUTE_MASK;
+        } else if (debitsPerMinute >= 0 && debitsPerMinute <= MAX_DEBITS_PER_MINUTE) {
+            perMinute = debitsPerMinute + 1;
+        } else {
+            throw new IllegalArgumentException("Wrong limit of debits per minute " + debitsPerMinute);
+        }
+        return daily << PER_MINUTE_BITS | perMinute;
+    }
+
+    //Loads records of existing accounts and rewrites the file with the latest record of each.
+    private void compact(Path file, LongPredicate accountExists) throws IOException {
+        final byte[] content = Files.readAllBytes(file);
+        final ByteBuffer records = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        long maxAccountId = 0;
+        boolean rewrite = content.length % RECORD_SIZE != 0;
+        while (records.remaining() >= RECORD_SIZE) {
+            final long accountId = records.getLong();
+            final long packed = records.getLong();
+            if (accountId > 0 && accountExists.test(accountId)) {
+                rewrite |= get(accountId) != DEFAULT;
+                apply(accountId, packed);
+                maxAccountId = Math.max(maxAccountId, accountId);
+            } else {
+                rewrite = true;
+            }
+        }
+        if (rewrite) {
+            final ByteBuffer kept = ByteBuffer.allocate(content.length).order(ByteOrder.LITTLE_ENDIAN);
+            for (long accountId = 1; accountId <= maxAccountId; accountId++) {
+                final long packed = get(accountId);
+                if (packed != DEFAULT) {
+                    kept.putLong(accountId).putLong(packed);
+                }
+            }
+            final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temporary, Arrays.copyOf(kept.array(), kept.position()));
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    //Guarded by this or called from the constructor.
+    private void apply(long accountId, long packed) {
+        final long index = accountId - 1;
+        page((int) (index >>> PAGE_BITS)).set((int) (index & (PAGE_SIZE - 1)), packed);
+    }
+
+    private AtomicLongArray page(int page) {
+        AtomicLongArray[] current = pages;
+        if (page >= current.length) {
+            current = Arrays.copyOf(current, Math.max(page + 1, current.length * 2));
+        }
+        if (current[page] == null) {
+            current[page] = new AtomicLongArray(PAGE_SIZE);
+        }
+        pages = current;
+        return current[page];
+    }
+}
@@ -0,0 +1,233 @@
+package email.kulakov.test.moneytransfer.limits;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.ForwardingDatastore;
+import email.kulakov.test.moneytransfer.db.MinorUnits;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+//Daily amount and per-minute count limits on money leaving an account: transferMoney, negative changeMoney and
+//transfers of batches. A debit reserves its amount in the sliding windows of the sender first and is refused with
+//LimitExceeded when it does not fit, then it is applied by the delegate and the reservation is taken back if the
+//debit fails. Concurrent debits can never pass a limit together; one may be refused because of a reservation which
+//is taken back right after. Limits are in the minor units of the account currency.
+//Windows are kept in memory only, they start empty after a restart.
+public class SpendingLimitDatastore extends ForwardingDatastore implements Closeable {
+
+    //Limit of an account which uses the default one.
+    public static final int DEFAULT_LIMIT = -1;
+    public static final long NO_DAILY_LIMIT = Long.MAX_VALUE;
+    public static final int NO_VELOCITY_LIMIT = Integer.MAX_VALUE;
+
+    private static final long NOT_RESERVED = -1;
+
+    private final AccountLimits limits;
+    private final SpendingWindows windows;
+    private final long defaultDailyLimitMinor;
+    private final int defaultDebitsPerMinute;
+    private final LongSupplier clock;
+
+    private final LongAdder dailyRefusals = new LongAdder();
+    private final LongAdder velocityRefusals = new LongAdder();
+
+    public SpendingLimitDatastore(Datastore delegate, AccountLimits limits, long defaultDailyLimitMinor,
+                                  int defaultDebitsPerMinute) {
+        this(delegate, limits, defaultDailyLimitMinor, defaultDebitsPerMinute, System::currentTimeMillis);
+    }
+
+    SpendingLimitDatastore(Datastore delegate, AccountLimits limits, long defaultDailyLimitMinor,
+                           int defaultDebitsPerMinute, LongSupplier clock) {
+        super(delegate);
+        this.limits = limits;
+        this.windows = new SpendingWindows(accountId -> delegate.balance(accountId) != null);
+        this.defaultDailyLimitMinor = defaultDailyLimitMinor;
+        this.defaultDebitsPerMinute = defaultDebitsPerMinute;
+        this.clock = clock;
+    }
+
+    //Null when the chain of decorators has no SpendingLimitDatastore.
+    public static SpendingLimitDatastore find(Datastore datastore) {
+        Datastore current = datastore;
+        while (current instanceof ForwardingDatastore) {
+            if (current instanceof SpendingLimitDatastore) {
+                return (SpendingLimitDatastore) current;
+            }
+            current = ((ForwardingDatastore) current).getDelegate();
+        }
+        return null;
+    }
+
+    @Override
+    public OperationResult changeMoney(long accountId, BigDecimal delta) {
+        if (delta.signum() >= 0) {
+            return delegate.changeMoney(accountId, delta);
+        }
+        final long now = clock.getAsLong();
+        final long amountMinor = debitMinor(delta.negate());
+        final OperationResult refused = reserve(accountId, amountMinor, now);
+        if (refused != null) {
+            return refused;
+        }
+        final OperationResult result = delegate.changeMoney(accountId, delta);
+        if (!result.isSuccess()) {
+            windows.release(accountId, amountMinor, now);
+        }
+        return result;
+    }
+
+    //Transfers to the same account move no money and are not limited.
+    @Override
+    public OperationResult transferMoney(long accountFrom, long accountTo, BigDecimal amount) {
+        if (amount.signum() <= 0 || accountFrom == accountTo) {
+            return delegate.transferMoney(accountFrom, accountTo, amount);
+        }
+        final long now = clock.getAsLong();
+        final long amountMinor = debitMinor(amount);
+        final OperationResult refused = reserve(accountFrom, amountMinor, now);
+        if (refused != null) {
+            return refused;
+        }
+        final OperationResult result = delegate.transferMoney(accountFrom, accountTo, amount);
+        if (!result.isApplied()) {
+            windows.release(accountFrom, amountMinor, now);
+        }
+        return result;
+    }
+
+    //An atomic batch is refused as a whole when one entry is over a limit. In other batches only such entries are
+    //refused, the rest is passed to the delegate.
+    @Override
+    public List<OperationResult> transferBatch(List<Transfer> transfers, boolean atomic) {
+        final long now = clock.getAsLong();
+        final long[] reserved = new long[transfers.size()];
+        final OperationResult[] refused = new OperationResult[transfers.size()];
+        int refusedCount = 0;
+        for (int i = 0; i < transfers.size(); i++) {
+            final Transfer transfer = transfers.get(i);
+            reserved[i] = NOT_RESERVED;
+            if (transfer.getAmount().signum() <= 0 || transfer.getAccountFrom() == transfer.getAccountTo()) {
+                continue;
+            }
+            final long amountMinor = debitMinor(transfer.getAmount());
+            refused[i] = reserve(transfer.getAccountFrom(), amountMinor, now);
+            if (refused[i] == null) {
+                reserved[i] = amountMinor;
+            } else if (atomic) {
+                releaseAll(transfers, reserved, now);
+                return Datastore.abortedExcept(transfers.size(), i, refused[i]);
+            } else {
+                refusedCount++;
+            }
+        }
+        final List<OperationResult> results;
+        if (refusedCount == 0) {
+            results = delegate.transferBatch(transfers, atomic);
+        } else {
+            final List<Transfer> passed = new ArrayList<>(transfers.size() - refusedCount);
+            for (int i = 0; i < transfers.size(); i++) {
+                if (refused[i] == null) {
+                    passed.add(transfers.get(i));
+                }
+            }
+            final List<OperationResult> passedResults = passed.isEmpty()
+                    ? new ArrayList<>() : delegate.transferBatch(passed, false);
+            results = new ArrayList<>(Arrays.asList(refused));
+            for (int i = 0, next = 0; i < transfers.size(); i++) {
+                if (refused[i] == null) {
+                    results.set(i, passedResults.get(next++));
+                }
+            }
+        }
+        for (int i = 0; i < transfers.size(); i++) {
+            if (reserved[i] != NOT_RESERVED && !results.get(i).isApplied()) {
+                windows.release(transfers.get(i).getAccountFrom(), reserved[i], now);
+            }
+        }
+        return results;
+    }
+
+    //Limits of the account, DEFAULT_LIMIT is resolved to the default. See AccountLimits.set for the values.
+    public void setLimits(long accountId, long dailyLimitMinor, int debitsPerMinute) throws IOException {
+        limits.set(accountId, dailyLimitMinor, debitsPerMinute);
+    }
+
+    public long dailyLimitMinor(long accountId) {
+        final long limit = AccountLimits.dailyLimitMinor(limits.get(accountId));
+        return limit == DEFAULT_LIMIT ? defaultDailyLimitMinor : limit;
+    }
+
+    public int debitsPerMinute(long accountId) {
+        final int limit = AccountLimits.debitsPerMinute(limits.get(accountId));
+        return limit == DEFAULT_LIMIT ? defaultDebitsPerMinute : limit;
+    }
+
+    public long spentTodayMinor(long accountId) {
+        return windows.spentToday(accountId, clock.getAsLong());
+    }
+
+    public int debitsLastMinute(long accountId) {
+        return windows.debitsLastMinute(accountId, clock.getAsLong());
+    }
+
+    public long dailyRefusalCount() {
+        return dailyRefusals.sum();
+    }
+
+    public long velocityRefusalCount() {
+        return velocityRefusals.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        limits.close();
+    }
+
+    //Null when the debit is reserved.
+    private OperationResult reserve(long accountId, long amountMinor, long now) {
+        final long packed = limits.get(accountId);
+        final long dailyLimit = AccountLimits.dailyLimitMinor(packed);
+        final int perMinute = AccountLimits.debitsPerMinute(packed);
+        switch (windows.tryReserve(accountId, amountMinor,
+                dailyLimit == DEFAULT_LIMIT ? defaultDailyLimitMinor : dailyLimit,
+                perMinute == DEFAULT_LIMIT ? defaultDebitsPerMinute : perMinute, now)) {
+            case SpendingWindows.WITHIN_LIMITS:
+                return null;
+            case SpendingWindows.DAILY_LIMIT:
+                dailyRefusals.increment();
+                return OperationResult.LimitExceeded;
+            case SpendingWindows.VELOCITY_LIMIT:
+                velocityRefusals.increment();
+                return OperationResult.LimitExceeded;
+            default:
+                return OperationResult.NoAccount;
+        }
+    }
+
+    private void releaseAll(List<Transfer> transfers, long[] reserved, long now) {
+        for (int i = 0; i < transfers.size(); i++) {
+            if (reserved[i] != NOT_RESERVED) {
+                windows.release(transfers.get(i).getAccountFrom(), reserved[i], now);
+            }
+        }
+    }
+
+    //Amounts with more fraction digits count rounded up, the delegate decides whether it accepts them.
+    private static long debitMinor(BigDecimal amount) {
+        final long minor = MinorUnits.toMinor(amount);
+        if (minor != MinorUnits.NOT_REPRESENTABLE) {
+            return minor;
+        }
+        final long rounded = MinorUnits.toMinor(amount.setScale(MinorUnits.SCALE, RoundingMode.CEILING));
+        return rounded == MinorUnits.NOT_REPRESENTABLE ? Long.MAX_VALUE : rounded;
+    }
+}
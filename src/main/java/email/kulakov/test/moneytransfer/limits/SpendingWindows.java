@@ -0,0 +1,194 @@
+package email.kulakov.test.moneytransfer.limits;
+
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+//Outgoing money over the last day and debits over the last minute of every account, as sliding windows of buckets.
+//One account takes 8 longs, one cache line, in pages allocated when an account of the page debits first:
+//[bucket numbers: day << 32 | minute][4 x 16-bit minute counts][6 day amounts in minor units].
+//A window of K + 1 buckets always covers the last K buckets' worth of time, so nothing spent inside the window is
+//missed; spending from up to one bucket (4.8 hours, 20 seconds) before the window may still count.
+//Accounts are guarded by striped locks: a reservation is checked and added with one uncontended lock and no allocation.
+final class SpendingWindows {
+
+    static final int WITHIN_LIMITS = 0;
+    static final int DAILY_LIMIT = 1;
+    static final int VELOCITY_LIMIT = 2;
+    static final int NO_ACCOUNT = 3;
+
+    private static final int DAY_BUCKETS = 6;
+    private static final long DAY_BUCKET_MILLIS = 24 * 60 * 60 * 1000L / (DAY_BUCKETS - 1);
+    private static final int MINUTE_BUCKETS = 4;
+    private static final long MINUTE_BUCKET_MILLIS = 60 * 1000L / (MINUTE_BUCKETS - 1);
+    private static final int COUNT_BITS = 16;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private static final int STAMP = 0;
+    private static final int COUNTS = 1;
+    private static final int AMOUNTS = 2;
+    private static final int FIELDS = 8;
+    private static final int PAGE_BITS = 13;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int LOCK_STRIPES = 1024;
+
+    private final LongPredicate accountExists;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    //Replaced when grown, guarded by this. Fields of an account are guarded by its stripe lock.
+    private volatile long[][] pages = new long[0][];
+
+    //Pages are allocated only for accounts which exist, so unknown ids can not grow the tables.
+    SpendingWindows(LongPredicate accountExists) {
+        this.accountExists = accountExists;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    //Adds one debit of the amount when it stays within both limits, otherwise changes nothing and returns the limit.
+    int tryReserve(long accountId, long amountMinor, long dailyLimitMinor, int debitsPerMinute, long nowMillis) {
+        final long[] page = page(accountId);
+        if (page == null) {
+            return NO_ACCOUNT;
+        }
+        final int base = base(accountId);
+        synchronized (lock(accountId)) {
+            advance(page, base, nowMillis);
+            if (minuteCount(page, base) >= debitsPerMinute) {
+                return VELOCITY_LIMIT;
+            }
+            if (amountMinor > dailyLimitMinor - dayAmount(page, base)) {
+                return DAILY_LIMIT;
+            }
+            final int day = AMOUNTS + (int) (nowMillis / DAY_BUCKET_MILLIS % DAY_BUCKETS);
+            page[base + day] = saturatedAdd(page[base + day], amountMinor);
+            final int shift = (int) (nowMillis / MINUTE_BUCKET_MILLIS % MINUTE_BUCKETS) * COUNT_BITS;
+            if ((page[base + COUNTS] >>> shift & COUNT_MASK) < COUNT_MASK) {
+                page[base + COUNTS] += 1L << shift;
+            }
+            return WITHIN_LIMITS;
+        }
+    }
+
+    //Takes back a reservation made at reservedMillis whose debit failed. Buckets which have left the windows are kept.
+    void release(long accountId, long amountMinor, long reservedMillis) {
+        final long[] page = page(accountId);
+        if (page == null) {
+            return;
+        }
+        final int base = base(accountId);
+        synchronized (lock(accountId)) {
+            final long stamp = page[base + STAMP];
+            final long day = reservedMillis / DAY_BUCKET_MILLIS;
+            if ((stamp >>> 32) - day < DAY_BUCKETS) {
+                final int field = base + AMOUNTS + (int) (day % DAY_BUCKETS);
+                page[field] = Math.max(0, page[field] - amountMinor);
+            }
+            final long minute = reservedMillis / MINUTE_BUCKET_MILLIS;
+            if ((stamp & 0xFFFF_FFFFL) - minute < MINUTE_BUCKETS) {
+                final int shift = (int) (minute % MINUTE_BUCKETS) * COUNT_BITS;
+                if ((page[base + COUNTS] >>> shift & COUNT_MASK) > 0) {
+                    page[base + COUNTS] -= 1L << shift;
+                }
+            }
+        }
+    }
+
+    long spentToday(long accountId, long nowMillis) {
+        final long[] page = page(accountId);
+        if (page == null) {
+            return 0;
+        }
+        final int base = base(accountId);
+        synchronized (lock(accountId)) {
+            advance(page, base, nowMillis);
+            return dayAmount(page, base);
+        }
+    }
+
+    int debitsLastMinute(long accountId, long nowMillis) {
+        final long[] page = page(accountId);
+        if (page == null) {
+            return 0;
+        }
+        final int base = base(accountId);
+        synchronized (lock(accountId)) {
+            advance(page, base, nowMillis);
+            return minuteCount(page, base);
+        }
+    }
+
+    //Clears buckets which have left the windows since the last call. A clock going back keeps the newer buckets.
+    private static void advance(long[] page, int base, long nowMillis) {
+        final long stamp = page[base + STAMP];
+        final long lastDay = stamp >>> 32;
+        final long lastMinute = stamp & 0xFFFF_FFFFL;
+        final long day = Math.max(lastDay, nowMillis / DAY_BUCKET_MILLIS);
+        final long minute = Math.max(lastMinute, nowMillis / MINUTE_BUCKET_MILLIS);
+        if (day == lastDay && minute == lastMinute) {
+            return;
+        }
+        for (long bucket = Math.max(lastDay + 1, day - DAY_BUCKETS + 1); bucket <= day; bucket++) {
+            page[base + AMOUNTS + (int) (bucket % DAY_BUCKETS)] = 0;
+        }
+        for (long bucket = Math.max(lastMinute + 1, minute - MINUTE_BUCKETS + 1); bucket <= minute; bucket++) {
+            page[base + COUNTS] &= ~(COUNT_MASK << (int) (bucket % MINUTE_BUCKETS) * COUNT_BITS);
+        }
+        page[base + STAMP] = day << 32 | minute;
+    }
+
+    private static long dayAmount(long[] page, int base) {
+        long amount = 0;
+        for (int bucket = 0; bucket < DAY_BUCKETS; bucket++) {
+            amount = saturatedAdd(amount, page[base + AMOUNTS + bucket]);
+        }
+        return amount;
+    }
+
+    private static int minuteCount(long[] page, int base) {
+        final long counts = page[base + COUNTS];
+        int count = 0;
+        for (int bucket = 0; bucket < MINUTE_BUCKETS; bucket++) {
+            count += (int) (counts >>> bucket * COUNT_BITS & COUNT_MASK);
+        }
+        return count;
+    }
+
+    //Both are not negative.
+    private static long saturatedAdd(long a, long b) {
+        final long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    private Object lock(long accountId) {
+        return locks[(int) (accountId & (LOCK_STRIPES - 1))];
+    }
+
+    private static int base(long accountId) {
+        return (int) ((accountId - 1) & (PAGE_SIZE - 1)) * FIELDS;
+    }
+
+    //Null when the account does not exist and its page was not allocated.
+    private long[] page(long accountId) {
+        if (accountId <= 0) {
+            return null;
+        }
+        final int page = (int) ((accountId - 1) >>> PAGE_BITS);
+        final long[][] current = pages;
+        if (page < current.length && current[page] != null) {
+            return current[page];
+        }
+        return accountExists.test(accountId) ? grow(page) : null;
+    }
+
+    private synchronized long[] grow(int page) {
+        long[][] current = pages;
+        if (page >= current.length) {
+            current = Arrays.copyOf(current, Math.max(page + 1, current.length * 2));
+        }
+        if (current[page] == null) {
+            current[page] = new long[PAGE_SIZE * FIELDS];
+        }
+        pages = current;
+        return current[page];
+    }
+}
@@ -0,0 +1,63 @@
+package email.kulakov.test.moneytransfer.metrics;
+
+import email.kulakov.test.moneytransfer.db.OperationResult;
+
+import javax.inject.Singleton;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+@Singleton
+public class DatastoreMetrics {
+
+    public enum Operation {
+        CreateAccount("createAccount"),
+        CreateAccounts("createAccounts"),
+        Balance("balance"),
+        ChangeMoney("changeMoney"),
+        TransferMoney("transferMoney"),
+        TransferBatch("transferBatch");
+
+        private final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        public String label() {
+            return label;
+        }
+    }
+
+    private static final OperationResult[] RESULTS = OperationResult.values();
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    //[operation][result]
+    private final AtomicLongArray outcomes = new AtomicLongArray(Operation.values().length * RESULTS.length);
+
+    public DatastoreMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public void record(Operation operation, OperationResult result, long nanos) {
+        latencies[operation.ordinal()].record(nanos);
+        recordOutcome(operation, result);
+    }
+
+    public void recordOutcome(Operation operation, OperationResult result) {
+        outcomes.incrementAndGet(operation.ordinal() * RESULTS.length + result.ordinal());
+    }
+
+    //For operations without OperationResult (createAccount, balance).
+    public void record(Operation operation, long nanos) {
+        record(operation, OperationResult.Success, nanos);
+    }
+
+    public LatencyHistogram latency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    public long outcomes(Operation operation, OperationResult result) {
+        return outcomes.get(operation.ordinal() * RESULTS.length + result.ordinal());
+    }
+}
@@ -0,0 +1,76 @@
+package email.kulakov.test.moneytransfer.metrics;
+
+import javax.inject.Singleton;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+@Singleton
+public class HttpMetrics {
+
+    public static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+
+    //Keyed by resource method name, entries are created on the first request only.
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    //Milliseconds since JVM start, -1 until it happens.
+    private volatile long serverStartingMillis = -1;
+    private volatile long serverStartedMillis = -1;
+    private final AtomicLong firstRequestMillis = new AtomicLong(-1);
+
+    public void serverStarting() {
+        serverStartingMillis = uptimeMillis();
+    }
+
+    public void serverStarted() {
+        serverStartedMillis = uptimeMillis();
+    }
+
+    public void record(String method, int status, long nanos) {
+        if (firstRequestMillis.get() < 0) {
+            firstRequestMillis.compareAndSet(-1, uptimeMillis());
+        }
+        final Endpoint endpoint = endpoints.computeIfAbsent(method, name -> new Endpoint());
+        endpoint.latency.record(nanos);
+        final int statusClass = status / 100 - 1;
+        if (statusClass >= 0 && statusClass < STATUS_CLASSES.length) {
+            endpoint.statuses.incrementAndGet(statusClass);
+        }
+    }
+
+    public Map<String, Endpoint> endpoints() {
+        return endpoints;
+    }
+
+    public long serverStartingMillis() {
+        return serverStartingMillis;
+    }
+
+    public long serverStartedMillis() {
+        return serverStartedMillis;
+    }
+
+    //Time to first request: JVM start until the first response was produced.
+    public long firstRequestMillis() {
+        return firstRequestMillis.get();
+    }
+
+    private static long uptimeMillis() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    public static final class Endpoint {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLongArray statuses = new AtomicLongArray(STATUS_CLASSES.length);
+
+        public LatencyHistogram latency() {
+            return latency;
+        }
+
+        public long statuses(int statusClass) {
+            return statuses.get(statusClass);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package email.kulakov.test.moneytransfer.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//Log-linear histogram of nanosecond values in the spirit of HdrHistogram: every power-of-two range is split into
+//16 linear sub-buckets, so reported values are within ~6% of the recorded ones. Recording is one atomic increment.
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long nanos) {
+        final long value = Math.max(nanos, 0);
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long sumNanos() {
+        return sum.sum();
+    }
+
+    //Value at the quantile (0..1), 0 if nothing was recorded.
+    public long valueAt(double quantile) {
+        final long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return value(i);
+            }
+        }
+        return value(BUCKETS - 1);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        return exponent * HALF_SUB_BUCKETS + (int) (value >>> exponent);
+    }
+
+    //Middle of the bucket range.
+    private static long value(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int exponent = index / HALF_SUB_BUCKETS - 1;
+        final long subBucket = index - (long) exponent * HALF_SUB_BUCKETS;
+        return (subBucket << exponent) + ((1L << exponent) - 1) / 2;
+    }
+}
@@ -0,0 +1,97 @@
+package email.kulakov.test.moneytransfer.metrics;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.ForwardingDatastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+import email.kulakov.test.moneytransfer.metrics.DatastoreMetrics.Operation;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+public class MetricsDatastore extends ForwardingDatastore {
+
+    private final DatastoreMetrics metrics;
+
+    public MetricsDatastore(Datastore delegate, DatastoreMetrics metrics) {
+        super(delegate);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public long createAccount() {
+        final long start = System.nanoTime();
+        final long accountId = delegate.createAccount();
+        metrics.record(Operation.CreateAccount, System.nanoTime() - start);
+        return accountId;
+    }
+
+    @Override
+    public long createAccounts(int count) {
+        final long start = System.nanoTime();
+        final long firstId = delegate.createAccounts(count);
+        metrics.record(Operation.CreateAccounts, System.nanoTime() - start);
+        return firstId;
+    }
+
+    @Override
+    public BigDecimal balance(long accountId) {
+        final long start = System.nanoTime();
+        final BigDecimal balance = delegate.balance(accountId);
+        metrics.record(Operation.Balance, balance == null ? OperationResult.NoAccount : OperationResult.Success,
+                System.nanoTime() - start);
+        return balance;
+    }
+
+    @Override
+    public long balanceMinor(long accountId) {
+        final long start = System.nanoTime();
+        final long balance = delegate.balanceMinor(accountId);
+        metrics.record(Operation.Balance, balance == NO_BALANCE ? OperationResult.NoAccount : OperationResult.Success,
+                System.nanoTime() - start);
+        return balance;
+    }
+
+    @Override
+    public OperationResult changeMoneyMinor(long accountId, long delta) {
+        final long start = System.nanoTime();
+        final OperationResult result = delegate.changeMoneyMinor(accountId, delta);
+        metrics.record(Operation.ChangeMoney, result, System.nanoTime() - start);
+        return result;
+    }
+
+    @Override
+    public OperationResult transferMoneyMinor(long accountFrom, long accountTo, long amount) {
+        final long start = System.nanoTime();
+        final OperationResult result = delegate.transferMoneyMinor(accountFrom, accountTo, amount);
+        metrics.record(Operation.TransferMoney, result, System.nanoTime() - start);
+        return result;
+    }
+
+    @Override
+    public OperationResult changeMoney(long accountId, BigDecimal delta) {
+        final long start = System.nanoTime();
+        final OperationResult result = delegate.changeMoney(accountId, delta);
+        metrics.record(Operation.ChangeMoney, result, System.nanoTime() - start);
+        return result;
+    }
+
+    @Override
+    public OperationResult transferMoney(long accountFrom, long accountTo, BigDecimal amount) {
+        final long start = System.nanoTime();
+        final OperationResult result = delegate.transferMoney(accountFrom, accountTo, amount);
+        metrics.record(Operation.TransferMoney, result, System.nanoTime() - start);
+        return result;
+    }
+
+    @Override
+    public List<OperationResult> transferBatch(List<Transfer> transfers, boolean atomic) {
+        final long start = System.nanoTime();
+        final List<OperationResult> results = delegate.transferBatch(transfers, atomic);
+        metrics.latency(Operation.TransferBatch).record(System.nanoTime() - start);
+        for (OperationResult result : results) {
+            metrics.recordOutcome(Operation.TransferBatch, result);
+        }
+        return results;
+    }
+}
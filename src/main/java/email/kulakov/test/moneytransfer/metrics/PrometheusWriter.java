@@ -0,0 +1,56 @@
+package email.kulakov.test.moneytransfer.metrics;
+
+//Prometheus text exposition format 0.0.4.
+public final class PrometheusWriter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final StringBuilder output = new StringBuilder(4096);
+
+    public PrometheusWriter header(String name, String type, String help) {
+        output.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        output.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    public PrometheusWriter sample(String name, String labels, double value) {
+        output.append(name);
+        if (labels != null && !labels.isEmpty()) {
+            output.append('{').append(labels).append('}');
+        }
+        output.append(' ').append(value).append('\n');
+        return this;
+    }
+
+    public PrometheusWriter sample(String name, String labels, long value) {
+        output.append(name);
+        if (labels != null && !labels.isEmpty()) {
+            output.append('{').append(labels).append('}');
+        }
+        output.append(' ').append(value).append('\n');
+        return this;
+    }
+
+    //Writes histogram as a summary in seconds: quantiles, _sum and _count.
+    public PrometheusWriter summary(String name, String labels, LatencyHistogram histogram) {
+        final String prefix = labels == null || labels.isEmpty() ? "" : labels + ",";
+        for (double quantile : QUANTILES) {
+            sample(name, prefix + "quantile=\"" + quantile + "\"", histogram.valueAt(quantile) / NANOS_PER_SECOND);
+        }
+        sample(name + "_sum", labels, histogram.sumNanos() / NANOS_PER_SECOND);
+        sample(name + "_count", labels, histogram.count());
+        return this;
+    }
+
+    public static String label(String name, String value) {
+        return name + "=\"" + value + "\"";
+    }
+
+    @Override
+    public String toString() {
+        return output.toString();
+    }
+}
@@ -0,0 +1,11 @@
+package email.kulakov.test.moneytransfer.replication;
+
+//Thrown by writes which return no OperationResult, e.g. createAccount, on a standby which is not promoted.
+public class NotPrimaryException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    public NotPrimaryException() {
+        super("Standby accepts writes only after promotion");
+    }
+}
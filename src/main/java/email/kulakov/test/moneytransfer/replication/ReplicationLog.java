@@ -0,0 +1,297 @@
+package email.kulakov.test.moneytransfer.replication;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.ForwardingDatastore;
+import email.kulakov.test.moneytransfer.journal.JournalRecord;
+import email.kulakov.test.moneytransfer.journal.JournalingDatastore;
+import email.kulakov.test.moneytransfer.journal.RecordLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Records of the primary for one standby at a time, written by a JournalingDatastore and streamed in frames of many
+//records (see ReplicationProtocol). Records are kept in memory until the standby acknowledges them, up to
+//maxBacklogBytes: a standby which falls further behind, or connects after the first records were dropped, is refused
+//and has to be rebuilt from empty. The log id changes on every start, so a standby of an earlier run is refused too.
+public final class ReplicationLog implements RecordLog, Closeable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ReplicationMode mode;
+    private final long ackTimeoutNanos;
+    private final long maxBacklogBytes;
+    private final long logId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final ServerSocketChannel server;
+    private final Thread sender;
+
+    //Guarded by this. Record of sequence s is records[s & (records.length - 1)], for firstSequence <= s <= appended.
+    private ByteBuffer[] records = new ByteBuffer[INITIAL_CAPACITY];
+    private long firstSequence = 1;
+    private long appendedSequence;
+    private long backlogBytes;
+    private boolean senderWaiting;
+    private boolean closed;
+
+    private volatile long ackedSequence;
+    //SEMI_SYNC writes stop waiting after a timeout, until the standby has caught up.
+    private volatile boolean degraded;
+    private volatile boolean connected;
+
+    private final AtomicLong ackTimeouts = new AtomicLong();
+    private final AtomicLong refusedStandbys = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+
+    //Listens for the standby on the port, 0 picks a free one, see port().
+    public ReplicationLog(int port, ReplicationMode mode, long ackTimeoutMillis, long maxBacklogBytes) throws IOException {
+        this.mode = mode;
+        this.ackTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(ackTimeoutMillis);
+        this.maxBacklogBytes = maxBacklogBytes;
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        sender = new Thread(this::runSender, "replication-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @Override
+    public synchronized long append(ByteBuffer payload) {
+        if (closed) {
+            throw new IllegalStateException("Replication log is closed");
+        }
+        //A frame always has room for one record up to this size.
+        if (payload.remaining() > JournalRecord.MAX_SIZE) {
+            throw new IllegalArgumentException("Replicated record of " + payload.remaining() + " bytes exceeds "
+                    + JournalRecord.MAX_SIZE);
+        }
+        final long sequence = ++appendedSequence;
+        if (sequence - firstSequence == records.length) {
+            grow();
+        }
+        records[(int) sequence & (records.length - 1)] = payload;
+        backlogBytes += payload.remaining();
+        trim();
+        if (senderWaiting) {
+            notifyAll();
+        }
+        return sequence;
+    }
+
+    @Override
+    public void awaitDurable(long sequence) {
+        if (mode != ReplicationMode.SEMI_SYNC || degraded || ackedSequence >= sequence) {
+            return;
+        }
+        synchronized (this) {
+            final long deadline = System.nanoTime() + ackTimeoutNanos;
+            boolean interrupted = false;
+            while (ackedSequence < sequence && !degraded && !closed) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    degraded = true;
+                    ackTimeouts.incrementAndGet();
+                    break;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public int port() {
+        return server.socket().getLocalPort();
+    }
+
+    public ReplicationMode mode() {
+        return mode;
+    }
+
+    public synchronized long appendedSequence() {
+        return appendedSequence;
+    }
+
+    public long ackedSequence() {
+        return ackedSequence;
+    }
+
+    public boolean isDegraded() {
+        return degraded;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public long ackTimeoutCount() {
+        return ackTimeouts.get();
+    }
+
+    public long refusedStandbyCount() {
+        return refusedStandbys.get();
+    }
+
+    public long frameCount() {
+        return frames.get();
+    }
+
+    //Log of the decorator which streams writes to the standby, null when there is none.
+    public static ReplicationLog find(Datastore datastore) {
+        Datastore current = datastore;
+        while (current instanceof ForwardingDatastore) {
+            if (current instanceof JournalingDatastore && ((JournalingDatastore) current).getLog() instanceof ReplicationLog) {
+                return (ReplicationLog) ((JournalingDatastore) current).getLog();
+            }
+            current = ((ForwardingDatastore) current).getDelegate();
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        server.close();
+        try {
+            sender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runSender() {
+        while (!server.socket().isClosed()) {
+            try (SocketChannel channel = server.accept()) {
+                channel.socket().setTcpNoDelay(true);
+                serve(channel);
+            } catch (IOException | RuntimeException e) {
+                //The standby reconnects.
+            } finally {
+                connected = false;
+            }
+        }
+    }
+
+    private void serve(SocketChannel channel) throws IOException {
+        final ByteBuffer hello = ReplicationProtocol.allocate(ReplicationProtocol.HELLO_SIZE);
+        ReplicationProtocol.readFully(channel, hello);
+        final long standbyLogId = hello.getLong();
+        final long applied = hello.getLong();
+        final boolean accepted;
+        synchronized (this) {
+            accepted = (standbyLogId == logId || (standbyLogId == 0 && applied == 0))
+                    && applied + 1 >= firstSequence && applied <= appendedSequence;
+        }
+        final ByteBuffer welcome = ReplicationProtocol.allocate(ReplicationProtocol.WELCOME_SIZE);
+        welcome.putLong(logId).put((byte) (accepted ? 1 : 0)).flip();
+        ReplicationProtocol.writeFully(channel, welcome);
+        if (!accepted) {
+            refusedStandbys.incrementAndGet();
+            return;
+        }
+        acknowledged(applied);
+        connected = true;
+        final Thread ackReader = new Thread(() -> readAcks(channel), "replication-acks");
+        ackReader.setDaemon(true);
+        ackReader.start();
+        final ByteBuffer frame = ReplicationProtocol.allocate(ReplicationProtocol.MAX_FRAME_SIZE);
+        long next = applied + 1;
+        while (ackReader.isAlive()) {
+            frame.clear().position(Integer.BYTES + ReplicationProtocol.FRAME_HEADER_SIZE);
+            final long primarySequence;
+            int count = 0;
+            synchronized (this) {
+                if (appendedSequence < next && !closed) {
+                    senderWaiting = true;
+                    try {
+                        wait(ReplicationProtocol.HEARTBEAT_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    } finally {
+                        senderWaiting = false;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                if (next < firstSequence) {
+                    //Dropped before it was sent, the standby has to be rebuilt.
+                    return;
+                }
+                primarySequence = appendedSequence;
+                for (long sequence = next; sequence <= appendedSequence; sequence++) {
+                    final ByteBuffer record = records[(int) sequence & (records.length - 1)];
+                    if (frame.remaining() < Integer.BYTES + record.remaining() && count > 0) {
+                        break;
+                    }
+                    frame.putInt(record.remaining()).put(record.duplicate());
+                    count++;
+                }
+            }
+            frame.putInt(0, frame.position() - Integer.BYTES)
+                    .putLong(Integer.BYTES, next)
+                    .putLong(Integer.BYTES + Long.BYTES, primarySequence)
+                    .putInt(Integer.BYTES + 2 * Long.BYTES, count)
+                    .flip();
+            ReplicationProtocol.writeFully(channel, frame);
+            frames.incrementAndGet();
+            next += count;
+        }
+    }
+
+    private void readAcks(SocketChannel channel) {
+        final ByteBuffer ack = ReplicationProtocol.allocate(ReplicationProtocol.ACK_SIZE);
+        try {
+            while (true) {
+                ack.clear();
+                ReplicationProtocol.readFully(channel, ack);
+                acknowledged(ack.getLong());
+            }
+        } catch (IOException e) {
+            //The sender stops with this thread.
+        }
+    }
+
+    private synchronized void acknowledged(long sequence) {
+        if (sequence <= ackedSequence) {
+            return;
+        }
+        ackedSequence = sequence;
+        trim();
+        if (degraded && sequence >= appendedSequence) {
+            degraded = false;
+        }
+        notifyAll();
+    }
+
+    //Acknowledged records are not needed any more, unacknowledged ones only while the backlog fits.
+    private void trim() {
+        while (firstSequence <= appendedSequence && (firstSequence <= ackedSequence || backlogBytes > maxBacklogBytes)) {
+            final int index = (int) firstSequence & (records.length - 1);
+            backlogBytes -= records[index].remaining();
+            records[index] = null;
+            firstSequence++;
+        }
+    }
+
+    private void grow() {
+        final ByteBuffer[] grown = new ByteBuffer[records.length * 2];
+        for (long sequence = firstSequence; sequence < appendedSequence; sequence++) {
+            grown[(int) sequence & (grown.length - 1)] = records[(int) sequence & (records.length - 1)];
+        }
+        records = grown;
+    }
+}
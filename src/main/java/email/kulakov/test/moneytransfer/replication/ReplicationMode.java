@@ -0,0 +1,9 @@
+package email.kulakov.test.moneytransfer.replication;
+
+public enum ReplicationMode {
+    //Writes do not wait for the standby, it may miss the latest acknowledged writes when the primary dies.
+    ASYNC,
+    //Writes wait until the standby applied them, up to a timeout after which the primary stops waiting until
+    //the standby catches up again.
+    SEMI_SYNC
+}
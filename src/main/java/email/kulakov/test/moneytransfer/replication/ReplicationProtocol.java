@@ -0,0 +1,48 @@
+package email.kulakov.test.moneytransfer.replication;
+
+import email.kulakov.test.moneytransfer.journal.JournalRecord;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+//Stream between a primary (ReplicationLog) and its standby (StandbyDatastore), little-endian like WireProtocol.
+//Standby sends a hello [long logId][long appliedSequence], logId 0 for an empty standby. Primary answers
+//[long logId][byte accepted] and then sends frames:
+//[int length][long firstSequence][long primarySequence][int count] followed by count [int length][JournalRecord payload].
+//Frames without records are heartbeats. Standby acknowledges every frame with [long appliedSequence].
+final class ReplicationProtocol {
+
+    static final int HELLO_SIZE = 2 * Long.BYTES;
+    static final int WELCOME_SIZE = Long.BYTES + 1;
+    static final int FRAME_HEADER_SIZE = 2 * Long.BYTES + Integer.BYTES;
+    static final int ACK_SIZE = Long.BYTES;
+    //Holds several records of JournalRecord.MAX_SIZE with their lengths and the frame header.
+    static final int MAX_FRAME_SIZE = 4 * JournalRecord.MAX_SIZE;
+    static final long HEARTBEAT_MILLIS = 100;
+
+    private ReplicationProtocol() {
+    }
+
+    static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    //Fills the buffer up to its limit and flips it.
+    static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Replication stream closed");
+            }
+        }
+        buffer.flip();
+    }
+}
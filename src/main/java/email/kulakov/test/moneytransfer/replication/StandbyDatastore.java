@@ -0,0 +1,286 @@
+package email.kulakov.test.moneytransfer.replication;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.ForwardingDatastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+import email.kulakov.test.moneytransfer.journal.JournalRecord;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Standby of a primary with a ReplicationLog: a background thread applies the records streamed by the primary to the
+//delegate, reads are served meanwhile and writes are refused (Busy, or NotPrimaryException) until promote().
+//The delegate has to start empty, the standby keeps its position in memory only and is rebuilt after a restart.
+public class StandbyDatastore extends ForwardingDatastore implements Closeable {
+
+    public enum State {
+        //Not connected to the primary, retrying.
+        CONNECTING,
+        STREAMING,
+        //Refused by the primary or failed to apply a record, it has to be rebuilt from empty.
+        FAILED,
+        PROMOTED
+    }
+
+    private static final long RECONNECT_MILLIS = 200;
+
+    private final InetSocketAddress primary;
+    private final Thread receiver;
+    private final Object channelLock = new Object();
+    //Guarded by channelLock.
+    private SocketChannel channel;
+
+    private volatile State state = State.CONNECTING;
+    private volatile boolean promoting;
+    private volatile long logId;
+    private volatile long appliedSequence;
+    private volatile long primarySequence;
+    private volatile long lastFrameNanos = System.nanoTime();
+    private volatile String failure;
+
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong appliedRecords = new AtomicLong();
+
+    public StandbyDatastore(Datastore delegate, InetSocketAddress primary) {
+        super(delegate);
+        this.primary = primary;
+        receiver = new Thread(this::runReceiver, "replication-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    @Override
+    public long createAccount() {
+        checkPromoted();
+        return delegate.createAccount();
+    }
+
+    @Override
+    public long createAccounts(int count) {
+        checkPromoted();
+        return delegate.createAccounts(count);
+    }
+
+    @Override
+    public OperationResult changeMoney(long accountId, BigDecimal delta) {
+        return state == State.PROMOTED ? delegate.changeMoney(accountId, delta) : OperationResult.Busy;
+    }
+
+    @Override
+    public OperationResult transferMoney(long accountFrom, long accountTo, BigDecimal amount) {
+        return state == State.PROMOTED ? delegate.transferMoney(accountFrom, accountTo, amount) : OperationResult.Busy;
+    }
+
+    @Override
+    public OperationResult changeMoneyMinor(long accountId, long delta) {
+        return state == State.PROMOTED ? delegate.changeMoneyMinor(accountId, delta) : OperationResult.Busy;
+    }
+
+    @Override
+    public OperationResult transferMoneyMinor(long accountFrom, long accountTo, long amount) {
+        return state == State.PROMOTED ? delegate.transferMoneyMinor(accountFrom, accountTo, amount) : OperationResult.Busy;
+    }
+
+    @Override
+    public List<OperationResult> transferBatch(List<Transfer> transfers, boolean atomic) {
+        if (state == State.PROMOTED) {
+            return delegate.transferBatch(transfers, atomic);
+        }
+        return Datastore.abortedExcept(transfers.size(), 0, OperationResult.Busy);
+    }
+
+    @Override
+    public OperationResult freezeAccount(long accountId) {
+        return state == State.PROMOTED ? delegate.freezeAccount(accountId) : OperationResult.Busy;
+    }
+
+    @Override
+    public OperationResult unfreezeAccount(long accountId) {
+        return state == State.PROMOTED ? delegate.unfreezeAccount(accountId) : OperationResult.Busy;
+    }
+
+    @Override
+    public OperationResult closeAccount(long accountId) {
+        return state == State.PROMOTED ? delegate.closeAccount(accountId) : OperationResult.Busy;
+    }
+
+    //Stops applying records of the primary and accepts writes from now on. Records the primary has not sent yet are
+    //lost, in SEMI_SYNC mode these are only writes which have not returned to their clients. Returns the last applied
+    //sequence.
+    public long promote() {
+        promoting = true;
+        //Closing unblocks the receiver, a frame being applied is applied to its end.
+        synchronized (channelLock) {
+            closeQuietly(channel);
+        }
+        try {
+            receiver.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        state = State.PROMOTED;
+        return appliedSequence;
+    }
+
+    public State state() {
+        return state;
+    }
+
+    //Reason of FAILED, null otherwise.
+    public String failure() {
+        return failure;
+    }
+
+    public long appliedSequence() {
+        return appliedSequence;
+    }
+
+    //Latest sequence of the primary the standby knows of.
+    public long primarySequence() {
+        return primarySequence;
+    }
+
+    public long lagRecords() {
+        return Math.max(0, primarySequence - appliedSequence);
+    }
+
+    //Time since the last frame, heartbeats included: grows while the primary is unreachable.
+    public long lastFrameAgeNanos() {
+        return System.nanoTime() - lastFrameNanos;
+    }
+
+    public long reconnectCount() {
+        return reconnects.get();
+    }
+
+    public long appliedRecordCount() {
+        return appliedRecords.get();
+    }
+
+    public static StandbyDatastore find(Datastore datastore) {
+        Datastore current = datastore;
+        while (current instanceof ForwardingDatastore) {
+            if (current instanceof StandbyDatastore) {
+                return (StandbyDatastore) current;
+            }
+            current = ((ForwardingDatastore) current).getDelegate();
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        if (state != State.PROMOTED) {
+            promote();
+        }
+    }
+
+    private void checkPromoted() {
+        if (state != State.PROMOTED) {
+            throw new NotPrimaryException();
+        }
+    }
+
+    private void runReceiver() {
+        while (!promoting && state != State.FAILED) {
+            try (SocketChannel connection = SocketChannel.open()) {
+                synchronized (channelLock) {
+                    if (promoting) {
+                        return;
+                    }
+                    channel = connection;
+                }
+                connection.connect(primary);
+                connection.socket().setTcpNoDelay(true);
+                receive(connection);
+            } catch (IOException e) {
+                //Reconnects below.
+            } catch (RuntimeException e) {
+                //A record which does not apply: the standby diverged from the primary.
+                fail("Record " + (appliedSequence + 1) + " failed: " + e.getMessage());
+            }
+            if (promoting || state == State.FAILED) {
+                return;
+            }
+            state = State.CONNECTING;
+            reconnects.incrementAndGet();
+            try {
+                TimeUnit.MILLISECONDS.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void receive(SocketChannel connection) throws IOException {
+        final ByteBuffer hello = ReplicationProtocol.allocate(ReplicationProtocol.HELLO_SIZE);
+        hello.putLong(logId).putLong(appliedSequence).flip();
+        ReplicationProtocol.writeFully(connection, hello);
+        final ByteBuffer welcome = ReplicationProtocol.allocate(ReplicationProtocol.WELCOME_SIZE);
+        ReplicationProtocol.readFully(connection, welcome);
+        final long primaryLogId = welcome.getLong();
+        if (welcome.get() == 0) {
+            fail("Primary " + primary + " refused position " + appliedSequence + " of log " + logId);
+            return;
+        }
+        logId = primaryLogId;
+        state = State.STREAMING;
+        final ByteBuffer length = ReplicationProtocol.allocate(Integer.BYTES);
+        final ByteBuffer frame = ReplicationProtocol.allocate(ReplicationProtocol.MAX_FRAME_SIZE);
+        final ByteBuffer ack = ReplicationProtocol.allocate(ReplicationProtocol.ACK_SIZE);
+        while (!promoting) {
+            length.clear();
+            ReplicationProtocol.readFully(connection, length);
+            final int frameLength = length.getInt();
+            if (frameLength < ReplicationProtocol.FRAME_HEADER_SIZE || frameLength > frame.capacity()) {
+                throw new IOException("Wrong replication frame length " + frameLength);
+            }
+            frame.clear().limit(frameLength);
+            ReplicationProtocol.readFully(connection, frame);
+            final long firstSequence = frame.getLong();
+            final long sequence = frame.getLong();
+            final int count = frame.getInt();
+            if (count > 0 && firstSequence != appliedSequence + 1) {
+                throw new IOException("Replication frame starts at " + firstSequence + " after " + appliedSequence);
+            }
+            for (int i = 0; i < count; i++) {
+                final int recordLength = frame.getInt();
+                final ByteBuffer record = frame.slice();
+                record.limit(recordLength);
+                JournalRecord.apply(record, delegate);
+                frame.position(frame.position() + recordLength);
+                appliedSequence++;
+            }
+            appliedRecords.addAndGet(count);
+            primarySequence = sequence;
+            lastFrameNanos = System.nanoTime();
+            ack.clear();
+            ack.putLong(appliedSequence).flip();
+            ReplicationProtocol.writeFully(connection, ack);
+        }
+    }
+
+    private void fail(String reason) {
+        failure = reason;
+        state = State.FAILED;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //Closing anyway.
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package email.kulakov.test.moneytransfer.schedule;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+//Append-only file of pending scheduled transfers, little-endian records:
+//SCHEDULED [byte 1][long id][long from][long to][long amountMinor][long dueMillis]
+//REMOVED [byte 2][long id] - cancelled or taken for execution
+//GENERATION [byte 3][long generation] - ids of earlier entries had lower generations, written by compaction.
+//A torn record at the tail is ignored.
+final class ScheduleLog implements Closeable {
+
+    interface Records {
+        void scheduled(long id, long accountFrom, long accountTo, long amountMinor, long dueMillis);
+
+        void removed(long id);
+
+        void generation(long generation);
+    }
+
+    interface Writer {
+        void write(ScheduleLog log) throws IOException;
+    }
+
+    private static final byte SCHEDULED = 1;
+    private static final byte REMOVED = 2;
+    private static final byte GENERATION = 3;
+    private static final int SCHEDULED_SIZE = 1 + 5 * Long.BYTES;
+    private static final int REMOVED_SIZE = 1 + Long.BYTES;
+    private static final int GENERATION_SIZE = 1 + Long.BYTES;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    ScheduleLog(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    static void read(Path file, Records records) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        final ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        while (content.hasRemaining()) {
+            final byte type = content.get(content.position());
+            if (type == SCHEDULED && content.remaining() >= SCHEDULED_SIZE) {
+                content.get();
+                records.scheduled(content.getLong(), content.getLong(), content.getLong(), content.getLong(),
+                        content.getLong());
+            } else if (type == REMOVED && content.remaining() >= REMOVED_SIZE) {
+                content.get();
+                records.removed(content.getLong());
+            } else if (type == GENERATION && content.remaining() >= GENERATION_SIZE) {
+                content.get();
+                records.generation(content.getLong());
+            } else {
+                return;
+            }
+        }
+    }
+
+    //Replaces the file with the records the writer appends to the given log, atomically.
+    static void rewrite(Path file, Writer writer) throws IOException {
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temporary);
+        try (ScheduleLog log = new ScheduleLog(temporary)) {
+            writer.write(log);
+            log.force();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    void scheduled(long id, long accountFrom, long accountTo, long amountMinor, long dueMillis) throws IOException {
+        reserve(SCHEDULED_SIZE);
+        buffer.put(SCHEDULED).putLong(id).putLong(accountFrom).putLong(accountTo).putLong(amountMinor).putLong(dueMillis);
+    }
+
+    void removed(long id) throws IOException {
+        reserve(REMOVED_SIZE);
+        buffer.put(REMOVED).putLong(id);
+    }
+
+    void generation(long generation) throws IOException {
+        reserve(GENERATION_SIZE);
+        buffer.put(GENERATION).putLong(generation);
+    }
+
+    //Writes appended records and forces them to disk.
+    void force() throws IOException {
+        write();
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void reserve(int size) throws IOException {
+        if (buffer.remaining() < size) {
+            write();
+        }
+    }
+
+    private void write() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,41 @@
+package email.kulakov.test.moneytransfer.schedule;
+
+import java.math.BigDecimal;
+
+public final class ScheduledTransfer {
+
+    private final long id;
+    private final long accountFrom;
+    private final long accountTo;
+    private final BigDecimal amount;
+    private final long dueMillis;
+
+    public ScheduledTransfer(long id, long accountFrom, long accountTo, BigDecimal amount, long dueMillis) {
+        this.id = id;
+        this.accountFrom = accountFrom;
+        this.accountTo = accountTo;
+        this.amount = amount;
+        this.dueMillis = dueMillis;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getAccountFrom() {
+        return accountFrom;
+    }
+
+    public long getAccountTo() {
+        return accountTo;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    //Epoch milliseconds.
+    public long getDueMillis() {
+        return dueMillis;
+    }
+}
@@ -0,0 +1,187 @@
+package email.kulakov.test.moneytransfer.schedule;
+
+import java.util.Arrays;
+
+//Hierarchical timing wheel (Varghese & Lauck) of int entries: LEVELS wheels of SLOTS buckets, a bucket of level l
+//spans SLOTS^l ticks. Scheduling and cancelling are O(1), entries of an upper level are cascaded to the lower ones
+//when their bucket comes around. Buckets are doubly linked lists threaded through int arrays, so an entry costs
+//20 bytes and no object. Entries due further than the wheel range wait in the top level and are placed again.
+//Not thread-safe.
+final class TimingWheel {
+
+    static final int NONE = -1;
+
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    //Bucket of entries which are due, in the order they became due.
+    private static final int EXPIRED = LEVELS * SLOTS;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int[] heads = new int[EXPIRED + 1];
+    private final int[] tails = new int[EXPIRED + 1];
+    private long[] dueTicks = new long[INITIAL_CAPACITY];
+    private int[] next = new int[INITIAL_CAPACITY];
+    private int[] previous = new int[INITIAL_CAPACITY];
+    //Bucket of the entry, NONE when it is not scheduled.
+    private int[] buckets = new int[INITIAL_CAPACITY];
+    private long currentTick;
+    private int size;
+    private int expiredSize;
+
+    TimingWheel(long currentTick) {
+        this.currentTick = currentTick;
+        Arrays.fill(heads, NONE);
+        Arrays.fill(tails, NONE);
+        Arrays.fill(buckets, NONE);
+    }
+
+    long currentTick() {
+        return currentTick;
+    }
+
+    //Entries scheduled and not polled yet, including the expired ones.
+    int size() {
+        return size;
+    }
+
+    int expiredSize() {
+        return expiredSize;
+    }
+
+    //Entry is a non-negative index chosen by the caller, e.g. a slot in its own arrays. Due ticks up to the current
+    //one expire at once.
+    void schedule(int entry, long dueTick) {
+        ensureCapacity(entry + 1);
+        if (buckets[entry] != NONE) {
+            throw new IllegalStateException("Entry " + entry + " is already scheduled");
+        }
+        dueTicks[entry] = dueTick;
+        place(entry);
+        size++;
+    }
+
+    boolean cancel(int entry) {
+        if (entry >= buckets.length || buckets[entry] == NONE) {
+            return false;
+        }
+        unlink(entry);
+        size--;
+        return true;
+    }
+
+    boolean isScheduled(int entry) {
+        return entry < buckets.length && buckets[entry] != NONE;
+    }
+
+    //Moves entries due up to tick to the expired list.
+    void advance(long tick) {
+        while (currentTick < tick) {
+            currentTick++;
+            final int slot = (int) (currentTick & SLOT_MASK);
+            if (slot == 0) {
+                cascade(1);
+            }
+            final int bucket = slot;
+            for (int entry = heads[bucket]; entry != NONE; ) {
+                final int following = next[entry];
+                unlink(entry);
+                link(entry, EXPIRED);
+                entry = following;
+            }
+        }
+    }
+
+    //Oldest expired entry, NONE if there is none. The entry is no longer scheduled.
+    int pollExpired() {
+        final int entry = heads[EXPIRED];
+        if (entry != NONE) {
+            unlink(entry);
+            size--;
+        }
+        return entry;
+    }
+
+    //Places again entries of the level bucket the current tick has reached, upper levels first.
+    private void cascade(int level) {
+        if (level >= LEVELS) {
+            return;
+        }
+        final int slot = (int) ((currentTick >>> (level * SLOT_BITS)) & SLOT_MASK);
+        if (slot == 0) {
+            cascade(level + 1);
+        }
+        final int bucket = level * SLOTS + slot;
+        for (int entry = heads[bucket]; entry != NONE; ) {
+            final int following = next[entry];
+            unlink(entry);
+            place(entry);
+            entry = following;
+        }
+    }
+
+    private void place(int entry) {
+        final long dueTick = dueTicks[entry];
+        final long delta = dueTick - currentTick;
+        if (delta <= 0) {
+            link(entry, EXPIRED);
+            return;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << ((level + 1) * SLOT_BITS)) {
+                link(entry, level * SLOTS + (int) ((dueTick >>> (level * SLOT_BITS)) & SLOT_MASK));
+                return;
+            }
+        }
+        //Beyond the range: the top bucket reached last, the entry is placed again when it is cascaded.
+        final int topShift = (LEVELS - 1) * SLOT_BITS;
+        link(entry, (LEVELS - 1) * SLOTS + (int) (((currentTick >>> topShift) - 1) & SLOT_MASK));
+    }
+
+    private void link(int entry, int bucket) {
+        buckets[entry] = bucket;
+        next[entry] = NONE;
+        previous[entry] = tails[bucket];
+        if (tails[bucket] == NONE) {
+            heads[bucket] = entry;
+        } else {
+            next[tails[bucket]] = entry;
+        }
+        tails[bucket] = entry;
+        if (bucket == EXPIRED) {
+            expiredSize++;
+        }
+    }
+
+    private void unlink(int entry) {
+        final int bucket = buckets[entry];
+        if (previous[entry] == NONE) {
+            heads[bucket] = next[entry];
+        } else {
+            next[previous[entry]] = next[entry];
+        }
+        if (next[entry] == NONE) {
+            tails[bucket] = previous[entry];
+        } else {
+            previous[next[entry]] = previous[entry];
+        }
+        buckets[entry] = NONE;
+        if (bucket == EXPIRED) {
+            expiredSize--;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= buckets.length) {
+            return;
+        }
+        final int grown = Math.max(capacity, buckets.length * 2);
+        final int oldLength = buckets.length;
+        dueTicks = Arrays.copyOf(dueTicks, grown);
+        next = Arrays.copyOf(next, grown);
+        previous = Arrays.copyOf(previous, grown);
+        buckets = Arrays.copyOf(buckets, grown);
+        Arrays.fill(buckets, oldLength, grown, NONE);
+    }
+}
@@ -0,0 +1,344 @@
+package email.kulakov.test.moneytransfer.schedule;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.MinorUnits;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+//Transfers registered for a later time. Pending ones live in a TimingWheel with tickMillis resolution and in
+//parallel primitive arrays, ~60 bytes per transfer. Every tick due transfers are executed through the datastore in
+//non-atomic batches, at most maxTransfersPerSecond: a midnight peak of payouts is spread over the following seconds.
+//Pending transfers are kept in ScheduleLog and are loaded again on startup. A transfer is marked as removed before it
+//is executed, so a crash in between loses it rather than paying it twice. One refused with Busy is logged as
+//scheduled again.
+//Ids are [generation << 32 | slot], the generation of a slot changes when it is freed, so old ids never match.
+public class TransferScheduler implements Closeable {
+
+    public static final String FILE_NAME = "scheduled.bin";
+    //A batch holds the locks of all its accounts at once, so batches are kept small: a large one on a busy
+    //BlockingDatastore times out waiting for its locks and gets Busy for every entry.
+    static final int BATCH_SIZE = 100;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long SLOT_MASK = 0xFFFF_FFFFL;
+
+    private final Datastore datastore;
+    private final Path file;
+    private final long tickMillis;
+    private final double maxTransfersPerSecond;
+    //Tokens of one tick, so due transfers are executed evenly.
+    private final double burst;
+    private final LongSupplier clock;
+    private final ScheduledExecutorService scheduler;
+
+    //Guarded by this.
+    private final TimingWheel wheel;
+    private ScheduleLog log;
+    private long[] accountsFrom = new long[INITIAL_CAPACITY];
+    private long[] accountsTo = new long[INITIAL_CAPACITY];
+    private long[] amountsMinor = new long[INITIAL_CAPACITY];
+    private long[] dueMillis = new long[INITIAL_CAPACITY];
+    private int[] generations = new int[INITIAL_CAPACITY];
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+    private int freeCount;
+    private int highWater;
+    private int baseGeneration = 1;
+    private int maxGeneration;
+    private double tokens;
+    private long lastRefillMillis;
+
+    private final AtomicLongArray results = new AtomicLongArray(OperationResult.values().length);
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    public TransferScheduler(Datastore datastore, Path file, long tickMillis, int maxTransfersPerSecond)
+            throws IOException {
+        this(datastore, file, tickMillis, maxTransfersPerSecond, System::currentTimeMillis, true);
+    }
+
+    //Without background the caller runs due transfers with runDue.
+    TransferScheduler(Datastore datastore, Path file, long tickMillis, int maxTransfersPerSecond, LongSupplier clock,
+                      boolean background) throws IOException {
+        this.datastore = datastore;
+        this.file = file;
+        this.tickMillis = tickMillis;
+        this.maxTransfersPerSecond = maxTransfersPerSecond;
+        this.burst = Math.max(1, maxTransfersPerSecond * tickMillis / 1000.0);
+        this.clock = clock;
+        final long now = clock.getAsLong();
+        this.wheel = new TimingWheel(Math.floorDiv(now, tickMillis));
+        this.tokens = burst;
+        this.lastRefillMillis = now;
+        load();
+        if (background) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "transfer-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::runDueQuietly, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    //Returns the id. Throws IllegalArgumentException when the amount is not positive or has more fraction digits
+    //than MinorUnits.SCALE. Transfers due in the past are executed on the next tick.
+    public synchronized long schedule(long accountFrom, long accountTo, BigDecimal amount, long dueMillis)
+            throws IOException {
+        final long amountMinor = MinorUnits.toMinor(amount);
+        if (amount.signum() <= 0 || amountMinor == MinorUnits.NOT_REPRESENTABLE) {
+            throw new IllegalArgumentException("Wrong amount " + amount);
+        }
+        final int slot = allocate();
+        final long id = id(slot);
+        try {
+            log.scheduled(id, accountFrom, accountTo, amountMinor, dueMillis);
+            log.force();
+        } catch (IOException e) {
+            free(slot);
+            throw e;
+        }
+        put(slot, accountFrom, accountTo, amountMinor, dueMillis);
+        return id;
+    }
+
+    //False when there is no such pending transfer, e.g. it is already executed.
+    public synchronized boolean cancel(long id) throws IOException {
+        final int slot = slot(id);
+        if (slot < 0) {
+            return false;
+        }
+        log.removed(id);
+        log.force();
+        wheel.cancel(slot);
+        free(slot);
+        return true;
+    }
+
+    //Pending transfers from the account, earliest first.
+    public synchronized List<ScheduledTransfer> list(long accountFrom) {
+        final List<ScheduledTransfer> transfers = new ArrayList<>();
+        for (int slot = 0; slot < highWater; slot++) {
+            if (accountsFrom[slot] == accountFrom && wheel.isScheduled(slot)) {
+                transfers.add(new ScheduledTransfer(id(slot), accountFrom, accountsTo[slot],
+                        MinorUnits.toBigDecimal(amountsMinor[slot]), dueMillis[slot]));
+            }
+        }
+        transfers.sort(Comparator.comparingLong(ScheduledTransfer::getDueMillis).thenComparingLong(ScheduledTransfer::getId));
+        return transfers;
+    }
+
+    public synchronized int pendingCount() {
+        return wheel.size();
+    }
+
+    //Executes transfers which are due, as many as the rate limit allows now. Returns how many were executed.
+    //A transfer refused with Busy (e.g. a lock timeout) is scheduled again for the next tick with the same id.
+    public int runDue() throws IOException {
+        final List<Transfer> transfers;
+        final int[] slots;
+        synchronized (this) {
+            final long now = clock.getAsLong();
+            wheel.advance(Math.floorDiv(now, tickMillis));
+            tokens = Math.min(burst, tokens + (now - lastRefillMillis) * maxTransfersPerSecond / 1000.0);
+            lastRefillMillis = now;
+            final int count = (int) Math.min(tokens, wheel.expiredSize());
+            if (count == 0) {
+                return 0;
+            }
+            transfers = new ArrayList<>(count);
+            slots = new int[count];
+            for (int i = 0; i < count; i++) {
+                //The slot stays allocated until the transfer has a final result, its id can not be cancelled meanwhile.
+                final int slot = wheel.pollExpired();
+                log.removed(id(slot));
+                transfers.add(new Transfer(accountsFrom[slot], accountsTo[slot], MinorUnits.toBigDecimal(amountsMinor[slot])));
+                slots[i] = slot;
+            }
+            log.force();
+            tokens -= count;
+        }
+        final OperationResult[] outcomes = new OperationResult[transfers.size()];
+        try {
+            for (int from = 0; from < transfers.size(); from += BATCH_SIZE) {
+                final List<OperationResult> batch = datastore.transferBatch(
+                        transfers.subList(from, Math.min(transfers.size(), from + BATCH_SIZE)), false);
+                for (int i = 0; i < batch.size(); i++) {
+                    outcomes[from + i] = batch.get(i);
+                }
+            }
+        } finally {
+            settle(slots, outcomes);
+        }
+        return transfers.size();
+    }
+
+    //Frees slots of transfers with a final result and schedules Busy ones again. Transfers without a result (the
+    //datastore failed) are freed: they may have been applied, like the ones lost by a crash during execution.
+    private synchronized void settle(int[] slots, OperationResult[] outcomes) throws IOException {
+        boolean rescheduled = false;
+        for (int i = 0; i < slots.length; i++) {
+            final int slot = slots[i];
+            if (outcomes[i] == OperationResult.Busy) {
+                final long due = clock.getAsLong() + tickMillis;
+                log.scheduled(id(slot), accountsFrom[slot], accountsTo[slot], amountsMinor[slot], due);
+                put(slot, accountsFrom[slot], accountsTo[slot], amountsMinor[slot], due);
+                retries.incrementAndGet();
+                rescheduled = true;
+            } else {
+                if (outcomes[i] != null) {
+                    results.incrementAndGet(outcomes[i].ordinal());
+                }
+                free(slot);
+            }
+        }
+        if (rescheduled) {
+            log.force();
+        }
+    }
+
+    //Executed transfers by final result.
+    public long executedCount(OperationResult result) {
+        return results.get(result.ordinal());
+    }
+
+    //Executions refused with Busy and scheduled again.
+    public long retryCount() {
+        return retries.get();
+    }
+
+    //Ticks which failed, e.g. on a disk error. Their transfers are executed again after a restart.
+    public long failureCount() {
+        return failureCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        synchronized (this) {
+            log.close();
+        }
+    }
+
+    //Replays the file into the wheel and rewrites it with pending transfers only.
+    private void load() throws IOException {
+        ScheduleLog.read(file, new ScheduleLog.Records() {
+            @Override
+            public void scheduled(long id, long accountFrom, long accountTo, long amountMinor, long due) {
+                final int slot = (int) (id & SLOT_MASK);
+                ensureCapacity(slot + 1);
+                highWater = Math.max(highWater, slot + 1);
+                generations[slot] = (int) (id >>> 32);
+                maxGeneration = Math.max(maxGeneration, generations[slot]);
+                put(slot, accountFrom, accountTo, amountMinor, due);
+            }
+
+            @Override
+            public void removed(long id) {
+                final int slot = slot(id);
+                if (slot >= 0) {
+                    wheel.cancel(slot);
+                }
+            }
+
+            @Override
+            public void generation(long generation) {
+                maxGeneration = Math.max(maxGeneration, (int) generation);
+            }
+        });
+        //Slots freed before the restart get a generation no id had.
+        baseGeneration = maxGeneration + 1;
+        maxGeneration = baseGeneration;
+        for (int slot = highWater - 1; slot >= 0; slot--) {
+            if (!wheel.isScheduled(slot)) {
+                generations[slot] = baseGeneration;
+                freeSlots[freeCount++] = slot;
+            }
+        }
+        ScheduleLog.rewrite(file, compacted -> {
+            compacted.generation(maxGeneration);
+            for (int slot = 0; slot < highWater; slot++) {
+                if (wheel.isScheduled(slot)) {
+                    compacted.scheduled(id(slot), accountsFrom[slot], accountsTo[slot], amountsMinor[slot], dueMillis[slot]);
+                }
+            }
+        });
+        log = new ScheduleLog(file);
+    }
+
+    private void put(int slot, long accountFrom, long accountTo, long amountMinor, long due) {
+        accountsFrom[slot] = accountFrom;
+        accountsTo[slot] = accountTo;
+        amountsMinor[slot] = amountMinor;
+        dueMillis[slot] = due;
+        //Ceiling, a transfer is never executed before its time.
+        wheel.schedule(slot, -Math.floorDiv(-due, tickMillis));
+    }
+
+    //Slot of a pending transfer, -1 when the id does not match one.
+    private int slot(long id) {
+        final long slot = id & SLOT_MASK;
+        if (slot >= highWater || generations[(int) slot] != (int) (id >>> 32) || !wheel.isScheduled((int) slot)) {
+            return -1;
+        }
+        return (int) slot;
+    }
+
+    private long id(int slot) {
+        return (long) generations[slot] << 32 | slot;
+    }
+
+    private int allocate() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        ensureCapacity(highWater + 1);
+        generations[highWater] = baseGeneration;
+        return highWater++;
+    }
+
+    private void free(int slot) {
+        generations[slot]++;
+        maxGeneration = Math.max(maxGeneration, generations[slot]);
+        freeSlots[freeCount++] = slot;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= generations.length) {
+            return;
+        }
+        final int grown = Math.max(capacity, generations.length * 2);
+        accountsFrom = Arrays.copyOf(accountsFrom, grown);
+        accountsTo = Arrays.copyOf(accountsTo, grown);
+        amountsMinor = Arrays.copyOf(amountsMinor, grown);
+        dueMillis = Arrays.copyOf(dueMillis, grown);
+        generations = Arrays.copyOf(generations, grown);
+        freeSlots = Arrays.copyOf(freeSlots, grown);
+    }
+
+    private void runDueQuietly() {
+        try {
+            runDue();
+        } catch (IOException | RuntimeException e) {
+            failureCount.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package email.kulakov.test.moneytransfer.snapshot;
+
+import email.kulakov.test.moneytransfer.db.MinorUnits;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+//Sums balances of an image with fork-join: ranges of account ids are split until they are small enough for one task.
+public final class BalanceTotal extends RecursiveTask<BigDecimal> {
+
+    private static final long serialVersionUID = 1L;
+    private static final long RANGE_SIZE = 64 * 1024;
+
+    private final SnapshotDatastore.Image image;
+    private final long firstId;
+    private final long lastId;
+
+    private BalanceTotal(SnapshotDatastore.Image image, long firstId, long lastId) {
+        this.image = image;
+        this.firstId = firstId;
+        this.lastId = lastId;
+    }
+
+    public static BigDecimal compute(SnapshotDatastore.Image image) {
+        return compute(image, ForkJoinPool.commonPool());
+    }
+
+    public static BigDecimal compute(SnapshotDatastore.Image image, ForkJoinPool pool) {
+        return pool.invoke(new BalanceTotal(image, 1, image.accountCount()));
+    }
+
+    @Override
+    protected BigDecimal compute() {
+        if (lastId - firstId < RANGE_SIZE) {
+            return sum();
+        }
+        final long middle = (firstId + lastId) >>> 1;
+        final BalanceTotal right = new BalanceTotal(image, middle + 1, lastId);
+        right.fork();
+        final BigDecimal left = new BalanceTotal(image, firstId, middle).compute();
+        return left.add(right.join());
+    }
+
+    //Minor units are summed as long, BigDecimal only for balances out of it or on overflow.
+    private BigDecimal sum() {
+        long minor = 0;
+        BigDecimal other = BigDecimal.ZERO;
+        for (long accountId = firstId; accountId <= lastId; accountId++) {
+            final long balance = image.balanceMinor(accountId);
+            if (balance == SnapshotDatastore.Image.CLOSED) {
+                continue;
+            }
+            if (balance == MinorUnits.NOT_REPRESENTABLE) {
+                other = other.add(image.balance(accountId));
+                continue;
+            }
+            final long next = minor + balance;
+            if (((minor ^ next) & (balance ^ next)) < 0) {
+                other = other.add(MinorUnits.toBigDecimal(minor));
+                minor = balance;
+            } else {
+                minor = next;
+            }
+        }
+        return other.add(MinorUnits.toBigDecimal(minor));
+    }
+}
@@ -0,0 +1,34 @@
+package email.kulakov.test.moneytransfer.snapshot;
+
+import email.kulakov.test.moneytransfer.db.MinorUnits;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.LongAdder;
+
+//Sum of changeMoney deltas. Deltas in minor units go to a striped counter, the rare rest to a locked BigDecimal.
+final class NetDeposits {
+
+    private final LongAdder minor = new LongAdder();
+    //Guarded by this.
+    private BigDecimal other = BigDecimal.ZERO;
+
+    void add(BigDecimal delta) {
+        final long minorDelta = MinorUnits.toMinor(delta);
+        if (minorDelta == MinorUnits.NOT_REPRESENTABLE) {
+            synchronized (this) {
+                other = other.add(delta);
+            }
+        } else {
+            minor.add(minorDelta);
+        }
+    }
+
+    void add(long minorDelta) {
+        minor.add(minorDelta);
+    }
+
+    //Exact only while no add runs concurrently, e.g. at a cut.
+    synchronized BigDecimal sum() {
+        return MinorUnits.toBigDecimal(minor.sum()).add(other);
+    }
+}
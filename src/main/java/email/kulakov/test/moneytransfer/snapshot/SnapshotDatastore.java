@@ -0,0 +1,434 @@
+package email.kulakov.test.moneytransfer.snapshot;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.FixedPointDatastore;
+import email.kulakov.test.moneytransfer.db.ForwardingDatastore;
+import email.kulakov.test.moneytransfer.db.MinorUnits;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+import email.kulakov.test.moneytransfer.journal.Journal;
+import email.kulakov.test.moneytransfer.journal.JournalingDatastore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+//Gives point-in-time consistent images of all balances while writes go on, e.g. for snapshots and audits.
+//Every write runs inside an epoch. Taking an image starts a new epoch and waits until writes of the previous one
+//finish, that moment is the cut: later writes first save the pre-image of every account they touch (copy-on-write),
+//and the image returns the pre-image when there is one. Writes of the new epoch wait only for the previous epoch
+//to drain, i.e. for writes which were already running.
+public class SnapshotDatastore extends ForwardingDatastore implements Closeable {
+
+    private final Path file;
+    //Backend read directly when it keeps minor units, decorators in between do not change balances.
+    private final FixedPointDatastore fixedPointBackend;
+    private final Journal journal;
+    private final AtomicLong lastAccountId;
+    private final NetDeposits netDeposits = new NetDeposits();
+    //Sum of all balances when the decorator was created, audits compare with it plus net deposits.
+    private final BigDecimal initialTotal;
+    private final ScheduledExecutorService scheduler;
+    private final Object snapshotLock = new Object();
+    private volatile Epoch epoch = new Epoch(null);
+
+    private final AtomicLong snapshotCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private volatile long lastDurationNanos;
+    private volatile long lastAccountCount;
+
+    //Snapshot is written every intervalMillis in the background, never when it is not positive.
+    public SnapshotDatastore(Datastore delegate, Path file, long intervalMillis) {
+        super(delegate);
+        this.file = file;
+        Datastore backend = delegate;
+        Journal foundJournal = null;
+        while (backend instanceof ForwardingDatastore) {
+            if (backend instanceof JournalingDatastore && ((JournalingDatastore) backend).getJournal() != null) {
+                foundJournal = ((JournalingDatastore) backend).getJournal();
+            }
+            backend = ((ForwardingDatastore) backend).getDelegate();
+        }
+        this.journal = foundJournal;
+        this.fixedPointBackend = backend instanceof FixedPointDatastore ? (FixedPointDatastore) backend : null;
+        this.lastAccountId = new AtomicLong(delegate.lastAccountId());
+        final Cut current = new Cut();
+        current.accountCount = lastAccountId.get();
+        this.initialTotal = BalanceTotal.compute(current);
+        if (intervalMillis > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "snapshot-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::snapshotQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    @Override
+    public long createAccount() {
+        final Epoch current = enter();
+        try {
+            final long accountId = delegate.createAccount();
+            lastAccountId.accumulateAndGet(accountId, Math::max);
+            return accountId;
+        } finally {
+            current.exit();
+        }
+    }
+
+    @Override
+    public long createAccounts(int count) {
+        final Epoch current = enter();
+        try {
+            final long firstId = delegate.createAccounts(count);
+            lastAccountId.accumulateAndGet(firstId + count - 1, Math::max);
+            return firstId;
+        } finally {
+            current.exit();
+        }
+    }
+
+    @Override
+    public OperationResult changeMoney(long accountId, BigDecimal delta) {
+        final Epoch current = enter();
+        try {
+            current.preserve(accountId);
+            final OperationResult result = delegate.changeMoney(accountId, delta);
+            if (result.isSuccess()) {
+                netDeposits.add(delta);
+            }
+            return result;
+        } finally {
+            current.exit();
+        }
+    }
+
+    @Override
+    public OperationResult transferMoney(long accountFrom, long accountTo, BigDecimal amount) {
+        final Epoch current = enter();
+        try {
+            current.preserve(accountFrom);
+            current.preserve(accountTo);
+            return delegate.transferMoney(accountFrom, accountTo, amount);
+        } finally {
+            current.exit();
+        }
+    }
+
+    @Override
+    public OperationResult changeMoneyMinor(long accountId, long delta) {
+        final Epoch current = enter();
+        try {
+            current.preserve(accountId);
+            final OperationResult result = delegate.changeMoneyMinor(accountId, delta);
+            if (result.isSuccess()) {
+                netDeposits.add(delta);
+            }
+            return result;
+        } finally {
+            current.exit();
+        }
+    }
+
+    @Override
+    public OperationResult transferMoneyMinor(long accountFrom, long accountTo, long amount) {
+        final Epoch current = enter();
+        try {
+            current.preserve(accountFrom);
+            current.preserve(accountTo);
+            return delegate.transferMoneyMinor(accountFrom, accountTo, amount);
+        } finally {
+            current.exit();
+        }
+    }
+
+    @Override
+    public List<OperationResult> transferBatch(List<Transfer> transfers, boolean atomic) {
+        final Epoch current = enter();
+        try {
+            for (Transfer transfer : transfers) {
+                current.preserve(transfer.getAccountFrom());
+                current.preserve(transfer.getAccountTo());
+            }
+            return delegate.transferBatch(transfers, atomic);
+        } finally {
+            current.exit();
+        }
+    }
+
+    @Override
+    public OperationResult freezeAccount(long accountId) {
+        final Epoch current = enter();
+        try {
+            current.preserveFrozen(accountId);
+            return delegate.freezeAccount(accountId);
+        } finally {
+            current.exit();
+        }
+    }
+
+    @Override
+    public OperationResult unfreezeAccount(long accountId) {
+        final Epoch current = enter();
+        try {
+            current.preserveFrozen(accountId);
+            return delegate.unfreezeAccount(accountId);
+        } finally {
+            current.exit();
+        }
+    }
+
+    //The image keeps a closed account open with its zero balance when it was closed after the cut.
+    @Override
+    public OperationResult closeAccount(long accountId) {
+        final Epoch current = enter();
+        try {
+            current.preserve(accountId);
+            current.preserveFrozen(accountId);
+            return delegate.closeAccount(accountId);
+        } finally {
+            current.exit();
+        }
+    }
+
+    //Writes a snapshot now and returns its header.
+    public SnapshotFile.Header snapshot() throws IOException {
+        return withImage(image -> {
+            final long start = System.nanoTime();
+            try (SnapshotFile.Writer writer = new SnapshotFile.Writer(file)) {
+                //Records before the position are made durable, so replay from it never misses the snapshot's tail.
+                if (journal != null) {
+                    journal.sync();
+                }
+                for (long accountId = 1; accountId <= image.accountCount(); accountId++) {
+                    final long balance = image.balanceMinor(accountId);
+                    if (balance == MinorUnits.NOT_REPRESENTABLE) {
+                        writer.balance(image.balance(accountId));
+                    } else {
+                        writer.balance(balance);
+                    }
+                    if (balance != Image.CLOSED && image.isFrozen(accountId)) {
+                        writer.frozen(accountId);
+                    }
+                }
+                writer.finish(image.journalPosition());
+            }
+            snapshotCount.incrementAndGet();
+            lastAccountCount = image.accountCount();
+            lastDurationNanos = System.nanoTime() - start;
+            return new SnapshotFile.Header(image.accountCount(), image.journalPosition());
+        });
+    }
+
+    //Takes a cut and gives the reader an image of it. Writes go on meanwhile, one image is taken at a time.
+    public <T> T withImage(ImageReader<T> reader) throws IOException {
+        synchronized (snapshotLock) {
+            final Cut cut = new Cut();
+            final Epoch previous = epoch;
+            final Epoch next = new Epoch(cut);
+            epoch = next;
+            previous.awaitQuiescent();
+            cut.accountCount = lastAccountId.get();
+            cut.journalPosition = journal == null ? SnapshotFile.NO_JOURNAL : journal.position();
+            cut.netDeposits = netDeposits.sum();
+            next.ready = true;
+            try {
+                return reader.read(cut);
+            } finally {
+                //Writes of this epoch stop saving pre-images, the next cut drains them as its previous epoch.
+                next.cut = null;
+            }
+        }
+    }
+
+    public BigDecimal initialTotal() {
+        return initialTotal;
+    }
+
+    public long snapshotCount() {
+        return snapshotCount.get();
+    }
+
+    public long failureCount() {
+        return failureCount.get();
+    }
+
+    public long lastDurationNanos() {
+        return lastDurationNanos;
+    }
+
+    public long lastAccountCount() {
+        return lastAccountCount;
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            //Next attempt writes a complete file again, the previous snapshot stays in place.
+            failureCount.incrementAndGet();
+        }
+    }
+
+    private Epoch enter() {
+        while (true) {
+            final Epoch current = epoch;
+            current.entered.increment();
+            if (epoch == current) {
+                while (!current.ready) {
+                    Thread.yield();
+                }
+                return current;
+            }
+            //A snapshot switched the epoch meanwhile, it may already consider the old one drained.
+            current.exited.increment();
+        }
+    }
+
+    private final class Epoch {
+        final LongAdder entered = new LongAdder();
+        final LongAdder exited = new LongAdder();
+        volatile Cut cut;
+        volatile boolean ready;
+
+        Epoch(Cut cut) {
+            this.cut = cut;
+            this.ready = cut == null;
+        }
+
+        void exit() {
+            exited.increment();
+        }
+
+        //Saves the balance before the first write of this epoch to the account.
+        void preserve(long accountId) {
+            final Cut current = cut;
+            if (current != null && accountId > 0 && accountId <= current.accountCount
+                    && !current.preImages.containsKey(accountId)) {
+                final BigDecimal balance = delegate.balance(accountId);
+                if (balance != null) {
+                    current.preImages.putIfAbsent(accountId, balance);
+                }
+            }
+        }
+
+        //Saves the frozen flag before the first lifecycle change of this epoch to the account.
+        void preserveFrozen(long accountId) {
+            final Cut current = cut;
+            if (current != null && accountId > 0 && accountId <= current.accountCount
+                    && !current.frozenPreImages.containsKey(accountId)) {
+                current.frozenPreImages.putIfAbsent(accountId, delegate.isFrozen(accountId));
+            }
+        }
+
+        void awaitQuiescent() {
+            //Exits are read first: an entry counted after it can not make the sums equal too early.
+            while (exited.sum() != entered.sum()) {
+                Thread.yield();
+            }
+        }
+    }
+
+    public interface ImageReader<T> {
+        T read(Image image) throws IOException;
+    }
+
+    //Balances of accounts 1..accountCount() at the cut.
+    public interface Image {
+        //Balance of an account which was closed before the cut.
+        long CLOSED = Long.MIN_VALUE + 1;
+
+        long accountCount();
+
+        //MinorUnits.NOT_REPRESENTABLE when the balance has more fraction digits, then balance() has it.
+        long balanceMinor(long accountId);
+
+        //Null for a closed account.
+        BigDecimal balance(long accountId);
+
+        boolean isFrozen(long accountId);
+
+        //Sum of successful changeMoney deltas since the decorator was created, up to the cut.
+        BigDecimal netDeposits();
+
+        long journalPosition();
+    }
+
+    private final class Cut implements Image {
+        final Map<Long, BigDecimal> preImages = new ConcurrentHashMap<>();
+        final Map<Long, Boolean> frozenPreImages = new ConcurrentHashMap<>();
+        //Set before the epoch becomes ready.
+        volatile long accountCount;
+        volatile long journalPosition = SnapshotFile.NO_JOURNAL;
+        volatile BigDecimal netDeposits = BigDecimal.ZERO;
+
+        @Override
+        public long accountCount() {
+            return accountCount;
+        }
+
+        //Current balance is read first: a write changing it afterwards has already saved the pre-image.
+        @Override
+        public long balanceMinor(long accountId) {
+            if (fixedPointBackend == null) {
+                final BigDecimal balance = balance(accountId);
+                return balance == null ? CLOSED : MinorUnits.toMinor(balance);
+            }
+            final long balance = fixedPointBackend.balanceMinor(accountId);
+            if (preImages.isEmpty()) {
+                return balance;
+            }
+            final BigDecimal preImage = preImages.get(accountId);
+            return preImage == null ? balance : MinorUnits.toMinor(preImage);
+        }
+
+        @Override
+        public BigDecimal balance(long accountId) {
+            final BigDecimal balance = delegate.balance(accountId);
+            if (preImages.isEmpty()) {
+                return balance;
+            }
+            final BigDecimal preImage = preImages.get(accountId);
+            return preImage == null ? balance : preImage;
+        }
+
+        @Override
+        public boolean isFrozen(long accountId) {
+            final boolean frozen = delegate.isFrozen(accountId);
+            if (frozenPreImages.isEmpty()) {
+                return frozen;
+            }
+            final Boolean preImage = frozenPreImages.get(accountId);
+            return preImage == null ? frozen : preImage;
+        }
+
+        @Override
+        public BigDecimal netDeposits() {
+            return netDeposits;
+        }
+
+        @Override
+        public long journalPosition() {
+            return journalPosition;
+        }
+    }
+}
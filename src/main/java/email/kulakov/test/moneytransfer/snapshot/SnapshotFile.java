@@ -0,0 +1,272 @@
+package email.kulakov.test.moneytransfer.snapshot;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.FixedPointDatastore;
+import email.kulakov.test.moneytransfer.db.MinorUnits;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+//Layout, little-endian: header [long magic][int version][int scale][long accountCount][long journalPosition]
+//[int exceptionCount][int frozenCount] padded to HEADER_SIZE, then accountCount balances as long minor units
+//(account N at index N - 1, Image.CLOSED for a closed account), then exceptionCount balances not representable in
+//minor units: [long accountId][int scale][int length][unscaled], then frozenCount ids of frozen accounts.
+//Accounts 1..accountCount were created, so the file is the whole image including the id generator state.
+//Version 1 files are the same without closed and frozen accounts.
+public final class SnapshotFile {
+
+    public static final String FILE_NAME = "snapshot.bin";
+    //Journal position of a snapshot written without journal.
+    public static final long NO_JOURNAL = -1;
+
+    private static final long MAGIC = 0x4D54534E41505301L;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    //Balances per mapping, a mapping is limited to 2GB.
+    private static final int BALANCES_PER_SEGMENT = 1 << 27;
+    //Accounts created per createAccounts call on restore.
+    private static final int CREATE_RANGE_SIZE = 64 * 1024;
+
+    private SnapshotFile() {
+    }
+
+    public static final class Header {
+        private final long accountCount;
+        private final long journalPosition;
+
+        Header(long accountCount, long journalPosition) {
+            this.accountCount = accountCount;
+            this.journalPosition = journalPosition;
+        }
+
+        public long getAccountCount() {
+            return accountCount;
+        }
+
+        public long getJournalPosition() {
+            return journalPosition;
+        }
+    }
+
+    //Loads the snapshot into an empty datastore: accounts are created and balances set from parallel threads,
+    //each reading its own slice of the memory-mapped file.
+    public static Header restore(Path file, Datastore datastore, int parallelism) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            final int version = header.getInt(8);
+            if (header.getLong(0) != MAGIC || version < 1 || version > VERSION || header.getInt(12) != MinorUnits.SCALE) {
+                throw new IOException("Unsupported snapshot format " + file);
+            }
+            final long accountCount = header.getLong(16);
+            final long journalPosition = header.getLong(24);
+            final int exceptionCount = header.getInt(32);
+            final int frozenCount = header.getInt(36);
+
+            final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+            try {
+                //Ranges of different workers interleave, together they are 1..accountCount in an empty datastore.
+                parallel(executor, parallelism, accountCount, (from, to) -> {
+                    for (long i = from; i < to; i += CREATE_RANGE_SIZE) {
+                        datastore.createAccounts((int) Math.min(CREATE_RANGE_SIZE, to - i));
+                    }
+                });
+                if (accountCount > 0 && (datastore.balance(accountCount) == null || datastore.balance(accountCount + 1) != null)) {
+                    throw new IllegalStateException("Snapshot must be restored into an empty datastore");
+                }
+                final FixedPointDatastore fixedPoint = datastore instanceof FixedPointDatastore
+                        ? (FixedPointDatastore) datastore : null;
+                for (long segmentStart = 0; segmentStart < accountCount; segmentStart += BALANCES_PER_SEGMENT) {
+                    final long first = segmentStart;
+                    final int size = (int) Math.min(BALANCES_PER_SEGMENT, accountCount - segmentStart);
+                    final MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY,
+                            HEADER_SIZE + first * Long.BYTES, (long) size * Long.BYTES);
+                    parallel(executor, parallelism, size, (from, to) -> {
+                        final ByteBuffer balances = segment.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                        for (long i = from; i < to; i++) {
+                            final long balance = balances.getLong((int) i * Long.BYTES);
+                            if (balance == SnapshotDatastore.Image.CLOSED) {
+                                check(datastore.closeAccount(first + i + 1));
+                            } else if (balance != 0 && balance != MinorUnits.NOT_REPRESENTABLE) {
+                                final long accountId = first + i + 1;
+                                check(fixedPoint != null
+                                        ? fixedPoint.changeMoneyMinor(accountId, balance)
+                                        : datastore.changeMoney(accountId, MinorUnits.toBigDecimal(balance)));
+                            }
+                        }
+                    });
+                }
+            } finally {
+                executor.shutdown();
+            }
+            restoreTail(channel, HEADER_SIZE + accountCount * Long.BYTES, exceptionCount, frozenCount, datastore);
+            return new Header(accountCount, journalPosition);
+        }
+    }
+
+    //Exceptions and frozen accounts after the balances.
+    private static void restoreTail(FileChannel channel, long position, int exceptionCount, int frozenCount,
+                                    Datastore datastore) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) (channel.size() - position)).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer, position);
+        buffer.flip();
+        for (int i = 0; i < exceptionCount; i++) {
+            final long accountId = buffer.getLong();
+            final int scale = buffer.getInt();
+            final byte[] unscaled = new byte[buffer.getInt()];
+            buffer.get(unscaled);
+            check(datastore.changeMoney(accountId, new BigDecimal(new BigInteger(unscaled), scale)));
+        }
+        for (int i = 0; i < frozenCount; i++) {
+            check(datastore.freezeAccount(buffer.getLong()));
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Snapshot is truncated");
+            }
+        }
+    }
+
+    private static void check(OperationResult result) {
+        if (!result.isSuccess()) {
+            throw new IllegalStateException("Snapshot balance was not restored: " + result);
+        }
+    }
+
+    //Splits [0, count) into parallelism ranges and waits for all of them.
+    private static void parallel(ExecutorService executor, int parallelism, long count, RangeTask task) throws IOException {
+        final long slice = (count + parallelism - 1) / parallelism;
+        final List<Future<?>> futures = new ArrayList<>(parallelism);
+        for (long from = 0; from < count; from += slice) {
+            final long start = from;
+            final long end = Math.min(count, from + slice);
+            futures.add(executor.submit(() -> task.run(start, end)));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Snapshot restore was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private interface RangeTask {
+        void run(long from, long to);
+    }
+
+    //Writes balances in account order into a temporary file, finish() moves it over the snapshot atomically.
+    static final class Writer implements Closeable {
+        private final Path file;
+        private final Path temporary;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private final List<Long> exceptionIds = new ArrayList<>();
+        private final List<BigDecimal> exceptions = new ArrayList<>();
+        private final List<Long> frozenIds = new ArrayList<>();
+        private long accountCount;
+        private boolean finished;
+
+        Writer(Path file) throws IOException {
+            this.file = file;
+            this.temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            channel.position(HEADER_SIZE);
+        }
+
+        //Balance of the next account.
+        void balance(long minor) throws IOException {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.putLong(minor);
+            accountCount++;
+        }
+
+        void balance(BigDecimal balance) throws IOException {
+            final long minor = MinorUnits.toMinor(balance);
+            if (minor == MinorUnits.NOT_REPRESENTABLE) {
+                exceptionIds.add(accountCount + 1);
+                exceptions.add(balance);
+            }
+            balance(minor);
+        }
+
+        //The account is restored frozen.
+        void frozen(long accountId) {
+            frozenIds.add(accountId);
+        }
+
+        void finish(long journalPosition) throws IOException {
+            for (int i = 0; i < exceptions.size(); i++) {
+                final byte[] unscaled = exceptions.get(i).unscaledValue().toByteArray();
+                if (buffer.remaining() < 2 * Long.BYTES + unscaled.length) {
+                    drain();
+                }
+                buffer.putLong(exceptionIds.get(i)).putInt(exceptions.get(i).scale()).putInt(unscaled.length).put(unscaled);
+            }
+            for (long accountId : frozenIds) {
+                if (buffer.remaining() < Long.BYTES) {
+                    drain();
+                }
+                buffer.putLong(accountId);
+            }
+            drain();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(MAGIC).putInt(VERSION).putInt(MinorUnits.SCALE).putLong(accountCount)
+                    .putLong(journalPosition).putInt(exceptions.size()).putInt(frozenIds.size());
+            header.clear();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+            channel.close();
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                channel.close();
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
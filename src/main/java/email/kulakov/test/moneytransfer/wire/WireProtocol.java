@@ -0,0 +1,47 @@
+package email.kulakov.test.moneytransfer.wire;
+
+import email.kulakov.test.moneytransfer.db.OperationResult;
+
+//Binary protocol, all numbers are little-endian, amounts are long minor units (see MinorUnits).
+//Request frame: [int length][byte opcode][payload], response frame: [int length][byte status][payload].
+//Length counts the bytes after it. Requests on a connection may be pipelined, responses come in request order.
+public final class WireProtocol {
+
+    //No payload. Response: long accountId.
+    public static final byte CREATE = 1;
+    //long accountId. Response: long balance, status NoAccount without payload.
+    public static final byte BALANCE = 2;
+    //long accountId, long delta. Response: status only.
+    public static final byte CHANGE_MONEY = 3;
+    //long accountFrom, long accountTo, long amount. Response: status only.
+    public static final byte TRANSFER_MONEY = 4;
+    //byte atomic, int count, count * (long accountFrom, long accountTo, long amount).
+    //Response: int count, count * byte status.
+    public static final byte TRANSFER_BATCH = 5;
+
+    //Status is OperationResult.ordinal(), new results are only appended to the enum.
+    //Frame could not be parsed, the server closes the connection after this response.
+    public static final byte MALFORMED = -1;
+    //Datastore failed, e.g. the journal could not be written.
+    public static final byte ERROR = -2;
+
+    public static final int LENGTH_SIZE = Integer.BYTES;
+    public static final int TRANSFER_SIZE = 3 * Long.BYTES;
+    public static final int MAX_BATCH_SIZE = 1000;
+    public static final int MAX_REQUEST_LENGTH = 1 + 1 + Integer.BYTES + MAX_BATCH_SIZE * TRANSFER_SIZE;
+    public static final int MAX_RESPONSE_LENGTH = 1 + Integer.BYTES + MAX_BATCH_SIZE;
+
+    private static final OperationResult[] RESULTS = OperationResult.values();
+
+    private WireProtocol() {
+    }
+
+    public static byte status(OperationResult result) {
+        return (byte) result.ordinal();
+    }
+
+    //Null for MALFORMED and ERROR.
+    public static OperationResult result(byte status) {
+        return status >= 0 && status < RESULTS.length ? RESULTS[status] : null;
+    }
+}
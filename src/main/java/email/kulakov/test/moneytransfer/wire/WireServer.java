@@ -0,0 +1,319 @@
+package email.kulakov.test.moneytransfer.wire;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.MinorUnits;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+//Serves WireProtocol on plain NIO. One acceptor thread, connections are spread over worker threads with own selectors.
+//A worker decodes every complete frame in its read buffer and calls the datastore inline, responses of all of them
+//are written with one write. Frames are decoded in place from per-connection direct buffers.
+public class WireServer implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    //Amounts go in minor units, they are converted only where the datastore or a decorator needs BigDecimal.
+    private final Datastore datastore;
+    private final ServerSocketChannel serverChannel;
+    private final Worker[] workers;
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    public WireServer(Datastore datastore, int port, int workerCount) throws IOException {
+        this.datastore = datastore;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(i);
+        }
+        acceptor = new Thread(this::accept, "wire-acceptor");
+        acceptor.setDaemon(true);
+    }
+
+    public void start() {
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+        acceptor.start();
+    }
+
+    //Bound port, useful with port 0.
+    public int port() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+    }
+
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                final SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                workers[next].register(channel);
+                next = (next + 1) % workers.length;
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (!running) {
+                    return;
+                }
+            }
+        }
+    }
+
+    //Decodes complete frames from in and appends responses to out while out has room for the largest response.
+    //Returns false when the connection must be closed.
+    private boolean process(ByteBuffer in, ByteBuffer out) {
+        while (in.remaining() >= WireProtocol.LENGTH_SIZE
+                && out.remaining() >= WireProtocol.LENGTH_SIZE + WireProtocol.MAX_RESPONSE_LENGTH) {
+            final int start = in.position();
+            final int length = in.getInt(start);
+            if (length < 1 || length > WireProtocol.MAX_REQUEST_LENGTH) {
+                respond(out, WireProtocol.MALFORMED);
+                return false;
+            }
+            if (in.remaining() < WireProtocol.LENGTH_SIZE + length) {
+                break;
+            }
+            in.position(start + WireProtocol.LENGTH_SIZE);
+            final int end = start + WireProtocol.LENGTH_SIZE + length;
+            final boolean valid;
+            try {
+                valid = dispatch(in, length - 1, out);
+            } catch (RuntimeException e) {
+                in.position(end);
+                respond(out, WireProtocol.ERROR);
+                continue;
+            }
+            if (!valid) {
+                respond(out, WireProtocol.MALFORMED);
+                return false;
+            }
+            in.position(end);
+        }
+        return true;
+    }
+
+    //Returns false when the payload does not match the opcode.
+    private boolean dispatch(ByteBuffer in, int payloadLength, ByteBuffer out) {
+        final byte opcode = in.get();
+        switch (opcode) {
+            case WireProtocol.CREATE:
+                if (payloadLength != 0) {
+                    return false;
+                }
+                final long accountId = datastore.createAccount();
+                out.putInt(1 + Long.BYTES).put(WireProtocol.status(OperationResult.Success)).putLong(accountId);
+                return true;
+            case WireProtocol.BALANCE:
+                if (payloadLength != Long.BYTES) {
+                    return false;
+                }
+                final long balance = datastore.balanceMinor(in.getLong());
+                if (balance == Datastore.NO_BALANCE) {
+                    respond(out, WireProtocol.status(OperationResult.NoAccount));
+                } else if (balance == Datastore.UNREPRESENTABLE_BALANCE) {
+                    respond(out, WireProtocol.status(OperationResult.WrongAmount));
+                } else {
+                    out.putInt(1 + Long.BYTES).put(WireProtocol.status(OperationResult.Success)).putLong(balance);
+                }
+                return true;
+            case WireProtocol.CHANGE_MONEY:
+                if (payloadLength != 2 * Long.BYTES) {
+                    return false;
+                }
+                respond(out, WireProtocol.status(datastore.changeMoneyMinor(in.getLong(), in.getLong())));
+                return true;
+            case WireProtocol.TRANSFER_MONEY:
+                if (payloadLength != WireProtocol.TRANSFER_SIZE) {
+                    return false;
+                }
+                respond(out, WireProtocol.status(datastore.transferMoneyMinor(in.getLong(), in.getLong(), in.getLong())));
+                return true;
+            case WireProtocol.TRANSFER_BATCH:
+                return transferBatch(in, payloadLength, out);
+            default:
+                return false;
+        }
+    }
+
+    private boolean transferBatch(ByteBuffer in, int payloadLength, ByteBuffer out) {
+        if (payloadLength < 1 + Integer.BYTES) {
+            return false;
+        }
+        final boolean atomic = in.get() != 0;
+        final int count = in.getInt();
+        if (count < 1 || count > WireProtocol.MAX_BATCH_SIZE
+                || payloadLength != 1 + Integer.BYTES + count * WireProtocol.TRANSFER_SIZE) {
+            return false;
+        }
+        final List<Transfer> transfers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            transfers.add(new Transfer(in.getLong(), in.getLong(), MinorUnits.toBigDecimal(in.getLong())));
+        }
+        final List<OperationResult> results = datastore.transferBatch(transfers, atomic);
+        out.putInt(1 + Integer.BYTES + count).put(WireProtocol.status(OperationResult.Success)).putInt(count);
+        for (OperationResult result : results) {
+            out.put(WireProtocol.status(result));
+        }
+        return true;
+    }
+
+    private static void respond(ByteBuffer out, byte status) {
+        out.putInt(1).put(status);
+    }
+
+    private static ByteBuffer allocate() {
+        return ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private final class Worker {
+        final Selector selector;
+        final Thread thread;
+        final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+
+        Worker(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this::run, "wire-worker-" + index);
+            thread.setDaemon(true);
+        }
+
+        void register(SocketChannel channel) {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        private void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = registrations.poll()) != null) {
+                        try {
+                            channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                        } catch (ClosedChannelException e) {
+                            //Closed by the client before it was registered.
+                        }
+                    }
+                    final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        final Connection connection = (Connection) key.attachment();
+                        try {
+                            connection.handle(key);
+                        } catch (IOException | RuntimeException e) {
+                            //Only this connection is dropped, e.g. on a cancelled key or a datastore failure,
+                            //the other connections of the worker go on.
+                            connection.close(key);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                //Selector failed, connections of this worker are lost.
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close(key);
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private final class Connection {
+        final SocketChannel channel;
+        //Kept in read mode between events: position..limit is unprocessed input.
+        final ByteBuffer in = allocate();
+        //Kept in write mode: 0..position is output not yet written.
+        final ByteBuffer out = allocate();
+        boolean closing;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            in.flip();
+        }
+
+        void handle(SelectionKey key) throws IOException {
+            if (key.isWritable() && !flush(key)) {
+                return;
+            }
+            if (key.isReadable()) {
+                in.compact();
+                final int read = channel.read(in);
+                in.flip();
+                if (read < 0) {
+                    close(key);
+                    return;
+                }
+            }
+            //Processing stops when out is full, frames left after the flush are processed in the next round.
+            do {
+                closing = !process(in, out);
+            } while (flush(key) && hasFrame());
+        }
+
+        private boolean hasFrame() {
+            if (in.remaining() < WireProtocol.LENGTH_SIZE) {
+                return false;
+            }
+            final int length = in.getInt(in.position());
+            return length < 1 || length > WireProtocol.MAX_REQUEST_LENGTH
+                    || in.remaining() >= WireProtocol.LENGTH_SIZE + length;
+        }
+
+        //Returns true when all output is written. Otherwise reading stops until the socket accepts more.
+        private boolean flush(SelectionKey key) throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            if (out.position() > 0) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+            if (closing) {
+                close(key);
+                return false;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            return true;
+        }
+
+        void close(SelectionKey key) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -2,22 +2,39 @@ package email.kulakov.test.moneytransfer;
 
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.name.Names;
 import email.kulakov.test.moneytransfer.db.BlockingDatastore;
 import email.kulakov.test.moneytransfer.db.ConcurrentDatastore;
 import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.LedgerDatastore;
+import email.kulakov.test.moneytransfer.db.MappedDatastore;
+import email.kulakov.test.moneytransfer.db.ShardedDatastore;
+import email.kulakov.test.moneytransfer.fx.RateTable;
+import email.kulakov.test.moneytransfer.limits.SpendingLimitDatastore;
 import org.eclipse.jetty.server.Server;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.Form;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.Closeable;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Arrays;
 
 @RunWith(value = Parameterized.class)
 public class AccountResourceTest {
@@ -26,11 +43,16 @@ public class AccountResourceTest {
 
     private final Class<? extends Datastore> datastoreClass;
 
+    @Rule
+    public TemporaryFolder dataDirectory = new TemporaryFolder();
+
     private Server server;
+    private Datastore backend;
 
     @Parameterized.Parameters
     public static Object[] data() {
-        return new Object[]{ConcurrentDatastore.class, BlockingDatastore.class};
+        return new Object[]{ConcurrentDatastore.class, BlockingDatastore.class, LedgerDatastore.class, MappedDatastore.class,
+                ShardedDatastore.class};
     }
 
     public AccountResourceTest(Class<? extends Datastore> datastoreClass) {
@@ -39,14 +61,26 @@ public class AccountResourceTest {
 
     @Before
     public void prepare() throws Exception {
-        final Injector injector = Guice.createInjector(new MoneyTransferGuiceModule(datastoreClass));
+        Files.write(dataDirectory.getRoot().toPath().resolve(RateTable.FILE_NAME),
+                Arrays.asList("USD 0.9", "GBP 1.15"), StandardCharsets.US_ASCII);
+        final Injector injector = Guice.createInjector(createModule(datastoreClass));
+        backend = injector.getInstance(Key.get(Datastore.class, Names.named(MoneyTransferGuiceModule.BACKEND)));
         server = MoneyTransferApplication.createServer(injector, 8080);
         server.start();
     }
 
+    protected MoneyTransferGuiceModule createModule(Class<? extends Datastore> datastoreClass) {
+        return new MoneyTransferGuiceModule(datastoreClass, dataDirectory.getRoot().toPath()).withCurrencies("EUR", 0)
+                .withSpendingLimits(null, SpendingLimitDatastore.NO_VELOCITY_LIMIT);
+    }
+
     @After
     public void tearDown() throws Exception {
         server.stop();
+        //Stops shard threads of ShardedDatastore, unmaps MappedDatastore.
+        if (backend instanceof Closeable) {
+            ((Closeable) backend).close();
+        }
     }
 
     @Test
@@ -221,6 +255,308 @@ public class AccountResourceTest {
         Assert.assertEquals(initial, balance(id1));
     }
 
+    @Test
+    public void transferBatchTest() {
+        //given
+        final long id1 = createAccount();
+        final long id2 = createAccount();
+        final BigDecimal initial = new BigDecimal("100.00");
+        assertSuccessChangeMoney(id1, initial);
+
+        //when
+        final Response response = transferBatchRequest(false,
+                id1 + "," + id2 + ",30.00\n" + id1 + "," + id2 + ",100.00\n" + id2 + "," + id1 + ",10.00\n");
+
+        //then
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals("Success\nNoMoney\nSuccess\n", response.readEntity(String.class));
+        Assert.assertEquals(new BigDecimal("80.00"), balance(id1));
+        Assert.assertEquals(new BigDecimal("20.00"), balance(id2));
+    }
+
+    @Test
+    public void transferBatchAtomicTest() {
+        //given
+        final long id1 = createAccount();
+        final long id2 = createAccount();
+        final BigDecimal initial = new BigDecimal("100.00");
+        assertSuccessChangeMoney(id1, initial);
+        assertSuccessChangeMoney(id2, initial);
+
+        //when
+        final Response response = transferBatchRequest(true,
+                id1 + "," + id2 + ",30.00\n" + id2 + "," + (id2 + 1) + ",10.00\n");
+
+        //then
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals("Aborted\nNoAccount\n", response.readEntity(String.class));
+        Assert.assertEquals(initial, balance(id1));
+        Assert.assertEquals(initial, balance(id2));
+    }
+
+    @Test
+    public void idempotentChangeMoneyTest() {
+        //given
+        final long id1 = createAccount();
+        final BigDecimal delta = new BigDecimal("10.00");
+
+        //when
+        final Response first = changeMoneyRequest(id1, delta, "key-1");
+        final Response retry = changeMoneyRequest(id1, delta, "key-1");
+        final Response reused = changeMoneyRequest(id1, delta.negate(), "key-1");
+
+        //then
+        Assert.assertEquals(200, first.getStatus());
+        Assert.assertEquals(200, retry.getStatus());
+        Assert.assertEquals(422, reused.getStatus());
+        Assert.assertEquals(delta, balance(id1));
+    }
+
+    @Test
+    public void transactionsTest() {
+        //given
+        final long id1 = createAccount();
+        final long id2 = createAccount();
+        assertSuccessChangeMoney(id1, new BigDecimal("100.00"));
+        assertSuccessTransferMoney(id1, id2, new BigDecimal("30.00"));
+        changeMoneyRequest(id2, new BigDecimal("-100.00"));
+        assertSuccessTransferMoney(id2, id1, new BigDecimal("10.00"));
+
+        //when
+        final Response firstPage = transactionsRequest(id1, 0, 2);
+        final Response secondPage = transactionsRequest(id1, 2, 2);
+
+        //then
+        Assert.assertEquals(200, firstPage.getStatus());
+        Assert.assertEquals("2", firstPage.getHeaderString("X-Next-Cursor"));
+        Assert.assertArrayEquals(new String[]{"0,,100.00", "1," + id2 + ",-30.00"},
+                withoutTimestamps(firstPage.readEntity(String.class)));
+        Assert.assertEquals("3", secondPage.getHeaderString("X-Next-Cursor"));
+        Assert.assertArrayEquals(new String[]{"2," + id2 + ",10.00"}, withoutTimestamps(secondPage.readEntity(String.class)));
+        Assert.assertEquals(404, transactionsRequest(id2 + 1, 0, 2).getStatus());
+    }
+
+    @Test
+    public void bulkCreateTest() {
+        //given
+        final long before = createAccount();
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            body.append(i % 100).append(".").append(i % 10).append("\n");
+        }
+        body.append("7.25\r\n0");
+
+        //when
+        final Response response = bulkRequest(Entity.text(body.toString()));
+
+        //then
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals((before + 1) + "," + (before + 10_002), response.readEntity(String.class));
+        Assert.assertEquals(0, new BigDecimal("0.00").compareTo(balance(before + 1)));
+        Assert.assertEquals(0, new BigDecimal("99.90").compareTo(balance(before + 10_000)));
+        Assert.assertEquals(0, new BigDecimal("7.25").compareTo(balance(before + 10_001)));
+        Assert.assertEquals(0, new BigDecimal("0.00").compareTo(balance(before + 10_002)));
+        Assert.assertEquals(before + 10_003, createAccount());
+    }
+
+    @Test
+    public void bulkCreateBinaryTest() {
+        //given
+        final ByteBuffer body = ByteBuffer.allocate(3 * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        body.putLong(100).putLong(0).putLong(12345);
+
+        //when
+        final Response response = bulkRequest(Entity.entity(body.array(), MediaType.APPLICATION_OCTET_STREAM_TYPE));
+
+        //then
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals("1,3", response.readEntity(String.class));
+        Assert.assertEquals(0, new BigDecimal("1.00").compareTo(balance(1)));
+        Assert.assertEquals(0, new BigDecimal("123.45").compareTo(balance(3)));
+    }
+
+    @Test
+    public void bulkCreateMalformedTest() {
+        //when
+        final Response negative = bulkRequest(Entity.text("1.00\n-1.00\n"));
+        final Response malformed = bulkRequest(Entity.text("1.00\nabc\n"));
+        final Response empty = bulkRequest(Entity.text(""));
+
+        //then
+        Assert.assertEquals(400, negative.getStatus());
+        Assert.assertEquals(400, malformed.getStatus());
+        Assert.assertEquals(400, empty.getStatus());
+        Assert.assertEquals(1, createAccount());
+    }
+
+    @Test
+    public void currencyTransferTest() {
+        //given
+        final long eur = createAccount();
+        final long usd = createAccount("USD");
+        final long gbp = createAccount("GBP");
+        assertSuccessChangeMoney(eur, new BigDecimal("100.00"));
+
+        //when
+        assertSuccessTransferMoney(eur, usd, new BigDecimal("9.00"));
+        assertSuccessTransferMoney(usd, gbp, new BigDecimal("0.01"));
+
+        //then
+        Assert.assertEquals(0, new BigDecimal("91.00").compareTo(balance(eur)));
+        Assert.assertEquals(0, new BigDecimal("9.99").compareTo(balance(usd)));
+        Assert.assertEquals(0, new BigDecimal("0.01").compareTo(balance(gbp)));
+        Assert.assertEquals("EUR", currencyRequest(eur).readEntity(String.class));
+        Assert.assertEquals("USD", currencyRequest(usd).readEntity(String.class));
+        Assert.assertEquals(404, currencyRequest(gbp + 1).getStatus());
+        Assert.assertEquals(400, ClientBuilder.newClient()
+                .target(SERVICE_URL + "/create").queryParam("currency", "XYZ").request()
+                .post(Entity.form(new Form())).getStatus());
+    }
+
+    @Test
+    public void spendingLimitTest() {
+        //given
+        final long id1 = createAccount();
+        final long id2 = createAccount();
+        assertSuccessChangeMoney(id1, new BigDecimal("100.00"));
+        Assert.assertEquals(200, limitsRequest(id1, "20.00", "3").getStatus());
+
+        //when
+        assertSuccessTransferMoney(id1, id2, new BigDecimal("6.00"));
+        final Response overDaily = transferMoneyRequest(id1, id2, new BigDecimal("15.00"));
+        assertSuccessChangeMoney(id1, new BigDecimal("-4.00"));
+        assertSuccessTransferMoney(id1, id2, new BigDecimal("1.00"));
+        final Response overVelocity = changeMoneyRequest(id1, new BigDecimal("-0.01"));
+        final String limits = ClientBuilder.newClient()
+                .target(SERVICE_URL + "/" + id1 + "/limits").request()
+                .get(String.class);
+
+        //then
+        Assert.assertEquals(429, overDaily.getStatus());
+        Assert.assertEquals(429, overVelocity.getStatus());
+        Assert.assertEquals("20.00,3,11.00,3", limits);
+        Assert.assertEquals(0, new BigDecimal("89.00").compareTo(balance(id1)));
+        Assert.assertEquals(200, limitsRequest(id1, "none", "none").getStatus());
+        assertSuccessChangeMoney(id1, new BigDecimal("-50.00"));
+        Assert.assertEquals(400, limitsRequest(id1, "1.001", "3").getStatus());
+        Assert.assertEquals(400, limitsRequest(id1, "10.00", "-1").getStatus());
+        Assert.assertEquals(404, limitsRequest(id2 + 1, "10.00", "3").getStatus());
+    }
+
+    @Test
+    public void metricsTest() {
+        //given
+        final long id1 = createAccount();
+        assertSuccessChangeMoney(id1, new BigDecimal("10.00"));
+        changeMoneyRequest(id1, new BigDecimal("-100.00"));
+
+        //when
+        final Response response = ClientBuilder.newClient()
+                .target("http://localhost:8080/metrics").request()
+                .get();
+
+        //then
+        Assert.assertEquals(200, response.getStatus());
+        final String metrics = response.readEntity(String.class);
+        Assert.assertTrue(metrics.contains("datastore_operations_total{operation=\"changeMoney\",result=\"Success\"} 1\n"));
+        Assert.assertTrue(metrics.contains("datastore_operations_total{operation=\"changeMoney\",result=\"NoMoney\"} 1\n"));
+        Assert.assertTrue(metrics.contains("http_requests_total{method=\"changeMoney\",status=\"5xx\"} 1\n"));
+        Assert.assertTrue(metrics.contains("datastore_operation_latency_seconds_count{operation=\"changeMoney\"} 2\n"));
+    }
+
+    @Test
+    public void auditTest() {
+        //given
+        final long id1 = createAccount();
+        final long id2 = createAccount();
+        assertSuccessChangeMoney(id1, new BigDecimal("100.00"));
+        assertSuccessChangeMoney(id2, new BigDecimal("0.50"));
+        Assert.assertEquals(200, transferMoneyRequest(id1, id2, new BigDecimal("40.00")).getStatus());
+        final Response before = ClientBuilder.newClient()
+                .target("http://localhost:8080/admin/audit").request()
+                .get();
+
+        //when
+        final Response response = ClientBuilder.newClient()
+                .target("http://localhost:8080/admin/audit").request()
+                .post(Entity.form(new Form()));
+
+        //then
+        Assert.assertEquals(404, before.getStatus());
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals("accounts=2\ntotal=100.50\nexpected=100.50\ndrift=0.00\n", response.readEntity(String.class));
+    }
+
+    @Test
+    public void scheduledTransferTest() throws Exception {
+        //given
+        final long id1 = createAccount();
+        final long id2 = createAccount();
+        assertSuccessChangeMoney(id1, new BigDecimal("100.00"));
+
+        //when
+        final Response later = scheduleRequest(id1, id2, "20.00", "2100-01-01T00:00:00Z");
+        final Response noAccount = scheduleRequest(id1, 42, "20.00", "2100-01-01T00:00:00Z");
+        final Response malformed = scheduleRequest(id1, id2, "20.00", "tomorrow");
+        final long laterId = later.readEntity(Long.class);
+        final String pending = ClientBuilder.newClient()
+                .target("http://localhost:8080/v1/scheduled").queryParam("account", id1).request()
+                .get(String.class);
+        final Response cancelled = cancelRequest(laterId);
+        final Response cancelledAgain = cancelRequest(laterId);
+        final Response due = scheduleRequest(id1, id2, "10.00", Instant.now().minusSeconds(1).toString());
+        for (int i = 0; i < 100 && !balance(id2).equals(new BigDecimal("10.00")); i++) {
+            Thread.sleep(50);
+        }
+
+        //then
+        Assert.assertEquals(200, due.getStatus());
+        Assert.assertEquals(404, noAccount.getStatus());
+        Assert.assertEquals(400, malformed.getStatus());
+        Assert.assertEquals(laterId + "," + id2 + ",20.00,2100-01-01T00:00:00Z\n", pending);
+        Assert.assertEquals(200, cancelled.getStatus());
+        Assert.assertEquals(404, cancelledAgain.getStatus());
+        Assert.assertEquals(new BigDecimal("90.00"), balance(id1));
+        Assert.assertEquals(new BigDecimal("10.00"), balance(id2));
+    }
+
+    @Test
+    public void accountLifecycleTest() {
+        //given
+        final long id1 = createAccount();
+        final long id2 = createAccount();
+        assertSuccessChangeMoney(id1, new BigDecimal("10.00"));
+        final boolean supported = datastoreClass == ConcurrentDatastore.class || datastoreClass == BlockingDatastore.class;
+
+        //when
+        final Response frozen = lifecycleRequest(id1, "freeze");
+        if (!supported) {
+            //then
+            Assert.assertEquals(501, frozen.getStatus());
+            return;
+        }
+        final Response debit = transferMoneyRequest(id1, id2, new BigDecimal("1.00"));
+        final Response credit = changeMoneyRequest(id1, new BigDecimal("1.00"));
+        final Response notEmpty = lifecycleRequest(id1, "close");
+        final Response unfrozen = lifecycleRequest(id1, "unfreeze");
+        assertSuccessTransferMoney(id1, id2, new BigDecimal("11.00"));
+        final Response closed = lifecycleRequest(id1, "close");
+        final Response closedAgain = lifecycleRequest(id1, "close");
+
+        //then
+        Assert.assertEquals(200, frozen.getStatus());
+        Assert.assertEquals(403, debit.getStatus());
+        Assert.assertEquals(200, credit.getStatus());
+        Assert.assertEquals(409, notEmpty.getStatus());
+        Assert.assertEquals(200, unfrozen.getStatus());
+        Assert.assertEquals(200, closed.getStatus());
+        Assert.assertEquals(404, closedAgain.getStatus());
+        Assert.assertEquals(404, balanceRequest(id1).getStatus());
+        Assert.assertEquals(404, transferMoneyRequest(id2, id1, new BigDecimal("1.00")).getStatus());
+        Assert.assertEquals(new BigDecimal("11.00"), balance(id2));
+        Assert.assertEquals(id2 + 1, createAccount());
+    }
+
     private long createAccount() {
         final Response response = ClientBuilder.newClient()
                 .target(SERVICE_URL + "/create").request()
@@ -229,6 +565,26 @@ public class AccountResourceTest {
         return response.readEntity(Long.class);
     }
 
+    private long createAccount(String currency) {
+        final Response response = ClientBuilder.newClient()
+                .target(SERVICE_URL + "/create").queryParam("currency", currency).request()
+                .post(Entity.form(new Form()));
+        Assert.assertEquals(200, response.getStatus());
+        return response.readEntity(Long.class);
+    }
+
+    private Response currencyRequest(long account) {
+        return ClientBuilder.newClient()
+                .target(SERVICE_URL + "/" + account + "/currency").request()
+                .get();
+    }
+
+    private Response limitsRequest(long account, String daily, String perMinute) {
+        return ClientBuilder.newClient()
+                .target(SERVICE_URL + "/" + account + "/limits").request()
+                .put(Entity.form(new Form().param("daily", daily).param("perMinute", perMinute)));
+    }
+
     private void assertSuccessChangeMoney(long account, BigDecimal delta) {
         final Response response = changeMoneyRequest(account, delta);
         Assert.assertEquals(200, response.getStatus());
@@ -245,6 +601,12 @@ public class AccountResourceTest {
         Assert.assertEquals(200, response.getStatus());
     }
 
+    private Response bulkRequest(Entity<?> body) {
+        return ClientBuilder.newClient()
+                .target(SERVICE_URL + "/bulk").request()
+                .post(body);
+    }
+
     private Response balanceRequest(long account) {
         return ClientBuilder.newClient()
                 .target(SERVICE_URL + "/" + account + "/balance").request()
@@ -252,11 +614,60 @@ public class AccountResourceTest {
     }
 
     private Response changeMoneyRequest(long account, BigDecimal delta) {
+        return changeMoneyRequest(account, delta, null);
+    }
+
+    private Response changeMoneyRequest(long account, BigDecimal delta, String idempotencyKey) {
         return ClientBuilder.newClient()
                 .target(SERVICE_URL + "/" + account + "/changeMoney").request()
+                .header("Idempotency-Key", idempotencyKey)
                 .post(Entity.form(new Form("delta", delta.toString())));
     }
 
+    private Response lifecycleRequest(long account, String operation) {
+        return ClientBuilder.newClient()
+                .target(SERVICE_URL + "/" + account + "/" + operation).request()
+                .post(Entity.form(new Form()));
+    }
+
+    private Response scheduleRequest(long from, long to, String amount, String at) {
+        final Form form = new Form()
+                .param("from", String.valueOf(from))
+                .param("to", String.valueOf(to))
+                .param("amount", amount)
+                .param("at", at);
+        return ClientBuilder.newClient()
+                .target("http://localhost:8080/v1/scheduled").request()
+                .post(Entity.form(form));
+    }
+
+    private Response cancelRequest(long id) {
+        return ClientBuilder.newClient()
+                .target("http://localhost:8080/v1/scheduled/" + id).request()
+                .delete();
+    }
+
+    private Response transactionsRequest(long account, int cursor, int limit) {
+        return ClientBuilder.newClient()
+                .target(SERVICE_URL + "/" + account + "/transactions")
+                .queryParam("cursor", cursor).queryParam("limit", limit).request()
+                .get();
+    }
+
+    private static String[] withoutTimestamps(String transactions) {
+        final String[] lines = transactions.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = lines[i].replaceFirst(",\\d+,", ",");
+        }
+        return lines;
+    }
+
+    private Response transferBatchRequest(boolean atomic, String body) {
+        return ClientBuilder.newClient()
+                .target(SERVICE_URL + "/transferBatch").queryParam("atomic", atomic).request()
+                .post(Entity.text(body));
+    }
+
     private Response transferMoneyRequest(long from, long to, BigDecimal amount) {
         final Form form = new Form()
                 .param("to", String.valueOf(to))
@@ -0,0 +1,170 @@
+package email.kulakov.test.moneytransfer;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+import email.kulakov.test.moneytransfer.db.BlockingDatastore;
+import email.kulakov.test.moneytransfer.db.ConcurrentDatastore;
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.MappedDatastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.journal.DurabilityMode;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Form;
+import javax.ws.rs.core.Response;
+import java.io.Closeable;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+
+public class ApplicationConfigTest {
+
+    private static final int PORT = 8098;
+
+    @Rule
+    public TemporaryFolder dataDirectory = new TemporaryFolder();
+
+    @Test
+    public void systemPropertiesOverrideConfigFileTest() throws Exception {
+        //given
+        final Path file = dataDirectory.newFile("moneytransfer.properties").toPath();
+        Files.write(file, Arrays.asList("datastore=BlockingDatastore", "jetty.maxThreads=16", "http.keepAlive=false",
+                "jetty.threadPool=EXECUTOR"), StandardCharsets.ISO_8859_1);
+        System.setProperty(ApplicationConfig.FILE_PROPERTY, file.toString());
+        System.setProperty(ApplicationConfig.JETTY_MAX_THREADS, "32");
+
+        //when
+        final ApplicationConfig config;
+        try {
+            config = ApplicationConfig.load();
+        } finally {
+            System.clearProperty(ApplicationConfig.FILE_PROPERTY);
+            System.clearProperty(ApplicationConfig.JETTY_MAX_THREADS);
+        }
+
+        //then
+        Assert.assertEquals(BlockingDatastore.class, config.getDatastoreClass(ConcurrentDatastore.class));
+        Assert.assertEquals(32, config.getMaxThreads());
+        Assert.assertEquals(8, config.getMinThreads());
+        Assert.assertFalse(config.isKeepAlive());
+        Assert.assertEquals(ThreadPoolType.EXECUTOR, config.getThreadPoolType());
+        Assert.assertEquals(ConcurrentDatastore.class,
+                ApplicationConfig.defaults().getDatastoreClass(ConcurrentDatastore.class));
+    }
+
+    @Test
+    public void invalidSettingsAreRejectedTest() {
+        //given
+        final Properties properties = new Properties();
+        properties.setProperty(ApplicationConfig.DATASTORE, "String");
+        properties.setProperty(ApplicationConfig.JETTY_ACCEPTORS, "two");
+        properties.setProperty(ApplicationConfig.HTTP_H2C, "yes");
+        final ApplicationConfig config = ApplicationConfig.of(properties);
+
+        //then
+        try {
+            config.getDatastoreClass(ConcurrentDatastore.class);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            Assert.assertEquals("Not a datastore: datastore=String", expected.getMessage());
+        }
+        try {
+            config.getAcceptors();
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            Assert.assertEquals("Expected a number: jetty.acceptors=two", expected.getMessage());
+        }
+        try {
+            config.isH2c();
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            Assert.assertEquals("Expected true or false: http.h2c=yes", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void journalIsNotReplayedIntoPersistentDatastoreTest() throws Exception {
+        //given
+        final Properties properties = new Properties();
+        properties.setProperty(ApplicationConfig.DATASTORE, "MappedDatastore");
+        final Class<? extends Datastore> datastoreClass = ApplicationConfig.of(properties)
+                .getDatastoreClass(ConcurrentDatastore.class);
+        final Injector first = journaledInjector(datastoreClass);
+        final Datastore datastore = first.getInstance(Datastore.class);
+        final long id = datastore.createAccount();
+        Assert.assertEquals(OperationResult.Success, datastore.changeMoney(id, new BigDecimal("10.00")));
+        closeBackend(first);
+
+        //when
+        final Injector restarted = journaledInjector(datastoreClass);
+        final Datastore recovered = restarted.getInstance(Datastore.class);
+        final long next = recovered.createAccount();
+        closeBackend(restarted);
+
+        //then
+        Assert.assertEquals(MappedDatastore.class, datastoreClass);
+        Assert.assertEquals(new BigDecimal("10.00"), recovered.balance(id));
+        Assert.assertEquals(id + 1, next);
+    }
+
+    private Injector journaledInjector(Class<? extends Datastore> datastoreClass) {
+        return Guice.createInjector(new MoneyTransferGuiceModule(datastoreClass, dataDirectory.getRoot().toPath())
+                .withJournal(DurabilityMode.SYNC, 0));
+    }
+
+    private static void closeBackend(Injector injector) throws Exception {
+        ((Closeable) injector.getInstance(Key.get(Datastore.class, Names.named(MoneyTransferGuiceModule.BACKEND))))
+                .close();
+    }
+
+    @Test
+    public void tunedServerReportsTimeToFirstRequestTest() throws Exception {
+        //given
+        final Properties properties = new Properties();
+        properties.setProperty(ApplicationConfig.JETTY_THREAD_POOL, "EXECUTOR");
+        properties.setProperty(ApplicationConfig.JETTY_MAX_THREADS, "16");
+        properties.setProperty(ApplicationConfig.JETTY_ACCEPTORS, "1");
+        properties.setProperty(ApplicationConfig.JETTY_SELECTORS, "1");
+        properties.setProperty(ApplicationConfig.HTTP_KEEP_ALIVE, "false");
+        properties.setProperty(ApplicationConfig.HTTP_OUTPUT_BUFFER_SIZE, "4096");
+        final Injector injector = Guice.createInjector(new MoneyTransferGuiceModule(ConcurrentDatastore.class,
+                dataDirectory.getRoot().toPath()));
+        final Server server = MoneyTransferApplication.createServer(injector, PORT, ApplicationConfig.of(properties));
+        server.start();
+        try {
+            //when
+            final String before = metrics();
+            final Response created = ClientBuilder.newClient()
+                    .target("http://localhost:" + PORT + "/v1/accounts/create").request()
+                    .post(Entity.form(new Form()));
+            final String after = metrics();
+
+            //then
+            Assert.assertTrue(server.getThreadPool() instanceof ExecutorThreadPool);
+            Assert.assertEquals(200, created.getStatus());
+            Assert.assertEquals("close", created.getHeaderString("Connection"));
+            Assert.assertTrue(before, before.contains("startup_seconds{phase=\"server_started\"}"));
+            Assert.assertTrue(before, before.contains("server_start_seconds "));
+            Assert.assertFalse(before, before.contains("startup_seconds{phase=\"first_request\"}"));
+            Assert.assertTrue(after, after.contains("startup_seconds{phase=\"first_request\"}"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static String metrics() {
+        return ClientBuilder.newClient().target("http://localhost:" + PORT + "/metrics").request().get(String.class);
+    }
+}
@@ -0,0 +1,16 @@
+package email.kulakov.test.moneytransfer;
+
+import email.kulakov.test.moneytransfer.db.Datastore;
+
+//Runs the whole AccountResourceTest suite against AsyncAccountResource.
+public class AsyncAccountResourceTest extends AccountResourceTest {
+
+    public AsyncAccountResourceTest(Class<? extends Datastore> datastoreClass) {
+        super(datastoreClass);
+    }
+
+    @Override
+    protected MoneyTransferGuiceModule createModule(Class<? extends Datastore> datastoreClass) {
+        return super.createModule(datastoreClass).withExecution(ExecutionMode.POOL, 4, 100);
+    }
+}
@@ -0,0 +1,76 @@
+package email.kulakov.test.moneytransfer.api;
+
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IdempotencyCacheTest {
+
+    @Test
+    public void inFlightDuplicateWaitsForResultTest() {
+        //given
+        final IdempotencyCache cache = new IdempotencyCache(60_000, 100, 1 << 20);
+        final CompletableFuture<OperationResult> inFlight = new CompletableFuture<>();
+        final AtomicInteger executions = new AtomicInteger();
+
+        //when
+        final CompletableFuture<OperationResult> first = cache.execute("key", "op", () -> {
+            executions.incrementAndGet();
+            return inFlight;
+        });
+        final CompletableFuture<OperationResult> duplicate = cache.execute("key", "op", () -> {
+            executions.incrementAndGet();
+            return CompletableFuture.completedFuture(OperationResult.NoMoney);
+        });
+        Assert.assertFalse(duplicate.isDone());
+        inFlight.complete(OperationResult.Success);
+
+        //then
+        Assert.assertEquals(OperationResult.Success, first.join());
+        Assert.assertEquals(OperationResult.Success, duplicate.join());
+        Assert.assertEquals(1, executions.get());
+        Assert.assertEquals(1, cache.hits());
+        Assert.assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void sizeLimitEvictsOldestTest() {
+        //given
+        final IdempotencyCache cache = new IdempotencyCache(60_000, 2, 1 << 20);
+
+        //when
+        for (int i = 0; i < 5; i++) {
+            cache.execute("key-" + i, "op", () -> CompletableFuture.completedFuture(OperationResult.Success)).join();
+        }
+
+        //then
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(3, cache.evictions());
+    }
+
+    @Test
+    public void busyResultIsNotRememberedTest() {
+        //given
+        final IdempotencyCache cache = new IdempotencyCache(60_000, 100, 1 << 20);
+        final AtomicInteger executions = new AtomicInteger();
+
+        //when
+        final OperationResult first = cache.execute("key", "op", () -> {
+            executions.incrementAndGet();
+            return CompletableFuture.completedFuture(OperationResult.Busy);
+        }).join();
+        final OperationResult retry = cache.execute("key", "op", () -> {
+            executions.incrementAndGet();
+            return CompletableFuture.completedFuture(OperationResult.Success);
+        }).join();
+
+        //then
+        Assert.assertEquals(OperationResult.Busy, first);
+        Assert.assertEquals(OperationResult.Success, retry);
+        Assert.assertEquals(2, executions.get());
+        Assert.assertEquals(1, cache.size());
+    }
+}
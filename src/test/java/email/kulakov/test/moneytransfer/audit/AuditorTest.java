@@ -0,0 +1,100 @@
+package email.kulakov.test.moneytransfer.audit;
+
+import email.kulakov.test.moneytransfer.db.ConcurrentDatastore;
+import email.kulakov.test.moneytransfer.db.LedgerDatastore;
+import email.kulakov.test.moneytransfer.snapshot.SnapshotDatastore;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class AuditorTest {
+
+    @Rule
+    public TemporaryFolder dataDirectory = new TemporaryFolder();
+
+    @Test
+    public void auditIsBalancedDuringTrafficTest() throws Exception {
+        //given
+        final LedgerDatastore backend = new LedgerDatastore();
+        final int accounts = 10_000;
+        for (int i = 0; i < accounts; i++) {
+            backend.changeMoney(backend.createAccount(), new BigDecimal("100.00"));
+        }
+        final SnapshotDatastore datastore = new SnapshotDatastore(backend, file(), 0);
+        final Auditor auditor = new Auditor(datastore, new ForkJoinPool(2), 0);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final Thread thread = new Thread(() -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get()) {
+                    final long account = 1 + random.nextInt(accounts);
+                    if (random.nextInt(10) == 0) {
+                        datastore.changeMoney(account, new BigDecimal(random.nextInt(200) - 100).movePointLeft(2));
+                    } else {
+                        datastore.transferMoney(account, 1 + random.nextInt(accounts), new BigDecimal("1.00"));
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        //when
+        final List<AuditReport> reports = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            reports.add(auditor.audit());
+        }
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        //then
+        for (AuditReport report : reports) {
+            Assert.assertEquals(accounts, report.getAccountCount());
+            Assert.assertEquals(0, report.getDrift().signum());
+        }
+        Assert.assertEquals(20, auditor.auditCount());
+        Assert.assertEquals(0, auditor.driftCount());
+        Assert.assertEquals(new BigDecimal("1000000.00"), datastore.initialTotal());
+    }
+
+    @Test
+    public void auditFindsDriftTest() throws Exception {
+        //given
+        final ConcurrentDatastore backend = new ConcurrentDatastore();
+        final SnapshotDatastore datastore = new SnapshotDatastore(backend, file(), 0);
+        final long id1 = datastore.createAccount();
+        final long id2 = datastore.createAccount();
+        datastore.changeMoney(id1, new BigDecimal("10.00"));
+        datastore.changeMoney(id2, new BigDecimal("0.001"));
+        final Auditor auditor = new Auditor(datastore, ForkJoinPool.commonPool(), 0);
+        Assert.assertTrue(auditor.audit().isBalanced());
+
+        //when
+        //Money created behind the decorator is not a changeMoney it knows about.
+        backend.changeMoney(id1, new BigDecimal("5.00"));
+        final AuditReport report = auditor.audit();
+
+        //then
+        Assert.assertEquals(new BigDecimal("15.001"), report.getTotal());
+        Assert.assertEquals(new BigDecimal("10.001"), report.getExpected());
+        Assert.assertEquals(0, new BigDecimal("5.00").compareTo(report.getDrift()));
+        Assert.assertEquals(1, auditor.driftCount());
+        Assert.assertSame(report, auditor.lastReport());
+    }
+
+    private Path file() {
+        return dataDirectory.getRoot().toPath().resolve("snapshot.bin");
+    }
+}
@@ -0,0 +1,302 @@
+package email.kulakov.test.moneytransfer.cluster;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import email.kulakov.test.moneytransfer.MoneyTransferApplication;
+import email.kulakov.test.moneytransfer.MoneyTransferGuiceModule;
+import email.kulakov.test.moneytransfer.db.ConcurrentDatastore;
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.LedgerDatastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import org.eclipse.jetty.server.Server;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Form;
+import javax.ws.rs.core.Response;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+public class ClusterTest {
+
+    private static final List<String> NODES = Arrays.asList("http://localhost:8091", "http://localhost:8092",
+            "http://localhost:8093");
+
+    @Rule
+    public TemporaryFolder dataDirectory = new TemporaryFolder();
+
+    private final Server[] servers = new Server[NODES.size()];
+    private final ClusterDatastore[] datastores = new ClusterDatastore[NODES.size()];
+
+    @Before
+    public void prepare() throws Exception {
+        for (int node = 0; node < NODES.size(); node++) {
+            final Injector injector = Guice.createInjector(new MoneyTransferGuiceModule(ConcurrentDatastore.class,
+                    dataDirectory.newFolder("node-" + node).toPath()).withCluster(NODES, node));
+            datastores[node] = (ClusterDatastore) injector.getInstance(Datastore.class);
+            servers[node] = MoneyTransferApplication.createServer(injector, 8091 + node);
+            servers[node].start();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (int node = 0; node < NODES.size(); node++) {
+            servers[node].stop();
+            datastores[node].close();
+        }
+    }
+
+    @Test
+    public void ringSpreadsKeysAndMovesFewOnGrowthTest() {
+        //given
+        final HashRing ring = new HashRing(NODES, ClusterDatastore.VIRTUAL_NODES);
+        final List<String> grown = new ArrayList<>(NODES);
+        grown.add("http://localhost:8094");
+        final HashRing grownRing = new HashRing(grown, ClusterDatastore.VIRTUAL_NODES);
+        final int keys = 100_000;
+
+        //when
+        final int[] owned = new int[NODES.size()];
+        int moved = 0;
+        for (long key = 0; key < keys; key++) {
+            final int owner = ring.owner(key);
+            owned[owner]++;
+            final int newOwner = grownRing.owner(key);
+            if (newOwner != owner) {
+                //then
+                Assert.assertEquals(NODES.size(), newOwner);
+                moved++;
+            }
+        }
+
+        //then
+        for (int count : owned) {
+            Assert.assertTrue("Node owns " + count + " of " + keys, count > keys / 4 && count < keys * 5 / 12);
+        }
+        Assert.assertTrue("Moved " + moved + " of " + keys, moved > keys / 8 && moved < keys * 3 / 8);
+    }
+
+    @Test
+    public void crossNodeTransfersConserveMoneyTest() throws Exception {
+        //given
+        final int perNode = 4;
+        final long[] accounts = new long[NODES.size() * perNode];
+        for (int i = 0; i < accounts.length; i++) {
+            final int node = i % NODES.size();
+            accounts[i] = createAccount(node);
+            Assert.assertEquals(NODES.get(node), datastores[0].nodeOf(accounts[i]));
+            Assert.assertEquals(200, changeMoneyRequest((node + 1) % NODES.size(), accounts[i], "100.00").getStatus());
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        //when
+        final List<Future<?>> clients = new ArrayList<>();
+        for (int thread = 0; thread < 4; thread++) {
+            final Random random = new Random(thread);
+            clients.add(executor.submit(() -> {
+                for (int i = 0; i < 50; i++) {
+                    final int status = transferMoneyRequest(random.nextInt(NODES.size()),
+                            accounts[random.nextInt(accounts.length)], accounts[random.nextInt(accounts.length)],
+                            (1 + random.nextInt(4000)) / 100 + ".00").getStatus();
+                    //Ok, or not enough money.
+                    Assert.assertTrue("Status " + status, status == 200 || status == 500);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : clients) {
+            future.get();
+        }
+        executor.shutdown();
+
+        //then
+        BigDecimal total = BigDecimal.ZERO;
+        for (long account : accounts) {
+            final BigDecimal balance = balance(0, account);
+            for (int node = 1; node < NODES.size(); node++) {
+                Assert.assertEquals(balance, balance(node, account));
+            }
+            Assert.assertTrue(balance.signum() >= 0);
+            total = total.add(balance);
+        }
+        Assert.assertEquals(new BigDecimal("1200.00"), total);
+        long crossNode = 0;
+        for (ClusterDatastore datastore : datastores) {
+            crossNode += datastore.crossNodeTransferCount();
+            Assert.assertEquals(0, datastore.inDoubtCount());
+        }
+        Assert.assertTrue(crossNode > 0);
+    }
+
+    @Test
+    public void messagesAreAppliedOnceTest() {
+        //given, messages go to the node of the account
+        final long account = createAccount(1);
+        Assert.assertEquals(200, changeMoneyRequest(1, account, "100.00").getStatus());
+        final BigDecimal amount = new BigDecimal("30.00");
+
+        //when
+        final String reserved = messageRequest(1, account, ClusterDatastore.RESERVE, "m1", amount);
+        final String reservedAgain = messageRequest(1, account, ClusterDatastore.RESERVE, "m1", amount);
+        final BigDecimal afterReserve = balance(0, account);
+        final String released = messageRequest(1, account, ClusterDatastore.RELEASE, "m1", amount);
+        messageRequest(1, account, ClusterDatastore.RELEASE, "m1", amount);
+        final BigDecimal afterRelease = balance(0, account);
+        //A release which overtakes its reservation refuses it.
+        final String fenced = messageRequest(1, account, ClusterDatastore.RELEASE, "m2", amount);
+        final String late = messageRequest(1, account, ClusterDatastore.RESERVE, "m2", amount);
+        final String credited = messageRequest(1, account, ClusterDatastore.CREDIT, "m3", amount);
+        messageRequest(1, account, ClusterDatastore.CREDIT, "m3", amount);
+
+        //then
+        Assert.assertEquals("Success", reserved);
+        Assert.assertEquals("Success", reservedAgain);
+        Assert.assertEquals(new BigDecimal("70.00"), afterReserve);
+        Assert.assertEquals("Success", released);
+        Assert.assertEquals(new BigDecimal("100.00"), afterRelease);
+        Assert.assertEquals("Success", fenced);
+        Assert.assertEquals(OperationResult.Aborted.name(), late);
+        Assert.assertEquals("Success", credited);
+        Assert.assertEquals(new BigDecimal("130.00"), balance(2, account));
+    }
+
+    @Test
+    public void appliedMessagesAreKeptForTheRetentionTest() {
+        //given
+        final AtomicLong clock = new AtomicLong();
+        final MessageTable table = new MessageTable(1000, clock::get);
+        final AtomicInteger applied = new AtomicInteger();
+        final Supplier<OperationResult> credit = () -> {
+            applied.incrementAndGet();
+            return OperationResult.Success;
+        };
+        for (int i = 0; i < 10_000; i++) {
+            table.apply(ClusterDatastore.CREDIT + ":m" + i, "1:1.00", credit);
+        }
+
+        //when
+        clock.set(1000);
+        final int expiredInTime = table.expire();
+        final OperationResult again = table.apply(ClusterDatastore.CREDIT + ":m0", "1:1.00", credit);
+        clock.set(1001);
+        final int expiredLater = table.expire();
+
+        //then
+        Assert.assertEquals(0, expiredInTime);
+        Assert.assertEquals(OperationResult.Success, again);
+        Assert.assertEquals(10_000, applied.get());
+        Assert.assertEquals(10_000, expiredLater);
+        Assert.assertEquals(0, table.size());
+        try {
+            table.apply(ClusterDatastore.CREDIT + ":m1", "1:1.00", credit);
+            table.apply(ClusterDatastore.CREDIT + ":m1", "2:1.00", credit);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            Assert.assertEquals("Message id reused: credit:m1", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void messagesInDoubtAreEscalatedBeforeTheyCanBeForgottenTest() throws Exception {
+        //given, nothing listens on the port of the other node
+        final AtomicLong clock = new AtomicLong();
+        final ClusterDatastore datastore = new ClusterDatastore(new LedgerDatastore(),
+                Arrays.asList("http://localhost:8099", "http://localhost:8094"), 0, 2000, 1000, clock::get);
+        long remote = 1;
+        while (datastore.isLocal(remote)) {
+            remote += 1L << AccountIds.BLOCK_BITS;
+        }
+
+        //when
+        final OperationResult result = datastore.changeMoney(remote, new BigDecimal("1.00"));
+        final int inDoubt = datastore.inDoubtCount();
+        clock.addAndGet(1001);
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (datastore.escalatedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        datastore.close();
+
+        //then
+        Assert.assertEquals(OperationResult.Pending, result);
+        Assert.assertEquals(1, inDoubt);
+        Assert.assertEquals(1, datastore.escalatedCount());
+        Assert.assertEquals(0, datastore.inDoubtCount());
+        Assert.assertTrue(datastore.escalatedMessages().get(0).startsWith(ClusterDatastore.CHANGE + " "));
+        try {
+            new ClusterDatastore(new LedgerDatastore(), NODES, 0, 1000, 1000, clock::get);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            Assert.assertEquals("Messages must be resolved before they are forgotten", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void stoppedNodeLeavesBalancesUnchangedTest() throws Exception {
+        //given
+        final long local = createAccount(0);
+        final long remote = createAccount(2);
+        Assert.assertEquals(200, changeMoneyRequest(0, local, "100.00").getStatus());
+
+        //when
+        servers[2].stop();
+        final Response read = balanceRequest(0, remote);
+        final Response transfer = transferMoneyRequest(0, local, remote, "10.00");
+
+        //then
+        Assert.assertEquals(503, read.getStatus());
+        Assert.assertEquals(503, transfer.getStatus());
+        Assert.assertEquals(new BigDecimal("100.00"), balance(1, local));
+        Assert.assertEquals(0, datastores[0].inDoubtCount());
+    }
+
+    private long createAccount(int node) {
+        final Response response = ClientBuilder.newClient().target(NODES.get(node) + "/v1/accounts/create").request()
+                .post(Entity.form(new Form()));
+        Assert.assertEquals(200, response.getStatus());
+        return response.readEntity(Long.class);
+    }
+
+    private Response balanceRequest(int node, long account) {
+        return ClientBuilder.newClient().target(NODES.get(node) + "/v1/accounts/" + account + "/balance").request().get();
+    }
+
+    private BigDecimal balance(int node, long account) {
+        final Response response = balanceRequest(node, account);
+        Assert.assertEquals(200, response.getStatus());
+        return new BigDecimal(response.readEntity(String.class));
+    }
+
+    private Response changeMoneyRequest(int node, long account, String delta) {
+        return ClientBuilder.newClient().target(NODES.get(node) + "/v1/accounts/" + account + "/changeMoney").request()
+                .post(Entity.form(new Form("delta", delta)));
+    }
+
+    private Response transferMoneyRequest(int node, long from, long to, String amount) {
+        return ClientBuilder.newClient().target(NODES.get(node) + "/v1/accounts/" + from + "/transferMoney").request()
+                .post(Entity.form(new Form().param("to", String.valueOf(to)).param("amount", amount)));
+    }
+
+    private String messageRequest(int node, long account, String operation, String messageId, BigDecimal amount) {
+        final Response response = ClientBuilder.newClient().target(NODES.get(node) + ClusterClient.PATH + account + "/" + operation).request()
+                .post(Entity.form(new Form().param("message", messageId).param("amount", amount.toString())));
+        Assert.assertEquals(200, response.getStatus());
+        return response.readEntity(String.class);
+    }
+}
@@ -0,0 +1,116 @@
+package email.kulakov.test.moneytransfer.db;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class BlockingDatastoreTest {
+
+    @Test
+    public void lockTimeoutTest() throws Exception {
+        //given
+        final StripedLockManager locks = new StripedLockManager(16);
+        final BlockingDatastore datastore = new BlockingDatastore(locks, 10);
+        final long id1 = datastore.createAccount();
+        final long id2 = datastore.createAccount();
+        Assert.assertEquals(OperationResult.Success, datastore.changeMoney(id1, new BigDecimal("100.00")));
+
+        //when
+        Assert.assertTrue(locks.tryLockAll(new long[]{id2}, 0, (accountId, waitNanos) -> { }));
+        final OperationResult transferResult = datastore.transferMoney(id1, id2, new BigDecimal("30.00"));
+        final OperationResult batchResult = datastore.transferBatch(
+                Arrays.asList(new Transfer(id1, id2, new BigDecimal("10.00"))), false).get(0);
+        locks.unlockAll(new long[]{id2});
+
+        //then
+        Assert.assertEquals(OperationResult.Busy, transferResult);
+        Assert.assertEquals(OperationResult.Busy, batchResult);
+        Assert.assertEquals(new BigDecimal("100.00"), datastore.balance(id1));
+        Assert.assertEquals(OperationResult.Success, datastore.transferMoney(id1, id2, new BigDecimal("30.00")));
+        Assert.assertEquals(new BigDecimal("30.00"), datastore.balance(id2));
+    }
+
+    @Test
+    public void interruptedWaiterReleasesLocksItHoldsTest() throws Exception {
+        //given
+        final StripedLockManager locks = new StripedLockManager(16);
+        final BlockingDatastore datastore = new BlockingDatastore(locks, 60_000);
+        final long id1 = datastore.createAccount();
+        final long id2 = datastore.createAccount();
+        Assert.assertEquals(OperationResult.Success, datastore.changeMoney(id1, new BigDecimal("100.00")));
+        Assert.assertTrue(locks.tryLockAll(new long[]{id2}, 0, (accountId, waitNanos) -> { }));
+        final AtomicReference<OperationResult> result = new AtomicReference<>();
+        //Takes the stripe of id1, then waits for the one of id2.
+        final Thread waiter = new Thread(() -> result.set(datastore.transferMoney(id1, id2, new BigDecimal("30.00"))));
+
+        //when
+        waiter.start();
+        while (waiter.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        waiter.interrupt();
+        waiter.join(10_000);
+        locks.unlockAll(new long[]{id2});
+
+        //then
+        Assert.assertEquals(OperationResult.Busy, result.get());
+        Assert.assertTrue(locks.tryLockAll(new long[]{id1, id2}, 0, (accountId, waitNanos) -> { }));
+        locks.unlockAll(new long[]{id1, id2});
+        Assert.assertEquals(OperationResult.Success, datastore.transferMoney(id1, id2, new BigDecimal("30.00")));
+    }
+
+    @Test
+    public void frozenAndClosedAccountsTest() {
+        //given
+        final BlockingDatastore datastore = new BlockingDatastore();
+        final long id1 = datastore.createAccount();
+        final long id2 = datastore.createAccount();
+        Assert.assertEquals(OperationResult.Success, datastore.changeMoney(id1, new BigDecimal("100.00")));
+
+        //when
+        final OperationResult frozen = datastore.freezeAccount(id1);
+        final OperationResult debit = datastore.transferMoney(id1, id2, new BigDecimal("10.00"));
+        final OperationResult batchDebit = datastore.transferBatch(
+                Arrays.asList(new Transfer(id1, id2, new BigDecimal("10.00"))), true).get(0);
+        final OperationResult credit = datastore.changeMoney(id1, new BigDecimal("1.00"));
+        final OperationResult notEmpty = datastore.closeAccount(id1);
+        datastore.unfreezeAccount(id1);
+        final OperationResult drained = datastore.transferMoney(id1, id2, new BigDecimal("101.00"));
+        final OperationResult closed = datastore.closeAccount(id1);
+
+        //then
+        Assert.assertEquals(OperationResult.Success, frozen);
+        Assert.assertEquals(OperationResult.Frozen, debit);
+        Assert.assertEquals(OperationResult.Frozen, batchDebit);
+        Assert.assertEquals(OperationResult.Success, credit);
+        Assert.assertEquals(OperationResult.NotEmpty, notEmpty);
+        Assert.assertEquals(OperationResult.Success, drained);
+        Assert.assertEquals(OperationResult.Success, closed);
+        Assert.assertNull(datastore.balance(id1));
+        Assert.assertEquals(OperationResult.NoAccount, datastore.transferMoney(id2, id1, new BigDecimal("1.00")));
+        Assert.assertEquals(OperationResult.NoAccount, datastore.closeAccount(id1));
+        Assert.assertEquals(id2 + 1, datastore.createAccount());
+    }
+
+    @Test
+    public void hotAccountTest() {
+        //given
+        final AccountContention contention = new AccountContention();
+
+        //when
+        for (int i = 0; i < 100; i++) {
+            contention.contended(1, TimeUnit.MICROSECONDS.toNanos(10));
+        }
+        contention.contended(2, TimeUnit.MICROSECONDS.toNanos(10));
+
+        //then
+        Assert.assertTrue(contention.isHot(1));
+        Assert.assertFalse(contention.isHot(2));
+        Assert.assertEquals(1, contention.hotAccounts().size());
+        Assert.assertEquals(100, contention.hotAccounts().get(1L).contentions());
+    }
+}
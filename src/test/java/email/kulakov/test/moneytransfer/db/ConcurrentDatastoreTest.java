@@ -0,0 +1,210 @@
+package email.kulakov.test.moneytransfer.db;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ConcurrentDatastoreTest {
+
+    @Test
+    public void splitAccountKeepsExactBalanceTest() throws Exception {
+        //given
+        final ConcurrentDatastore datastore = new ConcurrentDatastore(4, false);
+        final long id1 = datastore.createAccount();
+        Assert.assertTrue(datastore.splitAccount(id1));
+
+        //when
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final Thread thread = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    datastore.changeMoney(id1, new BigDecimal("0.01"));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        //then
+        Assert.assertTrue(datastore.isSplit(id1));
+        Assert.assertEquals(1, datastore.splitAccounts());
+        Assert.assertEquals(0, new BigDecimal("40.00").compareTo(datastore.balance(id1)));
+    }
+
+    @Test
+    public void debitOfWholeSplitBalanceTest() throws Exception {
+        //given
+        final ConcurrentDatastore datastore = new ConcurrentDatastore(4, false);
+        final long id1 = datastore.createAccount();
+        final long id2 = datastore.createAccount();
+        datastore.splitAccount(id1);
+        //Credits from several threads land in different stripes.
+        for (int i = 0; i < 4; i++) {
+            final Thread thread = new Thread(() -> datastore.changeMoney(id1, new BigDecimal("25.00")));
+            thread.start();
+            thread.join();
+        }
+
+        //when
+        final OperationResult tooMuch = datastore.transferMoney(id1, id2, new BigDecimal("100.01"));
+        final OperationResult all = datastore.transferMoney(id1, id2, new BigDecimal("100.00"));
+
+        //then
+        Assert.assertEquals(OperationResult.NoMoney, tooMuch);
+        Assert.assertEquals(OperationResult.Success, all);
+        Assert.assertEquals(0, BigDecimal.ZERO.compareTo(datastore.balance(id1)));
+        Assert.assertEquals(new BigDecimal("100.00"), datastore.balance(id2));
+        Assert.assertTrue(datastore.isSplit(id1));
+    }
+
+    @Test
+    public void closeDuringTransfersLosesNoMoneyTest() throws Exception {
+        //given
+        final ConcurrentDatastore datastore = new ConcurrentDatastore(4, false);
+        final int accounts = 8;
+        final long firstId = datastore.createAccounts(accounts);
+        for (long id = firstId; id < firstId + accounts; id++) {
+            datastore.changeMoney(id, new BigDecimal("100.00"));
+        }
+        datastore.splitAccount(firstId);
+        final AtomicBoolean running = new AtomicBoolean(true);
+
+        //when
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final Random random = new Random(i);
+            final Thread thread = new Thread(() -> {
+                while (running.get()) {
+                    final long from = firstId + random.nextInt(accounts);
+                    final long to = firstId + random.nextInt(accounts);
+                    //Whole balances are moved often, so accounts are empty often.
+                    final BigDecimal balance = datastore.balance(from);
+                    datastore.transferMoney(from, to, balance != null && random.nextBoolean()
+                            ? balance : new BigDecimal(1 + random.nextInt(2000)).movePointLeft(2));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        final Random random = new Random(42);
+        int closed = 0;
+        for (int i = 0; i < 20_000 && closed < accounts - 2; i++) {
+            if (datastore.closeAccount(firstId + random.nextInt(accounts)) == OperationResult.Success) {
+                closed++;
+            }
+        }
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        //then
+        BigDecimal total = BigDecimal.ZERO;
+        int open = 0;
+        for (long id = firstId; id < firstId + accounts; id++) {
+            final BigDecimal balance = datastore.balance(id);
+            if (balance != null) {
+                Assert.assertTrue(balance.signum() >= 0);
+                total = total.add(balance);
+                open++;
+            }
+        }
+        Assert.assertEquals(0, new BigDecimal("800.00").compareTo(total));
+        Assert.assertEquals(accounts - closed, open);
+        Assert.assertTrue(closed > 0);
+    }
+
+    @Test
+    public void frozenAccountRefusesDebitsTest() {
+        //given
+        final ConcurrentDatastore datastore = new ConcurrentDatastore(4, false);
+        final long id1 = datastore.createAccount();
+        final long id2 = datastore.createAccount();
+        datastore.changeMoney(id1, new BigDecimal("100.00"));
+        datastore.changeMoney(id2, new BigDecimal("1.00"));
+
+        //when
+        datastore.freezeAccount(id1);
+        final OperationResult debit = datastore.changeMoney(id1, new BigDecimal("-1.00"));
+        final OperationResult transfer = datastore.transferMoney(id1, id2, new BigDecimal("1.00"));
+        final OperationResult batch = datastore.transferBatch(Arrays.asList(
+                new Transfer(id2, id1, new BigDecimal("0.01")), new Transfer(id1, id2, new BigDecimal("1.00"))), true).get(1);
+        final OperationResult credit = datastore.transferMoney(id2, id1, new BigDecimal("0.01"));
+        final boolean frozen = datastore.isFrozen(id1);
+        datastore.unfreezeAccount(id1);
+
+        //then
+        Assert.assertEquals(OperationResult.Frozen, debit);
+        Assert.assertEquals(OperationResult.Frozen, transfer);
+        Assert.assertEquals(OperationResult.Frozen, batch);
+        Assert.assertEquals(OperationResult.Success, credit);
+        Assert.assertTrue(frozen);
+        Assert.assertFalse(datastore.isFrozen(id1));
+        Assert.assertEquals(OperationResult.Success, datastore.transferMoney(id1, id2, new BigDecimal("1.00")));
+    }
+
+    @Test
+    public void atomicBatchChecksEntriesInOrderLikeBlockingDatastoreTest() {
+        for (Datastore datastore : new Datastore[]{new ConcurrentDatastore(), new BlockingDatastore()}) {
+            //given
+            final long id1 = datastore.createAccount();
+            final long id2 = datastore.createAccount();
+            final long id3 = datastore.createAccount();
+            Assert.assertEquals(OperationResult.Success, datastore.changeMoney(id1, new BigDecimal("10.00")));
+
+            //when
+            //id2 spends money it receives only in the next entry.
+            final List<OperationResult> spentFirst = datastore.transferBatch(Arrays.asList(
+                    new Transfer(id2, id3, new BigDecimal("10.00")),
+                    new Transfer(id1, id2, new BigDecimal("10.00"))), true);
+            final List<OperationResult> receivedFirst = datastore.transferBatch(Arrays.asList(
+                    new Transfer(id1, id2, new BigDecimal("10.00")),
+                    new Transfer(id2, id3, new BigDecimal("10.00"))), true);
+
+            //then
+            Assert.assertEquals(Arrays.asList(OperationResult.NoMoney, OperationResult.Aborted), spentFirst);
+            Assert.assertEquals(Arrays.asList(OperationResult.Success, OperationResult.Success), receivedFirst);
+            Assert.assertEquals(0, BigDecimal.ZERO.compareTo(datastore.balance(id1)));
+            Assert.assertEquals(0, BigDecimal.ZERO.compareTo(datastore.balance(id2)));
+            Assert.assertEquals(0, new BigDecimal("10.00").compareTo(datastore.balance(id3)));
+        }
+    }
+
+    @Test
+    public void nonAtomicBatchGivesEntryResultsLikeBlockingDatastoreTest() {
+        for (Datastore datastore : new Datastore[]{new ConcurrentDatastore(), new BlockingDatastore()}) {
+            //given
+            final long id1 = datastore.createAccount();
+            final long id2 = datastore.createAccount();
+            final long id3 = datastore.createAccount();
+            Assert.assertEquals(OperationResult.Success, datastore.changeMoney(id1, new BigDecimal("10.00")));
+
+            //when
+            final List<OperationResult> results = datastore.transferBatch(Arrays.asList(
+                    new Transfer(id2, id3, new BigDecimal("5.00")),
+                    new Transfer(id1, id2, new BigDecimal("10.00")),
+                    new Transfer(id2, id3, new BigDecimal("4.00")),
+                    new Transfer(id1, id3, new BigDecimal("0.01")),
+                    new Transfer(id3, id3, new BigDecimal("1.00")),
+                    new Transfer(id1, 100, new BigDecimal("1.00")),
+                    new Transfer(id3, id1, new BigDecimal("4.00"))), false);
+
+            //then
+            Assert.assertEquals(Arrays.asList(OperationResult.NoMoney, OperationResult.Success, OperationResult.Success,
+                    OperationResult.NoMoney, OperationResult.Success, OperationResult.NoAccount,
+                    OperationResult.Success), results);
+            Assert.assertEquals(0, new BigDecimal("4.00").compareTo(datastore.balance(id1)));
+            Assert.assertEquals(0, new BigDecimal("6.00").compareTo(datastore.balance(id2)));
+            Assert.assertEquals(0, BigDecimal.ZERO.compareTo(datastore.balance(id3)));
+        }
+    }
+}
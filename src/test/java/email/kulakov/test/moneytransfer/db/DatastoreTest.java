@@ -0,0 +1,76 @@
+package email.kulakov.test.moneytransfer.db;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+public class DatastoreTest {
+
+    @Test
+    public void failedCompensationIsReportedTest() {
+        //given
+        final LedgerDatastore ledger = new LedgerDatastore();
+        final long id1 = ledger.createAccount();
+        final long id2 = ledger.createAccount();
+        final long id3 = ledger.createAccount();
+        Assert.assertEquals(OperationResult.Success, ledger.changeMoney(id1, new BigDecimal("10.00")));
+        //Default transferBatch, the receiver of the first entry spends the money before the batch is compensated.
+        final Datastore datastore = new Datastore() {
+            @Override
+            public long createAccount() {
+                return ledger.createAccount();
+            }
+
+            @Override
+            public BigDecimal balance(long accountId) {
+                return ledger.balance(accountId);
+            }
+
+            @Override
+            public OperationResult changeMoney(long accountId, BigDecimal delta) {
+                return ledger.changeMoney(accountId, delta);
+            }
+
+            @Override
+            public OperationResult transferMoney(long accountFrom, long accountTo, BigDecimal amount) {
+                final OperationResult result = ledger.transferMoney(accountFrom, accountTo, amount);
+                if (result.isSuccess() && accountTo == id2) {
+                    ledger.transferMoney(id2, id3, amount);
+                }
+                return result;
+            }
+        };
+
+        //when
+        final List<OperationResult> results = datastore.transferBatch(Arrays.asList(
+                new Transfer(id1, id2, new BigDecimal("10.00")),
+                new Transfer(id1, id3, new BigDecimal("1.00"))), true);
+
+        //then
+        Assert.assertEquals(Arrays.asList(OperationResult.NotReverted, OperationResult.NoMoney), results);
+        Assert.assertEquals(new BigDecimal("0.00"), ledger.balance(id1));
+        Assert.assertEquals(new BigDecimal("10.00"), ledger.balance(id3));
+    }
+
+    @Test
+    public void lifecycleWithoutSupportAnswersUnsupportedTest() {
+        //given
+        final LedgerDatastore datastore = new LedgerDatastore();
+        final long id = datastore.createAccount();
+
+        //when
+        final OperationResult frozen = datastore.freezeAccount(id);
+        final OperationResult unfrozen = datastore.unfreezeAccount(id);
+        final OperationResult closed = datastore.closeAccount(id);
+
+        //then
+        Assert.assertEquals(OperationResult.Unsupported, frozen);
+        Assert.assertEquals(OperationResult.Unsupported, unfrozen);
+        Assert.assertEquals(OperationResult.Unsupported, closed);
+        Assert.assertFalse(datastore.isFrozen(id));
+        Assert.assertEquals(BigDecimal.ZERO.setScale(2), datastore.balance(id));
+    }
+}
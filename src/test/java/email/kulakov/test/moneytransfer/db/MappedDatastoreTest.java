@@ -0,0 +1,106 @@
+package email.kulakov.test.moneytransfer.db;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class MappedDatastoreTest {
+
+    @Rule
+    public TemporaryFolder dataDirectory = new TemporaryFolder();
+
+    @Test
+    public void reopenKeepsAccountsTest() throws Exception {
+        //given
+        final Path path = dataDirectory.getRoot().toPath();
+        final MappedDatastore datastore = new MappedDatastore(path);
+        final long id1 = datastore.createAccount();
+        final long id2 = datastore.createAccount();
+        Assert.assertEquals(OperationResult.Success, datastore.changeMoney(id1, new BigDecimal("100.00")));
+        Assert.assertEquals(OperationResult.Success, datastore.transferMoney(id1, id2, new BigDecimal("30.00")));
+
+        //when
+        datastore.close();
+        final MappedDatastore reopened = new MappedDatastore(path);
+
+        //then
+        Assert.assertEquals(new BigDecimal("70.00"), reopened.balance(id1));
+        Assert.assertEquals(new BigDecimal("30.00"), reopened.balance(id2));
+        Assert.assertEquals(id2 + 1, reopened.createAccount());
+        reopened.close();
+    }
+
+    @Test
+    public void transferTornByCrashIsRolledBackOnOpenTest() throws Exception {
+        //given
+        final Path path = dataDirectory.getRoot().toPath();
+        final MappedDatastore datastore = new MappedDatastore(path);
+        final long id1 = datastore.createAccount();
+        final long id2 = datastore.createAccount();
+        Assert.assertEquals(OperationResult.Success, datastore.changeMoneyMinor(id1, 100_00));
+        //Crash after the debit of a 30.00 transfer: its undo record is left, the credit is not written.
+        Assert.assertEquals(OperationResult.Success, datastore.changeMoneyMinor(id1, -30_00));
+        datastore.close();
+        try (FileChannel undo = FileChannel.open(path.resolve(MappedDatastore.UNDO_FILE_NAME), StandardOpenOption.WRITE)) {
+            final ByteBuffer record = ByteBuffer.allocate(4 * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            record.putLong(id1).putLong(100_00).putLong(id2).putLong(0).flip();
+            undo.write(record, Math.min(id1, id2) * record.capacity());
+        }
+
+        //when
+        final MappedDatastore reopened = new MappedDatastore(path);
+
+        //then
+        Assert.assertEquals(100_00, reopened.balanceMinor(id1));
+        Assert.assertEquals(0, reopened.balanceMinor(id2));
+        //The record is cleared, a later change is not rolled back by the next open.
+        Assert.assertEquals(OperationResult.Success, reopened.changeMoneyMinor(id1, -1_00));
+        reopened.close();
+        final MappedDatastore again = new MappedDatastore(path);
+        Assert.assertEquals(99_00, again.balanceMinor(id1));
+        again.close();
+    }
+
+    @Test
+    public void transfersCrossingLockStripesDoNotDeadlockTest() throws Exception {
+        //given
+        final MappedDatastore datastore = new MappedDatastore(dataDirectory.getRoot().toPath());
+        datastore.createAccounts(1026);
+        for (long id : new long[]{1, 2, 1025, 1026}) {
+            Assert.assertEquals(OperationResult.Success, datastore.changeMoney(id, new BigDecimal("1000.00")));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        //when
+        //1 and 1025 share a stripe, as do 2 and 1026: id order of both transfers is opposite stripe order.
+        final Future<?> first = executor.submit(() -> transferMany(datastore, 1, 1026));
+        final Future<?> second = executor.submit(() -> transferMany(datastore, 1025, 2));
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        //then
+        Assert.assertEquals(new BigDecimal("2000.00"), datastore.balance(1).add(datastore.balance(1026)));
+        Assert.assertEquals(new BigDecimal("2000.00"), datastore.balance(1025).add(datastore.balance(2)));
+        datastore.close();
+    }
+
+    private static void transferMany(MappedDatastore datastore, long from, long to) {
+        for (int i = 0; i < 200_000; i++) {
+            datastore.transferMoney(from, to, new BigDecimal("0.01"));
+            datastore.transferMoney(to, from, new BigDecimal("0.01"));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package email.kulakov.test.moneytransfer.db;
+
+import email.kulakov.test.moneytransfer.audit.AuditReport;
+import email.kulakov.test.moneytransfer.audit.Auditor;
+import email.kulakov.test.moneytransfer.snapshot.SnapshotDatastore;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ShardedDatastoreTest {
+
+    @Rule
+    public TemporaryFolder dataDirectory = new TemporaryFolder();
+
+    @Test
+    public void crossShardTransfersConserveMoneyTest() throws Exception {
+        //given
+        final ShardedDatastore backend = new ShardedDatastore(4);
+        final int accounts = 1000;
+        final long firstId = backend.createAccounts(accounts);
+        for (long id = firstId; id < firstId + accounts; id++) {
+            backend.changeMoneyMinor(id, 100_00);
+        }
+        final SnapshotDatastore datastore = new SnapshotDatastore(backend, dataDirectory.newFile().toPath(), 0);
+        final Auditor auditor = new Auditor(datastore, new ForkJoinPool(2), 0);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final Thread thread = new Thread(() -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get()) {
+                    final long from = firstId + random.nextInt(accounts);
+                    final long to = firstId + random.nextInt(accounts);
+                    datastore.transferMoney(from, to, BigDecimal.valueOf(1 + random.nextInt(150_00), 2));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        //when
+        final List<AuditReport> reports = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            reports.add(auditor.audit());
+        }
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        //then
+        for (AuditReport report : reports) {
+            Assert.assertEquals(0, report.getDrift().signum());
+        }
+        long total = 0;
+        for (long id = firstId; id < firstId + accounts; id++) {
+            Assert.assertTrue(backend.balanceMinor(id) >= 0);
+            total += backend.balanceMinor(id);
+        }
+        Assert.assertEquals(accounts * 100_00L, total);
+        Assert.assertEquals(0, backend.inFlightMinor());
+        backend.close();
+    }
+
+    @Test
+    public void closeWakesCallersTest() throws Exception {
+        //given
+        final ShardedDatastore datastore = new ShardedDatastore(2);
+        final long id1 = datastore.createAccount();
+        final long id2 = datastore.createAccount();
+        datastore.changeMoneyMinor(id1, 100);
+
+        //when
+        datastore.close();
+        final CompletableFuture<OperationResult> change =
+                CompletableFuture.supplyAsync(() -> datastore.changeMoneyMinor(id1, 100));
+        final CompletableFuture<OperationResult> transfer =
+                CompletableFuture.supplyAsync(() -> datastore.transferMoneyMinor(id1, id2, 50));
+
+        //then
+        Assert.assertEquals(OperationResult.Busy, change.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(OperationResult.Busy, transfer.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(100, datastore.balanceMinor(id1));
+        Assert.assertEquals(0, datastore.inFlightMinor());
+    }
+}
@@ -0,0 +1,234 @@
+package email.kulakov.test.moneytransfer.feed;
+
+import email.kulakov.test.moneytransfer.db.ConcurrentDatastore;
+import email.kulakov.test.moneytransfer.db.LedgerDatastore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ChangeFeedDatastoreTest {
+
+    @Test
+    public void feedIsConsumedInVersionOrderTest() throws Exception {
+        //given
+        final ChangeFeed feed = new ChangeFeed(64);
+        final int producers = 4;
+        final int eventsPerProducer = 5_000;
+        final List<Thread> threads = new ArrayList<>();
+        for (int producer = 0; producer < producers; producer++) {
+            final long accountId = producer + 1;
+            threads.add(new Thread(() -> {
+                for (int i = 1; i <= eventsPerProducer; i++) {
+                    feed.fill(feed.claim(), accountId, i);
+                }
+            }));
+        }
+
+        //when
+        threads.forEach(Thread::start);
+        final AtomicLong lastVersion = new AtomicLong();
+        final long[] lastBalances = new long[producers + 1];
+        int consumed = 0;
+        while (consumed < producers * eventsPerProducer) {
+            consumed += feed.drain((accountId, balanceMinor, version) -> {
+                //then
+                Assert.assertEquals(lastVersion.get() + 1, version);
+                Assert.assertEquals(lastBalances[(int) accountId] + 1, balanceMinor);
+                lastVersion.set(version);
+                lastBalances[(int) accountId] = balanceMinor;
+            }, 100);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        //then
+        Assert.assertEquals(0, feed.drain((accountId, balanceMinor, version) -> Assert.fail(), 100));
+        Assert.assertEquals(producers * eventsPerProducer, feed.consumedVersion());
+        Assert.assertEquals(feed.claimedVersion(), feed.consumedVersion());
+        Assert.assertEquals(0, feed.lagNanos());
+    }
+
+    @Test
+    public void claimedEventWhichIsNotFilledCountsAsLagTest() throws Exception {
+        //given
+        final ChangeFeed feed = new ChangeFeed(64);
+        final long slow = feed.claim();
+        feed.fill(feed.claim(), 2, 200);
+
+        //when
+        Thread.sleep(5);
+
+        //then
+        Assert.assertEquals(0, feed.drain((accountId, balanceMinor, version) -> Assert.fail(), 100));
+        Assert.assertTrue(feed.lagNanos() >= TimeUnit.MILLISECONDS.toNanos(5));
+        feed.fill(slow, 1, 100);
+        Assert.assertEquals(2, feed.drain((accountId, balanceMinor, version) -> { }, 100));
+        Assert.assertEquals(0, feed.lagNanos());
+    }
+
+    @Test
+    public void balancesWithFewerFractionDigitsAreProjectedTest() throws Exception {
+        //given
+        final ConcurrentDatastore source = new ConcurrentDatastore();
+        final long id1 = source.createAccount();
+        final long id2 = source.createAccount();
+        final ChangeFeedDatastore datastore = new ChangeFeedDatastore(source, 1024, 60_000);
+
+        //when
+        datastore.changeMoney(id1, new BigDecimal("100"));
+        datastore.transferMoney(id1, id2, new BigDecimal("100"));
+        datastore.changeMoney(id1, new BigDecimal("0.001"));
+        final long version = datastore.publishedVersion();
+        while (!datastore.hasApplied(version)) {
+            Thread.sleep(1);
+        }
+
+        //then
+        Assert.assertEquals(new BigDecimal("100.00"), datastore.balance(id2));
+        Assert.assertEquals(1, datastore.projectedReadCount());
+        Assert.assertEquals(new BigDecimal("0.001"), datastore.balance(id1));
+        Assert.assertEquals(1, datastore.sourceReadCount());
+        datastore.close();
+    }
+
+    @Test
+    public void projectionConvergesUnderConcurrentWritersTest() throws Exception {
+        //given
+        final LedgerDatastore source = accounts(100, "1000.00");
+        final ChangeFeedDatastore datastore = new ChangeFeedDatastore(source, 1024, 60_000);
+        final List<Thread> threads = new ArrayList<>();
+        for (int writer = 0; writer < 8; writer++) {
+            threads.add(new Thread(() -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 10_000; i++) {
+                    final long from = random.nextInt(100) + 1;
+                    final long to = random.nextInt(100) + 1;
+                    if (i % 10 == 0) {
+                        datastore.changeMoney(from, new BigDecimal("0.01"));
+                    } else {
+                        datastore.transferMoney(from, to, new BigDecimal(random.nextInt(1000)).movePointLeft(2));
+                    }
+                }
+            }));
+        }
+
+        //when
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final long version = datastore.publishedVersion();
+        while (!datastore.hasApplied(version)) {
+            Thread.sleep(1);
+        }
+
+        //then
+        for (long accountId = 1; accountId <= 100; accountId++) {
+            Assert.assertEquals(source.balance(accountId), datastore.balance(accountId));
+        }
+        Assert.assertNull(datastore.balance(101));
+        Assert.assertEquals(100, datastore.projectedReadCount());
+        Assert.assertEquals(1, datastore.sourceReadCount());
+        datastore.close();
+    }
+
+    @Test
+    public void balanceReadBeforeAConcurrentWriteDoesNotWinTest() throws Exception {
+        //given
+        final CountDownLatch read = new CountDownLatch(1);
+        final CountDownLatch written = new CountDownLatch(1);
+        final AtomicReference<Thread> slowWriter = new AtomicReference<>();
+        final LedgerDatastore source = new LedgerDatastore() {
+            @Override
+            public BigDecimal balance(long accountId) {
+                final BigDecimal balance = super.balance(accountId);
+                if (Thread.currentThread() == slowWriter.get()) {
+                    read.countDown();
+                    try {
+                        written.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return balance;
+            }
+        };
+        source.changeMoney(source.createAccount(), new BigDecimal("10.00"));
+        final ChangeFeedDatastore datastore = new ChangeFeedDatastore(source, 1024, 60_000);
+        final Thread slow = new Thread(() -> datastore.changeMoney(1, new BigDecimal("1.00")));
+        slowWriter.set(slow);
+
+        //when
+        slow.start();
+        read.await();
+        datastore.changeMoney(1, new BigDecimal("2.00"));
+        written.countDown();
+        slow.join();
+        final long version = datastore.publishedVersion();
+        while (!datastore.hasApplied(version)) {
+            Thread.sleep(1);
+        }
+
+        //then
+        Assert.assertEquals(new BigDecimal("13.00"), datastore.balance(1));
+        Assert.assertEquals(1, datastore.projectedReadCount());
+        datastore.close();
+    }
+
+    @Test
+    public void writesAreReadBackWithTheirVersionTest() {
+        //given
+        final ChangeFeedDatastore datastore = new ChangeFeedDatastore(accounts(2, "100.00"), 1024, 60_000);
+
+        for (int i = 1; i <= 1000; i++) {
+            //when
+            datastore.transferMoney(1, 2, new BigDecimal("0.05"));
+            final long version = datastore.publishedVersion();
+            final BigDecimal balance = datastore.hasApplied(version) ? datastore.balance(2) : datastore.sourceBalance(2);
+
+            //then
+            Assert.assertEquals(new BigDecimal("100.00").add(new BigDecimal("0.05").multiply(BigDecimal.valueOf(i))),
+                    balance);
+        }
+        datastore.close();
+    }
+
+    @Test
+    public void staleProjectionIsBypassedTest() throws Exception {
+        //given
+        final LedgerDatastore source = accounts(1, "10.00");
+        final ChangeFeedDatastore datastore = new ChangeFeedDatastore(source, 1024, 50);
+        final long created = source.createAccount();
+        Assert.assertEquals(new BigDecimal("10.00"), datastore.balance(1));
+        datastore.close();
+
+        //when
+        datastore.changeMoney(1, new BigDecimal("5.00"));
+        Thread.sleep(100);
+
+        //then
+        Assert.assertFalse(datastore.hasApplied(datastore.publishedVersion()));
+        Assert.assertTrue(datastore.lagNanos() > 0);
+        Assert.assertEquals(new BigDecimal("15.00"), datastore.balance(1));
+        //Accounts created after the start are not in the projection until they change.
+        Assert.assertNotNull(datastore.balance(created));
+        Assert.assertEquals(2, datastore.sourceReadCount());
+    }
+
+    private static LedgerDatastore accounts(int count, String balance) {
+        final LedgerDatastore datastore = new LedgerDatastore();
+        for (int i = 0; i < count; i++) {
+            datastore.changeMoney(datastore.createAccount(), new BigDecimal(balance));
+        }
+        return datastore;
+    }
+}
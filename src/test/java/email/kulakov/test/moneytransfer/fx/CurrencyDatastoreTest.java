@@ -0,0 +1,209 @@
+package email.kulakov.test.moneytransfer.fx;
+
+import email.kulakov.test.moneytransfer.db.ConcurrentDatastore;
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.LedgerDatastore;
+import email.kulakov.test.moneytransfer.db.MinorUnits;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+
+public class CurrencyDatastoreTest {
+
+    @Rule
+    public TemporaryFolder dataDirectory = new TemporaryFolder();
+
+    @Test
+    public void conversionRoundsHalfEvenTest() {
+        //given
+        final RateTable rates = RateTable.parse(Arrays.asList("# rates to EUR", "USD 0.8", "JPY 0.00625"), "EUR");
+        final int eur = Currencies.BASE;
+        final int usd = Currencies.pack("USD");
+        final int jpy = Currencies.pack("JPY");
+
+        //then
+        Assert.assertEquals(3, rates.size());
+        //1.25 USD per EUR: 0.02 EUR is 0.025 USD, rounded to the even 0.02; 0.06 EUR is 0.075 USD, rounded to 0.08.
+        Assert.assertEquals(2, rates.convert(2, eur, usd));
+        Assert.assertEquals(8, rates.convert(6, eur, usd));
+        Assert.assertEquals(12_800, rates.convert(100, usd, jpy));
+        Assert.assertEquals(160, rates.convert(100, eur, jpy) / 100);
+        Assert.assertEquals(MinorUnits.NOT_REPRESENTABLE, rates.convert(100, eur, Currencies.pack("GBP")));
+        Assert.assertEquals(MinorUnits.NOT_REPRESENTABLE, rates.convert(Long.MAX_VALUE, eur, jpy));
+        Assert.assertEquals(rates.convert(Long.MAX_VALUE / 2, jpy, usd),
+                BigDecimal.valueOf(Long.MAX_VALUE / 2).multiply(new BigDecimal("0.0078125"))
+                        .setScale(0, java.math.RoundingMode.HALF_EVEN).longValueExact());
+    }
+
+    @Test
+    public void transferConvertsAmountTest() throws Exception {
+        //given
+        final CurrencyDatastore datastore = create(new LedgerDatastore(), "USD 0.8\nGBP 1.2\n", 0);
+        final long eur = datastore.createAccount();
+        final long usd = datastore.createAccount("USD");
+        final long gbp = datastore.createAccount("GBP");
+        datastore.changeMoney(eur, new BigDecimal("100.00"));
+
+        //when
+        final OperationResult toUsd = datastore.transferMoney(eur, usd, new BigDecimal("40.00"));
+        final OperationResult toGbp = datastore.transferMoney(usd, gbp, new BigDecimal("30.00"));
+        final OperationResult tooMuch = datastore.transferMoney(usd, eur, new BigDecimal("100.00"));
+        final OperationResult tooSmall = datastore.transferMoney(usd, gbp, new BigDecimal("0.001"));
+        final OperationResult noAccount = datastore.transferMoney(eur, gbp + 1, new BigDecimal("1.00"));
+        final OperationResult unknown = datastore.transferMoney(eur, usd, new BigDecimal("-1.00"));
+
+        //then
+        Assert.assertEquals(OperationResult.Success, toUsd);
+        Assert.assertEquals(OperationResult.Success, toGbp);
+        Assert.assertEquals(OperationResult.NoMoney, tooMuch);
+        Assert.assertEquals(OperationResult.WrongAmount, tooSmall);
+        Assert.assertEquals(OperationResult.NoAccount, noAccount);
+        Assert.assertEquals(OperationResult.NoMoney, unknown);
+        Assert.assertEquals(new BigDecimal("60.00"), datastore.balance(eur));
+        Assert.assertEquals(new BigDecimal("20.00"), datastore.balance(usd));
+        Assert.assertEquals(new BigDecimal("20.00"), datastore.balance(gbp));
+        Assert.assertEquals("EUR", datastore.currency(eur));
+        Assert.assertEquals("GBP", datastore.currency(gbp));
+        Assert.assertEquals(2, datastore.conversionCount());
+    }
+
+    @Test
+    public void debitWhichCanNotBeRefundedIsEscalatedTest() throws Exception {
+        //given
+        final long[] sender = new long[1];
+        //The sender is closed with the zero balance the debit left, before the credit fails.
+        final ConcurrentDatastore backend = new ConcurrentDatastore() {
+            @Override
+            public OperationResult changeMoney(long accountId, BigDecimal delta) {
+                if (accountId != sender[0] && delta.signum() > 0) {
+                    Assert.assertEquals(OperationResult.Success, closeAccount(sender[0]));
+                    return OperationResult.WrongAmount;
+                }
+                return super.changeMoney(accountId, delta);
+            }
+        };
+        final CurrencyDatastore datastore = create(backend, "USD 0.8\n", 0);
+        sender[0] = datastore.createAccount();
+        final long usd = datastore.createAccount("USD");
+        backend.changeMoney(sender[0], new BigDecimal("10.00"));
+
+        //when
+        final OperationResult result = datastore.transferMoney(sender[0], usd, new BigDecimal("10.00"));
+
+        //then
+        Assert.assertEquals(OperationResult.NotReverted, result);
+        Assert.assertEquals(1, datastore.unrefundedCount());
+        Assert.assertEquals(Arrays.asList(sender[0] + " 10.00"), datastore.unrefundedDebits());
+        Assert.assertEquals(0, datastore.conversionCount());
+    }
+
+    @Test
+    public void atomicBatchAcrossCurrenciesIsRefusedTest() throws Exception {
+        //given
+        final CurrencyDatastore datastore = create(new ConcurrentDatastore(), "USD 0.8\n", 0);
+        final long eur1 = datastore.createAccount();
+        final long eur2 = datastore.createAccount();
+        final long usd = datastore.createAccount("USD");
+        datastore.changeMoney(eur1, new BigDecimal("10.00"));
+        final List<Transfer> transfers = Arrays.asList(new Transfer(eur1, eur2, new BigDecimal("1.00")),
+                new Transfer(eur1, usd, new BigDecimal("1.00")));
+
+        //when
+        final List<OperationResult> atomic = datastore.transferBatch(transfers, true);
+        final List<OperationResult> separate = datastore.transferBatch(transfers, false);
+
+        //then
+        Assert.assertEquals(Arrays.asList(OperationResult.Aborted, OperationResult.WrongAmount), atomic);
+        Assert.assertEquals(Arrays.asList(OperationResult.Success, OperationResult.Success), separate);
+        Assert.assertEquals(0, new BigDecimal("8.00").compareTo(datastore.balance(eur1)));
+        Assert.assertEquals(0, new BigDecimal("1.25").compareTo(datastore.balance(usd)));
+    }
+
+    @Test
+    public void ratesAreReloadedTest() throws Exception {
+        //given
+        final Path rates = dataDirectory.getRoot().toPath().resolve(RateTable.FILE_NAME);
+        final CurrencyDatastore datastore = create(new LedgerDatastore(), null, 0);
+        final long eur = datastore.createAccount();
+        datastore.changeMoney(eur, new BigDecimal("10.00"));
+        try {
+            datastore.createAccount("USD");
+            Assert.fail("USD has no rate yet");
+        } catch (IllegalArgumentException expected) {
+            //no rates file
+        }
+
+        //when
+        Files.write(rates, "USD 0.5\n".getBytes(StandardCharsets.US_ASCII));
+        final boolean loaded = datastore.reloadRates();
+        final long usd = datastore.createAccount("USD");
+        datastore.transferMoney(eur, usd, new BigDecimal("1.00"));
+        Files.write(rates, "USD 0.25\n".getBytes(StandardCharsets.US_ASCII));
+        Files.setLastModifiedTime(rates, FileTime.fromMillis(Files.getLastModifiedTime(rates).toMillis() + 1000));
+        final boolean reloaded = datastore.reloadRates();
+        datastore.transferMoney(eur, usd, new BigDecimal("1.00"));
+        Files.write(rates, "USD abc\n".getBytes(StandardCharsets.US_ASCII));
+        Files.setLastModifiedTime(rates, FileTime.fromMillis(Files.getLastModifiedTime(rates).toMillis() + 2000));
+        try {
+            datastore.reloadRates();
+            Assert.fail("Malformed rates are not loaded");
+        } catch (IllegalArgumentException expected) {
+            //old rates stay
+        }
+        datastore.transferMoney(eur, usd, new BigDecimal("1.00"));
+
+        //then
+        Assert.assertTrue(loaded);
+        Assert.assertTrue(reloaded);
+        Assert.assertEquals(new BigDecimal("10.00"), datastore.balance(usd));
+        Assert.assertEquals(2, datastore.reloadCount());
+    }
+
+    @Test
+    public void currenciesSurviveRestartTest() throws Exception {
+        //given
+        final LedgerDatastore backend = new LedgerDatastore();
+        final CurrencyDatastore datastore = create(backend, "USD 0.8\nGBP 1.2\n", 0);
+        final long eur = datastore.createAccount();
+        final long usd = datastore.createAccounts(3, "USD");
+        final long gbp = datastore.createAccount("GBP");
+        datastore.close();
+
+        //when
+        final CurrencyDatastore restarted = create(backend, "USD 0.8\nGBP 1.2\n", 0);
+        final LedgerDatastore emptyBackend = new LedgerDatastore();
+        emptyBackend.createAccounts(4);
+        restarted.close();
+        final CurrencyDatastore lost = create(emptyBackend, "USD 0.8\nGBP 1.2\n", 0);
+
+        //then
+        Assert.assertEquals("EUR", restarted.currency(eur));
+        Assert.assertEquals("USD", restarted.currency(usd + 2));
+        Assert.assertEquals("GBP", restarted.currency(gbp));
+        //Accounts the datastore does not have any more lose their currencies.
+        Assert.assertEquals("USD", lost.currency(usd + 2));
+        Assert.assertEquals("EUR", lost.currency(gbp));
+        Assert.assertEquals("EUR", lost.currency(gbp + 1));
+    }
+
+    private CurrencyDatastore create(Datastore backend, String rates, long reloadMillis) throws Exception {
+        final Path directory = dataDirectory.getRoot().toPath();
+        if (rates != null) {
+            Files.write(directory.resolve(RateTable.FILE_NAME), rates.getBytes(StandardCharsets.US_ASCII));
+        }
+        return new CurrencyDatastore(backend, new AccountCurrencies(directory.resolve(AccountCurrencies.FILE_NAME),
+                accountId -> backend.balance(accountId) != null), directory.resolve(RateTable.FILE_NAME), "EUR",
+                reloadMillis);
+    }
+}
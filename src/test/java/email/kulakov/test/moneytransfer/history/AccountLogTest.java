@@ -0,0 +1,71 @@
+package email.kulakov.test.moneytransfer.history;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AccountLogTest {
+
+    //Growing chunks of 4, 8, ..., 1024 entries hold the first 2044, later chunks 1024 each.
+    private static final int GROWING_ENTRIES = 2044;
+
+    @Test
+    public void entriesAcrossChunkBoundariesTest() throws Exception {
+        //given
+        final AccountLog log = new AccountLog();
+        final int count = GROWING_ENTRIES + 3 * 1024 + 5;
+
+        //when
+        for (int i = 0; i < count; i++) {
+            append(log, i);
+        }
+
+        //then
+        Assert.assertEquals(count, log.size());
+        log.read(0, count, AccountLogTest::check);
+        //Last entry of a chunk and the first of the next one, read together.
+        for (int boundary : new int[]{4, 12, 28, 1020, GROWING_ENTRIES, GROWING_ENTRIES + 1024, GROWING_ENTRIES + 2048}) {
+            final int[] visited = new int[1];
+            log.read(boundary - 1, 2, (index, timestampMillis, counterparty, unscaledAmount, scale) -> {
+                Assert.assertEquals(boundary - 1 + visited[0]++, index);
+                check(index, timestampMillis, counterparty, unscaledAmount, scale);
+            });
+            Assert.assertEquals(2, visited[0]);
+        }
+    }
+
+    @Test
+    public void readerSeesCompleteEntriesWhileAppendingTest() throws Exception {
+        //given
+        final AccountLog log = new AccountLog();
+        final int count = 200_000;
+        final Thread appender = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                append(log, i);
+            }
+        });
+
+        //when
+        appender.start();
+        int read = 0;
+        while (read < count) {
+            final int size = log.size();
+            log.read(read, size - read, AccountLogTest::check);
+            read = size;
+        }
+        appender.join();
+
+        //then
+        Assert.assertEquals(count, log.size());
+    }
+
+    private static void append(AccountLog log, int i) {
+        log.append(1_000_000L + i, i, -3L * i, i % 5);
+    }
+
+    private static void check(int index, long timestampMillis, long counterparty, long unscaledAmount, int scale) {
+        Assert.assertEquals(1_000_000L + index, timestampMillis);
+        Assert.assertEquals(index, counterparty);
+        Assert.assertEquals(-3L * index, unscaledAmount);
+        Assert.assertEquals(index % 5, scale);
+    }
+}
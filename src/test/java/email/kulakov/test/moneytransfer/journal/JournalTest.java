@@ -0,0 +1,265 @@
+package email.kulakov.test.moneytransfer.journal;
+
+import email.kulakov.test.moneytransfer.db.BlockingDatastore;
+import email.kulakov.test.moneytransfer.db.ConcurrentDatastore;
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.LedgerDatastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.ShardedDatastore;
+import email.kulakov.test.moneytransfer.db.Transfer;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public class JournalTest {
+
+    @Rule
+    public TemporaryFolder dataDirectory = new TemporaryFolder();
+
+    @Test
+    public void replayRestoresBalancesTest() throws Exception {
+        for (DurabilityMode mode : new DurabilityMode[]{DurabilityMode.SYNC, DurabilityMode.GROUP, DurabilityMode.ASYNC}) {
+            //given
+            final Path file = dataDirectory.newFolder().toPath().resolve(Journal.FILE_NAME);
+            final Journal journal = new Journal(file, mode, 1000);
+            final Datastore datastore = new JournalingDatastore(new ConcurrentDatastore(), journal);
+            final long id1 = datastore.createAccount();
+            final long id2 = datastore.createAccount();
+            Assert.assertEquals(OperationResult.Success, datastore.changeMoney(id1, new BigDecimal("100.00")));
+            Assert.assertEquals(OperationResult.Success, datastore.transferMoney(id1, id2, new BigDecimal("30.50")));
+            Assert.assertEquals(OperationResult.NoMoney, datastore.transferMoney(id1, id2, new BigDecimal("1000")));
+            datastore.transferBatch(Arrays.asList(new Transfer(id2, id1, new BigDecimal("0.50")),
+                    new Transfer(id2, id1, new BigDecimal("1000"))), false);
+            journal.close();
+
+            //when
+            final Datastore recovered = new BlockingDatastore();
+            final long records = JournalRecovery.replay(file, recovered);
+
+            //then
+            Assert.assertEquals(5, records);
+            Assert.assertEquals(new BigDecimal("70.00"), recovered.balance(id1));
+            Assert.assertEquals(new BigDecimal("30.00"), recovered.balance(id2));
+        }
+    }
+
+    @Test
+    public void transfersCrossingLockStripesDoNotDeadlockTest() throws Exception {
+        //given
+        final Journal journal = new Journal(dataDirectory.getRoot().toPath().resolve(Journal.FILE_NAME),
+                DurabilityMode.ASYNC, 1000);
+        final Datastore datastore = new JournalingDatastore(new ConcurrentDatastore(), journal);
+        datastore.createAccounts(1026);
+        for (long id : new long[]{1, 2, 1025, 1026}) {
+            Assert.assertEquals(OperationResult.Success, datastore.changeMoney(id, new BigDecimal("1000.00")));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        //when
+        //1 and 1025 share a stripe, as do 2 and 1026: id order of both transfers is opposite stripe order.
+        final Future<?> first = executor.submit(() -> transferMany(datastore, 1, 1026));
+        final Future<?> second = executor.submit(() -> transferMany(datastore, 1025, 2));
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+        journal.close();
+
+        //then
+        Assert.assertEquals(new BigDecimal("2000.00"), datastore.balance(1).add(datastore.balance(1026)));
+        Assert.assertEquals(new BigDecimal("2000.00"), datastore.balance(1025).add(datastore.balance(2)));
+    }
+
+    private static void transferMany(Datastore datastore, long from, long to) {
+        for (int i = 0; i < 100_000; i++) {
+            datastore.transferMoney(from, to, new BigDecimal("0.01"));
+            datastore.transferMoney(to, from, new BigDecimal("0.01"));
+        }
+    }
+
+    @Test
+    public void writesRacingWithCreatesAreReplayedAfterThemTest() throws Exception {
+        //given
+        final Path file = dataDirectory.getRoot().toPath().resolve(Journal.FILE_NAME);
+        final Journal journal = new Journal(file, DurabilityMode.ASYNC, 1000);
+        //The new account is visible for a while before its create returns.
+        final Datastore datastore = new JournalingDatastore(new ConcurrentDatastore() {
+            @Override
+            public long createAccount() {
+                final long accountId = super.createAccount();
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(20));
+                return accountId;
+            }
+        }, journal);
+        final int accounts = 5_000;
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        //when
+        //Ids are sequential, the writer credits each one as soon as it exists.
+        final Future<?> writer = executor.submit(() -> {
+            for (long id = 1; id <= accounts; id++) {
+                while (datastore.changeMoney(id, new BigDecimal("1.00")) != OperationResult.Success) {
+                    Thread.yield();
+                }
+            }
+        });
+        final Future<?> creator = executor.submit(() -> {
+            for (int i = 0; i < accounts; i++) {
+                datastore.createAccount();
+            }
+        });
+        creator.get(30, TimeUnit.SECONDS);
+        writer.get(30, TimeUnit.SECONDS);
+        executor.shutdown();
+        journal.close();
+        final Datastore recovered = new ConcurrentDatastore();
+        final long records = JournalRecovery.replay(file, recovered);
+
+        //then
+        Assert.assertEquals(2 * accounts, records);
+        for (long id = 1; id <= accounts; id++) {
+            Assert.assertEquals(new BigDecimal("1.00"), recovered.balance(id));
+        }
+    }
+
+    @Test
+    public void replayRestoresAccountRangesTest() throws Exception {
+        //given
+        final Path file = dataDirectory.getRoot().toPath().resolve(Journal.FILE_NAME);
+        final Journal journal = new Journal(file, DurabilityMode.SYNC, 0);
+        final Datastore datastore = new JournalingDatastore(new LedgerDatastore(), journal);
+        final long id1 = datastore.createAccount();
+        final long firstId = datastore.createAccounts(1000);
+        final long id2 = datastore.createAccount();
+        datastore.changeMoney(firstId + 999, new BigDecimal("5.00"));
+        journal.close();
+
+        try (ShardedDatastore recovered = new ShardedDatastore(3)) {
+            //when
+            final long records = JournalRecovery.replay(file, recovered);
+
+            //then
+            Assert.assertEquals(4, records);
+            Assert.assertEquals(id1 + 1, firstId);
+            Assert.assertEquals(firstId + 1000, id2);
+            Assert.assertEquals(new BigDecimal("0.00"), recovered.balance(firstId));
+            Assert.assertEquals(new BigDecimal("5.00"), recovered.balance(firstId + 999));
+            Assert.assertNotNull(recovered.balance(id2));
+            Assert.assertNull(recovered.balance(id2 + 1));
+        }
+    }
+
+    @Test
+    public void tornTailIsTruncatedTest() throws Exception {
+        //given
+        final Path file = dataDirectory.getRoot().toPath().resolve(Journal.FILE_NAME);
+        final Journal journal = new Journal(file, DurabilityMode.SYNC, 0);
+        final Datastore datastore = new JournalingDatastore(new ConcurrentDatastore(), journal);
+        final long id = datastore.createAccount();
+        datastore.changeMoney(id, new BigDecimal("10"));
+        journal.close();
+        final long size = Files.size(file);
+        appendGarbage(file);
+
+        //when
+        final Datastore recovered = new ConcurrentDatastore();
+        JournalRecovery.replay(file, recovered);
+
+        //then
+        Assert.assertEquals(new BigDecimal("10"), recovered.balance(id));
+        Assert.assertEquals(size, Files.size(file));
+    }
+
+    @Test
+    public void longBatchesAreJournaledInRecordsRecoveryReadsTest() throws Exception {
+        //given
+        final Path file = dataDirectory.getRoot().toPath().resolve(Journal.FILE_NAME);
+        final Journal journal = new Journal(file, DurabilityMode.SYNC, 0);
+        final Datastore datastore = new JournalingDatastore(new ConcurrentDatastore(), journal);
+        final long id1 = datastore.createAccount();
+        final long id2 = datastore.createAccount();
+        //20 unscaled bytes, 3000 entries need two batch records.
+        final BigDecimal amount = new BigDecimal(BigInteger.ONE.shiftLeft(150), 2);
+        final BigDecimal tooLong = new BigDecimal(BigInteger.ONE.shiftLeft(300), 2);
+        Assert.assertEquals(OperationResult.Success, datastore.changeMoney(id1, amount.multiply(new BigDecimal(3000))));
+        final List<Transfer> transfers = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            transfers.add(new Transfer(id1, id2, i == 10 ? tooLong : amount));
+        }
+
+        //when
+        final List<OperationResult> results = datastore.transferBatch(transfers, false);
+        final List<OperationResult> atomicResults = datastore.transferBatch(transfers.subList(0, 20), true);
+        final OperationResult change = datastore.changeMoney(id1, tooLong);
+        journal.close();
+        final Datastore recovered = new ConcurrentDatastore();
+        final long records = JournalRecovery.replay(file, recovered);
+
+        //then
+        Assert.assertEquals(OperationResult.WrongAmount, results.get(10));
+        Assert.assertEquals(2999, results.stream().filter(OperationResult::isSuccess).count());
+        Assert.assertEquals(OperationResult.WrongAmount, atomicResults.get(10));
+        Assert.assertEquals(OperationResult.Aborted, atomicResults.get(0));
+        Assert.assertEquals(OperationResult.WrongAmount, change);
+        //2 creates, changeMoney, the part before the long amount and two records after it.
+        Assert.assertEquals(6, records);
+        Assert.assertEquals(datastore.balance(id1), recovered.balance(id1));
+        Assert.assertEquals(amount.multiply(new BigDecimal(2999)), recovered.balance(id2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void recordsLongerThanRecoveryReadsAreRefusedTest() throws Exception {
+        final Journal journal = new Journal(dataDirectory.getRoot().toPath().resolve(Journal.FILE_NAME),
+                DurabilityMode.SYNC, 0);
+        try {
+            journal.append(ByteBuffer.allocate(JournalRecord.MAX_SIZE + 1));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void groupCommitSharesForceTest() throws Exception {
+        //given
+        final Path file = dataDirectory.getRoot().toPath().resolve(Journal.FILE_NAME);
+        final Journal journal = new Journal(file, DurabilityMode.GROUP, 5000);
+        final Datastore datastore = new JournalingDatastore(new ConcurrentDatastore(), journal);
+        final long id = datastore.createAccount();
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        //when
+        final List<Future<OperationResult>> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            results.add(executor.submit(() -> datastore.changeMoney(id, BigDecimal.ONE)));
+        }
+        for (Future<OperationResult> result : results) {
+            Assert.assertEquals(OperationResult.Success, result.get());
+        }
+        executor.shutdown();
+        journal.close();
+
+        //then
+        Assert.assertEquals(201, journal.recordCount());
+        Assert.assertTrue(journal.batchCount() < journal.recordCount());
+    }
+
+    private static void appendGarbage(Path file) throws IOException {
+        Files.write(file, new byte[]{42, 0, 0, 0, 1, 2, 3}, StandardOpenOption.APPEND);
+    }
+}
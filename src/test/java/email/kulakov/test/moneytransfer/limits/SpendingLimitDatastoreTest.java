@@ -0,0 +1,160 @@
+package email.kulakov.test.moneytransfer.limits;
+
+import email.kulakov.test.moneytransfer.db.LedgerDatastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SpendingLimitDatastoreTest {
+
+    //Start of a 4.8 hour day bucket.
+    private static final long START_MILLIS = 1_728_000_000_000L;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder dataDirectory = new TemporaryFolder();
+
+    private final AtomicLong clock = new AtomicLong(START_MILLIS);
+
+    @Test
+    public void dailyLimitSlidesWithTimeTest() throws Exception {
+        //given
+        final SpendingLimitDatastore datastore = limited(accounts(2, "1000.00"), 10_000,
+                SpendingLimitDatastore.NO_VELOCITY_LIMIT);
+
+        //when
+        final OperationResult first = datastore.transferMoney(1, 2, new BigDecimal("60.00"));
+        clock.addAndGet(10 * HOUR);
+        final OperationResult second = datastore.changeMoney(1, new BigDecimal("-40.00"));
+        final OperationResult over = datastore.transferMoney(1, 2, new BigDecimal("0.01"));
+        final OperationResult credit = datastore.changeMoney(1, new BigDecimal("500.00"));
+        clock.set(START_MILLIS + 24 * HOUR - 1);
+        final OperationResult withinDay = datastore.transferMoney(1, 2, new BigDecimal("0.01"));
+        //One bucket after the window the first transfer has left it.
+        clock.set(START_MILLIS + 29 * HOUR);
+        final OperationResult afterDay = datastore.transferMoney(1, 2, new BigDecimal("60.00"));
+
+        //then
+        Assert.assertEquals(OperationResult.Success, first);
+        Assert.assertEquals(OperationResult.Success, second);
+        Assert.assertEquals(OperationResult.LimitExceeded, over);
+        Assert.assertEquals(OperationResult.Success, credit);
+        Assert.assertEquals(OperationResult.LimitExceeded, withinDay);
+        Assert.assertEquals(OperationResult.Success, afterDay);
+        Assert.assertEquals(10_000, datastore.spentTodayMinor(1));
+        Assert.assertEquals(2, datastore.dailyRefusalCount());
+        Assert.assertEquals(new BigDecimal("1340.00"), datastore.balance(1));
+    }
+
+    @Test
+    public void velocityLimitCountsDebitsPerMinuteTest() throws Exception {
+        //given
+        final SpendingLimitDatastore datastore = limited(accounts(2, "1000.00"),
+                SpendingLimitDatastore.NO_DAILY_LIMIT, 3);
+
+        //when
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(OperationResult.Success, datastore.transferMoney(1, 2, new BigDecimal("1.00")));
+            clock.addAndGet(10_000);
+        }
+        final OperationResult over = datastore.changeMoney(1, new BigDecimal("-1.00"));
+        final OperationResult otherAccount = datastore.changeMoney(2, new BigDecimal("-1.00"));
+        clock.addAndGet(80_000);
+        final OperationResult later = datastore.changeMoney(1, new BigDecimal("-1.00"));
+
+        //then
+        Assert.assertEquals(OperationResult.LimitExceeded, over);
+        Assert.assertEquals(OperationResult.Success, otherAccount);
+        Assert.assertEquals(OperationResult.Success, later);
+        Assert.assertEquals(1, datastore.velocityRefusalCount());
+        Assert.assertEquals(1, datastore.debitsLastMinute(1));
+    }
+
+    @Test
+    public void failedDebitsAreNotCountedTest() throws Exception {
+        //given
+        final SpendingLimitDatastore datastore = limited(accounts(3, "50.00"), 10_000, 100);
+        datastore.setLimits(3, SpendingLimitDatastore.NO_DAILY_LIMIT, SpendingLimitDatastore.NO_VELOCITY_LIMIT);
+
+        //when
+        final OperationResult noMoney = datastore.transferMoney(1, 2, new BigDecimal("60.00"));
+        final OperationResult noAccount = datastore.transferMoney(1, 4, new BigDecimal("10.00"));
+        final List<OperationResult> atomic = datastore.transferBatch(Arrays.asList(
+                new Transfer(2, 1, new BigDecimal("10.00")),
+                new Transfer(1, 2, new BigDecimal("101.00")),
+                new Transfer(3, 1, new BigDecimal("10.00"))), true);
+        final List<OperationResult> partial = datastore.transferBatch(Arrays.asList(
+                new Transfer(2, 1, new BigDecimal("10.00")),
+                new Transfer(1, 2, new BigDecimal("101.00")),
+                new Transfer(3, 1, new BigDecimal("49.00"))), false);
+
+        //then
+        Assert.assertEquals(OperationResult.NoMoney, noMoney);
+        Assert.assertEquals(OperationResult.NoAccount, noAccount);
+        Assert.assertEquals(Arrays.asList(OperationResult.Aborted, OperationResult.LimitExceeded, OperationResult.Aborted),
+                atomic);
+        Assert.assertEquals(Arrays.asList(OperationResult.Success, OperationResult.LimitExceeded, OperationResult.Success),
+                partial);
+        Assert.assertEquals(0, datastore.spentTodayMinor(1));
+        Assert.assertEquals(1_000, datastore.spentTodayMinor(2));
+        Assert.assertEquals(1, datastore.debitsLastMinute(2));
+        Assert.assertEquals(new BigDecimal("109.00"), datastore.balance(1));
+    }
+
+    @Test
+    public void accountLimitsSurviveRestartTest() throws Exception {
+        //given
+        final LedgerDatastore backend = accounts(3, "0.00");
+        final SpendingLimitDatastore datastore = limited(backend, 500, 10);
+        datastore.setLimits(1, 100, SpendingLimitDatastore.DEFAULT_LIMIT);
+        datastore.setLimits(2, SpendingLimitDatastore.NO_DAILY_LIMIT, 5);
+        datastore.setLimits(2, 200, 6);
+        datastore.setLimits(3, 300, 7);
+        datastore.close();
+
+        //when
+        final LedgerDatastore restarted = accounts(2, "0.00");
+        final SpendingLimitDatastore reopened = limited(restarted, 500, 10);
+
+        //then
+        Assert.assertEquals(100, reopened.dailyLimitMinor(1));
+        Assert.assertEquals(10, reopened.debitsPerMinute(1));
+        Assert.assertEquals(200, reopened.dailyLimitMinor(2));
+        Assert.assertEquals(6, reopened.debitsPerMinute(2));
+        //Account 3 is gone, a new account 3 gets the defaults.
+        restarted.createAccount();
+        Assert.assertEquals(500, reopened.dailyLimitMinor(3));
+        try {
+            reopened.setLimits(1, AccountLimits.MAX_DAILY_MINOR + 1, 1);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals(100, reopened.dailyLimitMinor(1));
+        }
+        reopened.close();
+    }
+
+    private SpendingLimitDatastore limited(LedgerDatastore backend, long dailyLimitMinor, int debitsPerMinute)
+            throws Exception {
+        final Path file = dataDirectory.getRoot().toPath().resolve(AccountLimits.FILE_NAME);
+        final AccountLimits limits = new AccountLimits(file, accountId -> backend.balance(accountId) != null);
+        return new SpendingLimitDatastore(backend, limits, dailyLimitMinor, debitsPerMinute, clock::get);
+    }
+
+    private static LedgerDatastore accounts(int count, String balance) {
+        final LedgerDatastore datastore = new LedgerDatastore();
+        for (int i = 0; i < count; i++) {
+            datastore.changeMoney(datastore.createAccount(), new BigDecimal(balance));
+        }
+        return datastore;
+    }
+}
@@ -0,0 +1,248 @@
+package email.kulakov.test.moneytransfer.replication;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import email.kulakov.test.moneytransfer.MoneyTransferApplication;
+import email.kulakov.test.moneytransfer.MoneyTransferGuiceModule;
+import email.kulakov.test.moneytransfer.db.ConcurrentDatastore;
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+import email.kulakov.test.moneytransfer.journal.DurabilityMode;
+import org.eclipse.jetty.server.Server;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Form;
+import javax.ws.rs.core.Response;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ReplicationTest {
+
+    private static final int PRIMARY_PORT = 8095;
+    private static final int STANDBY_PORT = 8096;
+    private static final int REPLICATION_PORT = 8097;
+
+    @Rule
+    public TemporaryFolder dataDirectory = new TemporaryFolder();
+
+    private Server primaryServer;
+    private Server standbyServer;
+    private Datastore primary;
+    private Datastore standby;
+
+    @After
+    public void tearDown() throws Exception {
+        if (standbyServer != null) {
+            standbyServer.stop();
+            StandbyDatastore.find(standby).close();
+        }
+        if (primaryServer != null) {
+            stopPrimary();
+        }
+    }
+
+    @Test
+    public void semiSyncWritesAreOnStandbyWhenTheyReturnTest() throws Exception {
+        //given
+        startPrimary(ReplicationMode.SEMI_SYNC, 5_000);
+        startStandby();
+        awaitConnected();
+
+        //when
+        final long first = createAccount(PRIMARY_PORT);
+        final long second = createAccount(PRIMARY_PORT);
+        Assert.assertEquals(200, changeMoneyRequest(PRIMARY_PORT, first, "100.00").getStatus());
+        Assert.assertEquals(200, transferMoneyRequest(PRIMARY_PORT, first, second, "30.50").getStatus());
+        primary.transferBatch(Arrays.asList(new Transfer(second, first, new BigDecimal("0.50")),
+                new Transfer(second, first, new BigDecimal("1000.00"))), false);
+        final BigDecimal firstBalance = balance(STANDBY_PORT, first);
+        final BigDecimal secondBalance = balance(STANDBY_PORT, second);
+        final Response refusedWrite = changeMoneyRequest(STANDBY_PORT, first, "1.00");
+        final Response refusedCreate = ClientBuilder.newClient()
+                .target("http://localhost:" + STANDBY_PORT + "/v1/accounts/create").request()
+                .post(Entity.form(new Form()));
+        final String status = ClientBuilder.newClient()
+                .target("http://localhost:" + STANDBY_PORT + "/admin/replication").request().get(String.class);
+
+        //then
+        Assert.assertEquals(new BigDecimal("70.00"), firstBalance);
+        Assert.assertEquals(new BigDecimal("30.00"), secondBalance);
+        Assert.assertEquals(503, refusedWrite.getStatus());
+        Assert.assertEquals(503, refusedCreate.getStatus());
+        Assert.assertTrue(status, status.startsWith("role=standby\nstate=STREAMING\napplied=5\n"));
+        Assert.assertEquals(0, ReplicationLog.find(primary).ackTimeoutCount());
+    }
+
+    @Test
+    public void asyncStandbyCatchesUpFromTheBacklogTest() throws Exception {
+        //given
+        startPrimary(ReplicationMode.ASYNC, 0);
+        final int accounts = 50;
+        final long firstId = primary.createAccounts(accounts);
+        for (long account = firstId; account < firstId + accounts; account++) {
+            Assert.assertEquals(OperationResult.Success, primary.changeMoney(account, new BigDecimal("100.00")));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        //when
+        final List<Future<?>> writers = new ArrayList<>();
+        for (int thread = 0; thread < 4; thread++) {
+            final Random random = new Random(thread);
+            writers.add(executor.submit(() -> {
+                for (int i = 0; i < 2_000; i++) {
+                    primary.transferMoney(firstId + random.nextInt(accounts), firstId + random.nextInt(accounts),
+                            new BigDecimal(random.nextInt(5000)).movePointLeft(2));
+                }
+                return null;
+            }));
+        }
+        //Starts while the primary is writing, the records before it wait in the backlog.
+        startStandby();
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        executor.shutdown();
+        final ReplicationLog log = ReplicationLog.find(primary);
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (log.ackedSequence() < log.appendedSequence() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        //then
+        final StandbyDatastore replica = StandbyDatastore.find(standby);
+        Assert.assertEquals(StandbyDatastore.State.STREAMING, replica.state());
+        Assert.assertEquals(log.appendedSequence(), replica.appliedSequence());
+        for (long account = firstId; account < firstId + accounts; account++) {
+            Assert.assertEquals(primary.balance(account), standby.balance(account));
+        }
+    }
+
+    @Test
+    public void semiSyncDegradesWithoutStandbyAndRecoversTest() throws Exception {
+        //given
+        startPrimary(ReplicationMode.SEMI_SYNC, 200);
+        final ReplicationLog log = ReplicationLog.find(primary);
+
+        //when
+        final long start = System.nanoTime();
+        final long account = primary.createAccount();
+        final long firstWriteMillis = (System.nanoTime() - start) / 1_000_000;
+        final boolean degraded = log.isDegraded();
+        primary.changeMoney(account, new BigDecimal("5.00"));
+        startStandby();
+        awaitConnected();
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (log.isDegraded() && System.currentTimeMillis() < deadline) {
+            primary.changeMoney(account, new BigDecimal("1.00"));
+            Thread.sleep(10);
+        }
+
+        //then
+        Assert.assertTrue("First write took " + firstWriteMillis + "ms", firstWriteMillis >= 200);
+        Assert.assertTrue(degraded);
+        Assert.assertEquals(1, log.ackTimeoutCount());
+        Assert.assertFalse(log.isDegraded());
+        Assert.assertEquals(OperationResult.Success, primary.changeMoney(account, new BigDecimal("1.00")));
+        Assert.assertEquals(primary.balance(account), standby.balance(account));
+    }
+
+    @Test
+    public void promotedStandbyTakesWritesTest() throws Exception {
+        //given
+        startPrimary(ReplicationMode.SEMI_SYNC, 5_000);
+        startStandby();
+        awaitConnected();
+        final long account = createAccount(PRIMARY_PORT);
+        Assert.assertEquals(200, changeMoneyRequest(PRIMARY_PORT, account, "42.00").getStatus());
+
+        //when
+        stopPrimary();
+        final String promoted = ClientBuilder.newClient()
+                .target("http://localhost:" + STANDBY_PORT + "/admin/promote").request()
+                .post(Entity.form(new Form()), String.class);
+        final Response write = changeMoneyRequest(STANDBY_PORT, account, "8.00");
+        final long created = createAccount(STANDBY_PORT);
+
+        //then
+        Assert.assertEquals("applied=2\n", promoted);
+        Assert.assertEquals(StandbyDatastore.State.PROMOTED, StandbyDatastore.find(standby).state());
+        Assert.assertEquals(200, write.getStatus());
+        Assert.assertEquals(new BigDecimal("50.00"), balance(STANDBY_PORT, account));
+        Assert.assertEquals(account + 1, created);
+    }
+
+    private void startPrimary(ReplicationMode mode, long ackTimeoutMillis) throws Exception {
+        final Injector injector = Guice.createInjector(new MoneyTransferGuiceModule(ConcurrentDatastore.class,
+                dataDirectory.newFolder("primary").toPath())
+                .withJournal(DurabilityMode.GROUP, 1000)
+                .withReplication(mode, REPLICATION_PORT, ackTimeoutMillis));
+        primary = injector.getInstance(Datastore.class);
+        primaryServer = MoneyTransferApplication.createServer(injector, PRIMARY_PORT);
+        primaryServer.start();
+    }
+
+    private void stopPrimary() throws Exception {
+        primaryServer.stop();
+        primaryServer = null;
+        ReplicationLog.find(primary).close();
+    }
+
+    private void startStandby() throws Exception {
+        final Injector injector = Guice.createInjector(new MoneyTransferGuiceModule(ConcurrentDatastore.class,
+                dataDirectory.newFolder("standby").toPath())
+                .withStandbyOf(new InetSocketAddress("localhost", REPLICATION_PORT)));
+        standby = injector.getInstance(Datastore.class);
+        standbyServer = MoneyTransferApplication.createServer(injector, STANDBY_PORT);
+        standbyServer.start();
+    }
+
+    private void awaitConnected() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (StandbyDatastore.find(standby).state() != StandbyDatastore.State.STREAMING
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(StandbyDatastore.State.STREAMING, StandbyDatastore.find(standby).state());
+    }
+
+    private long createAccount(int port) {
+        final Response response = ClientBuilder.newClient()
+                .target("http://localhost:" + port + "/v1/accounts/create").request()
+                .post(Entity.form(new Form()));
+        Assert.assertEquals(200, response.getStatus());
+        return response.readEntity(Long.class);
+    }
+
+    private BigDecimal balance(int port, long account) {
+        final Response response = ClientBuilder.newClient()
+                .target("http://localhost:" + port + "/v1/accounts/" + account + "/balance").request().get();
+        Assert.assertEquals(200, response.getStatus());
+        return new BigDecimal(response.readEntity(String.class));
+    }
+
+    private Response changeMoneyRequest(int port, long account, String delta) {
+        return ClientBuilder.newClient()
+                .target("http://localhost:" + port + "/v1/accounts/" + account + "/changeMoney").request()
+                .post(Entity.form(new Form("delta", delta)));
+    }
+
+    private Response transferMoneyRequest(int port, long from, long to, String amount) {
+        return ClientBuilder.newClient()
+                .target("http://localhost:" + port + "/v1/accounts/" + from + "/transferMoney").request()
+                .post(Entity.form(new Form().param("to", String.valueOf(to)).param("amount", amount)));
+    }
+}
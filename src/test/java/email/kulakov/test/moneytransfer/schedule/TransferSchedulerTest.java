@@ -0,0 +1,214 @@
+package email.kulakov.test.moneytransfer.schedule;
+
+import email.kulakov.test.moneytransfer.db.LedgerDatastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.db.Transfer;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TransferSchedulerTest {
+
+    private static final long TICK_MILLIS = 100;
+    private static final long START_MILLIS = 1_700_000_000_000L;
+
+    @Rule
+    public TemporaryFolder dataDirectory = new TemporaryFolder();
+
+    private final AtomicLong clock = new AtomicLong(START_MILLIS);
+
+    @Test
+    public void wheelExpiresEntriesAtTheirTickTest() {
+        //given
+        final long start = START_MILLIS / TICK_MILLIS;
+        final TimingWheel wheel = new TimingWheel(start);
+        final Random random = new Random(42);
+        final int entries = 100_000;
+        final long[] due = new long[entries];
+        for (int entry = 0; entry < entries; entry++) {
+            //Up to ~5 days of 100ms ticks, over all levels, and some far beyond the wheel range.
+            due[entry] = start + (entry % 1000 == 0 ? (1L << 33) + entry : random.nextInt(4_000_000));
+            wheel.schedule(entry, due[entry]);
+        }
+        for (int entry = 1; entry < entries; entry += 10) {
+            Assert.assertTrue(wheel.cancel(entry));
+        }
+
+        //when
+        int expired = 0;
+        for (long tick = start + 1; tick <= start + 4_000_000; tick += random.nextInt(50_000) + 1) {
+            wheel.advance(tick);
+            for (int entry = wheel.pollExpired(); entry != TimingWheel.NONE; entry = wheel.pollExpired()) {
+                //then
+                Assert.assertTrue("Entry " + entry + " due " + due[entry] + " expired at " + tick,
+                        due[entry] <= tick && due[entry] > tick - 50_001);
+                Assert.assertNotEquals(1, entry % 10);
+                expired++;
+            }
+        }
+        wheel.advance(start + 4_000_000);
+        while (wheel.pollExpired() != TimingWheel.NONE) {
+            expired++;
+        }
+
+        //then
+        Assert.assertEquals(entries - entries / 10 - entries / 1000, expired);
+        Assert.assertEquals(entries / 1000, wheel.size());
+    }
+
+    @Test
+    public void transfersAreExecutedWhenDueTest() throws Exception {
+        //given
+        final LedgerDatastore datastore = accounts(3, "100.00");
+        final TransferScheduler scheduler = scheduler(datastore, 1000);
+        final long later = scheduler.schedule(1, 2, new BigDecimal("10.00"), START_MILLIS + 5_000);
+        scheduler.schedule(1, 3, new BigDecimal("1.00"), START_MILLIS + 1_050);
+        final long cancelled = scheduler.schedule(1, 3, new BigDecimal("50.00"), START_MILLIS + 2_000);
+        scheduler.schedule(2, 3, new BigDecimal("500.00"), START_MILLIS - 1);
+
+        //when
+        Assert.assertTrue(scheduler.cancel(cancelled));
+        final List<ScheduledTransfer> pending = scheduler.list(1);
+        final int overdue = scheduler.runDue();
+        clock.addAndGet(1_000);
+        final int early = scheduler.runDue();
+        clock.addAndGet(100);
+        final int due = scheduler.runDue();
+
+        //then
+        Assert.assertFalse(scheduler.cancel(cancelled));
+        Assert.assertEquals(2, pending.size());
+        Assert.assertEquals(new BigDecimal("1.00"), pending.get(0).getAmount());
+        Assert.assertEquals(later, pending.get(1).getId());
+        Assert.assertEquals(1, overdue);
+        Assert.assertEquals(1, scheduler.executedCount(OperationResult.NoMoney));
+        Assert.assertEquals(0, early);
+        Assert.assertEquals(1, due);
+        Assert.assertEquals(new BigDecimal("99.00"), datastore.balance(1));
+        Assert.assertEquals(new BigDecimal("101.00"), datastore.balance(3));
+        Assert.assertEquals(1, scheduler.pendingCount());
+    }
+
+    @Test
+    public void dueTransfersAreSpreadByRateLimitTest() throws Exception {
+        //given
+        final LedgerDatastore datastore = accounts(2, "1000.00");
+        //10 per 100ms tick.
+        final TransferScheduler scheduler = scheduler(datastore, 100);
+        for (int i = 0; i < 35; i++) {
+            scheduler.schedule(1, 2, new BigDecimal("1.00"), START_MILLIS + 1_000);
+        }
+
+        //when
+        clock.addAndGet(1_000);
+        final int first = scheduler.runDue();
+        final int again = scheduler.runDue();
+        clock.addAndGet(100);
+        final int second = scheduler.runDue();
+        clock.addAndGet(10_000);
+        final int rest = scheduler.runDue();
+
+        //then
+        Assert.assertEquals(10, first);
+        Assert.assertEquals(0, again);
+        Assert.assertEquals(10, second);
+        Assert.assertEquals(10, rest);
+        Assert.assertEquals(5, scheduler.pendingCount());
+        Assert.assertEquals(new BigDecimal("1030.00"), datastore.balance(2));
+    }
+
+    @Test
+    public void busyTransfersAreScheduledAgainTest() throws Exception {
+        //given
+        final AtomicInteger refusals = new AtomicInteger(1);
+        final LedgerDatastore datastore = new LedgerDatastore() {
+            @Override
+            public List<OperationResult> transferBatch(List<Transfer> transfers, boolean atomic) {
+                if (refusals.getAndDecrement() > 0) {
+                    return Collections.nCopies(transfers.size(), OperationResult.Busy);
+                }
+                return super.transferBatch(transfers, atomic);
+            }
+        };
+        datastore.changeMoney(datastore.createAccount(), new BigDecimal("100.00"));
+        datastore.createAccount();
+        final TransferScheduler scheduler = scheduler(datastore, 1000);
+        final long id = scheduler.schedule(1, 2, new BigDecimal("10.00"), START_MILLIS);
+
+        //when
+        final int refused = scheduler.runDue();
+        final List<ScheduledTransfer> pending = scheduler.list(1);
+        clock.addAndGet(TICK_MILLIS);
+        final int executed = scheduler.runDue();
+
+        //then
+        Assert.assertEquals(1, refused);
+        Assert.assertEquals(1, pending.size());
+        Assert.assertEquals(id, pending.get(0).getId());
+        Assert.assertEquals(1, executed);
+        Assert.assertEquals(1, scheduler.retryCount());
+        Assert.assertEquals(0, scheduler.executedCount(OperationResult.Busy));
+        Assert.assertEquals(1, scheduler.executedCount(OperationResult.Success));
+        Assert.assertEquals(new BigDecimal("10.00"), datastore.balance(2));
+        Assert.assertEquals(0, scheduler.pendingCount());
+        Assert.assertFalse(scheduler.cancel(id));
+    }
+
+    @Test
+    public void pendingTransfersSurviveRestartTest() throws Exception {
+        //given
+        final LedgerDatastore datastore = accounts(2, "100.00");
+        final TransferScheduler scheduler = scheduler(datastore, 1000);
+        final long kept = scheduler.schedule(1, 2, new BigDecimal("1.25"), START_MILLIS + 60_000);
+        final long cancelled = scheduler.schedule(1, 2, new BigDecimal("2.00"), START_MILLIS + 60_000);
+        final long executed = scheduler.schedule(2, 1, new BigDecimal("3.00"), START_MILLIS);
+        scheduler.cancel(cancelled);
+        clock.addAndGet(TICK_MILLIS);
+        scheduler.runDue();
+        scheduler.close();
+
+        //when
+        final TransferScheduler restarted = scheduler(datastore, 1000);
+        final long added = restarted.schedule(2, 1, new BigDecimal("4.00"), START_MILLIS + 30_000);
+        final List<ScheduledTransfer> pending = restarted.list(1);
+
+        //then
+        Assert.assertEquals(1, pending.size());
+        Assert.assertEquals(kept, pending.get(0).getId());
+        Assert.assertEquals(new BigDecimal("1.25"), pending.get(0).getAmount());
+        Assert.assertEquals(START_MILLIS + 60_000, pending.get(0).getDueMillis());
+        //Ids of finished transfers do not match transfers which reuse their slots.
+        Assert.assertNotEquals(cancelled, added);
+        Assert.assertNotEquals(executed, added);
+        Assert.assertFalse(restarted.cancel(cancelled));
+        Assert.assertFalse(restarted.cancel(executed));
+        Assert.assertEquals(2, restarted.pendingCount());
+        restarted.close();
+        final TransferScheduler again = scheduler(datastore, 1000);
+        Assert.assertTrue(again.cancel(added));
+        Assert.assertEquals(1, again.pendingCount());
+        again.close();
+    }
+
+    private TransferScheduler scheduler(LedgerDatastore datastore, int maxTransfersPerSecond) throws Exception {
+        final Path file = dataDirectory.getRoot().toPath().resolve(TransferScheduler.FILE_NAME);
+        return new TransferScheduler(datastore, file, TICK_MILLIS, maxTransfersPerSecond, clock::get, false);
+    }
+
+    private static LedgerDatastore accounts(int count, String balance) {
+        final LedgerDatastore datastore = new LedgerDatastore();
+        for (int i = 0; i < count; i++) {
+            datastore.changeMoney(datastore.createAccount(), new BigDecimal(balance));
+        }
+        return datastore;
+    }
+}
@@ -0,0 +1,160 @@
+package email.kulakov.test.moneytransfer.snapshot;
+
+import email.kulakov.test.moneytransfer.db.ConcurrentDatastore;
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.LedgerDatastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.journal.DurabilityMode;
+import email.kulakov.test.moneytransfer.journal.Journal;
+import email.kulakov.test.moneytransfer.journal.JournalRecovery;
+import email.kulakov.test.moneytransfer.journal.JournalingDatastore;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SnapshotDatastoreTest {
+
+    @Rule
+    public TemporaryFolder dataDirectory = new TemporaryFolder();
+
+    @Test
+    public void snapshotRestoresAccountsTest() throws Exception {
+        //given
+        final Path file = dataDirectory.getRoot().toPath().resolve(SnapshotFile.FILE_NAME);
+        final SnapshotDatastore datastore = new SnapshotDatastore(new ConcurrentDatastore(), file, 0);
+        final long id1 = datastore.createAccount();
+        final long id2 = datastore.createAccount();
+        final long id3 = datastore.createAccount();
+        datastore.changeMoney(id1, new BigDecimal("100.00"));
+        datastore.changeMoney(id3, new BigDecimal("0.001"));
+
+        //when
+        final SnapshotFile.Header header = datastore.snapshot();
+        final Datastore restored = new ConcurrentDatastore();
+        SnapshotFile.restore(file, restored, 2);
+
+        //then
+        Assert.assertEquals(3, header.getAccountCount());
+        Assert.assertEquals(SnapshotFile.NO_JOURNAL, header.getJournalPosition());
+        Assert.assertEquals(0, new BigDecimal("100.00").compareTo(restored.balance(id1)));
+        Assert.assertEquals(0, BigDecimal.ZERO.compareTo(restored.balance(id2)));
+        Assert.assertEquals(new BigDecimal("0.001"), restored.balance(id3));
+        Assert.assertEquals(id3 + 1, restored.createAccount());
+    }
+
+    @Test
+    public void snapshotIsConsistentDuringTransfersTest() throws Exception {
+        //given
+        final Path file = dataDirectory.getRoot().toPath().resolve(SnapshotFile.FILE_NAME);
+        final SnapshotDatastore datastore = new SnapshotDatastore(new LedgerDatastore(), file, 0);
+        final int accounts = 100;
+        for (int i = 0; i < accounts; i++) {
+            datastore.changeMoney(datastore.createAccount(), new BigDecimal("100.00"));
+        }
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final Thread thread = new Thread(() -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get()) {
+                    datastore.transferMoney(1 + random.nextInt(accounts), 1 + random.nextInt(accounts),
+                            new BigDecimal("1.00"));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        //when
+        final List<Datastore> restored = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            datastore.snapshot();
+            final Datastore copy = new LedgerDatastore();
+            SnapshotFile.restore(file, copy, 2);
+            restored.add(copy);
+        }
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        //then
+        for (Datastore copy : restored) {
+            BigDecimal total = BigDecimal.ZERO;
+            for (int i = 1; i <= accounts; i++) {
+                total = total.add(copy.balance(i));
+            }
+            Assert.assertEquals(new BigDecimal("10000.00"), total);
+        }
+    }
+
+    @Test
+    public void journalIsReplayedAfterSnapshotTest() throws Exception {
+        //given
+        final Path directory = dataDirectory.getRoot().toPath();
+        final Journal journal = new Journal(directory.resolve(Journal.FILE_NAME), DurabilityMode.SYNC, 0);
+        final SnapshotDatastore datastore = new SnapshotDatastore(
+                new JournalingDatastore(new LedgerDatastore(), journal), directory.resolve(SnapshotFile.FILE_NAME), 0);
+        final long id1 = datastore.createAccount();
+        final long id2 = datastore.createAccount();
+        datastore.changeMoney(id1, new BigDecimal("100.00"));
+        final SnapshotFile.Header header = datastore.snapshot();
+        Assert.assertEquals(OperationResult.Success, datastore.transferMoney(id1, id2, new BigDecimal("40.00")));
+        journal.close();
+
+        //when
+        final Datastore restored = new LedgerDatastore();
+        SnapshotFile.restore(directory.resolve(SnapshotFile.FILE_NAME), restored, 2);
+        final long records = JournalRecovery.replay(directory.resolve(Journal.FILE_NAME), restored,
+                header.getJournalPosition());
+
+        //then
+        Assert.assertEquals(1, records);
+        Assert.assertEquals(new BigDecimal("60.00"), restored.balance(id1));
+        Assert.assertEquals(new BigDecimal("40.00"), restored.balance(id2));
+    }
+
+    @Test
+    public void closedAndFrozenAccountsAreRestoredTest() throws Exception {
+        //given
+        final Path directory = dataDirectory.getRoot().toPath();
+        final Journal journal = new Journal(directory.resolve(Journal.FILE_NAME), DurabilityMode.SYNC, 0);
+        final SnapshotDatastore datastore = new SnapshotDatastore(
+                new JournalingDatastore(new ConcurrentDatastore(), journal), directory.resolve(SnapshotFile.FILE_NAME), 0);
+        final long firstId = datastore.createAccounts(4);
+        datastore.changeMoney(firstId, new BigDecimal("10.00"));
+        datastore.changeMoney(firstId + 2, new BigDecimal("5.00"));
+        Assert.assertEquals(OperationResult.Success, datastore.closeAccount(firstId + 1));
+        Assert.assertEquals(OperationResult.Success, datastore.closeAccount(firstId + 3));
+        Assert.assertEquals(OperationResult.Success, datastore.freezeAccount(firstId + 2));
+        final SnapshotFile.Header header = datastore.snapshot();
+        Assert.assertEquals(OperationResult.Success, datastore.unfreezeAccount(firstId + 2));
+        Assert.assertEquals(OperationResult.Success, datastore.freezeAccount(firstId));
+        journal.close();
+
+        //when
+        final Datastore restored = new ConcurrentDatastore();
+        SnapshotFile.restore(directory.resolve(SnapshotFile.FILE_NAME), restored, 2);
+        final long records = JournalRecovery.replay(directory.resolve(Journal.FILE_NAME), restored,
+                header.getJournalPosition());
+
+        //then
+        Assert.assertEquals(4, header.getAccountCount());
+        Assert.assertEquals(2, records);
+        Assert.assertNull(restored.balance(firstId + 1));
+        Assert.assertNull(restored.balance(firstId + 3));
+        Assert.assertEquals(new BigDecimal("5.00"), restored.balance(firstId + 2));
+        Assert.assertFalse(restored.isFrozen(firstId + 2));
+        Assert.assertTrue(restored.isFrozen(firstId));
+        Assert.assertEquals(OperationResult.Frozen, restored.changeMoney(firstId, new BigDecimal("-1.00")));
+        Assert.assertEquals(firstId + 4, restored.createAccount());
+    }
+}
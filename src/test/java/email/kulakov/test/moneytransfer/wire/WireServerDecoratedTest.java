@@ -0,0 +1,112 @@
+package email.kulakov.test.moneytransfer.wire;
+
+import email.kulakov.test.moneytransfer.db.ConcurrentDatastore;
+import email.kulakov.test.moneytransfer.db.LedgerDatastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import email.kulakov.test.moneytransfer.feed.ChangeFeedDatastore;
+import email.kulakov.test.moneytransfer.metrics.DatastoreMetrics;
+import email.kulakov.test.moneytransfer.metrics.MetricsDatastore;
+import email.kulakov.test.moneytransfer.snapshot.SnapshotDatastore;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+public class WireServerDecoratedTest {
+
+    @Rule
+    public TemporaryFolder dataDirectory = new TemporaryFolder();
+
+    @Test
+    public void minorUnitsPassThroughDecoratorsTest() throws Exception {
+        //given
+        //Writes in BigDecimal would mean a conversion somewhere in the chain.
+        final LedgerDatastore backend = new LedgerDatastore() {
+            @Override
+            public OperationResult changeMoney(long accountId, BigDecimal delta) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public OperationResult transferMoney(long accountFrom, long accountTo, BigDecimal amount) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        final long id1 = backend.createAccount();
+        final long id2 = backend.createAccount();
+        final ChangeFeedDatastore projected = new ChangeFeedDatastore(
+                new SnapshotDatastore(backend, dataDirectory.newFile().toPath(), 0), 1024, 0);
+        final WireServer server = new WireServer(new MetricsDatastore(projected, new DatastoreMetrics()), 0, 1);
+        server.start();
+        final ByteBuffer request = ByteBuffer.allocate(128).order(ByteOrder.LITTLE_ENDIAN);
+        request.putInt(1 + 16).put(WireProtocol.CHANGE_MONEY).putLong(id1).putLong(10000);
+        request.putInt(1 + 24).put(WireProtocol.TRANSFER_MONEY).putLong(id1).putLong(id2).putLong(3050);
+        request.putInt(1 + 8).put(WireProtocol.BALANCE).putLong(id2);
+        request.flip();
+
+        //when
+        final ByteBuffer response = ByteBuffer.allocate(3 * 5 + 8).order(ByteOrder.LITTLE_ENDIAN);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", server.port()))) {
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+            while (response.hasRemaining()) {
+                Assert.assertTrue(channel.read(response) >= 0);
+            }
+        } finally {
+            server.close();
+            projected.close();
+        }
+        response.flip();
+
+        //then
+        Assert.assertEquals(1, response.getInt());
+        Assert.assertEquals(OperationResult.Success, WireProtocol.result(response.get()));
+        Assert.assertEquals(1, response.getInt());
+        Assert.assertEquals(OperationResult.Success, WireProtocol.result(response.get()));
+        Assert.assertEquals(1 + 8, response.getInt());
+        Assert.assertEquals(OperationResult.Success, WireProtocol.result(response.get()));
+        Assert.assertEquals(3050, response.getLong());
+        Assert.assertEquals(6950, backend.balanceMinor(id1));
+    }
+
+    @Test
+    public void balanceWithMoreFractionDigitsIsWrongAmountTest() throws Exception {
+        //given
+        final ConcurrentDatastore backend = new ConcurrentDatastore();
+        final long id1 = backend.createAccount();
+        Assert.assertEquals(OperationResult.Success, backend.changeMoney(id1, new BigDecimal("0.001")));
+        final WireServer server = new WireServer(new MetricsDatastore(backend, new DatastoreMetrics()), 0, 1);
+        server.start();
+        final ByteBuffer request = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        request.putInt(1 + 8).put(WireProtocol.BALANCE).putLong(id1);
+        request.putInt(1 + 8).put(WireProtocol.BALANCE).putLong(id1 + 1);
+        request.flip();
+
+        //when
+        final ByteBuffer response = ByteBuffer.allocate(2 * 5).order(ByteOrder.LITTLE_ENDIAN);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", server.port()))) {
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+            while (response.hasRemaining()) {
+                Assert.assertTrue(channel.read(response) >= 0);
+            }
+        } finally {
+            server.close();
+        }
+        response.flip();
+
+        //then
+        Assert.assertEquals(1, response.getInt());
+        Assert.assertEquals(OperationResult.WrongAmount, WireProtocol.result(response.get()));
+        Assert.assertEquals(1, response.getInt());
+        Assert.assertEquals(OperationResult.NoAccount, WireProtocol.result(response.get()));
+    }
+}
@@ -0,0 +1,145 @@
+package email.kulakov.test.moneytransfer.wire;
+
+import email.kulakov.test.moneytransfer.db.ConcurrentDatastore;
+import email.kulakov.test.moneytransfer.db.Datastore;
+import email.kulakov.test.moneytransfer.db.LedgerDatastore;
+import email.kulakov.test.moneytransfer.db.OperationResult;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+@RunWith(value = Parameterized.class)
+public class WireServerTest {
+
+    private final Class<? extends Datastore> datastoreClass;
+    private Datastore datastore;
+    private WireServer server;
+    private SocketChannel channel;
+
+    @Parameterized.Parameters
+    public static Object[] data() {
+        //Ledger is served in minor units directly, Concurrent through BigDecimal.
+        return new Object[]{LedgerDatastore.class, ConcurrentDatastore.class};
+    }
+
+    public WireServerTest(Class<? extends Datastore> datastoreClass) {
+        this.datastoreClass = datastoreClass;
+    }
+
+    @Before
+    public void prepare() throws Exception {
+        datastore = datastoreClass.newInstance();
+        server = new WireServer(datastore, 0, 2);
+        server.start();
+        channel = SocketChannel.open(new InetSocketAddress("localhost", server.port()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.close();
+        server.close();
+    }
+
+    @Test
+    public void pipelinedRequestsTest() throws Exception {
+        //given
+        final ByteBuffer request = allocate(256);
+        request.putInt(1).put(WireProtocol.CREATE);
+        request.putInt(1).put(WireProtocol.CREATE);
+        request.putInt(1 + 16).put(WireProtocol.CHANGE_MONEY).putLong(1).putLong(10000);
+        request.putInt(1 + 24).put(WireProtocol.TRANSFER_MONEY).putLong(1).putLong(2).putLong(3050);
+        request.putInt(1 + 24).put(WireProtocol.TRANSFER_MONEY).putLong(2).putLong(1).putLong(5000);
+        request.putInt(1 + 8).put(WireProtocol.BALANCE).putLong(2);
+        request.putInt(1 + 8).put(WireProtocol.BALANCE).putLong(3);
+
+        //when
+        send(request);
+
+        //then
+        Assert.assertEquals(1, receive(OperationResult.Success, 8).getLong());
+        Assert.assertEquals(2, receive(OperationResult.Success, 8).getLong());
+        receive(OperationResult.Success, 0);
+        receive(OperationResult.Success, 0);
+        receive(OperationResult.NoMoney, 0);
+        Assert.assertEquals(3050, receive(OperationResult.Success, 8).getLong());
+        receive(OperationResult.NoAccount, 0);
+        Assert.assertEquals(new BigDecimal("69.50"), datastore.balance(1));
+    }
+
+    @Test
+    public void transferBatchTest() throws Exception {
+        //given
+        final long id1 = datastore.createAccount();
+        final long id2 = datastore.createAccount();
+        datastore.changeMoney(id1, new BigDecimal("100.00"));
+        final ByteBuffer request = allocate(128);
+        request.putInt(1 + 1 + 4 + 2 * 24).put(WireProtocol.TRANSFER_BATCH).put((byte) 1).putInt(2)
+                .putLong(id1).putLong(id2).putLong(3000)
+                .putLong(id2).putLong(id2 + 1).putLong(1000);
+
+        //when
+        send(request);
+
+        //then
+        final ByteBuffer response = receive(OperationResult.Success, 4 + 2);
+        Assert.assertEquals(2, response.getInt());
+        Assert.assertEquals(OperationResult.Aborted, WireProtocol.result(response.get()));
+        Assert.assertEquals(OperationResult.NoAccount, WireProtocol.result(response.get()));
+        Assert.assertEquals(new BigDecimal("100.00"), datastore.balance(id1));
+    }
+
+    @Test
+    public void malformedFrameClosesConnectionTest() throws Exception {
+        //given
+        final ByteBuffer request = allocate(16);
+        request.putInt(1 + 3).put((byte) 42).put(new byte[3]);
+
+        //when
+        send(request);
+
+        //then
+        final ByteBuffer response = read(5);
+        Assert.assertEquals(1, response.getInt());
+        Assert.assertEquals(WireProtocol.MALFORMED, response.get());
+        Assert.assertEquals(-1, channel.read(allocate(1)));
+    }
+
+    private void send(ByteBuffer request) throws IOException {
+        request.flip();
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+    }
+
+    private ByteBuffer receive(OperationResult expected, int payloadLength) throws IOException {
+        final ByteBuffer response = read(WireProtocol.LENGTH_SIZE + 1 + payloadLength);
+        Assert.assertEquals(1 + payloadLength, response.getInt());
+        Assert.assertEquals(expected, WireProtocol.result(response.get()));
+        return response;
+    }
+
+    private ByteBuffer read(int size) throws IOException {
+        final ByteBuffer buffer = allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Connection closed");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}